@@ -0,0 +1,41 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+/**
+ * Archive a folder is exported as, see {@link AzureBlobDownload#exportFolder(String, java.io.OutputStream, ArchiveFormat)}.
+ */
+public enum ArchiveFormat {
+
+    /**
+     * ZIP, the entries are deflated.
+     */
+    ZIP,
+
+    /**
+     * POSIX tar, the entries are stored as they are. Names longer than the header allows and blobs of 8 GB or more
+     * are described by PAX extended headers.
+     */
+    TAR
+}
@@ -0,0 +1,650 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implements writing a log to Azure append blobs. Writes from any number of threads are gathered in memory and
+ * appended as one block once the oldest has waited {@link #setMaxDelay(long)} or a block is full, so many small
+ * records cost a few large requests. A record is never split between two blocks unless it is larger than a block.
+ * <p>
+ * Writes return as soon as the record is buffered. {@link #writeAcknowledged(byte[])} returns a future completed once
+ * the record is stored, {@link #flush()} waits for everything written so far. Once a blob has
+ * {@link #setMaxBlocks(int)} blocks the writer rolls over to a new blob named after the first one, see
+ * {@link #getBlobNames()}. The blobs are created, replacing any of the same name, when the writer needs them.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     try (AzureBlobAppendWriter writer = new AzureBlobAppendWriter("account name", "account key", "container name", "logs/app.log")) {
+ *         writer.write("started\n".getBytes(StandardCharsets.UTF_8));
+ *         writer.writeAcknowledged("committed\n".getBytes(StandardCharsets.UTF_8)).join();
+ *     }
+ *     }
+ * </pre>
+ */
+public class AzureBlobAppendWriter extends OutputStream {
+
+    /**
+     * Default time a write waits for others to share its block, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_DELAY = 200;
+
+    /**
+     * Default number of bytes buffered before the writes wait for the appends.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8 * StorageUtils.MAX_APPEND_BLOCK_SIZE;
+
+    /**
+     * Number of times an append failing with a server error is tried.
+     */
+    private static final int APPEND_ATTEMPTS = 3;
+
+    /**
+     * Wait before the second attempt of an append, doubled after every attempt.
+     */
+    private static final long FIRST_RETRY_MILLIS = 200;
+
+    /**
+     * Account name, it's usually your container name.
+     */
+    private String accountName;
+
+    /**
+     * Account key.
+     */
+    private String accountKey;
+
+    /**
+     * Your container name.
+     */
+    private String containerName;
+
+    /**
+     * Enable HTTPS while using this
+     */
+    private boolean useHttps;
+
+    /**
+     * Storage backend, connects to the storage account on first use if none was given.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * Name of the first blob, the next ones are named after it.
+     */
+    private String blobName;
+
+    private long maxDelay = DEFAULT_MAX_DELAY;
+
+    private int maxBlockSize = StorageUtils.MAX_APPEND_BLOCK_SIZE;
+
+    private int maxBlocks = StorageUtils.MAX_APPEND_BLOCKS;
+
+    private long bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Guards the buffered blocks and the counters, notified whenever they change.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Block being filled by the writes.
+     */
+    private Block current;
+
+    /**
+     * Full blocks waiting for their append.
+     */
+    private final Deque<Block> sealed = new ArrayDeque<>();
+
+    /**
+     * Block being appended.
+     */
+    private Block appending;
+
+    /**
+     * Bytes written and bytes stored since the writer was created.
+     */
+    private long written;
+
+    private long committed;
+
+    private boolean flushRequested;
+
+    private boolean closed;
+
+    private IOException error;
+
+    private Thread appender;
+
+    /**
+     * Blobs written, in order. The last one is being appended to.
+     */
+    private final List<String> blobNames = new CopyOnWriteArrayList<>();
+
+    /**
+     * Length and number of blocks of the last blob, used by the appender thread only.
+     */
+    private long blobLength;
+
+    private int blobBlocks;
+
+    private final AtomicLong appendCount = new AtomicLong();
+
+    private static final Logger LOGGER = LogManager.getLogger(AzureBlobAppendWriter.class.getName());
+
+    /**
+     * Implements writing a log to Azure append blobs.
+     *
+     * @param accountName   Account name from your <strong>Access Keys</strong>.
+     * @param accountKey    Account key from your <strong>Access Keys</strong>.
+     * @param containerName Container name you want to write to or create.
+     * @param blobName      Blob path with file name of the first blob.
+     * @param useHttps      <code>true</code> to use HTTPS to connect to the storage service endpoints;
+     *                      otherwise, <code>false</code>. Defaults to <code>true</code>.
+     */
+    public AzureBlobAppendWriter(String accountName, String accountKey, String containerName, String blobName, boolean useHttps) {
+        this.accountName = accountName;
+        this.accountKey = accountKey;
+        this.containerName = containerName;
+        this.blobName = blobName;
+        this.useHttps = useHttps;
+        LOGGER.traceEntry();
+        LOGGER.debug("Account Name: {}, Container Name: {}, Blob Name: {}, Use HTTPS?: {}", this.accountName, this.containerName, this.blobName, this.useHttps);
+    }
+
+    /**
+     * Implements writing a log to Azure append blobs with HTTPS.
+     *
+     * @param accountName   Account name from your <strong>Access Keys</strong>.
+     * @param accountKey    Account key from your <strong>Access Keys</strong>.
+     * @param containerName Container name you want to write to or create.
+     * @param blobName      Blob path with file name of the first blob.
+     */
+    public AzureBlobAppendWriter(String accountName, String accountKey, String containerName, String blobName) {
+        this(accountName, accountKey, containerName, blobName, true);
+    }
+
+    /**
+     * Implements writing a log to the append blobs of a {@link BlobStore}.
+     *
+     * @param blobStore Storage backend, for example {@link InMemoryBlobStore} or {@link LocalFileBlobStore}.
+     * @param blobName  Blob path with file name of the first blob.
+     */
+    public AzureBlobAppendWriter(BlobStore blobStore, String blobName) {
+        this.blobStore = blobStore;
+        this.containerName = blobStore.getContainerName();
+        this.blobName = blobName;
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: {}, Blob Name: {}", this.containerName, this.blobName);
+    }
+
+    /**
+     * The storage backend, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getBlobStore() throws URISyntaxException, StorageException {
+        if (this.blobStore == null) {
+            this.blobStore = new AzureBlobStore(this.accountName, this.accountKey, this.containerName, this.useHttps);
+        }
+        return this.blobStore;
+    }
+
+    /**
+     * Sets how long a write waits for others to share its block, defaults to {@link #DEFAULT_MAX_DELAY}. Longer
+     * delays make fewer and larger appends.
+     *
+     * @param maxDelay Delay in milliseconds.
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Sets the largest block appended, defaults to and cannot exceed {@link StorageUtils#MAX_APPEND_BLOCK_SIZE}.
+     *
+     * @param maxBlockSize Size in bytes.
+     */
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSize = Math.min(maxBlockSize, StorageUtils.MAX_APPEND_BLOCK_SIZE);
+    }
+
+    /**
+     * Sets the number of blocks appended to a blob before rolling over to the next one, defaults to and cannot
+     * exceed {@link StorageUtils#MAX_APPEND_BLOCKS}.
+     *
+     * @param maxBlocks Number of blocks.
+     */
+    public void setMaxBlocks(int maxBlocks) {
+        this.maxBlocks = Math.min(maxBlocks, StorageUtils.MAX_APPEND_BLOCKS);
+    }
+
+    /**
+     * Sets the number of bytes buffered before the writes wait for the appends to catch up, defaults to
+     * {@link #DEFAULT_BUFFER_SIZE}.
+     *
+     * @param bufferSize Size in bytes.
+     */
+    public void setBufferSize(long bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Names of the blobs written so far, in order. The first is the blob name given, the next ones have their number
+     * before the extension, <code>logs/app.log</code> is followed by <code>logs/app.1.log</code>.
+     *
+     * @return Blob names.
+     */
+    public List<String> getBlobNames() {
+        return new ArrayList<>(blobNames);
+    }
+
+    /**
+     * Number of blocks appended, each is one request.
+     *
+     * @return Number of appends.
+     */
+    public long getAppendCount() {
+        return appendCount.get();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        buffer(b, off, len, null);
+    }
+
+    /**
+     * Writes a record and returns once it is buffered.
+     *
+     * @param record Contents of the record.
+     * @return Completed once the record is stored, or exceptionally if its append failed.
+     * @throws IOException If the writer is closed or an earlier append failed.
+     */
+    public CompletableFuture<Void> writeAcknowledged(byte[] record) throws IOException {
+        return writeAcknowledged(record, 0, record.length);
+    }
+
+    /**
+     * Writes a record and returns once it is buffered.
+     *
+     * @param b   Buffer holding the record.
+     * @param off Offset of the record in the buffer.
+     * @param len Length of the record.
+     * @return Completed once the record is stored, or exceptionally if its append failed.
+     * @throws IOException If the writer is closed or an earlier append failed.
+     */
+    public CompletableFuture<Void> writeAcknowledged(byte[] b, int off, int len) throws IOException {
+        CompletableFuture<Void> acknowledgement = new CompletableFuture<>();
+        buffer(b, off, len, acknowledgement);
+        return acknowledgement;
+    }
+
+    /**
+     * Appends the buffered writes now and waits until everything written before the call is stored.
+     *
+     * @throws IOException If an append failed.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            long target = written;
+            flushRequested = true;
+            lock.notifyAll();
+            while (committed < target && error == null) {
+                waitForAppender();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Appends the buffered writes, waits until they are stored and stops the writer.
+     *
+     * @throws IOException If an append failed.
+     */
+    @Override
+    public void close() throws IOException {
+        LOGGER.traceEntry();
+        Thread thread;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushRequested = true;
+            lock.notifyAll();
+            thread = appender;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing " + blobName);
+            }
+        }
+        synchronized (lock) {
+            if (error != null) {
+                throw error;
+            }
+        }
+        LOGGER.debug("Blobs written: {}, appends: {}.", blobNames, appendCount.get());
+        LOGGER.traceExit();
+    }
+
+    /**
+     * Copies a record into the blocks, waiting while the buffer is full.
+     *
+     * @param b               Buffer holding the record.
+     * @param off             Offset of the record in the buffer.
+     * @param len             Length of the record.
+     * @param acknowledgement Completed once the record is stored, <code>null</code> for none.
+     * @throws IOException If the writer is closed or an append failed.
+     */
+    private void buffer(byte[] b, int off, int len, CompletableFuture<Void> acknowledgement) throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Writer closed: " + blobName);
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (appender == null) {
+                appender = new Thread(this::append, "append-writer");
+                appender.setDaemon(true);
+                appender.start();
+            }
+
+            // A record larger than the buffer is let through alone.
+            while (written > committed && written - committed + len > bufferSize && error == null) {
+                waitForAppender();
+            }
+            if (error != null) {
+                throw error;
+            }
+
+            if (current != null && current.count + len > maxBlockSize) {
+                seal();
+            }
+            while (len > 0 || current == null) {
+                if (current == null) {
+                    current = new Block(System.nanoTime());
+                }
+                int length = Math.min(len, maxBlockSize - current.count);
+                current.write(b, off, length);
+                off += length;
+                len -= length;
+                written += length;
+                if (current.count < maxBlockSize) {
+                    break;
+                }
+                seal();
+            }
+
+            if (acknowledgement != null) {
+                // Blocks are stored in order, the record is stored with the block holding its last byte.
+                Block last = current != null ? current : sealed.peekLast();
+                if (last == null) {
+                    last = appending;
+                }
+                if (last != null) {
+                    last.acknowledgements.add(acknowledgement);
+                } else {
+                    acknowledgement.complete(null);
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues the current block for its append.
+     */
+    private void seal() {
+        sealed.addLast(current);
+        current = null;
+    }
+
+    private void waitForAppender() throws InterruptedIOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing " + blobName);
+        }
+    }
+
+    /**
+     * Appends the blocks in order until the writer is closed, runs on its own thread.
+     */
+    private void append() {
+        long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        while (true) {
+            Block block;
+            synchronized (lock) {
+                try {
+                    while (true) {
+                        if (!sealed.isEmpty()) {
+                            block = sealed.pollFirst();
+                            break;
+                        }
+                        if (current != null) {
+                            long wait = current.firstWrite + maxDelayNanos - System.nanoTime();
+                            if (wait <= 0 || flushRequested || closed) {
+                                // Everything written so far is on its way, later writes gather again.
+                                block = current;
+                                current = null;
+                                flushRequested = false;
+                                break;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                        } else if (closed) {
+                            return;
+                        } else {
+                            flushRequested = false;
+                            lock.wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    fail(new InterruptedIOException("Interrupted while appending to " + blobName));
+                    return;
+                }
+                appending = block;
+            }
+
+            try {
+                appendBlock(block);
+            } catch (URISyntaxException | StorageException e) {
+                LOGGER.error("Append to {} failed: {}.", blobNames.isEmpty() ? blobName : blobNames.get(blobNames.size() - 1), e.toString());
+                fail(new IOException("Append failed: " + blobName, e));
+                return;
+            }
+
+            synchronized (lock) {
+                committed += block.count;
+                appending = null;
+                lock.notifyAll();
+            }
+            for (CompletableFuture<Void> acknowledgement : block.acknowledgements) {
+                acknowledgement.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Appends a block to the last blob, rolling over to a new blob when it is full. A server error is tried again
+     * at the same position, so an append that was stored before its response was lost is not stored twice.
+     *
+     * @param block Block to append.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private void appendBlock(Block block) throws URISyntaxException, StorageException {
+        BlobStore blobStore = getBlobStore();
+        if (blobNames.isEmpty()) {
+            blobStore.createContainerIfNotExists();
+            roll(blobStore);
+        } else if (blobBlocks >= maxBlocks) {
+            roll(blobStore);
+        }
+
+        long retryMillis = FIRST_RETRY_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            String name = blobNames.get(blobNames.size() - 1);
+            try {
+                blobStore.appendBlock(name, block.data, 0, block.count, blobLength);
+                break;
+            } catch (StorageException e) {
+                if (StorageErrorCodeStrings.INVALID_APPEND_POSITION.equals(e.getErrorCode())
+                        && blobStore.getProperties(name).getLength() == blobLength + block.count) {
+                    LOGGER.debug("Append to {} at {} was already stored.", name, blobLength);
+                    break;
+                }
+                if ("BlockCountExceedsLimit".equals(e.getErrorCode())) {
+                    roll(blobStore);
+                    continue;
+                }
+                if (e.getHttpStatusCode() < 500 || attempt >= APPEND_ATTEMPTS) {
+                    throw e;
+                }
+                LOGGER.debug("Append to {} failed, attempt: {}, {}.", name, attempt, e.toString());
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw StorageException.translateClientException(interrupted);
+                }
+                retryMillis *= 2;
+            }
+        }
+        blobLength += block.count;
+        blobBlocks++;
+        appendCount.incrementAndGet();
+    }
+
+    /**
+     * Creates the next blob.
+     *
+     * @param blobStore Storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private void roll(BlobStore blobStore) throws URISyntaxException, StorageException {
+        int number = blobNames.size();
+        String name = number == 0 ? blobName : FilenameUtils.removeExtension(blobName) + "." + number
+                + (FilenameUtils.getExtension(blobName).isEmpty() ? "" : "." + FilenameUtils.getExtension(blobName));
+        blobStore.createAppendBlob(name);
+        blobNames.add(name);
+        blobLength = 0;
+        blobBlocks = 0;
+        LOGGER.debug("Appending to: {}.", name);
+    }
+
+    /**
+     * Fails every write not stored yet, the writer cannot be used afterwards.
+     *
+     * @param e Cause of the failure.
+     */
+    private void fail(IOException e) {
+        List<Block> lost = new ArrayList<>();
+        synchronized (lock) {
+            error = e;
+            if (appending != null) {
+                lost.add(appending);
+            }
+            lost.addAll(sealed);
+            if (current != null) {
+                lost.add(current);
+            }
+            appending = null;
+            sealed.clear();
+            current = null;
+            lock.notifyAll();
+        }
+        for (Block block : lost) {
+            for (CompletableFuture<Void> acknowledgement : block.acknowledgements) {
+                acknowledgement.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Contents of one append, grown as the writes arrive.
+     */
+    private static class Block {
+
+        private byte[] data = new byte[4096];
+
+        private int count;
+
+        /**
+         * Time of the first write, from {@link System#nanoTime()}.
+         */
+        private long firstWrite;
+
+        private List<CompletableFuture<Void>> acknowledgements = new ArrayList<>();
+
+        Block(long firstWrite) {
+            this.firstWrite = firstWrite;
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (count + len > data.length) {
+                data = Arrays.copyOf(data, Math.max(count + len, data.length * 2));
+            }
+            System.arraycopy(b, off, data, count, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements copying and moving blobs between containers, of the same or of different storage accounts. The copies
+ * are done by the service, the contents never go through this host.
+ */
+public class AzureBlobCopy {
+
+    /**
+     * Account name, it's usually your container name.
+     */
+    private String accountName;
+
+    /**
+     * Account key.
+     */
+    private String accountKey;
+
+    /**
+     * Container the blobs are copied from.
+     */
+    private String sourceContainerName;
+
+    /**
+     * Container the blobs are copied to.
+     */
+    private String targetContainerName;
+
+    /**
+     * Enable HTTPS while using this
+     */
+    private boolean useHttps;
+
+    /**
+     * Storage backend the blobs are copied from, connects to the storage account on first use if none was given.
+     */
+    private BlobStore source;
+
+    /**
+     * Storage backend the blobs are copied to, connects to the storage account on first use if none was given.
+     */
+    private BlobStore target;
+
+    /**
+     * Number of copies the folder operations start at once.
+     */
+    private int concurrency = BlobPipeline.DEFAULT_WORKERS;
+
+    /**
+     * Wait before the first check of the pending copies, doubled after every check.
+     */
+    private static final long FIRST_POLL_MILLIS = 200;
+
+    /**
+     * Longest wait between two checks of the pending copies.
+     */
+    private static final long MAX_POLL_MILLIS = 10000;
+
+    private static final Logger LOGGER = LogManager.getLogger(AzureBlobCopy.class.getName());
+
+    /**
+     * Implements copying blobs between two containers of a storage account.
+     *
+     * @param accountName         Account name from your <strong>Access Keys</strong>.
+     * @param accountKey          Account key from your <strong>Access Keys</strong>.
+     * @param sourceContainerName Container the blobs are copied from.
+     * @param targetContainerName Container the blobs are copied to, can be the source container.
+     * @param useHttps            <code>true</code> to use HTTPS to connect to the storage service endpoints;
+     *                            otherwise, <code>false</code>. Defaults to <code>true</code>.
+     */
+    public AzureBlobCopy(String accountName, String accountKey, String sourceContainerName, String targetContainerName, boolean useHttps) {
+        this.accountName = accountName;
+        this.accountKey = accountKey;
+        this.sourceContainerName = sourceContainerName;
+        this.targetContainerName = targetContainerName;
+        this.useHttps = useHttps;
+        LOGGER.traceEntry();
+        LOGGER.debug("Account Name: {}, Source Container: {}, Target Container: {}, Use HTTPS?: {}", this.accountName,
+                this.sourceContainerName, this.targetContainerName, this.useHttps);
+    }
+
+    /**
+     * Implements copying blobs between two containers of a storage account with HTTPS as <code>true</code> by default.
+     *
+     * @param accountName         Account name from your <strong>Access Keys</strong>.
+     * @param accountKey          Account key from your <strong>Access Keys</strong>.
+     * @param sourceContainerName Container the blobs are copied from.
+     * @param targetContainerName Container the blobs are copied to, can be the source container.
+     */
+    public AzureBlobCopy(String accountName, String accountKey, String sourceContainerName, String targetContainerName) {
+        this(accountName, accountKey, sourceContainerName, targetContainerName, true);
+    }
+
+    /**
+     * Implements copying blobs between two {@link BlobStore}s. Between two {@link AzureBlobStore}s of different
+     * accounts the service reads the source with a short-lived signature, the source store must be created with an
+     * account key.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobCopy blobCopy = new AzureBlobCopy(
+     *             new AzureBlobStore("account name", "account key", "container name", true),
+     *             new AzureBlobStore("other account name", "other account key", "container name", true));
+     *     }
+     * </pre>
+     *
+     * @param source Storage backend the blobs are copied from.
+     * @param target Storage backend the blobs are copied to.
+     */
+    public AzureBlobCopy(BlobStore source, BlobStore target) {
+        this.source = source;
+        this.target = target;
+        this.sourceContainerName = source.getContainerName();
+        this.targetContainerName = target.getContainerName();
+        LOGGER.traceEntry();
+        LOGGER.debug("Source Container: {}, Target Container: {}", this.sourceContainerName, this.targetContainerName);
+    }
+
+    /**
+     * Sets the number of copies the folder operations start at once, defaults to <code>8</code>. The copies are
+     * started while the folder is still being listed.
+     *
+     * @param concurrency Number of copies started at once.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * The storage backend of the source container, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getSource() throws URISyntaxException, StorageException {
+        if (this.source == null) {
+            this.source = new AzureBlobStore(this.accountName, this.accountKey, this.sourceContainerName, this.useHttps);
+        }
+        return this.source;
+    }
+
+    /**
+     * The storage backend of the target container, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getTarget() throws URISyntaxException, StorageException {
+        if (this.target == null) {
+            this.target = new AzureBlobStore(this.accountName, this.accountKey, this.targetContainerName, this.useHttps);
+        }
+        return this.target;
+    }
+
+    /**
+     * Copies a file, blocks until the copy is done.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobCopy blobCopy = new AzureBlobCopy("account name", "account key", "source container", "target container");
+     *     URI uri = blobCopy.copyFile("blob/path/fileName.txt", "other/path/fileName.txt");
+     *     }
+     * </pre>
+     *
+     * @param sourceName Blob path with file name in the source container.
+     * @param targetName Blob path with file name in the target container.
+     * @return URI of the copy.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, or the copy failed.
+     */
+    public URI copyFile(String sourceName, String targetName) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("sourceName: {}, targetName: {}.", sourceName, targetName);
+
+        copy(Collections.singletonList(sourceName), Collections.emptyMap(), sourceName, targetName, false);
+
+        LOGGER.traceExit("Copied to: {}.", targetName);
+        return getTarget().getBlobUri(targetName);
+    }
+
+    /**
+     * Moves a file: copies it, checks the copy and deletes the source. The source is kept if it was changed while it
+     * was being copied.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobCopy blobCopy = new AzureBlobCopy("account name", "account key", "source container", "target container");
+     *     URI uri = blobCopy.moveFile("blob/path/fileName.txt", "other/path/fileName.txt");
+     *     }
+     * </pre>
+     *
+     * @param sourceName Blob path with file name in the source container.
+     * @param targetName Blob path with file name in the target container.
+     * @return URI of the moved file.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, or the copy failed or could not be verified.
+     */
+    public URI moveFile(String sourceName, String targetName) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("sourceName: {}, targetName: {}.", sourceName, targetName);
+
+        copy(Collections.singletonList(sourceName), Collections.emptyMap(), sourceName, targetName, true);
+
+        LOGGER.traceExit("Moved to: {}.", targetName);
+        return getTarget().getBlobUri(targetName);
+    }
+
+    /**
+     * Copies every blob under a path, the path is replaced by <code>targetFolderPath</code> in the names of the
+     * copies. Blocks until all the copies are done.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobCopy blobCopy = new AzureBlobCopy("account name", "account key", "source container", "target container");
+     *     URI uri = blobCopy.copyFolder("blob/path/", "other/path/");
+     *     }
+     * </pre>
+     *
+     * @param sourceFolderPath Folder path in the source container.
+     * @param targetFolderPath Folder path in the target container, not within the source folder of the same container.
+     * @return URI of the target folder.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, or a copy failed.
+     */
+    public URI copyFolder(String sourceFolderPath, String targetFolderPath) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("sourceFolderPath: {}, targetFolderPath: {}.", sourceFolderPath, targetFolderPath);
+        checkFolders(sourceFolderPath, targetFolderPath);
+
+        int count = copy(getSource().listBlobs(sourceFolderPath), Collections.emptyMap(), sourceFolderPath, targetFolderPath, false);
+        LOGGER.debug("Number of Files: {}", count);
+
+        LOGGER.traceExit("Copied to: {}.", targetFolderPath);
+        return getTarget().getBlobUri(targetFolderPath);
+    }
+
+    /**
+     * Moves every blob under a path, the path is replaced by <code>targetFolderPath</code> in the names of the
+     * moved blobs. Each source is deleted once its copy is checked. A source changed while being copied is kept and
+     * the move carries on with the other blobs, then fails with a <code>412</code> naming the sources kept.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobCopy blobCopy = new AzureBlobCopy("account name", "account key", "source container", "target container");
+     *     URI uri = blobCopy.moveFolder("blob/path/", "other/path/");
+     *     }
+     * </pre>
+     *
+     * @param sourceFolderPath Folder path in the source container.
+     * @param targetFolderPath Folder path in the target container, not within the source folder of the same container.
+     * @return URI of the target folder.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, or a copy failed or could not be verified, <code>412</code> once
+     *                            every other blob is moved if sources changed while being copied.
+     */
+    public URI moveFolder(String sourceFolderPath, String targetFolderPath) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("sourceFolderPath: {}, targetFolderPath: {}.", sourceFolderPath, targetFolderPath);
+        checkFolders(sourceFolderPath, targetFolderPath);
+
+        // The listing gives the length and ETag each copy is checked against, without a request per blob.
+        Map<String, BlobItem> listed = new ConcurrentHashMap<>();
+        Iterable<BlobItem> blobItems = getSource().listBlobItems(sourceFolderPath, EnumSet.noneOf(BlobListingDetails.class));
+        int count = copy(StorageUtils.blobNames(blobItems, listed), listed, sourceFolderPath, targetFolderPath, true);
+        LOGGER.debug("Number of Files: {}", count);
+
+        LOGGER.traceExit("Moved to: {}.", targetFolderPath);
+        return getTarget().getBlobUri(targetFolderPath);
+    }
+
+    /**
+     * Rejects a target folder within the source folder of the same container: the copies are started while the
+     * source is listed, so the listing would return them and copy them again without end.
+     *
+     * @param sourceFolderPath Folder path in the source container.
+     * @param targetFolderPath Folder path in the target container.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private void checkFolders(String sourceFolderPath, String targetFolderPath) throws URISyntaxException, StorageException {
+        if (targetFolderPath.startsWith(sourceFolderPath) && getSource().getContainerUri().equals(getTarget().getContainerUri())) {
+            throw new IllegalArgumentException("Target folder " + targetFolderPath + " is within the source folder " + sourceFolderPath);
+        }
+    }
+
+    /**
+     * Starts the copies while the blobs are listed, then checks the pending ones, less and less often, until they
+     * are all done. Sources of a move changed while being copied are kept and reported once the others are done.
+     *
+     * @param sourceNames      Blobs to copy.
+     * @param listed           Properties of the blobs to move as listed, taken out once used.
+     * @param sourceFolderPath Prefix of the source names replaced in the target names.
+     * @param targetFolderPath Replacement of the prefix.
+     * @param move             <code>true</code> to delete the sources once copied.
+     * @return Number of blobs copied.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, or a copy failed, <code>412</code> if sources were changed.
+     */
+    private int copy(Iterable<String> sourceNames, Map<String, BlobItem> listed, String sourceFolderPath, String targetFolderPath, boolean move) throws URISyntaxException, StorageException {
+        BlobStore source = getSource();
+        BlobStore target = getTarget();
+        LOGGER.debug("Source Container: {}, Target Container: {}", source.getContainerName(), target.getContainerName());
+
+        Map<String, Copy> pending = new ConcurrentSkipListMap<>();
+        List<StorageException> changed = Collections.synchronizedList(new ArrayList<>());
+        try {
+            int count = new BlobPipeline(this.concurrency, BlobPipeline.DEFAULT_QUEUE_SIZE).run(sourceNames, (index, sourceName) -> {
+                Copy copy = new Copy(sourceName, targetFolderPath + sourceName.substring(sourceFolderPath.length()));
+                // The properties are read before the copy starts so that a later change of the source is noticed.
+                BlobItem sourceItem = listed.remove(sourceName);
+                copy.sourceItem = move && sourceItem == null ? source.getProperties(sourceName) : sourceItem;
+
+                CopyStatus status = target.startCopy(copy.targetName, source, sourceName);
+                LOGGER.debug("Count: {}, Copy of {}: {}.", index + 1, sourceName, status);
+                if (status == CopyStatus.PENDING) {
+                    pending.put(copy.targetName, copy);
+                } else if (move || status != CopyStatus.SUCCESS) {
+                    finish(source, target, copy, target.getProperties(copy.targetName), status, changed);
+                }
+            });
+
+            long wait = FIRST_POLL_MILLIS;
+            while (!pending.isEmpty()) {
+                LOGGER.debug("Pending Copies: {}, Next Check In: {} ms.", pending.size(), wait);
+                TimeUnit.MILLISECONDS.sleep(wait);
+                wait = Math.min(wait * 2, MAX_POLL_MILLIS);
+
+                new BlobPipeline(this.concurrency, BlobPipeline.DEFAULT_QUEUE_SIZE).run(pending.keySet(), (index, targetName) -> {
+                    BlobItem targetItem = target.getProperties(targetName);
+                    if (targetItem.getCopyStatus() != CopyStatus.PENDING) {
+                        finish(source, target, pending.remove(targetName), targetItem, targetItem.getCopyStatus(), changed);
+                    }
+                });
+            }
+
+            if (changed.size() == 1) {
+                throw changed.get(0);
+            } else if (!changed.isEmpty()) {
+                StorageException e = new StorageException(StorageErrorCodeStrings.CONDITION_NOT_MET, changed.size()
+                        + " sources changed while they were copied to " + targetFolderPath + ", they were not deleted", 412, null, null);
+                changed.forEach(e::addSuppressed);
+                throw e;
+            }
+            return count;
+        } catch (IOException | InterruptedException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    /**
+     * Completes a copy that is no longer pending: fails if it did not succeed and, for a move, deletes the source
+     * once the copy is checked against it, only if the source still has the ETag it was copied with. A source that
+     * changed is kept and recorded, so that the other copies carry on.
+     *
+     * @param source     Store the blob was copied from.
+     * @param target     Store the blob was copied to.
+     * @param copy       The copy.
+     * @param targetItem Properties of the copy.
+     * @param status     Final status of the copy.
+     * @param changed    Errors of the sources that changed while they were copied.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, or the copy failed or could not be verified.
+     */
+    private static void finish(BlobStore source, BlobStore target, Copy copy, BlobItem targetItem, CopyStatus status, List<StorageException> changed) throws URISyntaxException, StorageException {
+        if (status != CopyStatus.SUCCESS) {
+            throw new StorageException("CopyFailed", "Copy of " + copy.sourceName + " to " + copy.targetName + " " + status
+                    + ": " + targetItem.getCopyStatusDescription(), 500, null, null);
+        }
+        if (copy.sourceItem == null) {
+            return;
+        }
+
+        if (targetItem.getLength() != copy.sourceItem.getLength()) {
+            throw new StorageException("CopyFailed", "Copy of " + copy.sourceName + " to " + copy.targetName + " has "
+                    + targetItem.getLength() + " bytes instead of " + copy.sourceItem.getLength(), 500, null, null);
+        }
+        try {
+            // The ETag is checked by the delete itself, a write landing after a separate check would be lost.
+            source.delete(copy.sourceName, copy.sourceItem.getEtag());
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() != 412) {
+                throw e;
+            }
+            LOGGER.warn("Source {} changed while it was copied to {}, it was not deleted.", copy.sourceName, copy.targetName);
+            changed.add(new StorageException(StorageErrorCodeStrings.CONDITION_NOT_MET, "Source " + copy.sourceName
+                    + " changed while it was copied to " + copy.targetName + ", it was not deleted", 412, null, e));
+            return;
+        }
+        LOGGER.debug("Moved: {} to {}.", copy.sourceName, copy.targetName);
+    }
+
+    /**
+     * A copy of a single blob.
+     */
+    private static class Copy {
+
+        private String sourceName;
+
+        private String targetName;
+
+        /**
+         * Properties of the source when the copy was started, <code>null</code> unless the blob is moved.
+         */
+        private BlobItem sourceItem;
+
+        Copy(String sourceName, String targetName) {
+            this.sourceName = sourceName;
+            this.targetName = targetName;
+        }
+    }
+}
@@ -24,12 +24,11 @@
 package com.gollahalli.azure;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
 import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -58,6 +57,16 @@ public class AzureBlobDelete {
      */
     private boolean useHttps;
 
+    /**
+     * Storage backend, connects to the storage account on first use if none was given.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * Number of blobs the folder operations delete at once.
+     */
+    private int concurrency = BlobPipeline.DEFAULT_WORKERS;
+
     private static final Logger LOGGER = LogManager.getLogger(AzureBlobDownload.class.getName());
 
 
@@ -90,6 +99,49 @@ public class AzureBlobDelete {
         this(accountName, accountKey, containerName, true);
     }
 
+    /**
+     * Implements deleting files and blobs from a {@link BlobStore}.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobDelete blobDelete = new AzureBlobDelete(new InMemoryBlobStore("container name"));
+     *     }
+     * </pre>
+     *
+     * @param blobStore Storage backend, for example {@link InMemoryBlobStore} or {@link LocalFileBlobStore}.
+     */
+    public AzureBlobDelete(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        this.containerName = blobStore.getContainerName();
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: {}", this.containerName);
+    }
+
+    /**
+     * Sets the number of blobs the folder operations delete at once, defaults to <code>8</code>. The blobs are
+     * deleted while the folder is still being listed.
+     *
+     * @param concurrency Number of blobs deleted at once.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * The storage backend, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getBlobStore() throws URISyntaxException, StorageException {
+        if (this.blobStore == null) {
+            this.blobStore = new AzureBlobStore(this.accountName, this.accountKey, this.containerName, this.useHttps);
+        }
+        return this.blobStore;
+    }
+
     /**
      * Deletes a file in the given path with the file name.
      * <p>
@@ -110,20 +162,14 @@ public class AzureBlobDelete {
         LOGGER.traceEntry();
         LOGGER.debug("blobPathFileName: {}.", blobPathFileName);
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
-
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlockBlob cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(blobPathFileName);
-        cloudBlockBlob.delete();
-        LOGGER.debug("Deleted: {}.", cloudBlockBlob.getName());
+        blobStore.delete(blobPathFileName);
+        LOGGER.debug("Deleted: {}.", blobPathFileName);
 
         LOGGER.traceExit();
-        return cloudBlockBlob.getUri();
+        return blobStore.getBlobUri(blobPathFileName);
     }
 
     /**
@@ -146,25 +192,21 @@ public class AzureBlobDelete {
         LOGGER.traceEntry();
         LOGGER.debug("blobPathFileName: {}.", blobFolderPath);
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
-
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
-
-        CloudBlockBlob cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(blobFolderPath);
-
-        for (ListBlobItem listBlobItem : cloudBlobContainer.listBlobs(blobFolderPath, true)) {
-            if (listBlobItem instanceof CloudBlob) {
-                LOGGER.debug("Deleted: {}.", ((CloudBlob) listBlobItem).getName());
-                ((CloudBlob) listBlobItem).delete();
-            }
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
+
+        try {
+            int count = new BlobPipeline(this.concurrency, BlobPipeline.DEFAULT_QUEUE_SIZE).run(blobStore.listBlobs(blobFolderPath), (index, blobName) -> {
+                blobStore.delete(blobName);
+                LOGGER.debug("Deleted: {}.", blobName);
+            });
+            LOGGER.debug("Number of Files: {}", count);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
         }
 
         LOGGER.traceExit();
-        return cloudBlockBlob.getUri();
+        return blobStore.getBlobUri(blobFolderPath);
     }
 
     /**
@@ -184,15 +226,10 @@ public class AzureBlobDelete {
     public void deleteContainer() throws URISyntaxException, StorageException {
         LOGGER.traceEntry();
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
-
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        cloudBlobContainer.deleteIfExists();
+        blobStore.deleteContainerIfExists();
         LOGGER.traceExit("Deleted Container: {}.", this.containerName);
     }
 }
@@ -23,22 +23,40 @@
  */
 package com.gollahalli.azure;
 
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
 import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.CloudBlobClient;
-import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
-import javafx.util.Pair;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Implements downloading contents from Azure blob containers.
@@ -65,6 +83,61 @@ public class AzureBlobDownload {
      */
     private boolean useHttps;
 
+    /**
+     * Storage backend, connects to the storage account on first use if none was given.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * Number of blobs the folder operations download at once.
+     */
+    private int concurrency = BlobPipeline.DEFAULT_WORKERS;
+
+    /**
+     * Decompress the blobs according to their Content-Encoding.
+     */
+    private boolean decompress;
+
+    /**
+     * Check the contents of the downloaded blobs.
+     */
+    private boolean verify;
+
+    /**
+     * When the downloaded files are forced to the storage device.
+     */
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+
+    /**
+     * Set the length of the files before writing them when the length of the blob is known.
+     */
+    private boolean preallocate = true;
+
+    /**
+     * Buffers the files are written from.
+     */
+    private DirectBufferPool bufferPool = DirectBufferPool.SHARED;
+
+    /**
+     * Budget the memory of the write buffers is taken from.
+     */
+    private TransferMemory transferMemory = TransferMemory.getShared();
+
+    /**
+     * Scheduler the downloads wait for a slot from.
+     */
+    private TransferScheduler transferScheduler = TransferScheduler.getShared();
+
+    /**
+     * Class of the downloads for the scheduler.
+     */
+    private TransferPriority priority = TransferPriority.BULK;
+
+    /**
+     * Deflate level of the ZIP exports.
+     */
+    private int zipLevel = Deflater.DEFAULT_COMPRESSION;
+
     private static final Logger LOGGER = LogManager.getLogger(AzureBlobDownload.class.getName());
 
     /**
@@ -96,6 +169,138 @@ public class AzureBlobDownload {
         this(accountName, accountKey, containerName, true);
     }
 
+    /**
+     * Implements downloading contents from a {@link BlobStore}.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobDownload blobDownload = new AzureBlobDownload(new InMemoryBlobStore("container name"));
+     *     }
+     * </pre>
+     *
+     * @param blobStore Storage backend, for example {@link InMemoryBlobStore} or {@link LocalFileBlobStore}.
+     */
+    public AzureBlobDownload(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        this.containerName = blobStore.getContainerName();
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: {}", this.containerName);
+    }
+
+    /**
+     * Sets the number of blobs the folder operations download at once, defaults to <code>8</code>. The blobs are
+     * downloaded while the folder is still being listed.
+     *
+     * @param concurrency Number of blobs downloaded at once.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets whether blobs are decompressed according to their Content-Encoding when they are downloaded, see
+     * {@link BlobCompression}. This costs one extra request per file download to read the properties of the blob,
+     * folder downloads take them from the listing.
+     *
+     * @param decompress <code>true</code> to decompress, <code>false</code> by default.
+     */
+    public void setDecompress(boolean decompress) {
+        this.decompress = decompress;
+    }
+
+    /**
+     * Sets whether each downloaded blob is checked against its MD5. The MD5 of the bytes received is computed while
+     * they are written to the file, and compared with the Content-MD5 of the blob; a blob that does not match is
+     * downloaded again, up to three times. Blobs without a Content-MD5 are not checked.
+     *
+     * @param verify <code>true</code> to check the downloads, <code>false</code> by default.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Sets when the downloaded files are forced to the storage device, see {@link FsyncPolicy}.
+     *
+     * @param fsyncPolicy {@link FsyncPolicy#NONE} by default.
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Sets whether a file is given the length of its blob before it is written, when the length is known without an
+     * extra request: always for folder downloads, and with {@link #setVerify(boolean)} for single files. Blobs being
+     * decompressed are not preallocated. File systems that allocate on a length change, such as NTFS, then lay the
+     * file out in one piece; others only record the length.
+     *
+     * @param preallocate <code>true</code> by default.
+     */
+    public void setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+    }
+
+    /**
+     * Sets the memory budget the write buffers of the downloads are taken from, see {@link TransferMemory}.
+     *
+     * @param transferMemory The budget, {@link TransferMemory#getShared()} by default.
+     */
+    public void setTransferMemory(TransferMemory transferMemory) {
+        this.transferMemory = transferMemory;
+    }
+
+    /**
+     * Sets the scheduler the downloads wait for a slot from, see {@link TransferScheduler}.
+     *
+     * @param transferScheduler The scheduler, {@link TransferScheduler#getShared()} by default.
+     */
+    public void setTransferScheduler(TransferScheduler transferScheduler) {
+        this.transferScheduler = transferScheduler;
+    }
+
+    /**
+     * Sets the class of the downloads for the {@link TransferScheduler}. Each blob takes one slot for the time of its download.
+     *
+     * @param priority {@link TransferPriority#BULK} by default.
+     */
+    public void setPriority(TransferPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Sets the pool of buffers the files are written from, the pool shared by all downloads by default.
+     *
+     * @param bufferPool Pool of direct buffers.
+     */
+    void setBufferPool(DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Sets the deflate level of the entries of the ZIP exports, see {@link #exportFolder(String, OutputStream, ArchiveFormat)}.
+     * Folders of blobs that are already compressed export faster with {@link Deflater#NO_COMPRESSION}.
+     *
+     * @param zipLevel Level from <code>0</code> to <code>9</code>, {@link Deflater#DEFAULT_COMPRESSION} by default.
+     */
+    public void setZipLevel(int zipLevel) {
+        this.zipLevel = zipLevel;
+    }
+
+    /**
+     * The storage backend, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getBlobStore() throws URISyntaxException, StorageException {
+        if (this.blobStore == null) {
+            this.blobStore = new AzureBlobStore(this.accountName, this.accountKey, this.containerName, this.useHttps);
+        }
+        return this.blobStore;
+    }
+
     /**
      * Download a file from a given blob path of the container.
      * <p>
@@ -118,21 +323,14 @@ public class AzureBlobDownload {
         LOGGER.traceEntry();
         LOGGER.debug("blobPathFileName: {}, saveToPath: {}.", blobPathFileName, saveToPath);
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
-
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
-
-        CloudBlockBlob cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(blobPathFileName);
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
         String fileName = FilenameUtils.getName(blobPathFileName);
         String localPath = FilenameUtils.concat(saveToPath, fileName);
         LOGGER.debug("Complete Path: {}", localPath);
 
-        cloudBlockBlob.downloadToFile(localPath);
+        download(blobStore, blobPathFileName, null, new File(localPath), fsyncPolicy != FsyncPolicy.NONE);
         LOGGER.traceExit("Saved @: {}", localPath);
 
         return localPath;
@@ -184,32 +382,258 @@ public class AzureBlobDownload {
         LOGGER.traceEntry();
         LOGGER.debug("blobFolderPath: {}, saveToPath: {}, keepBlobName?: {}.", blobFolderPath, saveToPath, keepBlobName);
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
+        String blobRootName = FilenameUtils.getName(blobFolderPath);
+        LOGGER.debug("blobRootName: {}", blobRootName);
 
-        Pair relativePaths = StorageUtils.getBlobRelativePaths(cloudBlobContainer, blobFolderPath, saveToPath, keepBlobName);
-        LOGGER.debug("Container Name: {}", relativePaths.toString());
+        // The listing gives the length and MD5 of each blob, which saves reading its properties.
+        Map<String, BlobItem> listed = new ConcurrentHashMap<>();
+        Iterable<String> blobNames = StorageUtils.blobNames(blobStore.listBlobItems(blobFolderPath, EnumSet.of(BlobListingDetails.METADATA)), listed);
 
-        List<String> blobPaths = (List<String>) relativePaths.getKey();
-        List<String> folderFilePaths = (List<String>) relativePaths.getValue();
-        int count = blobPaths.size();
-        int counter = count;
+        Queue<File> written = new ConcurrentLinkedQueue<>();
+        int count = new BlobPipeline(this.concurrency, BlobPipeline.DEFAULT_QUEUE_SIZE).run(blobNames, (index, blobName) -> {
+            File file = new File(FilenameUtils.concat(saveToPath, StorageUtils.relativeBlobName(blobName, blobRootName, keepBlobName)));
+            download(blobStore, blobName, listed.remove(blobName), file, fsyncPolicy == FsyncPolicy.FILE);
+            if (fsyncPolicy == FsyncPolicy.FOLDER) {
+                written.add(file);
+            }
+            LOGGER.debug("Count: {}, File Saved To: {}.", index + 1, file.getPath());
+        });
         LOGGER.debug("Number of Files: {}", count);
 
-        CloudBlockBlob cloudBlockBlob;
-        for (int i = 0; i < count; i++) {
-            cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(blobPaths.get(i));
-            File file = new File(folderFilePaths.get(i));
-            cloudBlockBlob.download(FileUtils.openOutputStream(file, true));
-            LOGGER.debug("Count: {}, File Saved To: {}.", i + 1, file.getPath());
+        for (File file : written) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
         }
 
         LOGGER.traceExit("Saved to: {}.", saveToPath);
         return saveToPath;
     }
+
+    /**
+     * Writes a blob folder and its contents to a stream as a ZIP or tar archive, without temporary files. The first
+     * entry is written as soon as the first page of the listing is in; the blobs are read with ranged requests, up to
+     * {@link #setConcurrency(int)} of them fetched ahead of the entry being written, so small blobs are fetched that
+     * many at once. The blobs are archived as stored, {@link #setDecompress(boolean)} does not apply.
+     * <p>
+     * The stream is not closed. If a blob cannot be read, the archive is left without its end, so that the receiver
+     * does not take it for a complete one.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobDownload blobDownload = new AzureBlobDownload("account name", "account key", "container name");
+     *     int count = blobDownload.exportFolder("blob/path/", response.getOutputStream(), ArchiveFormat.ZIP);
+     *     }
+     * </pre>
+     *
+     * @param blobFolderPath Folder path on the container to export.
+     * @param outputStream   Stream the archive is written to.
+     * @param format         Format of the archive.
+     * @return Number of blobs exported.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error while listing.
+     * @throws IOException        If a blob cannot be read or the archive cannot be written.
+     */
+    public int exportFolder(String blobFolderPath, OutputStream outputStream, ArchiveFormat format) throws URISyntaxException, StorageException, IOException {
+        return exportFolder(blobFolderPath, outputStream, format, true);
+    }
+
+    /**
+     * Writes a blob folder and its contents to a stream as a ZIP or tar archive, see
+     * {@link #exportFolder(String, OutputStream, ArchiveFormat)}.
+     *
+     * @param blobFolderPath Folder path on the container to export.
+     * @param outputStream   Stream the archive is written to.
+     * @param format         Format of the archive.
+     * @param keepBlobName   Keep the root name of the folder in the names of the entries.
+     * @return Number of blobs exported.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error while listing.
+     * @throws IOException        If a blob cannot be read or the archive cannot be written.
+     */
+    public int exportFolder(String blobFolderPath, OutputStream outputStream, ArchiveFormat format, boolean keepBlobName) throws URISyntaxException, StorageException, IOException {
+        LOGGER.traceEntry();
+        LOGGER.debug("blobFolderPath: {}, format: {}, keepBlobName?: {}.", blobFolderPath, format, keepBlobName);
+
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
+
+        String blobRootName = FilenameUtils.getName(blobFolderPath);
+        OutputStream archive;
+        if (format == ArchiveFormat.ZIP) {
+            ZipOutputStream zipOutputStream = new ZipOutputStream(CloseShieldOutputStream.wrap(outputStream));
+            zipOutputStream.setLevel(zipLevel);
+            archive = zipOutputStream;
+        } else {
+            archive = new TarOutputStream(outputStream);
+        }
+
+        // The blobs are read in batches, so that the listing does not have to be complete before the first entry.
+        Iterator<BlobItem> blobs = blobStore.listBlobItems(blobFolderPath, EnumSet.noneOf(BlobListingDetails.class)).iterator();
+        List<BlobItem> batch = new ArrayList<>();
+        int count = 0;
+        try {
+            while (blobs.hasNext()) {
+                batch.clear();
+                while (batch.size() < BlobPipeline.DEFAULT_QUEUE_SIZE && blobs.hasNext()) {
+                    batch.add(blobs.next());
+                }
+                export(blobStore, batch, archive, blobRootName, keepBlobName);
+                count += batch.size();
+                LOGGER.debug("Count: {}, Last Entry: {}.", count, batch.get(batch.size() - 1));
+            }
+        } catch (RuntimeException e) {
+            // Lazy listings report their errors while iterating.
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw e;
+        }
+        archive.close();
+
+        LOGGER.traceExit("Exported: {}.", count);
+        return count;
+    }
+
+    /**
+     * Writes listed blobs to an archive, reading them as one stream.
+     *
+     * @param blobStore    {@link BlobStore} object.
+     * @param blobs        Blobs to write, with their lengths.
+     * @param archive      A {@link ZipOutputStream} or a {@link TarOutputStream}.
+     * @param blobRootName Name of the exported folder.
+     * @param keepBlobName Keep the root name of the folder in the names of the entries.
+     * @throws IOException If a blob cannot be read, changed since it was listed, or the archive cannot be written.
+     */
+    private void export(BlobStore blobStore, List<BlobItem> blobs, OutputStream archive, String blobRootName, boolean keepBlobName) throws IOException {
+        try (InputStream contents = new BlobReadAheadInputStream(blobStore, blobs, StorageUtils.SDK_BLOCK_SIZE, concurrency,
+                transferMemory, transferScheduler, priority)) {
+            for (BlobItem blob : blobs) {
+                String name = StorageUtils.relativeBlobName(blob.getName(), blobRootName, keepBlobName);
+                long modified = blob.getLastModified() != null ? blob.getLastModified().getTime() : System.currentTimeMillis();
+                if (archive instanceof ZipOutputStream) {
+                    ZipEntry entry = new ZipEntry(name);
+                    entry.setTime(modified);
+                    entry.setSize(blob.getLength());
+                    ((ZipOutputStream) archive).putNextEntry(entry);
+                } else {
+                    ((TarOutputStream) archive).putEntry(name, blob.getLength(), modified);
+                }
+
+                if (IOUtils.copyLarge(contents, archive, 0, blob.getLength()) != blob.getLength()) {
+                    throw new EOFException(blob.getName() + " is shorter than listed, it changed while it was exported");
+                }
+
+                if (archive instanceof ZipOutputStream) {
+                    ((ZipOutputStream) archive).closeEntry();
+                } else {
+                    ((TarOutputStream) archive).closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads a blob to a file, decompressing it if {@link #setDecompress(boolean)} is set and checking it if
+     * {@link #setVerify(boolean)} is set. A blob that does not match its MD5 is downloaded again, the other blobs
+     * being downloaded are not affected.
+     * <p>
+     * The contents are gathered in pooled direct buffers and written to the file channel at their position, the file
+     * being given the length of the blob first when it is known. The blob holds a slot of the
+     * {@link TransferScheduler} for all its attempts.
+     *
+     * @param blobStore {@link BlobStore} object.
+     * @param blobName  Blob path with file name.
+     * @param listed    Properties of the blob from the listing, <code>null</code> to read them if needed.
+     * @param file      File receiving the contents, replaced if it exists.
+     * @param force     Force the file to the storage device once written.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, <code>400 Md5Mismatch</code> if no attempt matched.
+     * @throws IOException        If the file cannot be written.
+     */
+    private void download(BlobStore blobStore, String blobName, BlobItem listed, File file, boolean force) throws URISyntaxException, StorageException, IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            FileUtils.forceMkdir(parent);
+        }
+        TransferPriority priority = this.priority;
+        transferScheduler.acquire(priority);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                // A retry reads the properties again, the blob may have been replaced.
+                BlobItem blob = attempt == 1 && listed != null ? listed : decompress || verify ? blobStore.getProperties(blobName) : null;
+                MessageDigest digest = verify ? FileHashCache.newMd5() : null;
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                     FileChannel channel = randomAccessFile.getChannel();
+                     FileChannelOutputStream outputStream = new FileChannelOutputStream(channel, 0, bufferPool, transferMemory)) {
+                    if (preallocate && blob != null && !decompress && blob.getLength() > 0) {
+                        randomAccessFile.setLength(blob.getLength());
+                    }
+                    download(blobStore, blob, blobName, digest, outputStream);
+                    outputStream.flush();
+                    // Drops what is left of a longer file being replaced, or of a blob shorter than listed.
+                    channel.truncate(outputStream.getPosition());
+                    if (force) {
+                        channel.force(true);
+                    }
+                } catch (ZipException e) {
+                    // Corrupted compressed bytes usually fail to decompress before the digest can be compared.
+                    if (!verify || attempt >= StorageUtils.VERIFY_ATTEMPTS) {
+                        throw e;
+                    }
+                    LOGGER.debug("Attempt {}, corrupted: {}.", attempt, blobName);
+                    continue;
+                }
+                if (!verify) {
+                    return;
+                }
+
+                String expected = StorageUtils.storedMd5(blob);
+                String actual = Base64.getEncoder().encodeToString(digest.digest());
+                if (expected == null) {
+                    LOGGER.debug("No Content-MD5, not checked: {}.", blobName);
+                    return;
+                }
+                if (expected.equals(actual)) {
+                    return;
+                }
+                LOGGER.debug("Attempt {}, MD5 mismatch: {}.", attempt, blobName);
+                if (attempt >= StorageUtils.VERIFY_ATTEMPTS) {
+                    throw StorageUtils.md5Mismatch(blobName, expected, actual);
+                }
+            }
+        } finally {
+            transferScheduler.release(priority);
+        }
+    }
+
+    /**
+     * Downloads a blob to a stream in a single pass, decompressing it if {@link #setDecompress(boolean)} is set.
+     *
+     * @param blobStore    {@link BlobStore} object.
+     * @param blob         Properties of the blob, only needed to decompress.
+     * @param blobName     Blob path with file name.
+     * @param digest       Digest updated with the bytes as stored, <code>null</code> for none.
+     * @param outputStream Stream receiving the contents.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the stream cannot be written.
+     */
+    private void download(BlobStore blobStore, BlobItem blob, String blobName, MessageDigest digest, OutputStream outputStream) throws URISyntaxException, StorageException, IOException {
+        if (!decompress) {
+            blobStore.download(blobName, digest != null ? new DigestOutputStream(outputStream, digest) : outputStream);
+            return;
+        }
+        InputStream stored = blobStore.openInputStream(blobName);
+        try (InputStream inputStream = digest != null ? new DigestInputStream(stored, digest) : stored;
+             InputStream decompressed = BlobCompression.decompress(blob.getContentEncoding(), inputStream)) {
+            IOUtils.copy(decompressed, outputStream);
+            // The decompressor can stop before the end of the stored bytes, the digest must see them all.
+            IOUtils.consume(inputStream);
+        }
+    }
 }
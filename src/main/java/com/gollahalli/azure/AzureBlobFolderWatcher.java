@@ -0,0 +1,533 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps uploading the files created or modified under a folder until it is closed. Changes are reported by the
+ * file system through a {@link WatchService}; a file is uploaded once it has not changed for a quiet period, so files
+ * still being written are not sent half done. The files that settle together are uploaded in batches, several at
+ * once, through {@link AzureBlobUpload}, with its compression, deduplication and verification settings.
+ * <p>
+ * Files already in the folder when the watcher starts are left alone, upload them with
+ * {@link AzureBlobUpload#uploadFromFolder(String, String, String, String)} after starting the watcher. At most
+ * {@link #setQueueSize(int)} files wait for their upload, the watcher stops reading changes while the queue is full.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     AzureBlobUpload blobUpload = new AzureBlobUpload("account name", "account key", "container name");
+ *     try (AzureBlobFolderWatcher watcher = new AzureBlobFolderWatcher(blobUpload, "c:/path/to/folder", "path/to/blob/")) {
+ *         watcher.start();
+ *         // ...
+ *     }
+ *     }
+ * </pre>
+ */
+public class AzureBlobFolderWatcher implements Closeable {
+
+    /**
+     * Default time a file must stay unchanged before it is uploaded, in milliseconds.
+     */
+    public static final long DEFAULT_QUIET_PERIOD = 2000;
+
+    /**
+     * Default number of files uploaded by one batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Default number of files waiting for their upload.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    /**
+     * Uploads the files.
+     */
+    private AzureBlobUpload blobUpload;
+
+    /**
+     * Applies the folder and the filters.
+     */
+    private LocalFileWalker walker;
+
+    /**
+     * Path of the blob folder, <code>null</code> for the root of the container.
+     */
+    private String blobPath;
+
+    private long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    /**
+     * Guards {@link #pending}, notified whenever it changes.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Files waiting for their upload, in the order they changed.
+     */
+    private final Map<Path, Change> pending = new LinkedHashMap<>();
+
+    /**
+     * Attributes of every file uploaded, a change event that leaves them as they are is ignored.
+     */
+    private final Map<Path, LocalFile> uploaded = new ConcurrentHashMap<>();
+
+    /**
+     * Folder of every registered watch.
+     */
+    private final Map<WatchKey, Path> folders = new ConcurrentHashMap<>();
+
+    private final AtomicLong uploadedCount = new AtomicLong();
+
+    private WatchService watchService;
+
+    private Thread watchThread;
+
+    private Thread uploadThread;
+
+    /**
+     * Time the watcher started, in milliseconds since the epoch.
+     */
+    private long startTime;
+
+    private volatile boolean closed;
+
+    private static final Logger LOGGER = LogManager.getLogger(AzureBlobFolderWatcher.class.getName());
+
+    /**
+     * Watches a folder with the given filters.
+     *
+     * @param blobUpload Uploads the files, its settings apply to every batch.
+     * @param folderPath Absolute path of the folder.
+     * @param blobPath   Path of the blob folder, <code>null</code> for the root of the container.
+     * @param include    Glob of the files to include, <code>null</code> to include all.
+     * @param exclude    Glob of the files and folders to exclude, <code>null</code> to exclude none.
+     */
+    public AzureBlobFolderWatcher(AzureBlobUpload blobUpload, String folderPath, String blobPath, String include, String exclude) {
+        this.blobUpload = blobUpload;
+        this.walker = new LocalFileWalker(folderPath, include, exclude);
+        this.blobPath = blobPath;
+        LOGGER.debug("Folder Path: {}, Blob Path: {}, Include: {}, Exclude: {}.", folderPath, blobPath, include, exclude);
+    }
+
+    /**
+     * Watches all the files of a folder.
+     *
+     * @param blobUpload Uploads the files, its settings apply to every batch.
+     * @param folderPath Absolute path of the folder.
+     * @param blobPath   Path of the blob folder, <code>null</code> for the root of the container.
+     */
+    public AzureBlobFolderWatcher(AzureBlobUpload blobUpload, String folderPath, String blobPath) {
+        this(blobUpload, folderPath, blobPath, null, null);
+    }
+
+    /**
+     * Sets how long a file must stay unchanged before it is uploaded, defaults to {@link #DEFAULT_QUIET_PERIOD}.
+     * Every change of the file starts the period again.
+     *
+     * @param quietPeriod Quiet period in milliseconds.
+     */
+    public void setQuietPeriod(long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Sets the largest number of files uploaded by one batch, defaults to {@link #DEFAULT_BATCH_SIZE}.
+     *
+     * @param batchSize Number of files.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the number of files that can wait for their upload, defaults to {@link #DEFAULT_QUEUE_SIZE}. Changes are
+     * not read while the queue is full, the file system drops the ones it cannot hold and the watcher looks for them
+     * with a scan of the folder once there is room again.
+     *
+     * @param queueSize Number of files.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Number of files uploaded, skipped or copied since the watcher started.
+     *
+     * @return Number of files.
+     */
+    public long getUploadedCount() {
+        return uploadedCount.get();
+    }
+
+    /**
+     * Number of files waiting for their upload.
+     *
+     * @return Number of files.
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Creates the container, registers the folder and its sub folders and starts watching them in the background.
+     *
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the folder cannot be watched.
+     */
+    public synchronized void start() throws URISyntaxException, StorageException, IOException {
+        LOGGER.traceEntry();
+        if (watchService != null) {
+            throw new IllegalStateException("Already started");
+        }
+        blobUpload.createContainerIfNotExists();
+
+        startTime = System.currentTimeMillis();
+        watchService = walker.getFolderPath().getFileSystem().newWatchService();
+        register(walker.getFolderPath(), false);
+
+        watchThread = new Thread(this::watch, "folder-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        uploadThread = new Thread(this::upload, "folder-watcher-upload");
+        uploadThread.setDaemon(true);
+        uploadThread.start();
+        LOGGER.traceExit();
+    }
+
+    /**
+     * Stops watching and waits for the batch being uploaded. Files still waiting for their quiet period are not
+     * uploaded.
+     *
+     * @throws IOException If the watch service cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        LOGGER.traceEntry();
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (watchService != null) {
+            watchService.close();
+            try {
+                watchThread.join();
+                uploadThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOGGER.traceExit();
+    }
+
+    /**
+     * Registers a folder and its sub folders, skipping the excluded and the linked ones.
+     *
+     * @param folder       Absolute path of the folder.
+     * @param enqueueFiles <code>true</code> to queue the files changed since the watcher started.
+     * @throws IOException If a folder cannot be read.
+     */
+    private void register(Path folder, final boolean enqueueFiles) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(walker.getFolderPath()) && walker.isExcluded(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                if (folders.put(key, dir) == null) {
+                    LOGGER.debug("Watching: {}.", dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (enqueueFiles && attrs.lastModifiedTime().toMillis() >= startTime) {
+                    enqueue(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Deleted while walking.
+                LOGGER.debug("Skipping: {}, {}.", file, e.toString());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Reads the change events until the watcher is closed.
+     */
+    private void watch() {
+        try {
+            while (!closed) {
+                WatchKey key = watchService.take();
+                Path folder = folders.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            LOGGER.debug("Events lost, scanning: {}.", walker.getFolderPath());
+                            register(walker.getFolderPath(), true);
+                        } else if (folder != null) {
+                            Path path = folder.resolve((Path) event.context());
+                            if (Files.isDirectory(path)) {
+                                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && !Files.isSymbolicLink(path)
+                                        && !walker.isExcluded(path)) {
+                                    // Files written before the folder was registered have no events of their own.
+                                    register(path, true);
+                                }
+                            } else {
+                                enqueue(path);
+                            }
+                        }
+                    } catch (IOException e) {
+                        LOGGER.error("Failed to read change: {}, {}.", event.context(), e.toString());
+                    }
+                }
+                if (!key.reset()) {
+                    folders.remove(key);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            LOGGER.debug("Watch service closed.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a changed file, waiting while the queue is full.
+     *
+     * @param path Absolute path of the file.
+     * @throws IOException If the attributes cannot be read.
+     */
+    private void enqueue(Path path) throws IOException {
+        LocalFile file = walker.toLocalFile(path);
+        if (file == null || sameAttributes(uploaded.get(path), file)) {
+            return;
+        }
+        synchronized (lock) {
+            while (!closed && pending.size() >= queueSize && !pending.containsKey(path)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            Change change = pending.get(path);
+            if (change == null) {
+                pending.put(path, new Change(file, System.nanoTime()));
+            } else {
+                change.update(file, System.nanoTime());
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Uploads the batches until the watcher is closed.
+     */
+    private void upload() {
+        try {
+            while (!closed) {
+                List<LocalFile> batch = takeBatch();
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                try {
+                    int count = blobUpload.uploadFiles(batch, blobPath);
+                    for (LocalFile file : batch) {
+                        uploaded.put(file.getPath(), file);
+                    }
+                    uploadedCount.addAndGet(count);
+                    LOGGER.debug("Batch uploaded: {} files.", count);
+                } catch (Exception e) {
+                    LOGGER.error("Batch of {} files failed, retrying after the quiet period: {}.", batch.size(), e.toString());
+                    requeue(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the files that have been quiet for the quiet period and have not changed since their last event, waits
+     * until there is at least one.
+     *
+     * @return At most {@link #setBatchSize(int)} files, empty once the watcher is closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private List<LocalFile> takeBatch() throws InterruptedException {
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(quietPeriod);
+        while (true) {
+            // Change to the time of its last event when it was picked.
+            Map<Change, Long> candidates = new LinkedHashMap<>();
+            synchronized (lock) {
+                while (!closed && candidates.isEmpty()) {
+                    long now = System.nanoTime();
+                    long wait = quietNanos;
+                    for (Change change : pending.values()) {
+                        long age = now - change.lastEvent;
+                        if (age >= quietNanos) {
+                            candidates.put(change, change.lastEvent);
+                            if (candidates.size() >= batchSize) {
+                                break;
+                            }
+                        } else {
+                            wait = Math.min(wait, quietNanos - age);
+                        }
+                    }
+                    if (candidates.isEmpty()) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    }
+                }
+                if (closed) {
+                    return Collections.emptyList();
+                }
+            }
+
+            // Attributes are read outside the lock, the watch thread keeps queueing.
+            Map<Change, LocalFile> current = new LinkedHashMap<>();
+            for (Change change : candidates.keySet()) {
+                try {
+                    current.put(change, walker.toLocalFile(change.file.getPath()));
+                } catch (IOException e) {
+                    LOGGER.debug("Skipping: {}, {}.", change.file.getPath(), e.toString());
+                    current.put(change, null);
+                }
+            }
+
+            List<LocalFile> batch = new ArrayList<>();
+            synchronized (lock) {
+                for (Map.Entry<Change, LocalFile> entry : current.entrySet()) {
+                    Change change = entry.getKey();
+                    LocalFile file = entry.getValue();
+                    Path path = change.file.getPath();
+                    if (pending.get(path) != change || change.lastEvent != candidates.get(change)) {
+                        // Changed again meanwhile.
+                        continue;
+                    }
+                    if (file == null) {
+                        pending.remove(path);
+                    } else if (!sameAttributes(change.file, file)) {
+                        change.update(file, System.nanoTime());
+                    } else {
+                        pending.remove(path);
+                        batch.add(file);
+                    }
+                }
+                lock.notifyAll();
+            }
+            if (!batch.isEmpty()) {
+                LOGGER.debug("Batch ready: {} files.", batch.size());
+                return batch;
+            }
+        }
+    }
+
+    /**
+     * Queues the files of a failed batch again, unless they changed meanwhile.
+     *
+     * @param batch Files of the batch.
+     */
+    private void requeue(List<LocalFile> batch) {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            for (LocalFile file : batch) {
+                if (!pending.containsKey(file.getPath())) {
+                    pending.put(file.getPath(), new Change(file, now));
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private static boolean sameAttributes(LocalFile a, LocalFile b) {
+        return a != null && b != null && a.getSize() == b.getSize() && a.getLastModified() == b.getLastModified();
+    }
+
+    /**
+     * A file waiting for its upload.
+     */
+    private static class Change {
+
+        /**
+         * Attributes read at the last event.
+         */
+        private LocalFile file;
+
+        /**
+         * Time of the last event, from {@link System#nanoTime()}.
+         */
+        private long lastEvent;
+
+        Change(LocalFile file, long lastEvent) {
+            this.file = file;
+            this.lastEvent = lastEvent;
+        }
+
+        void update(LocalFile file, long lastEvent) {
+            this.file = file;
+            this.lastEvent = lastEvent;
+        }
+    }
+}
@@ -0,0 +1,609 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists very large containers with many listing requests at once.
+ * <p>
+ * A flat listing is a single chain of pages, each page needs the continuation token of the one before. The lister
+ * first lists the prefix level by level with the <code>/</code> delimiter, until it has found enough virtual
+ * directories or reached the maximum depth, then lists every directory found as a flat listing of its own, several
+ * at once. The blobs found directly in the levels on the way are part of the result.
+ * <p>
+ * The blobs come as a {@link Stream} fed while the directories are listed. Errors of the listing are thrown while
+ * reading the stream, as a {@link RuntimeException} with the {@link StorageException} as its cause, the way the lazy
+ * listings of the SDK report them. Closing the stream stops the listing.
+ */
+public class AzureBlobLister {
+
+    /**
+     * Number of directories listed at once when the caller does not set one.
+     */
+    static final int DEFAULT_CONCURRENCY = 16;
+
+    /**
+     * Number of directories to find before the flat listings start.
+     */
+    static final int DEFAULT_FAN_OUT = 256;
+
+    /**
+     * Number of levels listed with the delimiter at most.
+     */
+    static final int DEFAULT_MAX_DEPTH = 3;
+
+    /**
+     * Account name, it's usually your container name.
+     */
+    private String accountName;
+
+    /**
+     * Account key.
+     */
+    private String accountKey;
+
+    /**
+     * Your container name.
+     */
+    private String containerName;
+
+    /**
+     * Enable HTTPS while using this
+     */
+    private boolean useHttps;
+
+    /**
+     * Storage backend, connects to the storage account on first use if none was given.
+     */
+    private BlobStore blobStore;
+
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    private int fanOut = DEFAULT_FAN_OUT;
+
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+
+    private boolean naturalOrder;
+
+    /**
+     * Number of listed blobs kept for the reader of the stream before the listings wait.
+     */
+    private int queueSize = BlobPipeline.DEFAULT_QUEUE_SIZE;
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    /**
+     * Marks the end of the listing of a directory in the queue of the stream.
+     */
+    private static final BlobItem END = BlobItem.directory("");
+
+    private static final Logger LOGGER = LogManager.getLogger(AzureBlobLister.class.getName());
+
+    /**
+     * Implements listing large containers.
+     *
+     * @param accountName   Account name from your <strong>Access Keys</strong>.
+     * @param accountKey    Account key from your <strong>Access Keys</strong>.
+     * @param containerName Container name to list.
+     * @param useHttps      <code>true</code> to use HTTPS to connect to the storage service endpoints;
+     *                      otherwise, <code>false</code>. Defaults to <code>true</code>.
+     */
+    public AzureBlobLister(String accountName, String accountKey, String containerName, boolean useHttps) {
+        this.accountName = accountName;
+        this.accountKey = accountKey;
+        this.containerName = containerName;
+        this.useHttps = useHttps;
+        LOGGER.traceEntry();
+        LOGGER.debug("Account Name: {}, Container Name: {}, Use HTTPS?: {}", this.accountName, this.containerName, this.useHttps);
+    }
+
+    /**
+     * Implements listing large containers with HTTPS as <code>true</code> by default.
+     *
+     * @param accountName   Account name from your <strong>Access Keys</strong>.
+     * @param accountKey    Account key from your <strong>Access Keys</strong>.
+     * @param containerName Container name to list.
+     */
+    public AzureBlobLister(String accountName, String accountKey, String containerName) {
+        this(accountName, accountKey, containerName, true);
+    }
+
+    /**
+     * Implements listing a {@link BlobStore}.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobLister blobLister = new AzureBlobLister(new InMemoryBlobStore("container name"));
+     *     }
+     * </pre>
+     *
+     * @param blobStore Storage backend, for example {@link InMemoryBlobStore} or {@link LocalFileBlobStore}.
+     */
+    public AzureBlobLister(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        this.containerName = blobStore.getContainerName();
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: {}", this.containerName);
+    }
+
+    /**
+     * Sets the number of listing requests sent at once, defaults to <code>16</code>.
+     *
+     * @param concurrency Number of directories listed at once.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the number of virtual directories to find before they are listed flat, defaults to <code>256</code>. A
+     * few times the concurrency keeps the requests busy when the directories are of uneven size.
+     *
+     * @param fanOut Number of directories.
+     */
+    public void setFanOut(int fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Sets the number of levels listed with the delimiter at most, defaults to <code>3</code>. The blobs directly in
+     * these levels are kept in memory until they are handed out, the levels should be above the bulk of the blobs.
+     *
+     * @param maxDepth Number of levels, <code>0</code> for a single flat listing.
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Hands out the blobs in {@link NaturalOrderComparator} order, so <code>part-2</code> before
+     * <code>part-10</code>. Each directory is then listed entirely and sorted before its first blob is handed out, at
+     * most as many directories as the concurrency are listed ahead of the reader. By default the blobs come as soon
+     * as they are listed, each directory in lexicographical order.
+     *
+     * @param naturalOrder <code>true</code> for natural order.
+     */
+    public void setNaturalOrder(boolean naturalOrder) {
+        this.naturalOrder = naturalOrder;
+    }
+
+    /**
+     * Sets the number of listed blobs kept for the reader of the stream before the listings wait, defaults to
+     * <code>1000</code>.
+     *
+     * @param queueSize Number of blobs.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * The storage backend, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getBlobStore() throws URISyntaxException, StorageException {
+        if (this.blobStore == null) {
+            this.blobStore = new AzureBlobStore(this.accountName, this.accountKey, this.containerName, this.useHttps);
+        }
+        return this.blobStore;
+    }
+
+    /**
+     * Lists the names of all the blobs starting with a prefix.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobLister blobLister = new AzureBlobLister("account name", "account key", "container name");
+     *     try (Stream<String> names = blobLister.listBlobs("logs/")) {
+     *         names.forEach(System.out::println);
+     *     }
+     *     }
+     * </pre>
+     *
+     * @param prefix Blob path prefix, <code>null</code> or empty for the whole container.
+     * @return Blob names, to be closed once read.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error while finding the directories.
+     */
+    public Stream<String> listBlobs(String prefix) throws URISyntaxException, StorageException {
+        return listBlobItems(prefix, EnumSet.noneOf(BlobListingDetails.class)).map(BlobItem::getName);
+    }
+
+    /**
+     * Lists the properties of all the blobs starting with a prefix, with the details asked for, see
+     * {@link BlobStore#listBlobItems(String, EnumSet)}.
+     *
+     * @param prefix  Blob path prefix, <code>null</code> or empty for the whole container.
+     * @param details Details to list, may be empty.
+     * @return Blob properties, to be closed once read.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error while finding the directories.
+     */
+    public Stream<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("prefix: {}, details: {}, concurrency: {}, naturalOrder?: {}.", prefix, details, concurrency, naturalOrder);
+
+        BlobStore blobStore = getBlobStore();
+        final int pool = POOL_COUNT.incrementAndGet();
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+            Thread thread = new Thread(runnable, "blob-lister-" + pool + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Iterator<BlobItem> iterator;
+        try {
+            List<Segment> segments = discover(blobStore, prefix == null ? "" : prefix, details, executor);
+            iterator = naturalOrder ? new OrderedIterator(blobStore, segments, details, executor)
+                    : new UnorderedIterator(blobStore, segments, details, executor);
+        } catch (URISyntaxException | StorageException | RuntimeException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+
+        LOGGER.traceExit();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false)
+                .onClose(executor::shutdownNow);
+    }
+
+    /**
+     * Lists the prefix level by level with the delimiter, the directories of a level at once.
+     *
+     * @param blobStore Store to list.
+     * @param prefix    Blob path prefix.
+     * @param details   Details to list.
+     * @param executor  Pool of the listings.
+     * @return The blobs found on the way and the directories to list flat.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    private List<Segment> discover(BlobStore blobStore, String prefix, EnumSet<BlobListingDetails> details, ExecutorService executor) throws URISyntaxException, StorageException {
+        // The service leaves snapshots out of listings with a delimiter, the blobs found on the way are listed again.
+        boolean snapshots = details.contains(BlobListingDetails.SNAPSHOTS);
+        List<Segment> segments = new ArrayList<>();
+        List<String> directories = Collections.singletonList(prefix);
+
+        for (int depth = 0; depth < maxDepth && !directories.isEmpty() && directories.size() < fanOut; depth++) {
+            List<Future<List<BlobItem>>> listings = new ArrayList<>();
+            for (String directory : directories) {
+                listings.add(executor.submit(() -> {
+                    List<BlobItem> items = new ArrayList<>();
+                    blobStore.listDirectory(directory, details).forEach(items::add);
+                    return items;
+                }));
+            }
+
+            List<String> next = new ArrayList<>();
+            for (Future<List<BlobItem>> listing : listings) {
+                for (BlobItem item : get(listing)) {
+                    if (item.isDirectory()) {
+                        next.add(item.getName());
+                    } else {
+                        segments.add(snapshots ? new Segment(item.getName(), true) : new Segment(item));
+                    }
+                }
+            }
+            LOGGER.debug("Depth: {}, Directories: {}, Blobs: {}.", depth, next.size(), segments.size());
+            directories = next;
+        }
+
+        for (String directory : directories) {
+            segments.add(new Segment(directory, false));
+        }
+        return segments;
+    }
+
+    /**
+     * Result of a listing started on the pool.
+     *
+     * @param future The listing.
+     * @return Its result.
+     * @throws URISyntaxException If the listing failed with it.
+     * @throws StorageException   If the listing failed with it, or was interrupted.
+     */
+    private static List<BlobItem> get(Future<List<BlobItem>> future) throws URISyntaxException, StorageException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw StorageException.translateClientException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof URISyntaxException) {
+                throw (URISyntaxException) cause;
+            } else if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            } else if (cause instanceof RuntimeException && cause.getCause() instanceof StorageException) {
+                throw (StorageException) cause.getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * A storage error of a listing, for the reader of the stream.
+     *
+     * @param e The error.
+     * @return An unchecked exception with the error as its cause.
+     */
+    private static RuntimeException unchecked(Exception e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new IllegalStateException("An error occurred while listing the blobs: " + e.getMessage(), e);
+    }
+
+    /**
+     * A blob found while looking for directories, or a directory to list flat.
+     */
+    private static class Segment {
+
+        /**
+         * Blob name or directory prefix.
+         */
+        private final String name;
+
+        /**
+         * The blob, <code>null</code> for a directory.
+         */
+        private final BlobItem blob;
+
+        /**
+         * Keeps only the blob named <code>name</code> and its snapshots out of the flat listing.
+         */
+        private final boolean exact;
+
+        Segment(BlobItem blob) {
+            this.name = blob.getName();
+            this.blob = blob;
+            this.exact = false;
+        }
+
+        Segment(String name, boolean exact) {
+            this.name = name;
+            this.blob = null;
+            this.exact = exact;
+        }
+
+        /**
+         * Lists the segment.
+         *
+         * @param blobStore Store to list.
+         * @param details   Details to list.
+         * @return The blobs of the segment.
+         * @throws URISyntaxException If the URI cannot be built.
+         * @throws StorageException   Storage error.
+         */
+        Iterable<BlobItem> list(BlobStore blobStore, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+            if (blob != null) {
+                return Collections.singletonList(blob);
+            }
+            Iterable<BlobItem> items = blobStore.listBlobItems(name, details);
+            if (!exact) {
+                return items;
+            }
+            List<BlobItem> matching = new ArrayList<>();
+            for (BlobItem item : items) {
+                if (item.getName().equals(name)) {
+                    matching.add(item);
+                }
+            }
+            return matching;
+        }
+    }
+
+    /**
+     * Hands out the blobs as the directories are listed, all at once, through a bounded queue.
+     */
+    private class UnorderedIterator implements Iterator<BlobItem> {
+
+        private final Deque<BlobItem> found = new ArrayDeque<>();
+
+        private final BlockingQueue<BlobItem> queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        private final ExecutorService executor;
+
+        /**
+         * Number of directories still being listed.
+         */
+        private int listing;
+
+        private BlobItem next;
+
+        UnorderedIterator(BlobStore blobStore, List<Segment> segments, EnumSet<BlobListingDetails> details, ExecutorService executor) {
+            this.executor = executor;
+            for (Segment segment : segments) {
+                if (segment.blob != null) {
+                    found.add(segment.blob);
+                    continue;
+                }
+                listing++;
+                executor.execute(() -> {
+                    try {
+                        for (BlobItem item : segment.list(blobStore, details)) {
+                            if (failure.get() != null) {
+                                break;
+                            }
+                            queue.put(item);
+                        }
+                    } catch (InterruptedException e) {
+                        // The stream was closed.
+                        return;
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // The stream was closed.
+                    }
+                });
+            }
+            executor.shutdown();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && (!found.isEmpty() || listing > 0)) {
+                if (!found.isEmpty()) {
+                    next = found.poll();
+                    continue;
+                }
+                BlobItem item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    executor.shutdownNow();
+                    throw unchecked(StorageException.translateClientException(e));
+                }
+                if (item != END) {
+                    next = item;
+                } else if (failure.get() != null) {
+                    executor.shutdownNow();
+                    throw unchecked(failure.get());
+                } else {
+                    listing--;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public BlobItem next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            BlobItem item = next;
+            next = null;
+            return item;
+        }
+    }
+
+    /**
+     * Hands out the blobs in natural order, the directories ahead of the reader are listed and sorted at once.
+     */
+    private class OrderedIterator implements Iterator<BlobItem> {
+
+        private final BlobStore blobStore;
+
+        private final Iterator<Segment> segments;
+
+        private final EnumSet<BlobListingDetails> details;
+
+        private final ExecutorService executor;
+
+        /**
+         * Listings of the segments ahead, in order.
+         */
+        private final Deque<Future<List<BlobItem>>> ahead = new ArrayDeque<>();
+
+        private Iterator<BlobItem> current = Collections.emptyIterator();
+
+        @SuppressWarnings("unchecked")
+        OrderedIterator(BlobStore blobStore, List<Segment> segments, EnumSet<BlobListingDetails> details, ExecutorService executor) {
+            Comparator<String> comparator = new NaturalOrderComparator();
+            List<Segment> sorted = new ArrayList<>(segments);
+            sorted.sort((a, b) -> comparator.compare(a.name, b.name));
+            this.blobStore = blobStore;
+            this.segments = sorted.iterator();
+            this.details = details;
+            this.executor = executor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && (segments.hasNext() || !ahead.isEmpty())) {
+                while (ahead.size() < Math.max(1, concurrency) && segments.hasNext()) {
+                    ahead.add(submit(segments.next()));
+                }
+                try {
+                    current = get(ahead.poll()).iterator();
+                } catch (URISyntaxException | StorageException | RuntimeException e) {
+                    executor.shutdownNow();
+                    throw unchecked(e);
+                }
+            }
+            if (!current.hasNext()) {
+                executor.shutdown();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public BlobItem next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @SuppressWarnings("unchecked")
+        private Future<List<BlobItem>> submit(Segment segment) {
+            return executor.submit(() -> {
+                List<BlobItem> items = new ArrayList<>();
+                segment.list(blobStore, details).forEach(items::add);
+                items.sort(new NaturalOrderComparator());
+                return items;
+            });
+        }
+    }
+}
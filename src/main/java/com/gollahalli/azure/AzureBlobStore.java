@@ -0,0 +1,453 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlobDirectory;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyState;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.DeleteSnapshotsOption;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TimeZone;
+
+/**
+ * {@link BlobStore} backed by a container of an Azure storage account.
+ */
+public class AzureBlobStore implements BlobStore {
+
+    private CloudBlobClient cloudBlobClient;
+
+    private CloudBlobContainer cloudBlobContainer;
+
+    /**
+     * Validity of the read signature given to the service for a copy from another account. The service reads the
+     * source for as long as the copy is pending, which can be hours for large blobs.
+     */
+    private static final int COPY_SIGNATURE_HOURS = 7 * 24;
+
+    private static final Logger LOGGER = LogManager.getLogger(AzureBlobStore.class.getName());
+
+    /**
+     * Connects to a container of an Azure storage account.
+     *
+     * @param accountName   Account name from your <strong>Access Keys</strong>.
+     * @param accountKey    Account key from your <strong>Access Keys</strong>.
+     * @param containerName Container name.
+     * @param useHttps      <code>true</code> to use HTTPS to connect to the storage service endpoints;
+     *                      otherwise, <code>false</code>.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    public AzureBlobStore(String accountName, String accountKey, String containerName, boolean useHttps) throws URISyntaxException, StorageException {
+        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(accountName, accountKey);
+        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, useHttps);
+        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
+
+        this.cloudBlobClient = account.createCloudBlobClient();
+        this.cloudBlobContainer = this.cloudBlobClient.getContainerReference(containerName);
+        LOGGER.debug("Container Name: {}", containerName);
+    }
+
+    /**
+     * Uses an existing container reference.
+     *
+     * @param cloudBlobContainer {@link CloudBlobContainer} object.
+     */
+    public AzureBlobStore(CloudBlobContainer cloudBlobContainer) {
+        this.cloudBlobContainer = cloudBlobContainer;
+        this.cloudBlobClient = cloudBlobContainer.getServiceClient();
+    }
+
+    /**
+     * The underlying container reference.
+     *
+     * @return {@link CloudBlobContainer} object.
+     */
+    public CloudBlobContainer getCloudBlobContainer() {
+        return cloudBlobContainer;
+    }
+
+    @Override
+    public String getContainerName() {
+        return cloudBlobContainer.getName();
+    }
+
+    @Override
+    public URI getContainerUri() {
+        return cloudBlobContainer.getUri();
+    }
+
+    @Override
+    public URI getBlobUri(String blobName) throws URISyntaxException, StorageException {
+        return cloudBlobContainer.getBlockBlobReference(blobName).getUri();
+    }
+
+    @Override
+    public void createContainerIfNotExists() throws StorageException {
+        if (!StorageUtils.containerExists(cloudBlobClient, getContainerName())) {
+            LOGGER.debug("Container '{}' does not exists", getContainerName());
+            StorageUtils.createContainer(cloudBlobContainer);
+        }
+    }
+
+    @Override
+    public void deleteContainerIfExists() throws StorageException {
+        cloudBlobContainer.deleteIfExists();
+    }
+
+    @Override
+    public Iterable<String> listBlobs(String prefix) {
+        final Iterable<ListBlobItem> items = cloudBlobContainer.listBlobs(prefix, true);
+        return () -> new Iterator<String>() {
+
+            private final Iterator<ListBlobItem> iterator = items.iterator();
+
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iterator.hasNext()) {
+                    ListBlobItem item = iterator.next();
+                    if (item instanceof CloudBlob) {
+                        next = ((CloudBlob) item).getName();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String name = next;
+                next = null;
+                return name;
+            }
+        };
+    }
+
+    @Override
+    public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) {
+        final Iterable<ListBlobItem> items = cloudBlobContainer.listBlobs(prefix, true, details, null, null);
+        return () -> new Iterator<BlobItem>() {
+
+            private final Iterator<ListBlobItem> iterator = items.iterator();
+
+            private BlobItem next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iterator.hasNext()) {
+                    ListBlobItem item = iterator.next();
+                    if (item instanceof CloudBlob) {
+                        next = toBlobItem((CloudBlob) item);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public BlobItem next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                BlobItem item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The service lists snapshots only in flat listings, {@link BlobListingDetails#SNAPSHOTS} is ignored.
+     */
+    @Override
+    public Iterable<BlobItem> listDirectory(String prefix, EnumSet<BlobListingDetails> details) {
+        EnumSet<BlobListingDetails> hierarchical = EnumSet.copyOf(details);
+        hierarchical.remove(BlobListingDetails.SNAPSHOTS);
+        final Iterable<ListBlobItem> items = cloudBlobContainer.listBlobs(prefix, false, hierarchical, null, null);
+        return () -> new Iterator<BlobItem>() {
+
+            private final Iterator<ListBlobItem> iterator = items.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public BlobItem next() {
+                ListBlobItem item = iterator.next();
+                if (item instanceof CloudBlobDirectory) {
+                    return BlobItem.directory(((CloudBlobDirectory) item).getPrefix());
+                }
+                return toBlobItem((CloudBlob) item);
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String blobName) throws URISyntaxException, StorageException {
+        return cloudBlobContainer.getBlockBlobReference(blobName).exists();
+    }
+
+    @Override
+    public void uploadFromFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        cloudBlobContainer.getBlockBlobReference(blobName).uploadFromFile(filePath);
+    }
+
+    @Override
+    public BlobItem getProperties(String blobName) throws URISyntaxException, StorageException {
+        return read(blobName, blob -> {
+            blob.downloadAttributes();
+            return toBlobItem(blob);
+        });
+    }
+
+    @Override
+    public CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+        if (!(source instanceof AzureBlobStore)) {
+            return StorageUtils.copyContents(this, blobName, source, sourceName);
+        }
+
+        CloudBlockBlob sourceBlob = ((AzureBlobStore) source).cloudBlobContainer.getBlockBlobReference(sourceName);
+        URI sourceUri = sourceBlob.getUri();
+        if (!Objects.equals(sourceBlob.getServiceClient().getCredentials().getAccountName(), cloudBlobClient.getCredentials().getAccountName())) {
+            // The service reads the source with the credentials in its URI, not with ours.
+            sourceUri = new URI(sourceUri + "?" + readSignature(sourceBlob));
+        }
+
+        CloudBlockBlob blob = cloudBlobContainer.getBlockBlobReference(blobName);
+        blob.startCopy(sourceUri);
+        LOGGER.debug("Copy of {} to {}: {}.", sourceBlob.getUri(), blobName, blob.getCopyState().getStatus());
+        return blob.getCopyState().getStatus();
+    }
+
+    @Override
+    public OutputStream openOutputStream(String blobName, String contentEncoding, Map<String, String> metadata) throws URISyntaxException, StorageException {
+        CloudBlockBlob blob = cloudBlobContainer.getBlockBlobReference(blobName);
+        blob.getProperties().setContentEncoding(contentEncoding);
+        if (metadata != null) {
+            blob.setMetadata(new HashMap<>(metadata));
+        }
+        return blob.openOutputStream();
+    }
+
+    @Override
+    public void createAppendBlob(String blobName) throws URISyntaxException, StorageException {
+        cloudBlobContainer.getAppendBlobReference(blobName).createOrReplace();
+    }
+
+    @Override
+    public long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws URISyntaxException, StorageException {
+        AccessCondition accessCondition = new AccessCondition();
+        if (appendPosition >= 0) {
+            accessCondition.setIfAppendPositionEqual(appendPosition);
+        }
+        try {
+            return cloudBlobContainer.getAppendBlobReference(blobName)
+                    .appendBlock(new ByteArrayInputStream(buffer, offset, length), length, accessCondition, null, null);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public List<BlockEntry> getBlockList(String blobName) throws URISyntaxException, StorageException {
+        return cloudBlobContainer.getBlockBlobReference(blobName).downloadBlockList(BlockListingFilter.COMMITTED, null, null, null);
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) throws URISyntaxException, StorageException {
+        // The service checks the block against the MD5 sent with it.
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setUseTransactionalContentMD5(true);
+        try {
+            cloudBlobContainer.getBlockBlobReference(blobName)
+                    .uploadBlock(blockId, new ByteArrayInputStream(buffer, offset, length), length, null, options, null);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public void commitBlockList(String blobName, List<String> blockIds, String etag) throws URISyntaxException, StorageException {
+        List<BlockEntry> blocks = new ArrayList<>();
+        for (String blockId : blockIds) {
+            blocks.add(new BlockEntry(blockId, BlockSearchMode.LATEST));
+        }
+        AccessCondition accessCondition = etag != null ? AccessCondition.generateIfMatchCondition(etag) : null;
+        cloudBlobContainer.getBlockBlobReference(blobName).commitBlockList(blocks, accessCondition, null, null);
+    }
+
+    @Override
+    public InputStream openInputStream(String blobName) throws URISyntaxException, StorageException {
+        return read(blobName, CloudBlob::openInputStream);
+    }
+
+    @Override
+    public void download(String blobName, OutputStream outputStream) throws URISyntaxException, StorageException {
+        read(blobName, blob -> {
+            blob.download(outputStream);
+            return null;
+        });
+    }
+
+    @Override
+    public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws URISyntaxException, StorageException {
+        read(blobName, blob -> {
+            blob.downloadRange(offset, length, outputStream);
+            return null;
+        });
+    }
+
+    @Override
+    public void downloadToFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        read(blobName, blob -> {
+            blob.downloadToFile(filePath);
+            return null;
+        });
+    }
+
+    /**
+     * Reads a blob through a block blob reference, or through a reference of the type the service reports if the SDK
+     * rejects the block blob reference, as it does for append blobs.
+     *
+     * @param blobName Blob path with file name.
+     * @param read     Reads the blob.
+     * @param <T>      Result of the read.
+     * @param <E>      Exception thrown by the read other than {@link StorageException}.
+     * @return Result of the read.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     * @throws E                  Exception of the read.
+     */
+    private <T, E extends Exception> T read(String blobName, BlobRead<T, E> read) throws URISyntaxException, StorageException, E {
+        try {
+            return read.apply(cloudBlobContainer.getBlockBlobReference(blobName));
+        } catch (StorageException e) {
+            if (!StorageErrorCodeStrings.INCORRECT_BLOB_TYPE.equals(e.getErrorCode())) {
+                throw e;
+            }
+            return read.apply(cloudBlobContainer.getBlobReferenceFromServer(blobName));
+        }
+    }
+
+    /**
+     * A read of a blob reference.
+     *
+     * @param <T> Result of the read.
+     * @param <E> Exception thrown by the read other than {@link StorageException}.
+     */
+    private interface BlobRead<T, E extends Exception> {
+
+        T apply(CloudBlob blob) throws StorageException, E;
+    }
+
+    @Override
+    public void delete(String blobName) throws URISyntaxException, StorageException {
+        cloudBlobContainer.getBlockBlobReference(blobName).delete();
+    }
+
+    @Override
+    public void delete(String blobName, String etag) throws URISyntaxException, StorageException {
+        AccessCondition accessCondition = etag != null ? AccessCondition.generateIfMatchCondition(etag) : null;
+        cloudBlobContainer.getBlockBlobReference(blobName).delete(DeleteSnapshotsOption.NONE, accessCondition, null, null);
+    }
+
+    /**
+     * Properties of a blob reference, after they were downloaded or listed.
+     *
+     * @param blob Blob reference.
+     * @return Properties of the blob.
+     */
+    static BlobItem toBlobItem(CloudBlob blob) {
+        BlobProperties properties = blob.getProperties();
+        CopyState copyState = blob.getCopyState();
+        return new BlobItem(blob.getName(), properties.getLength(), properties.getEtag(), properties.getLastModified(),
+                properties.getContentEncoding(), properties.getContentMD5(), blob.getMetadata(),
+                copyState != null ? copyState.getStatus() : null, copyState != null ? copyState.getStatusDescription() : null,
+                blob.getSnapshotID());
+    }
+
+    /**
+     * Shared access signature that lets the service read a blob of this account on behalf of another account.
+     *
+     * @param blob Blob to read.
+     * @return Query string of the signature.
+     * @throws StorageException If the store was not created with an account key.
+     */
+    private static String readSignature(CloudBlob blob) throws StorageException {
+        SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+        policy.setPermissions(EnumSet.of(SharedAccessBlobPermissions.READ));
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.add(Calendar.MINUTE, -5);
+        policy.setSharedAccessStartTime(calendar.getTime());
+        calendar.add(Calendar.HOUR, COPY_SIGNATURE_HOURS);
+        policy.setSharedAccessExpiryTime(calendar.getTime());
+        try {
+            return blob.generateSharedAccessSignature(policy, null);
+        } catch (InvalidKeyException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+}
@@ -23,27 +23,53 @@
  */
 package com.gollahalli.azure;
 
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
 import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.CloudBlobClient;
-import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
 import javafx.util.Pair;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Implements streaming contents from Azure blob containers.
  */
 public class AzureBlobStreamReader {
 
+    /**
+     * Default bytes of a blob read by one worker of {@link #readRecords(String, Charset, boolean, Consumer)}.
+     */
+    public static final long DEFAULT_SPLIT_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Default bytes per ranged request of the readers reading ahead.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
     /**
      * Account name, it's usually your container name.
      */
@@ -64,6 +90,61 @@ public class AzureBlobStreamReader {
      */
     private boolean useHttps;
 
+    /**
+     * Storage backend, connects to the storage account on first use if none was given.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * Number of blobs the folder operations open at once.
+     */
+    private int concurrency = BlobPipeline.DEFAULT_WORKERS;
+
+    /**
+     * Decompress the blobs according to their Content-Encoding.
+     */
+    private boolean decompress;
+
+    /**
+     * Packs opened by {@link #streamPackedFileReader}, by pack name.
+     */
+    private Map<String, BlobPack> packs = new ConcurrentHashMap<>();
+
+    /**
+     * Charset the readers decode with.
+     */
+    private Charset charset = Charset.defaultCharset();
+
+    /**
+     * Bytes per ranged request of the readers reading ahead.
+     */
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Number of ranges the readers fetch ahead, <code>0</code> to read through the store's stream.
+     */
+    private int readAhead;
+
+    /**
+     * Bytes of a blob read by one worker of {@link #readRecords(String, Charset, boolean, Consumer)}.
+     */
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+
+    /**
+     * Budget the memory of the ranges and blocks read is taken from.
+     */
+    private TransferMemory transferMemory = TransferMemory.getShared();
+
+    /**
+     * Scheduler the ranged requests wait for a slot from.
+     */
+    private TransferScheduler transferScheduler = TransferScheduler.getShared();
+
+    /**
+     * Class of the ranged requests for the scheduler.
+     */
+    private TransferPriority priority = TransferPriority.INTERACTIVE;
+
     private static final Logger LOGGER = LogManager.getLogger(AzureBlobDownload.class.getName());
 
     /**
@@ -95,6 +176,132 @@ public class AzureBlobStreamReader {
         LOGGER.debug("Account Name: {}, Container Name: {}, Use HTTPS?: {}", this.accountName, this.containerName, this.useHttps);
     }
 
+    /**
+     * Implements streaming contents from a {@link BlobStore}.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobStreamReader streamReader = new AzureBlobStreamReader(new InMemoryBlobStore("container name"));
+     *     }
+     * </pre>
+     *
+     * @param blobStore Storage backend, for example {@link InMemoryBlobStore} or {@link LocalFileBlobStore}.
+     */
+    public AzureBlobStreamReader(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        this.containerName = blobStore.getContainerName();
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: {}", this.containerName);
+    }
+
+    /**
+     * Sets the number of blobs the folder operations open at once, defaults to <code>8</code>. The blobs are
+     * opened while the folder is still being listed.
+     *
+     * @param concurrency Number of blobs opened at once.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets whether blobs are decompressed according to their Content-Encoding when they are read, see
+     * {@link BlobCompression}. This costs one extra request per blob to read its properties.
+     *
+     * @param decompress <code>true</code> to decompress, <code>false</code> by default.
+     */
+    public void setDecompress(boolean decompress) {
+        this.decompress = decompress;
+    }
+
+    /**
+     * Sets the charset the readers decode the blobs with, defaults to the platform charset. Malformed input is
+     * replaced, as {@link InputStreamReader} does.
+     *
+     * @param charset Charset of the blobs.
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Sets the bytes fetched by each ranged request of the readers reading ahead, defaults to
+     * {@link #DEFAULT_BUFFER_SIZE}.
+     *
+     * @param bufferSize Size in bytes.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the number of ranges the readers fetch in the background while the current one is read, defaults to
+     * <code>0</code>. With a read-ahead the blob is read with ranged requests of {@link #setBufferSize(int)} bytes,
+     * the first one sent on the first read, so a line-oriented consumer does not wait for the network between two
+     * ranges; it costs one extra request per blob to read its length and holds up to <code>readAhead + 1</code>
+     * ranges in memory per reader. Without it, the readers read through the stream of the store.
+     *
+     * @param readAhead Number of ranges, <code>1</code> to double buffer.
+     */
+    public void setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Sets the number of bytes of a blob read by one worker of {@link #readRecords(String, Charset, boolean, Consumer)},
+     * defaults to {@link #DEFAULT_SPLIT_SIZE}.
+     *
+     * @param splitSize Size in bytes.
+     */
+    public void setSplitSize(long splitSize) {
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * Sets the memory budget the ranges read ahead, the ranges of the splits and the blocks of the channels are taken
+     * from, see {@link TransferMemory}. Reads wait when the budget is exhausted and reading ahead is skipped.
+     *
+     * @param transferMemory The budget, {@link TransferMemory#getShared()} by default.
+     */
+    public void setTransferMemory(TransferMemory transferMemory) {
+        this.transferMemory = transferMemory;
+    }
+
+    /**
+     * Sets the scheduler the ranged requests wait for a slot from, see {@link TransferScheduler}.
+     *
+     * @param transferScheduler The scheduler, {@link TransferScheduler#getShared()} by default.
+     */
+    public void setTransferScheduler(TransferScheduler transferScheduler) {
+        this.transferScheduler = transferScheduler;
+    }
+
+    /**
+     * Sets the class of the ranged requests for the {@link TransferScheduler}. The ranges read ahead, the ranges of the
+     * splits and the blocks of the channels are ranged requests; blobs read through the store's stream, without
+     * read-ahead, are fetched by the storage SDK as they are read and are not scheduled.
+     *
+     * @param priority {@link TransferPriority#INTERACTIVE} by default.
+     */
+    public void setPriority(TransferPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * The storage backend, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getBlobStore() throws URISyntaxException, StorageException {
+        if (this.blobStore == null) {
+            this.blobStore = new AzureBlobStore(this.accountName, this.accountKey, this.containerName, this.useHttps);
+        }
+        return this.blobStore;
+    }
+
     /**
      * Read the file from the blob as {@link InputStreamReader}.
      * <p>
@@ -114,19 +321,152 @@ public class AzureBlobStreamReader {
         LOGGER.traceEntry();
         LOGGER.debug("blobPathFileName: {}.", blobPathFileName);
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
+        InputStream inputStream = openInputStream(blobStore, blobPathFileName);
+
+        LOGGER.traceExit();
+        return newReader(inputStream);
+    }
+
+    /**
+     * Reads the newline separated records of a blob, such as CSV or NDJSON, with several ranged requests at once.
+     * The blob is cut into splits of {@link #setSplitSize(long)} bytes, each split is fetched and decoded by a worker
+     * and owns the records starting in it; up to {@link #setConcurrency(int)} splits are read at once. A
+     * <code>\r</code> ending a record is dropped.
+     * <p>
+     * Unordered, the consumer is called from the workers at once as the records are decoded. Ordered, it is called
+     * by one thread at a time in the order of the blob, the splits read ahead are held in memory until their turn.
+     * A compressed blob read with {@link #setDecompress(boolean)} cannot be split and is read by one thread.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobStreamReader streamReader = new AzureBlobStreamReader("account name", "account key", "container name");
+     *     LongAdder errors = new LongAdder();
+     *     streamReader.readRecords("path/to/events.ndjson", StandardCharsets.UTF_8, false, record -> {
+     *         if (record.contains("\"error\"")) {
+     *             errors.increment();
+     *         }
+     *     });
+     *     }
+     * </pre>
+     *
+     * @param blobPathFileName Path with file name.
+     * @param charset          Charset of the records, one that encodes <code>\n</code> as a single byte such as
+     *                         UTF-8.
+     * @param ordered          <code>true</code> to give the records to the consumer in the order of the blob.
+     * @param consumer         Called with every record.
+     * @return Number of records.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the blob cannot be decompressed.
+     */
+    public long readRecords(String blobPathFileName, Charset charset, boolean ordered, Consumer<String> consumer) throws URISyntaxException, StorageException, IOException {
+        LOGGER.traceEntry();
+        LOGGER.debug("blobPathFileName: {}, Charset: {}, Ordered: {}.", blobPathFileName, charset, ordered);
+
+        BlobStore blobStore = getBlobStore();
+        BlobItem blob = blobStore.getProperties(blobPathFileName);
+        if (decompress && BlobCompression.forContentEncoding(blob.getContentEncoding()) != BlobCompression.NONE) {
+            try (InputStream inputStream = BlobCompression.decompress(blob.getContentEncoding(), blobStore.openInputStream(blobPathFileName))) {
+                long records = RecordSplitReader.read(inputStream, charset, consumer);
+                LOGGER.traceExit("Records: {}", records);
+                return records;
+            }
+        }
 
-        CloudBlockBlob cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(blobPathFileName);
-        InputStream inputStream = cloudBlockBlob.openInputStream();
+        RecordSplitReader reader = new RecordSplitReader(blobStore, blobPathFileName, blob.getLength(), splitSize, charset,
+                transferMemory, transferScheduler, priority);
+        OrderedRecords orderedRecords = ordered ? new OrderedRecords(consumer, concurrency) : null;
+        AtomicLong records = new AtomicLong();
+        new BlobPipeline(this.concurrency, BlobPipeline.DEFAULT_QUEUE_SIZE).run(Collections.nCopies(reader.getSplitCount(), blobPathFileName), (index, blobName) -> {
+            if (orderedRecords == null) {
+                records.addAndGet(reader.read(index, consumer));
+                return;
+            }
+            try {
+                if (orderedRecords.await(index)) {
+                    List<String> split = new ArrayList<>();
+                    records.addAndGet(reader.read(index, split::add));
+                    orderedRecords.deliver(index, split);
+                }
+            } catch (Exception e) {
+                orderedRecords.fail();
+                throw e;
+            }
+        });
+
+        LOGGER.traceExit("Records: {}", records.get());
+        return records.get();
+    }
+
+    /**
+     * Opens a blob for random access, for formats read out of order such as Parquet, ORC or ZIP. Only the blocks
+     * read are downloaded, see {@link BlobSeekableByteChannel} for the block cache and the read-ahead. The contents
+     * are read as stored, compressed blobs are not decompressed.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobStreamReader streamReader = new AzureBlobStreamReader("account name", "account key", "container name");
+     *     try (SeekableByteChannel channel = streamReader.openChannel("path/to/archive.zip")) {
+     *         channel.position(channel.size() - 22);
+     *         channel.read(ByteBuffer.allocate(22));
+     *     }
+     *     }
+     * </pre>
+     *
+     * @param blobPathFileName Path with file name.
+     * @return Channel reading the blob.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     */
+    public BlobSeekableByteChannel openChannel(String blobPathFileName) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("blobPathFileName: {}.", blobPathFileName);
+
+        BlobSeekableByteChannel channel = new BlobSeekableByteChannel(getBlobStore(), blobPathFileName);
+        channel.setTransferMemory(transferMemory);
+        channel.setTransferScheduler(transferScheduler);
+        channel.setPriority(priority);
+
+        LOGGER.traceExit();
+        return channel;
+    }
+
+    /**
+     * Read a single file of a pack uploaded with {@link AzureBlobUpload#uploadFromFolderPacked} as
+     * {@link InputStreamReader}. The index of the pack is downloaded once per reader instance, after that each file
+     * costs one ranged request.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobStreamReader streamReader = new AzureBlobStreamReader("account name", "account key", "container name");
+     *     InputStreamReader reader = streamReader.streamPackedFileReader("path/to/folder.pack", "folder/fileName.txt");
+     *     }
+     * </pre>
+     * @param packName Blob name of the pack.
+     * @param fileName Relative path of the file in the pack.
+     * @return Input stream reader of the file.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error, <code>404</code> if the file is not in the pack.
+     * @throws IOException        If the index of the pack is not valid.
+     */
+    public InputStreamReader streamPackedFileReader(String packName, String fileName) throws URISyntaxException, StorageException, IOException {
+        LOGGER.traceEntry();
+        LOGGER.debug("packName: {}, fileName: {}.", packName, fileName);
+
+        BlobPack pack = this.packs.get(packName);
+        if (pack == null) {
+            pack = BlobPack.open(getBlobStore(), packName);
+            this.packs.put(packName, pack);
+        }
 
         LOGGER.traceExit();
-        return new InputStreamReader(inputStream);
+        return newReader(pack.openInputStream(fileName));
     }
 
     /**
@@ -151,26 +491,11 @@ public class AzureBlobStreamReader {
 
         List<InputStreamReader> inputStreamReaders = new ArrayList<>();
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
-
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
-
-        List<String> listBlobs = StorageUtils.listBlobs(cloudBlobContainer, blobFolderPath);
-        int count = listBlobs.size();
-        LOGGER.debug("Number of Files: {}", count);
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlockBlob cloudBlockBlob;
-        InputStream inputStream;
-        for (int i = 0; i < count; i++) {
-            cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(listBlobs.get(i));
-            inputStream = cloudBlockBlob.openInputStream();
-            inputStreamReaders.add(new InputStreamReader(inputStream));
-            LOGGER.debug("Count: {}, File Read: {}.", i + 1, listBlobs.get(i));
-        }
+        inputStreamReaders.addAll(openReaders(blobStore, blobStore.listBlobs(blobFolderPath)).getValue());
+        LOGGER.debug("Number of Files: {}", inputStreamReaders.size());
 
         LOGGER.traceExit();
         return inputStreamReaders;
@@ -199,31 +524,18 @@ public class AzureBlobStreamReader {
         List<String> blobPathNames = new ArrayList<>();
         List<InputStreamReader> inputStreamReaders = new ArrayList<>();
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
-
-        Pair blobRelativeNames = StorageUtils.getBlobRelativeNames(cloudBlobContainer, blobFolderPath, false);
-        LOGGER.debug("Container Name: {}", blobRelativeNames.toString());
-
-        List<String> blobPaths = (List<String>) blobRelativeNames.getKey();
-        List<String> fileNames = (List<String>) blobRelativeNames.getValue();
-        int count = blobPaths.size();
-        LOGGER.debug("Number of Files: {}", count);
+        String blobRootName = FilenameUtils.getName(blobFolderPath);
+        LOGGER.debug("blobRootName: {}", blobRootName);
 
-        CloudBlockBlob cloudBlockBlob;
-        InputStream inputStream;
-        for (int i = 0; i < count; i++) {
-            cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(blobPaths.get(i));
-            inputStream = cloudBlockBlob.openInputStream();
-            inputStreamReaders.add(new InputStreamReader(inputStream));
-            blobPathNames.add(fileNames.get(i));
-            LOGGER.debug("Count: {}, File Read: {}.", i + 1, blobPaths.get(i));
+        Pair<List<String>, List<InputStreamReader>> readers = openReaders(blobStore, blobStore.listBlobs(blobFolderPath));
+        for (String blobName : readers.getKey()) {
+            blobPathNames.add(StorageUtils.relativeBlobName(blobName, blobRootName, false));
         }
+        inputStreamReaders.addAll(readers.getValue());
+        LOGGER.debug("Number of Files: {}", inputStreamReaders.size());
 
         LOGGER.traceExit();
         return new Pair<>(blobPathNames, inputStreamReaders);
@@ -253,15 +565,10 @@ public class AzureBlobStreamReader {
         List<String> blobPathNames = new ArrayList<>();
         List<InputStreamReader> inputStreamReaders = new ArrayList<>();
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
-
-        Pair blobRelativeNames = StorageUtils.getBlobRelativeNames(cloudBlobContainer, "", true, regex);
+        Pair blobRelativeNames = StorageUtils.getBlobRelativeNames(blobStore, "", true, regex);
         LOGGER.debug("Container Name: {}", blobRelativeNames.toString());
 
         List<String> blobPaths = (List<String>) blobRelativeNames.getKey();
@@ -269,12 +576,10 @@ public class AzureBlobStreamReader {
         int count = blobPaths.size();
         LOGGER.debug("Number of Files: {}", count);
 
-        CloudBlockBlob cloudBlockBlob;
         InputStream inputStream;
         for (int i = 0; i < count; i++) {
-            cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(blobPaths.get(i));
-            inputStream = cloudBlockBlob.openInputStream();
-            inputStreamReaders.add(new InputStreamReader(inputStream));
+            inputStream = openInputStream(blobStore, blobPaths.get(i));
+            inputStreamReaders.add(newReader(inputStream));
             blobPathNames.add(fileNames.get(i));
             LOGGER.debug("Count: {}, File Read: {}.", i + 1, blobPaths.get(i));
         }
@@ -283,4 +588,231 @@ public class AzureBlobStreamReader {
         return new Pair<>(blobPathNames, inputStreamReaders);
     }
 
+    /**
+     * Contents of all the blobs of a folder as one stream, the blobs one after the other in
+     * {@link NaturalOrderComparator} order, so <code>part-2</code> before <code>part-10</code>. The blobs are read
+     * with ranged requests of {@link #setBufferSize(int)} bytes, up to {@link #setConcurrency(int)} of them fetched
+     * in the background ahead of the one being read: small blobs are fetched that many at once and handed out in
+     * order. The lengths come with the listing, no request is sent per blob for them.
+     * <p>
+     * With {@link #setDecompress(boolean)}, if any blob is compressed, each blob is decompressed on its own and only
+     * the ranges of the blob being read are fetched ahead.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobStreamReader streamReader = new AzureBlobStreamReader("account name", "account key", "container name");
+     *     try (InputStream inputStream = streamReader.streamFolderConcatenated("path/to/parts/")) {
+     *         IOUtils.copy(inputStream, outputStream);
+     *     }
+     *     }
+     * </pre>
+     *
+     * @param blobFolderPath Path to the blob folder.
+     * @return Stream of the blobs, to be closed once read.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    @SuppressWarnings("unchecked")
+    public InputStream streamFolderConcatenated(String blobFolderPath) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("blobFolderPath: {}.", blobFolderPath);
+
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
+
+        List<BlobItem> blobs = StorageUtils.listBlobItems(blobStore, blobFolderPath, EnumSet.noneOf(BlobListingDetails.class));
+        blobs.sort(new NaturalOrderComparator());
+        LOGGER.debug("Number of Files: {}", blobs.size());
+
+        boolean compressed = false;
+        for (BlobItem blob : blobs) {
+            compressed |= blob.getContentEncoding() != null;
+        }
+        if (!decompress || !compressed) {
+            LOGGER.traceExit();
+            return new BlobReadAheadInputStream(blobStore, blobs, bufferSize, concurrency, transferMemory, transferScheduler, priority);
+        }
+
+        // Opened as they are reached, a decompressor reads the header of its blob as soon as it is created.
+        final Iterator<BlobItem> iterator = blobs.iterator();
+        Enumeration<InputStream> inputStreams = new Enumeration<InputStream>() {
+
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                BlobItem blob = iterator.next();
+                InputStream inputStream = new BlobReadAheadInputStream(blobStore, blob.getName(), blob.getLength(), bufferSize,
+                        Math.max(1, readAhead), transferMemory, transferScheduler, priority);
+                try {
+                    return BlobCompression.decompress(blob.getContentEncoding(), inputStream);
+                } catch (IOException e) {
+                    IOUtils.closeQuietly(inputStream);
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+
+        LOGGER.traceExit();
+        return new SequenceInputStream(inputStreams);
+    }
+
+    /**
+     * Contents of all the blobs of a folder as one channel, see {@link #streamFolderConcatenated(String)}.
+     *
+     * @param blobFolderPath Path to the blob folder.
+     * @return Channel of the blobs, to be closed once read.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    public ReadableByteChannel openFolderChannel(String blobFolderPath) throws URISyntaxException, StorageException {
+        return Channels.newChannel(streamFolderConcatenated(blobFolderPath));
+    }
+
+    /**
+     * Opens a blob, decompressing it if {@link #setDecompress(boolean)} is set.
+     *
+     * @param blobStore {@link BlobStore} object.
+     * @param blobName  Blob path with file name.
+     * @return Stream of the blob.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private InputStream openInputStream(BlobStore blobStore, String blobName) throws URISyntaxException, StorageException {
+        if (readAhead <= 0) {
+            return decompress ? BlobCompression.openInputStream(blobStore, blobName) : blobStore.openInputStream(blobName);
+        }
+
+        BlobItem blob = blobStore.getProperties(blobName);
+        InputStream inputStream = new BlobReadAheadInputStream(blobStore, blobName, blob.getLength(), bufferSize, readAhead,
+                transferMemory, transferScheduler, priority);
+        if (!decompress) {
+            return inputStream;
+        }
+        try {
+            return BlobCompression.decompress(blob.getContentEncoding(), inputStream);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(inputStream);
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    /**
+     * Decodes a stream with the charset set by {@link #setCharset(Charset)}.
+     *
+     * @param inputStream Stream of the blob.
+     * @return Reader of the blob.
+     */
+    private InputStreamReader newReader(InputStream inputStream) {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return new InputStreamReader(inputStream, decoder);
+    }
+
+    /**
+     * Gives the records of the splits to a consumer in split order, holding at most a window of splits read ahead.
+     */
+    private static class OrderedRecords {
+
+        private final Consumer<String> consumer;
+
+        private final int window;
+
+        /**
+         * Records of the splits read ahead of {@link #next}.
+         */
+        private final Map<Integer, List<String>> readAhead = new HashMap<>();
+
+        private int next;
+
+        private boolean failed;
+
+        OrderedRecords(Consumer<String> consumer, int window) {
+            this.consumer = consumer;
+            this.window = Math.max(1, window);
+        }
+
+        /**
+         * Waits until a split is within the window.
+         *
+         * @param split Number of the split.
+         * @return <code>false</code> if another split failed.
+         * @throws InterruptedIOException If interrupted while waiting.
+         */
+        synchronized boolean await(int split) throws InterruptedIOException {
+            while (!failed && split >= next + window) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for split " + next);
+                }
+            }
+            return !failed;
+        }
+
+        /**
+         * Hands over the records of a split, and of the splits read ahead that follow it once it is their turn.
+         *
+         * @param split   Number of the split.
+         * @param records Records of the split.
+         */
+        synchronized void deliver(int split, List<String> records) {
+            readAhead.put(split, records);
+            while (!failed && readAhead.containsKey(next)) {
+                readAhead.remove(next).forEach(consumer);
+                next++;
+                notifyAll();
+            }
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Opens a reader for every blob of a listing, the readers are opened while the listing is still going on.
+     *
+     * @param blobStore {@link BlobStore} object.
+     * @param blobNames Lazy listing of the blobs.
+     * @return A pair of blob names and readers, in listing order.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private Pair<List<String>, List<InputStreamReader>> openReaders(BlobStore blobStore, Iterable<String> blobNames) throws URISyntaxException, StorageException {
+        Map<Integer, String> names = new ConcurrentHashMap<>();
+        Map<Integer, InputStreamReader> readers = new ConcurrentHashMap<>();
+        boolean opened = false;
+
+        try {
+            int count = new BlobPipeline(this.concurrency, BlobPipeline.DEFAULT_QUEUE_SIZE).run(blobNames, (index, blobName) -> {
+                readers.put(index, newReader(openInputStream(blobStore, blobName)));
+                names.put(index, blobName);
+                LOGGER.debug("Count: {}, File Read: {}.", index + 1, blobName);
+            });
+
+            List<String> blobPathNames = new ArrayList<>(count);
+            List<InputStreamReader> inputStreamReaders = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blobPathNames.add(names.get(i));
+                inputStreamReaders.add(readers.get(i));
+            }
+            opened = true;
+            return new Pair<>(blobPathNames, inputStreamReaders);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        } finally {
+            if (!opened) {
+                readers.values().forEach(IOUtils::closeQuietly);
+            }
+        }
+    }
+
 }
@@ -23,17 +23,12 @@
  */
 package com.gollahalli.azure;
 
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
 import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.BlobOutputStream;
-import com.microsoft.azure.storage.blob.CloudBlobClient;
-import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -62,6 +57,31 @@ public class AzureBlobStreamWriter {
      */
     private boolean useHttps;
 
+    /**
+     * Storage backend, connects to the storage account on first use if none was given.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * Compression applied to the written contents.
+     */
+    private BlobCompression compression = BlobCompression.NONE;
+
+    /**
+     * Budget the memory of the writes is taken from.
+     */
+    private TransferMemory transferMemory = TransferMemory.getShared();
+
+    /**
+     * Scheduler the writes wait for a slot from.
+     */
+    private TransferScheduler transferScheduler = TransferScheduler.getShared();
+
+    /**
+     * Class of the writes for the scheduler.
+     */
+    private TransferPriority priority = TransferPriority.NORMAL;
+
     private static final Logger LOGGER = LogManager.getLogger(AzureBlobDownload.class.getName());
 
     /**
@@ -93,6 +113,77 @@ public class AzureBlobStreamWriter {
         LOGGER.debug("Account Name: {}, Container Name: {}, Use HTTPS?: {}", this.accountName, this.containerName, this.useHttps);
     }
 
+    /**
+     * Implements streaming contents to a {@link BlobStore}.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobStreamWriter streamWriter = new AzureBlobStreamWriter(new InMemoryBlobStore("container name"));
+     *     }
+     * </pre>
+     *
+     * @param blobStore Storage backend, for example {@link InMemoryBlobStore} or {@link LocalFileBlobStore}.
+     */
+    public AzureBlobStreamWriter(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        this.containerName = blobStore.getContainerName();
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: {}", this.containerName);
+    }
+
+    /**
+     * The storage backend, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getBlobStore() throws URISyntaxException, StorageException {
+        if (this.blobStore == null) {
+            this.blobStore = new AzureBlobStore(this.accountName, this.accountKey, this.containerName, this.useHttps);
+        }
+        return this.blobStore;
+    }
+
+    /**
+     * Sets the compression applied to the contents written by {@link #streamFileWriter(String, byte[])}. The codec is
+     * recorded in the Content-Encoding of the blob.
+     *
+     * @param compression Compression, {@link BlobCompression#NONE} by default.
+     */
+    public void setCompression(BlobCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets the memory budget the writes take the block the storage SDK buffers from, see {@link TransferMemory}.
+     * Writes wait when the budget is exhausted.
+     *
+     * @param transferMemory The budget, {@link TransferMemory#getShared()} by default.
+     */
+    public void setTransferMemory(TransferMemory transferMemory) {
+        this.transferMemory = transferMemory;
+    }
+
+    /**
+     * Sets the scheduler the writes wait for a slot from, see {@link TransferScheduler}.
+     *
+     * @param transferScheduler The scheduler, {@link TransferScheduler#getShared()} by default.
+     */
+    public void setTransferScheduler(TransferScheduler transferScheduler) {
+        this.transferScheduler = transferScheduler;
+    }
+
+    /**
+     * Sets the class of the writes for the {@link TransferScheduler}.
+     *
+     * @param priority {@link TransferPriority#NORMAL} by default.
+     */
+    public void setPriority(TransferPriority priority) {
+        this.priority = priority;
+    }
+
     /**
      * Writes a file to the blob as a stream.
      * <p>
@@ -116,20 +207,24 @@ public class AzureBlobStreamWriter {
         LOGGER.traceEntry();
         LOGGER.debug("blobPathFileName: {}.", blobPathFileName);
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
-
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlockBlob cloudBlockBlob = cloudBlobContainer.getBlockBlobReference(blobPathFileName);
-        BlobOutputStream outputStream = cloudBlockBlob.openOutputStream();
-        outputStream.write(content);
-        outputStream.close();
+        long memory = Math.min(content.length, StorageUtils.SDK_BLOCK_SIZE);
+        TransferPriority priority = this.priority;
+        transferScheduler.acquire(priority);
+        try {
+            transferMemory.acquire(memory);
+            try (OutputStream outputStream = compression.compress(blobStore.openOutputStream(blobPathFileName, compression.getContentEncoding(), null))) {
+                outputStream.write(content);
+            } finally {
+                transferMemory.release(memory);
+            }
+        } finally {
+            transferScheduler.release(priority);
+        }
 
         LOGGER.traceExit("File Name '{}' uploaded.", blobPathFileName);
-        return cloudBlockBlob.getUri();
+        return blobStore.getBlobUri(blobPathFileName);
     }
 }
@@ -24,21 +24,42 @@
 package com.gollahalli.azure;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
 import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.CloudBlobClient;
-import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
-import javafx.util.Pair;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CopyStatus;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implements uploading files to Azure blob containers.
@@ -65,6 +86,85 @@ public class AzureBlobUpload {
      */
     private boolean useHttps;
 
+    /**
+     * Storage backend, connects to the storage account on first use if none was given.
+     */
+    private BlobStore blobStore;
+
+    /**
+     * Compression applied to the uploaded files.
+     */
+    private BlobCompression compression = BlobCompression.NONE;
+
+    /**
+     * Number of files the folder uploads send at once.
+     */
+    private int concurrency = BlobPipeline.DEFAULT_WORKERS;
+
+    /**
+     * Skip or copy the files already in the container instead of uploading them.
+     */
+    private boolean deduplicate;
+
+    /**
+     * Cache file of the hashes of the local files, <code>null</code> to hash every file.
+     */
+    private String hashCachePath;
+
+    /**
+     * Check the contents of the uploaded blobs.
+     */
+    private boolean verify;
+
+    /**
+     * Send only the part of a file the blob does not have yet.
+     */
+    private boolean incremental;
+
+    /**
+     * Split the files of the incremental uploads by their contents instead of by offset.
+     */
+    private boolean contentDefinedChunking;
+
+    /**
+     * Budget the memory of the uploads is taken from.
+     */
+    private TransferMemory transferMemory = TransferMemory.getShared();
+
+    /**
+     * Scheduler the uploads wait for a slot from.
+     */
+    private TransferScheduler transferScheduler = TransferScheduler.getShared();
+
+    /**
+     * Class of the uploads for the scheduler.
+     */
+    private TransferPriority priority = TransferPriority.BULK;
+
+    /**
+     * Metadata key holding the Base64 MD5 of the uncompressed contents of the blobs uploaded with
+     * {@link #setDeduplicate(boolean)}.
+     */
+    public static final String MD5_METADATA = "md5";
+
+    /**
+     * Prefix of the identifiers of the blocks staged by the incremental uploads, which also hold the offset and the
+     * MD5 of each block.
+     */
+    private static final String DELTA_BLOCK_PREFIX = "delta-";
+
+    /**
+     * Prefix of the identifiers of the blocks staged by the incremental uploads split by contents, which also hold the
+     * length and the MD5 of each block. As long as the identifiers of the offset blocks, the service wants all the
+     * blocks of a blob to have identifiers of the same length.
+     */
+    private static final String CHUNK_BLOCK_PREFIX = "chunk-";
+
+    /**
+     * Number of files the folder walk can get ahead of the uploads.
+     */
+    private static final int SCAN_QUEUE_SIZE = 1000;
+
     private static final Logger LOGGER = LogManager.getLogger();
 
     /**
@@ -96,6 +196,628 @@ public class AzureBlobUpload {
         this(accountName, accountKey, containerName, true);
     }
 
+    /**
+     * Implements uploading files to a {@link BlobStore}.
+     * <p>
+     * Example:
+     * <pre>
+     *     {@code
+     *     AzureBlobUpload blobUpload = new AzureBlobUpload(new InMemoryBlobStore("container name"));
+     *     }
+     * </pre>
+     *
+     * @param blobStore Storage backend, for example {@link InMemoryBlobStore} or {@link LocalFileBlobStore}.
+     */
+    public AzureBlobUpload(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        this.containerName = blobStore.getContainerName();
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: {}", this.containerName);
+    }
+
+    /**
+     * The storage backend, an {@link AzureBlobStore} is created on first use if none was given.
+     *
+     * @return The storage backend.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    private synchronized BlobStore getBlobStore() throws URISyntaxException, StorageException {
+        if (this.blobStore == null) {
+            this.blobStore = new AzureBlobStore(this.accountName, this.accountKey, this.containerName, this.useHttps);
+        }
+        return this.blobStore;
+    }
+
+    /**
+     * Sets the compression applied to the files uploaded by {@link #uploadFromFile(String, String)} and
+     * {@link #uploadFromFolder(String, String, String, String)}. The codec is recorded in the Content-Encoding of each
+     * blob. Packed uploads are not compressed, their members are read back by offset.
+     *
+     * @param compression Compression, {@link BlobCompression#NONE} by default.
+     */
+    public void setCompression(BlobCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets the number of files the folder uploads send at once, defaults to <code>8</code>. The files are uploaded
+     * while the folder is still being walked.
+     *
+     * @param concurrency Number of files uploaded at once.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets whether files already in the container are left out of the uploads. Each file is hashed and compared with
+     * the blobs under the blob path: a blob of the same name and contents is kept as it is, a blob of the same
+     * contents under another name is copied by the service, only the other files are uploaded. The hash of a blob is
+     * its {@link #MD5_METADATA} metadata, written by the deduplicating uploads, or its Content-MD5 if it is not
+     * compressed.
+     * <p>
+     * A single file is only compared with the blob it replaces.
+     *
+     * @param deduplicate <code>true</code> to deduplicate, <code>false</code> by default.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Sets a file keeping the hashes of the local files between uploads, so that only the files whose size or
+     * modification time changed are hashed again. Used by {@link #setDeduplicate(boolean)}.
+     *
+     * @param hashCachePath Path of the cache file, created if it does not exist; <code>null</code> for none.
+     */
+    public void setHashCache(String hashCachePath) {
+        this.hashCachePath = hashCachePath;
+    }
+
+    /**
+     * Sets whether each uploaded blob is checked against the file it was uploaded from. The MD5 of the bytes sent is
+     * computed while they are sent, and compared with the Content-MD5 the store keeps for the blob; a file that does
+     * not match is uploaded again, up to three times. Blobs without a Content-MD5 are not checked. The uploads of
+     * {@link #setIncremental(boolean)} are checked by their block list instead, each block identifier holding the MD5
+     * of its contents.
+     *
+     * @param verify <code>true</code> to check the uploads, <code>false</code> by default.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Sets whether a file replacing a blob only sends the bytes the blob does not have yet, for files that grow by
+     * appends such as logs and journals. The blob is written as blocks of 4 MB whose identifiers hold their offset
+     * and MD5; the next upload hashes the file against the committed blocks, reuses the blocks that still match, and
+     * stages and commits only the rest. The last block is sent again if it was not full, so that the blob does not
+     * end up with many small blocks. A blob written otherwise is replaced as a whole once, in blocks.
+     * <p>
+     * The commit is conditioned on the blob not having changed since its blocks were read. With
+     * {@link #setVerify(boolean)}, the block list committed is read back and checked against the blocks of the file
+     * instead of the Content-MD5, which a blob committed in blocks does not have. Not used with a compression nor
+     * with {@link #setDeduplicate(boolean)}.
+     *
+     * @param incremental <code>true</code> to send only the new parts of the files, <code>false</code> by default.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Sets whether the incremental uploads split the files by their contents, for large files modified anywhere such
+     * as database snapshots or disk images. Each chunk ends where a rolling hash of the last bytes matches a pattern,
+     * about every megabyte, so that an edit in the middle of the file only changes the chunks around it. Each chunk
+     * becomes a block whose identifier holds its length and MD5: the chunks the blob already has, wherever they are,
+     * are reused by the new block list, only the others are staged. Every upload still reads the whole file.
+     * <p>
+     * Only used with {@link #setIncremental(boolean)}. A blob uploaded by offset is sent whole once when this is
+     * turned on, and the other way around.
+     *
+     * @param contentDefinedChunking <code>true</code> to split by contents, <code>false</code> by default.
+     */
+    public void setContentDefinedChunking(boolean contentDefinedChunking) {
+        this.contentDefinedChunking = contentDefinedChunking;
+    }
+
+    /**
+     * Sets the memory budget the uploads take the memory the storage SDK buffers them in from, see
+     * {@link TransferMemory}. Uploads wait when the budget is exhausted.
+     *
+     * @param transferMemory The budget, {@link TransferMemory#getShared()} by default.
+     */
+    public void setTransferMemory(TransferMemory transferMemory) {
+        this.transferMemory = transferMemory;
+    }
+
+    /**
+     * Sets the scheduler the uploads wait for a slot from, see {@link TransferScheduler}.
+     *
+     * @param transferScheduler The scheduler, {@link TransferScheduler#getShared()} by default.
+     */
+    public void setTransferScheduler(TransferScheduler transferScheduler) {
+        this.transferScheduler = transferScheduler;
+    }
+
+    /**
+     * Sets the class of the uploads for the {@link TransferScheduler}. Each file takes one slot for the time of its upload.
+     *
+     * @param priority {@link TransferPriority#BULK} by default.
+     */
+    public void setPriority(TransferPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Uploads a file to a blob, compressing it on the fly if a compression is set. The memory the storage SDK buffers
+     * the file in is taken from the {@link TransferMemory} budget, and a slot from the {@link TransferScheduler}, for
+     * the time of the upload.
+     *
+     * @param blobStore Storage backend.
+     * @param blobName  Blob path with file name.
+     * @param filePath  Path of the local file.
+     * @param metadata  User metadata of the blob, <code>null</code> for none.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the file cannot be read.
+     */
+    private void upload(BlobStore blobStore, String blobName, String filePath, Map<String, String> metadata) throws URISyntaxException, StorageException, IOException {
+        boolean delta = incremental && compression == BlobCompression.NONE && metadata == null;
+        boolean fromFile = !delta && !verify && compression == BlobCompression.NONE && metadata == null;
+        // The SDK reads small files whole to send them in one request, and buffers one block of a stream.
+        long fileSize = Files.size(Paths.get(filePath));
+        long memory = fromFile && fileSize <= StorageUtils.SDK_SINGLE_PUT_THRESHOLD ? fileSize : Math.min(fileSize, StorageUtils.SDK_BLOCK_SIZE);
+        TransferPriority priority = this.priority;
+        transferScheduler.acquire(priority);
+        try {
+            transferMemory.acquire(memory);
+            try {
+                if (delta) {
+                    uploadDelta(blobStore, blobName, filePath);
+                } else if (verify) {
+                    uploadVerified(blobStore, blobName, filePath, metadata);
+                } else if (fromFile) {
+                    blobStore.uploadFromFile(blobName, filePath);
+                } else {
+                    try (OutputStream outputStream = compression.compress(blobStore.openOutputStream(blobName, compression.getContentEncoding(), metadata))) {
+                        Files.copy(Paths.get(filePath), outputStream);
+                    }
+                }
+            } finally {
+                transferMemory.release(memory);
+            }
+        } finally {
+            transferScheduler.release(priority);
+        }
+    }
+
+    /**
+     * Uploads a file while computing the MD5 of the bytes sent, then checks it against the Content-MD5 of the blob.
+     *
+     * @param blobStore Storage backend.
+     * @param blobName  Blob path with file name.
+     * @param filePath  Path of the local file.
+     * @param metadata  User metadata of the blob, <code>null</code> for none.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>400 Md5Mismatch</code> if no attempt matched.
+     * @throws IOException        If the file cannot be read.
+     */
+    private void uploadVerified(BlobStore blobStore, String blobName, String filePath, Map<String, String> metadata) throws URISyntaxException, StorageException, IOException {
+        for (int attempt = 1; ; attempt++) {
+            // The digest sees the bytes after compression, the ones the Content-MD5 is computed from.
+            MessageDigest digest = FileHashCache.newMd5();
+            try (OutputStream outputStream = compression.compress(new DigestOutputStream(
+                    blobStore.openOutputStream(blobName, compression.getContentEncoding(), metadata), digest))) {
+                Files.copy(Paths.get(filePath), outputStream);
+            }
+
+            String expected = blobStore.getProperties(blobName).getContentMd5();
+            String actual = Base64.getEncoder().encodeToString(digest.digest());
+            if (expected == null) {
+                LOGGER.debug("No Content-MD5, not checked: {}.", blobName);
+                return;
+            }
+            if (expected.equals(actual)) {
+                return;
+            }
+            LOGGER.debug("Attempt {}, MD5 mismatch: {}.", attempt, blobName);
+            if (attempt >= StorageUtils.VERIFY_ATTEMPTS) {
+                throw StorageUtils.md5Mismatch(blobName, expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Uploads the parts of a file the blob does not have yet, by offset or by contents. With
+     * {@link #setVerify(boolean)}, the block list committed is read back and compared with the blocks of the file;
+     * the identifier of each block holds the MD5 of its contents, so the blob matches the file when the lists match.
+     * A file that does not match is uploaded again, up to three times.
+     *
+     * @param blobStore Storage backend.
+     * @param blobName  Blob path with file name.
+     * @param filePath  Path of the local file.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>400 Md5Mismatch</code> if no attempt matched.
+     * @throws IOException        If the file cannot be read.
+     */
+    private void uploadDelta(BlobStore blobStore, String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        for (int attempt = 1; ; attempt++) {
+            List<String> blockIds = contentDefinedChunking ? uploadChunked(blobStore, blobName, filePath) : uploadIncremental(blobStore, blobName, filePath);
+            if (!verify) {
+                return;
+            }
+            List<String> committed = new ArrayList<>();
+            for (BlockEntry block : blobStore.getBlockList(blobName)) {
+                committed.add(block.getId());
+            }
+            if (committed.equals(blockIds)) {
+                return;
+            }
+            LOGGER.debug("Attempt {}, block list mismatch: {}.", attempt, blobName);
+            if (attempt >= StorageUtils.VERIFY_ATTEMPTS) {
+                throw StorageUtils.md5Mismatch(blobName, blockListMd5(committed), blockListMd5(blockIds));
+            }
+        }
+    }
+
+    /**
+     * MD5 of a block list, to report a mismatch.
+     *
+     * @param blockIds Identifiers of the blocks, in order.
+     * @return Base64 MD5 of the identifiers.
+     */
+    private static String blockListMd5(List<String> blockIds) {
+        MessageDigest digest = FileHashCache.newMd5();
+        for (String blockId : blockIds) {
+            digest.update(blockId.getBytes(StandardCharsets.US_ASCII));
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Uploads the part of a file the blob does not have yet, see {@link #setIncremental(boolean)}. The file is read up
+     * to the size it has when the upload starts.
+     *
+     * @param blobStore Storage backend.
+     * @param blobName  Blob path with file name.
+     * @param filePath  Path of the local file.
+     * @return Identifiers of the blocks of the file, the block list of the blob.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>412</code> if the blob changed during the upload.
+     * @throws IOException        If the file cannot be read.
+     */
+    private List<String> uploadIncremental(BlobStore blobStore, String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        BlobItem blob = getPropertiesIfExists(blobStore, blobName);
+        List<BlockEntry> committed = blob != null ? blobStore.getBlockList(blobName) : Collections.emptyList();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, StorageUtils.SDK_BLOCK_SIZE));
+            List<String> blockIds = new ArrayList<>();
+            long position = 0;
+            long lastSize = 0;
+
+            // The committed blocks are reused as long as the file still has their contents at their offset.
+            for (BlockEntry block : committed) {
+                if (block.getSize() > buffer.capacity() || position + block.getSize() > size
+                        || !block.getId().equals(deltaBlockId(position, read(channel, position, (int) block.getSize(), buffer)))) {
+                    break;
+                }
+                blockIds.add(block.getId());
+                position += block.getSize();
+                lastSize = block.getSize();
+            }
+            if (blob != null && position == size && blockIds.size() == committed.size() && blob.getLength() == size) {
+                LOGGER.debug("Unchanged: {}.", blobName);
+                return blockIds;
+            }
+            if (position < size && lastSize > 0 && lastSize < StorageUtils.SDK_BLOCK_SIZE) {
+                blockIds.remove(blockIds.size() - 1);
+                position -= lastSize;
+            }
+            LOGGER.debug("Reused {} of {} blocks, {} of {} bytes: {}.", blockIds.size(), committed.size(), position, size, blobName);
+
+            while (position < size) {
+                int length = (int) Math.min(buffer.capacity(), size - position);
+                String blockId = deltaBlockId(position, read(channel, position, length, buffer));
+                blobStore.stageBlock(blobName, blockId, buffer.array(), 0, length);
+                blockIds.add(blockId);
+                position += length;
+            }
+            blobStore.commitBlockList(blobName, blockIds, blob != null ? blob.getEtag() : null);
+            return blockIds;
+        }
+    }
+
+    /**
+     * Uploads the chunks of a file the blob does not have yet, see {@link #setContentDefinedChunking(boolean)}. The
+     * file is read up to the size it has when the upload starts.
+     *
+     * @param blobStore Storage backend.
+     * @param blobName  Blob path with file name.
+     * @param filePath  Path of the local file.
+     * @return Identifiers of the blocks of the file, the block list of the blob.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>412</code> if the blob changed during the upload.
+     * @throws IOException        If the file cannot be read.
+     */
+    private List<String> uploadChunked(BlobStore blobStore, String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        BlobItem blob = getPropertiesIfExists(blobStore, blobName);
+        List<String> committed = new ArrayList<>();
+        if (blob != null) {
+            for (BlockEntry block : blobStore.getBlockList(blobName)) {
+                committed.add(block.getId());
+            }
+        }
+        // Blocks the blob has, and the blocks staged by this upload.
+        Set<String> available = new HashSet<>(committed);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[] buffer = new byte[(int) Math.min(size, ContentDefinedChunker.MAX_SIZE)];
+            List<String> blockIds = new ArrayList<>();
+            long position = 0;
+            long stagedBytes = 0;
+            int filled = 0;
+            while (position < size) {
+                ByteBuffer free = ByteBuffer.wrap(buffer, filled, buffer.length - filled);
+                while (free.hasRemaining() && position + free.position() < size) {
+                    if (channel.read(free, position + free.position()) < 0) {
+                        throw new EOFException("File truncated while it was uploaded, " + (position + free.position()) + " bytes");
+                    }
+                }
+                filled = Math.min(free.position(), (int) Math.min(buffer.length, size - position));
+
+                int length = ContentDefinedChunker.cut(buffer, 0, filled);
+                MessageDigest digest = FileHashCache.newMd5();
+                digest.update(buffer, 0, length);
+                String blockId = chunkBlockId(length, Base64.getEncoder().encodeToString(digest.digest()));
+                if (available.add(blockId)) {
+                    blobStore.stageBlock(blobName, blockId, buffer, 0, length);
+                    stagedBytes += length;
+                }
+                blockIds.add(blockId);
+
+                position += length;
+                filled -= length;
+                System.arraycopy(buffer, length, buffer, 0, filled);
+            }
+            if (blob != null && blockIds.equals(committed) && blob.getLength() == size) {
+                LOGGER.debug("Unchanged: {}.", blobName);
+                return blockIds;
+            }
+            LOGGER.debug("Staged {} of {} bytes in {} blocks: {}.", stagedBytes, size, blockIds.size(), blobName);
+            blobStore.commitBlockList(blobName, blockIds, blob != null ? blob.getEtag() : null);
+            return blockIds;
+        }
+    }
+
+    /**
+     * Reads a range of a file.
+     *
+     * @param channel  The file.
+     * @param position Offset of the range.
+     * @param length   Length of the range, at most the capacity of <code>buffer</code>.
+     * @param buffer   Buffer receiving the range from its start.
+     * @return Base64 MD5 of the range.
+     * @throws IOException If the file cannot be read or is shorter than the range.
+     */
+    private static String read(FileChannel channel, long position, int length, ByteBuffer buffer) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File truncated while it was uploaded, " + (position + buffer.position()) + " bytes");
+            }
+        }
+        MessageDigest digest = FileHashCache.newMd5();
+        digest.update(buffer.array(), 0, length);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Identifier of a block of an incremental upload. All have the same length, as the service requires.
+     *
+     * @param offset Offset of the block in the blob.
+     * @param md5    Base64 MD5 of the block.
+     * @return Base64 identifier.
+     */
+    private static String deltaBlockId(long offset, String md5) {
+        String id = DELTA_BLOCK_PREFIX + String.format("%016x", offset) + "-" + md5;
+        return Base64.getEncoder().encodeToString(id.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Identifier of a block of an incremental upload split by contents, the same for the same contents.
+     *
+     * @param length Length of the block.
+     * @param md5    Base64 MD5 of the block.
+     * @return Base64 identifier, as long as the {@link #deltaBlockId(long, String)} ones.
+     */
+    private static String chunkBlockId(long length, String md5) {
+        String id = CHUNK_BLOCK_PREFIX + String.format("%016x", length) + "-" + md5;
+        return Base64.getEncoder().encodeToString(id.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Uploads a file unless the container already has its contents.
+     *
+     * @param blobStore  Storage backend.
+     * @param blobName   Blob path with file name.
+     * @param file       Local file.
+     * @param hashCache  Hashes of the local files.
+     * @param blobs      Blobs already in the container, by name; <code>null</code> to read the properties of the
+     *                   blob replaced.
+     * @param blobHashes Name of a blob for each hash in the container, updated with the uploaded files.
+     * @return <code>"skipped"</code>, <code>"copied"</code> or <code>"uploaded"</code>.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the file cannot be read.
+     */
+    private String uploadDeduplicated(BlobStore blobStore, String blobName, LocalFile file, FileHashCache hashCache,
+                                      Map<String, BlobItem> blobs, Map<String, String> blobHashes) throws URISyntaxException, StorageException, IOException {
+        String md5 = hashCache.md5(file);
+
+        BlobItem blob = blobs != null ? blobs.get(blobName) : getPropertiesIfExists(blobStore, blobName);
+        if (blob != null && md5.equals(contentHash(blob))) {
+            return "skipped";
+        }
+
+        String duplicate = blobHashes.get(md5);
+        if (duplicate != null) {
+            CopyStatus status = blobStore.startCopy(blobName, blobStore, duplicate);
+            if (status == CopyStatus.SUCCESS || status == CopyStatus.PENDING) {
+                return "copied";
+            }
+        }
+
+        upload(blobStore, blobName, file.getPath().toString(), Collections.singletonMap(MD5_METADATA, md5));
+        // Only once uploaded, a copy must not start from a blob still being written.
+        blobHashes.putIfAbsent(md5, blobName);
+        return "uploaded";
+    }
+
+    /**
+     * Creates the container if it does not exist yet.
+     *
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     */
+    void createContainerIfNotExists() throws URISyntaxException, StorageException {
+        getBlobStore().createContainerIfNotExists();
+    }
+
+    /**
+     * Uploads files to a blob path, several at once. The container must exist.
+     *
+     * @param files    Files to upload, blob names are their relative paths appended to <code>blobPath</code>.
+     * @param blobPath Path of the blob folder, <code>null</code> for the root of the container.
+     * @return Number of files uploaded, skipped or copied.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If a file cannot be read.
+     */
+    int uploadFiles(Collection<LocalFile> files, String blobPath) throws URISyntaxException, StorageException, IOException {
+        return uploadFiles(getBlobStore(), files.iterator(), blobPath, false, new AtomicReference<>());
+    }
+
+    /**
+     * Uploads files to a blob path through a {@link BlobPipeline}.
+     *
+     * @param blobStore    Storage backend.
+     * @param files        Files to upload, read lazily.
+     * @param blobPath     Path of the blob folder, <code>null</code> for the root of the container.
+     * @param listBlobs    <code>true</code> to list the blobs under the path once to deduplicate,
+     *                     <code>false</code> to read the properties of each blob replaced.
+     * @param lastBlobName Set to the name of the last blob uploaded.
+     * @return Number of files uploaded, skipped or copied.
+     * @throws URISyntaxException If an invalid account name is provided.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If a file cannot be read.
+     */
+    private int uploadFiles(BlobStore blobStore, final Iterator<LocalFile> files, String blobPath, boolean listBlobs,
+                            AtomicReference<String> lastBlobName) throws URISyntaxException, StorageException, IOException {
+        Map<String, BlobItem> blobs = null;
+        Map<String, String> blobHashes = new ConcurrentHashMap<>();
+        FileHashCache hashCache = null;
+        if (deduplicate) {
+            if (listBlobs) {
+                blobs = new HashMap<>();
+                for (BlobItem blob : blobStore.listBlobItems(blobPath, EnumSet.of(BlobListingDetails.METADATA))) {
+                    blobs.put(blob.getName(), blob);
+                    String md5 = contentHash(blob);
+                    if (md5 != null) {
+                        blobHashes.putIfAbsent(md5, blob.getName());
+                    }
+                }
+                LOGGER.debug("Blobs: {}, Known Hashes: {}", blobs.size(), blobHashes.size());
+            }
+            hashCache = openHashCache();
+        }
+
+        final Map<String, BlobItem> knownBlobs = blobs;
+        final FileHashCache fileHashes = hashCache;
+        Map<String, LocalFile> pending = new ConcurrentHashMap<>();
+
+        // The pipeline takes names, the files are handed over to the workers through the map.
+        Iterable<String> relativePaths = () -> new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return files.hasNext();
+            }
+
+            @Override
+            public String next() {
+                LocalFile file = files.next();
+                pending.put(file.getRelativePath(), file);
+                return file.getRelativePath();
+            }
+        };
+
+        try {
+            return new BlobPipeline(this.concurrency, BlobPipeline.DEFAULT_QUEUE_SIZE).run(relativePaths, (index, relativePath) -> {
+                LocalFile file = pending.remove(relativePath);
+                String blobName = blobPath != null ? blobPath + relativePath : relativePath;
+                if (fileHashes != null) {
+                    String result = uploadDeduplicated(blobStore, blobName, file, fileHashes, knownBlobs, blobHashes);
+                    LOGGER.debug("COUNT: {}, File {}: {}.", index + 1, result, file.getPath());
+                } else {
+                    upload(blobStore, blobName, file.getPath().toString(), null);
+                    LOGGER.debug("COUNT: {}, Uploaded: {}.", index + 1, file.getPath());
+                }
+                lastBlobName.set(blobName);
+            });
+        } finally {
+            if (hashCache != null) {
+                hashCache.save();
+            }
+        }
+    }
+
+    /**
+     * Properties of a blob.
+     *
+     * @param blobStore Storage backend.
+     * @param blobName  Blob path with file name.
+     * @return Properties, <code>null</code> if the blob does not exist.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    private static BlobItem getPropertiesIfExists(BlobStore blobStore, String blobName) throws URISyntaxException, StorageException {
+        try {
+            return blobStore.getProperties(blobName);
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() != 404) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Hash of the uncompressed contents of a blob.
+     *
+     * @param blob Blob properties.
+     * @return Base64 MD5, <code>null</code> if unknown.
+     */
+    private static String contentHash(BlobItem blob) {
+        String md5 = blob.getMetadata().get(MD5_METADATA);
+        if (md5 == null && blob.getContentEncoding() == null) {
+            md5 = blob.getContentMd5();
+        }
+        return md5;
+    }
+
+    /**
+     * Opens the hash cache set by {@link #setHashCache(String)}.
+     *
+     * @return The hash cache, in memory only if no cache file is set.
+     * @throws IOException If the cache file cannot be read.
+     */
+    private FileHashCache openHashCache() throws IOException {
+        return new FileHashCache(hashCachePath != null ? Paths.get(hashCachePath) : null);
+    }
 
     /**
      * Upload a single file to Azure blob and specify the path to the blob folder.
@@ -119,37 +841,42 @@ public class AzureBlobUpload {
         LOGGER.traceEntry();
         LOGGER.debug("pathFileName: {}, blobPath: {}.", pathFileName, blobPath);
 
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
-
-        if (!StorageUtils.containerExists(cloudBlobClient, this.containerName)) {
-            LOGGER.debug("Container '{}' does not exists", this.containerName);
-            StorageUtils.createContainer(cloudBlobContainer);
-        }
+        blobStore.createContainerIfNotExists();
 
         String fileName = FilenameUtils.getName(pathFileName);
         pathFileName = FilenameUtils.normalize(pathFileName);
         LOGGER.debug("File Name: {}, File Name with Path: {}", fileName, pathFileName);
 
-        CloudBlockBlob blob;
+        String blobName;
         if (blobPath != null) {
-            blob = cloudBlobContainer.getBlockBlobReference(blobPath + fileName);
-            LOGGER.debug("Block Reference: {}", blob.getName());
+            blobName = blobPath + fileName;
+            LOGGER.debug("Block Reference: {}", blobName);
         } else {
-            blob = cloudBlobContainer.getBlockBlobReference(fileName);
-            LOGGER.debug("Block Reference: {}", blob.getName());
+            blobName = fileName;
+            LOGGER.debug("Block Reference: {}", blobName);
         }
 
-        blob.uploadFromFile(pathFileName);
+        if (deduplicate) {
+            File file = new File(pathFileName);
+            FileHashCache hashCache = openHashCache();
+            try {
+                String result = uploadDeduplicated(blobStore, blobName, new LocalFile(file.toPath(), fileName, file.length(), file.lastModified()),
+                        hashCache, null, new HashMap<>());
+                LOGGER.debug("File {}: {}", result, pathFileName);
+            } finally {
+                hashCache.save();
+            }
+        } else {
+            upload(blobStore, blobName, pathFileName, null);
+        }
         LOGGER.debug("Uploaded: {}", pathFileName);
 
-        LOGGER.traceExit("URI: {}.", blob.getUri());
-        return blob.getUri();
+        URI uri = blobStore.getBlobUri(blobName);
+        LOGGER.traceExit("URI: {}.", uri);
+        return uri;
     }
 
     /**
@@ -192,52 +919,51 @@ public class AzureBlobUpload {
      * @throws IOException        If your absolute path contains no file.
      */
     public URI uploadFromFolder(String folderPath, String blobPath) throws URISyntaxException, StorageException, IOException {
-        // TODO: Remove redundant code.
-        LOGGER.traceEntry();
-        LOGGER.debug("folderPath: {}, blobPath: {}.", folderPath, blobPath);
-
-        StorageCredentialsAccountAndKey accountAndKey = new StorageCredentialsAccountAndKey(this.accountName, this.accountKey);
-        CloudStorageAccount account = new CloudStorageAccount(accountAndKey, this.useHttps);
-        LOGGER.debug("Account URI: {}.", account.getBlobEndpoint());
-
-        CloudBlobClient cloudBlobClient = account.createCloudBlobClient();
-        CloudBlobContainer cloudBlobContainer = cloudBlobClient.getContainerReference(this.containerName);
-        LOGGER.debug("Container Name: {}", this.containerName);
-
-        if (!StorageUtils.containerExists(cloudBlobClient, this.containerName)) {
-            LOGGER.debug("Container '{}' does not exists", this.containerName);
-            StorageUtils.createContainer(cloudBlobContainer);
-        }
+        return uploadFromFolder(folderPath, blobPath, null, null);
+    }
 
-        Pair pair = StorageUtils.getRelativePaths(folderPath);
+    /**
+     * Do a recursive upload of the files of a folder matching <code>include</code> and not matching
+     * <code>exclude</code> to a given blob path. The folder is walked in parallel by {@link LocalFileWalker} and each
+     * file is uploaded as soon as it is found, so the upload starts before the walk is complete.
+     * <p>
+     *  Example:
+     * <pre>
+     *     {@code
+     *      AzureBlobUpload blobUpload = new AzureBlobUpload("account name", "account key", "container name");
+     *      URI uri = blobUpload.uploadFromFolder("c:/path/to/", "path/tp/blob/", "**.csv", "tmp/**");
+     *      }
+     * </pre>
+     *
+     * @param folderPath Absolute path to a folder.
+     * @param blobPath   Path of the blob folder.
+     * @param include    Glob of the files to include, <code>null</code> to include all.
+     * @param exclude    Glob of the files and folders to exclude, <code>null</code> to exclude none.
+     * @return URI of the uploaded location.
+     * @throws URISyntaxException Is used by {@link CloudStorageAccount}.
+     * @throws StorageException   If container is not found.
+     * @throws IOException        If your absolute path contains no file.
+     */
+    public URI uploadFromFolder(String folderPath, String blobPath, String include, String exclude) throws URISyntaxException, StorageException, IOException {
+        LOGGER.traceEntry();
+        LOGGER.debug("folderPath: {}, blobPath: {}, include: {}, exclude: {}.", folderPath, blobPath, include, exclude);
 
-        // Absolute paths
-        List<String> absolutePath = (List<String>) pair.getKey();
-        // Relative paths.
-        List<String> relativePath = (List<String>) pair.getValue();
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
 
-        CloudBlockBlob blob = null;
-        int count = absolutePath.size();
-        LOGGER.debug("Number of Files: {}", count);
+        blobStore.createContainerIfNotExists();
 
-        if (blobPath != null) {
-            LOGGER.debug("No Blob Path Given.");
-            for (int i = 0; i < count; i++) {
-                blob = cloudBlobContainer.getBlockBlobReference(blobPath + relativePath.get(i));
-                blob.uploadFromFile(absolutePath.get(i));
-                LOGGER.debug("COUNT: {}, Uploaded: {}.", i+1, absolutePath.get(i));
-            }
-        } else {
-            LOGGER.debug("Blob Path Given.");
-            for (int i = 0; i < count; i++) {
-                blob = cloudBlobContainer.getBlockBlobReference(relativePath.get(i));
-                blob.uploadFromFile(absolutePath.get(i));
-                LOGGER.debug("COUNT: {}, Uploaded: {}.", i+1, absolutePath.get(i));
-            }
+        AtomicReference<String> lastBlobName = new AtomicReference<>();
+        try (LocalFileWalker.Scan files = new LocalFileWalker(folderPath, include, exclude).scan(SCAN_QUEUE_SIZE)) {
+            int count = uploadFiles(blobStore, files, blobPath, true, lastBlobName);
+            LOGGER.debug("Number of Files: {}", count);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
 
-        assert blob != null;
-        URI uri = new URL(new URL(blob.getParent().getUri().toString()), FilenameUtils.getName(folderPath)).toURI();
+        String blobName = lastBlobName.get();
+        assert blobName != null;
+        URI uri = blobStore.getBlobUri(blobName).resolve(new URI(null, null, FilenameUtils.getName(folderPath), null));
         LOGGER.traceExit("Uploaded to: {}.", uri);
         return uri;
     }
@@ -263,4 +989,51 @@ public class AzureBlobUpload {
         return uploadFromFolder(folderPath, null);
     }
 
+    /**
+     * Do a recursive upload of the folder path provided into a pack: the files are streamed back to back into a few
+     * large part blobs and their offsets are kept in an index blob, see {@link BlobPack}. Use this for folders with
+     * many small files, each part costs a handful of requests however many files it holds. The index is only uploaded
+     * once every file is packed, a failure leaves no index, see {@link BlobPackWriter}.
+     * <p>
+     *  Example:
+     * <pre>
+     *     {@code
+     *      AzureBlobUpload blobUpload = new AzureBlobUpload("account name", "account key", "container name");
+     *      URI uri = blobUpload.uploadFromFolderPacked("c:/path/to/", "path/to/blob/folder.pack", BlobPackWriter.DEFAULT_PART_SIZE);
+     *      }
+     * </pre>
+     *
+     * @param folderPath Absolute path to a folder.
+     * @param packName   Blob name of the pack.
+     * @param partSize   Size a part reaches before a new one is started.
+     * @return URI of the index blob.
+     * @throws URISyntaxException Is used by {@link CloudStorageAccount}.
+     * @throws StorageException   If container is not found.
+     * @throws IOException        If a file cannot be read.
+     */
+    public URI uploadFromFolderPacked(String folderPath, String packName, long partSize) throws URISyntaxException, StorageException, IOException {
+        LOGGER.traceEntry();
+        LOGGER.debug("folderPath: {}, packName: {}, partSize: {}.", folderPath, packName, partSize);
+
+        BlobStore blobStore = getBlobStore();
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
+
+        blobStore.createContainerIfNotExists();
+
+        try (LocalFileWalker.Scan files = new LocalFileWalker(folderPath).scan(SCAN_QUEUE_SIZE);
+             BlobPackWriter writer = new BlobPackWriter(blobStore, packName, partSize)) {
+            while (files.hasNext()) {
+                writer.add(files.next());
+            }
+            writer.commit();
+            LOGGER.debug("Number of Files: {}, Number of Parts: {}", writer.getFileCount(), writer.getPartCount());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        URI uri = blobStore.getBlobUri(packName + BlobPack.INDEX_SUFFIX);
+        LOGGER.traceExit("Uploaded to: {}.", uri);
+        return uri;
+    }
+
 }
@@ -0,0 +1,190 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression applied to blobs while they are written. The codec is recorded in the Content-Encoding of the blob, so
+ * readers can decompress without being told which codec was used, and HTTP clients reading the blob directly
+ * decompress it too.
+ * <p>
+ * Only the codecs of the JDK are used: {@link #GZIP} compresses best, {@link #DEFLATE} uses the fastest deflate level
+ * and is usually several times faster for a slightly larger result.
+ */
+public enum BlobCompression {
+
+    /**
+     * No compression.
+     */
+    NONE(null, 0),
+
+    /**
+     * GZIP at the default level, Content-Encoding <code>gzip</code>.
+     */
+    GZIP("gzip", Deflater.DEFAULT_COMPRESSION),
+
+    /**
+     * Zlib at the fastest level, Content-Encoding <code>deflate</code>.
+     */
+    DEFLATE("deflate", Deflater.BEST_SPEED);
+
+    /**
+     * Buffer size of the compressing and decompressing streams.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private String contentEncoding;
+
+    private int level;
+
+    BlobCompression(String contentEncoding, int level) {
+        this.contentEncoding = contentEncoding;
+        this.level = level;
+    }
+
+    /**
+     * Content-Encoding written with the blob.
+     *
+     * @return Content-Encoding, <code>null</code> for {@link #NONE}.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Wraps a stream so that the bytes written to it are compressed. Closing the returned stream finishes the
+     * compression and closes <code>outputStream</code>.
+     *
+     * @param outputStream Stream receiving the compressed bytes.
+     * @return Stream to write the uncompressed bytes to.
+     * @throws IOException If the stream cannot be written.
+     */
+    public OutputStream compress(OutputStream outputStream) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(outputStream, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            case DEFLATE:
+                final Deflater deflater = new Deflater(level);
+                return new DeflaterOutputStream(outputStream, deflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            deflater.end();
+                        }
+                    }
+                };
+            default:
+                return outputStream;
+        }
+    }
+
+    /**
+     * Wraps a stream read from a blob so that it is decompressed according to the Content-Encoding of the blob.
+     *
+     * @param contentEncoding Content-Encoding of the blob, <code>null</code> if not set.
+     * @param inputStream     Stream of the blob as stored.
+     * @return Stream of the uncompressed bytes, <code>inputStream</code> itself if it is not compressed.
+     * @throws IOException If the Content-Encoding is not supported or the stream cannot be read.
+     */
+    public static InputStream decompress(String contentEncoding, InputStream inputStream) throws IOException {
+        BlobCompression compression = forContentEncoding(contentEncoding);
+        switch (compression) {
+            case GZIP:
+                return new GZIPInputStream(inputStream, BUFFER_SIZE);
+            case DEFLATE:
+                final Inflater inflater = new Inflater();
+                return new InflaterInputStream(inputStream, inflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            default:
+                return inputStream;
+        }
+    }
+
+    /**
+     * Opens a blob and decompresses it according to its Content-Encoding. This costs one extra request to read the
+     * properties of the blob.
+     *
+     * @param blobStore Storage backend.
+     * @param blobName  Blob path with file name.
+     * @return Stream of the uncompressed bytes.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, or the Content-Encoding is not supported.
+     */
+    static InputStream openInputStream(BlobStore blobStore, String blobName) throws URISyntaxException, StorageException {
+        String contentEncoding = blobStore.getProperties(blobName).getContentEncoding();
+        InputStream inputStream = blobStore.openInputStream(blobName);
+        try {
+            return decompress(contentEncoding, inputStream);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(inputStream);
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    /**
+     * The codec of a Content-Encoding.
+     *
+     * @param contentEncoding Content-Encoding, <code>null</code> or empty for {@link #NONE}.
+     * @return The codec.
+     * @throws IOException If the Content-Encoding is not supported.
+     */
+    public static BlobCompression forContentEncoding(String contentEncoding) throws IOException {
+        if (contentEncoding == null || contentEncoding.isEmpty() || "identity".equalsIgnoreCase(contentEncoding)) {
+            return NONE;
+        }
+        for (BlobCompression compression : values()) {
+            if (contentEncoding.equalsIgnoreCase(compression.contentEncoding)) {
+                return compression;
+            }
+        }
+        throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.CopyStatus;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Map;
+
+/**
+ * Properties and metadata of a blob, as returned by {@link BlobStore#getProperties(String)} and
+ * {@link BlobStore#listBlobItems(String, EnumSet)}. Items listed without {@link BlobListingDetails#METADATA} or
+ * {@link BlobListingDetails#COPY} have no metadata and no copy state.
+ */
+public class BlobItem {
+
+    private String name;
+
+    private long length;
+
+    private String etag;
+
+    private Date lastModified;
+
+    private String contentEncoding;
+
+    private String contentMd5;
+
+    private Map<String, String> metadata;
+
+    private CopyStatus copyStatus;
+
+    private String copyStatusDescription;
+
+    private String snapshotId;
+
+    private boolean directory;
+
+    /**
+     * Properties of a blob.
+     *
+     * @param name            Blob path with file name.
+     * @param length          Size of the blob in bytes.
+     * @param etag            ETag of the blob.
+     * @param lastModified    Last modified time.
+     * @param contentEncoding Content-Encoding, <code>null</code> if not set.
+     * @param metadata        User metadata, <code>null</code> if none.
+     */
+    public BlobItem(String name, long length, String etag, Date lastModified, String contentEncoding, Map<String, String> metadata) {
+        this(name, length, etag, lastModified, contentEncoding, null, metadata, null, null);
+    }
+
+    /**
+     * Properties of a blob, including its Content-MD5 and the state of the last copy into it.
+     *
+     * @param name                  Blob path with file name.
+     * @param length                Size of the blob in bytes.
+     * @param etag                  ETag of the blob.
+     * @param lastModified          Last modified time.
+     * @param contentEncoding       Content-Encoding, <code>null</code> if not set.
+     * @param contentMd5            Base64 MD5 of the blob as stored, <code>null</code> if not set.
+     * @param metadata              User metadata, <code>null</code> if none.
+     * @param copyStatus            Status of the last copy into the blob, <code>null</code> if it was never copied.
+     * @param copyStatusDescription Reason of a failed copy, <code>null</code> if none.
+     */
+    public BlobItem(String name, long length, String etag, Date lastModified, String contentEncoding, String contentMd5,
+                    Map<String, String> metadata, CopyStatus copyStatus, String copyStatusDescription) {
+        this(name, length, etag, lastModified, contentEncoding, contentMd5, metadata, copyStatus, copyStatusDescription, null);
+    }
+
+    /**
+     * Properties of a blob or of one of its snapshots.
+     *
+     * @param name                  Blob path with file name.
+     * @param length                Size of the blob in bytes.
+     * @param etag                  ETag of the blob.
+     * @param lastModified          Last modified time.
+     * @param contentEncoding       Content-Encoding, <code>null</code> if not set.
+     * @param contentMd5            Base64 MD5 of the blob as stored, <code>null</code> if not set.
+     * @param metadata              User metadata, <code>null</code> if none.
+     * @param copyStatus            Status of the last copy into the blob, <code>null</code> if it was never copied.
+     * @param copyStatusDescription Reason of a failed copy, <code>null</code> if none.
+     * @param snapshotId            Time stamp of the snapshot, <code>null</code> for the blob itself.
+     */
+    public BlobItem(String name, long length, String etag, Date lastModified, String contentEncoding, String contentMd5,
+                    Map<String, String> metadata, CopyStatus copyStatus, String copyStatusDescription, String snapshotId) {
+        this.name = name;
+        this.length = length;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentEncoding = contentEncoding;
+        this.contentMd5 = contentMd5;
+        this.metadata = metadata == null ? Collections.emptyMap() : Collections.unmodifiableMap(metadata);
+        this.copyStatus = copyStatus;
+        this.copyStatusDescription = copyStatusDescription;
+        this.snapshotId = snapshotId;
+    }
+
+    /**
+     * A virtual directory, as listed by {@link BlobStore#listDirectory(String, EnumSet)}.
+     *
+     * @param prefix Path of the directory, ending with <code>/</code>.
+     * @return The directory, with no properties.
+     */
+    static BlobItem directory(String prefix) {
+        BlobItem item = new BlobItem(prefix, 0, null, null, null, null);
+        item.directory = true;
+        return item;
+    }
+
+    /**
+     * Blob path with file name.
+     *
+     * @return Blob name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Size of the blob as stored, after compression if any.
+     *
+     * @return Size in bytes.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * ETag of the blob, changes every time the blob is written.
+     *
+     * @return ETag.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Last modified time of the blob.
+     *
+     * @return Last modified time.
+     */
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Content-Encoding of the blob, see {@link BlobCompression}.
+     *
+     * @return Content-Encoding, <code>null</code> if not set.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Content-MD5 of the blob, the hash of the bytes as stored, so after compression if any. The service sets it for
+     * blobs uploaded in a single request.
+     *
+     * @return Base64 MD5, <code>null</code> if not set.
+     */
+    public String getContentMd5() {
+        return contentMd5;
+    }
+
+    /**
+     * User metadata of the blob.
+     *
+     * @return Metadata, empty if none.
+     */
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Status of the last copy into the blob, see {@link BlobStore#startCopy(String, BlobStore, String)}.
+     *
+     * @return Copy status, <code>null</code> if the blob was never copied.
+     */
+    public CopyStatus getCopyStatus() {
+        return copyStatus;
+    }
+
+    /**
+     * Reason given by the service for a failed or aborted copy.
+     *
+     * @return Description, <code>null</code> if none.
+     */
+    public String getCopyStatusDescription() {
+        return copyStatusDescription;
+    }
+
+    /**
+     * Snapshot the properties are of, listed with {@link BlobListingDetails#SNAPSHOTS}.
+     *
+     * @return Time stamp of the snapshot, <code>null</code> for the blob itself.
+     */
+    public String getSnapshotId() {
+        return snapshotId;
+    }
+
+    /**
+     * Tells a snapshot from the blob itself.
+     *
+     * @return <code>true</code> if the properties are of a snapshot.
+     */
+    public boolean isSnapshot() {
+        return snapshotId != null;
+    }
+
+    /**
+     * Tells a virtual directory, a common prefix of blobs listed by {@link BlobStore#listDirectory(String, EnumSet)},
+     * from a blob.
+     *
+     * @return <code>true</code> for a virtual directory, its name is the prefix and it has no properties.
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * The same properties without the details a listing did not ask for, for the stores that always have them.
+     *
+     * @param details Details asked for.
+     * @return This item if it has nothing more, otherwise a copy without the metadata or the copy state.
+     */
+    BlobItem withDetails(EnumSet<BlobListingDetails> details) {
+        boolean metadata = details.contains(BlobListingDetails.METADATA) || this.metadata.isEmpty();
+        boolean copy = details.contains(BlobListingDetails.COPY) || copyStatus == null;
+        if (metadata && copy || directory) {
+            return this;
+        }
+        return new BlobItem(name, length, etag, lastModified, contentEncoding, contentMd5, metadata ? this.metadata : null,
+                copy ? copyStatus : null, copy ? copyStatusDescription : null, snapshotId);
+    }
+
+    @Override
+    public String toString() {
+        return snapshotId == null ? name : name + "?snapshot=" + snapshotId;
+    }
+}
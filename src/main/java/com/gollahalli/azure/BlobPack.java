@@ -0,0 +1,235 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads files packed by {@link BlobPackWriter}.
+ * <p>
+ * A pack named <code>backup/photos.pack</code> is stored as the part blobs <code>backup/photos.pack.00000</code>,
+ * <code>backup/photos.pack.00001</code>, ... holding the contents of the files back to back, and the index blob
+ * <code>backup/photos.pack.index</code>. The index is a UTF-8 text file with a header line followed by one line per
+ * file: <code>part TAB offset TAB length TAB name</code>.
+ * <p>
+ * The index is read once when the pack is opened, after that every file is read with a single ranged request.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     BlobPack pack = BlobPack.open(blobStore, "backup/photos.pack");
+ *     byte[] content = pack.read("photos/2018/001.jpg");
+ *     }
+ * </pre>
+ */
+public class BlobPack {
+
+    /**
+     * Suffix of the index blob.
+     */
+    public static final String INDEX_SUFFIX = ".index";
+
+    /**
+     * First line of the index blob.
+     */
+    static final String INDEX_HEADER = "# azure-blob-explorer pack v1";
+
+    private BlobStore blobStore;
+
+    private String packName;
+
+    private Map<String, Entry> entries;
+
+    private static final Logger LOGGER = LogManager.getLogger(BlobPack.class.getName());
+
+    private BlobPack(BlobStore blobStore, String packName, Map<String, Entry> entries) {
+        this.blobStore = blobStore;
+        this.packName = packName;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens a pack by downloading its index.
+     *
+     * @param blobStore {@link BlobStore} object.
+     * @param packName  Blob name of the pack, without suffix.
+     * @return The pack.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the pack does not exist.
+     * @throws IOException        If the index is not valid.
+     */
+    public static BlobPack open(BlobStore blobStore, String packName) throws URISyntaxException, StorageException, IOException {
+        LOGGER.traceEntry();
+        LOGGER.debug("packName: {}.", packName);
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        blobStore.download(packName + INDEX_SUFFIX, index);
+
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(index.toByteArray()), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (!INDEX_HEADER.equals(line)) {
+                throw new IOException("Not a pack index: " + packName + INDEX_SUFFIX);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Invalid pack index line: " + line);
+                }
+                entries.put(fields[3], new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+        }
+
+        LOGGER.traceExit("Files in pack: {}.", entries.size());
+        return new BlobPack(blobStore, packName, entries);
+    }
+
+    /**
+     * Blob name of a part of a pack.
+     *
+     * @param packName Blob name of the pack.
+     * @param part     Part number.
+     * @return Blob name of the part.
+     */
+    static String partName(String packName, int part) {
+        return String.format("%s.%05d", packName, part);
+    }
+
+    /**
+     * Writes one line of the index.
+     *
+     * @param writer Index writer.
+     * @param name   File name.
+     * @param entry  Location of the file.
+     * @throws IOException If the line cannot be written.
+     */
+    static void writeEntry(Writer writer, String name, Entry entry) throws IOException {
+        writer.write(entry.part + "\t" + entry.offset + "\t" + entry.length + "\t" + name + "\n");
+    }
+
+    /**
+     * Names of the packed files, in the order they were packed.
+     *
+     * @return File names.
+     */
+    public List<String> getFileNames() {
+        return Collections.unmodifiableList(new ArrayList<>(entries.keySet()));
+    }
+
+    /**
+     * Checks if a file is in the pack.
+     *
+     * @param name File name.
+     * @return <code>true</code> if the file is in the pack.
+     */
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Size of a packed file.
+     *
+     * @param name File name.
+     * @return Size in bytes.
+     * @throws StorageException If the file is not in the pack.
+     */
+    public long getSize(String name) throws StorageException {
+        return getEntry(name).length;
+    }
+
+    /**
+     * Reads a packed file with a single ranged request.
+     *
+     * @param name File name.
+     * @return Contents of the file.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the file is not in the pack.
+     */
+    public byte[] read(String name) throws URISyntaxException, StorageException {
+        Entry entry = getEntry(name);
+        if (entry.length == 0) {
+            return new byte[0];
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) entry.length);
+        blobStore.downloadRange(partName(packName, entry.part), entry.offset, entry.length, content);
+        LOGGER.debug("Read: {}, Part: {}, Offset: {}, Length: {}.", name, entry.part, entry.offset, entry.length);
+        return content.toByteArray();
+    }
+
+    /**
+     * Reads a packed file with a single ranged request.
+     *
+     * @param name File name.
+     * @return Stream of the contents of the file.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the file is not in the pack.
+     */
+    public InputStream openInputStream(String name) throws URISyntaxException, StorageException {
+        return new ByteArrayInputStream(read(name));
+    }
+
+    private Entry getEntry(String name) throws StorageException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw StorageUtils.blobNotFound(packName + "/" + name);
+        }
+        return entry;
+    }
+
+    /**
+     * Location of a file in a pack.
+     */
+    static class Entry {
+
+        private int part;
+
+        private long offset;
+
+        private long length;
+
+        Entry(int part, long offset, long length) {
+            this.part = part;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
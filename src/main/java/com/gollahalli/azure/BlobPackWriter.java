@@ -0,0 +1,262 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Packs many small files into a few large part blobs and an index blob, see {@link BlobPack} for the layout. Uploading
+ * a part costs a handful of requests however many files it holds.
+ * <p>
+ * The files are streamed into the current part as they are added, a new part is started once the current one
+ * reaches the part size. The index is only uploaded by {@link #commit()}, so a pack is only readable once it is
+ * complete. A writer closed without a commit, after a failed {@link #add(String, InputStream)} for example, leaves the
+ * parts written so far without an index. Once an add failed part-way the offsets of the part are unknown, so the
+ * writer refuses further adds and the commit. The parts of a pack rewritten under the same name are overwritten, so the
+ * index of the earlier pack is deleted before its first part is: a failed rewrite leaves no pack rather than an index
+ * pointing into new contents.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     try (BlobPackWriter writer = new BlobPackWriter(blobStore, "backup/photos.pack")) {
+ *         writer.add("photos/2018/001.jpg", inputStream);
+ *         writer.commit();
+ *     }
+ *     }
+ * </pre>
+ */
+public class BlobPackWriter implements Closeable {
+
+    /**
+     * Size a part reaches before a new one is started, 64 MB.
+     */
+    public static final long DEFAULT_PART_SIZE = 64L * 1024 * 1024;
+
+    private BlobStore blobStore;
+
+    private String packName;
+
+    private long partSize;
+
+    private OutputStream part;
+
+    private int partNumber = -1;
+
+    private long partOffset;
+
+    private StringBuilderWriter index = new StringBuilderWriter();
+
+    private int fileCount;
+
+    private boolean committed;
+
+    /**
+     * Set once an add or a commit failed, the part may hold bytes the index does not account for.
+     */
+    private boolean failed;
+
+    private static final Logger LOGGER = LogManager.getLogger(BlobPackWriter.class.getName());
+
+    /**
+     * Starts a pack.
+     *
+     * @param blobStore {@link BlobStore} object.
+     * @param packName  Blob name of the pack, without suffix.
+     * @param partSize  Size a part reaches before a new one is started.
+     */
+    public BlobPackWriter(BlobStore blobStore, String packName, long partSize) {
+        this.blobStore = blobStore;
+        this.packName = packName;
+        this.partSize = partSize;
+        LOGGER.debug("packName: {}, partSize: {}.", packName, partSize);
+    }
+
+    /**
+     * Starts a pack with parts of {@link #DEFAULT_PART_SIZE}.
+     *
+     * @param blobStore {@link BlobStore} object.
+     * @param packName  Blob name of the pack, without suffix.
+     */
+    public BlobPackWriter(BlobStore blobStore, String packName) {
+        this(blobStore, packName, DEFAULT_PART_SIZE);
+    }
+
+    /**
+     * Adds a file to the pack.
+     *
+     * @param name    File name in the pack.
+     * @param content Contents of the file, read until the end but not closed.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the contents cannot be read.
+     */
+    public void add(String name, InputStream content) throws URISyntaxException, StorageException, IOException {
+        if (name.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("File names in a pack can not contain new lines: " + name);
+        }
+        ensureWritable();
+        long length;
+        boolean added = false;
+        try {
+            if (part == null || partOffset >= partSize) {
+                nextPart();
+            }
+            length = IOUtils.copyLarge(content, part);
+            added = true;
+        } finally {
+            failed = !added;
+        }
+        BlobPack.writeEntry(index, name, new BlobPack.Entry(partNumber, partOffset, length));
+        partOffset += length;
+        fileCount++;
+        LOGGER.debug("Packed: {}, Part: {}, Length: {}.", name, partNumber, length);
+    }
+
+    /**
+     * Adds a local file to the pack under its relative path.
+     *
+     * @param file File found by {@link LocalFileWalker}.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the file cannot be read.
+     */
+    public void add(LocalFile file) throws URISyntaxException, StorageException, IOException {
+        try (InputStream inputStream = Files.newInputStream(file.getPath())) {
+            add(file.getRelativePath(), inputStream);
+        }
+    }
+
+    /**
+     * Number of files added so far.
+     *
+     * @return File count.
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Number of parts started so far.
+     *
+     * @return Part count.
+     */
+    public int getPartCount() {
+        return partNumber + 1;
+    }
+
+    /**
+     * Commits the last part and uploads the index, which makes the pack readable. No file can be added afterwards.
+     *
+     * @throws IOException If the upload fails.
+     */
+    public void commit() throws IOException {
+        ensureWritable();
+        // A failed commit may have closed the last part only in part, it cannot be retried.
+        failed = true;
+        if (part != null) {
+            OutputStream last = part;
+            part = null;
+            last.close();
+        }
+
+        try (Writer writer = new OutputStreamWriter(blobStore.openOutputStream(packName + BlobPack.INDEX_SUFFIX), StandardCharsets.UTF_8)) {
+            writer.write(BlobPack.INDEX_HEADER + "\n");
+            writer.write(index.toString());
+        } catch (URISyntaxException | StorageException e) {
+            throw new IOException(e);
+        }
+        failed = false;
+        committed = true;
+        LOGGER.debug("Pack: {}, Files: {}, Parts: {}.", packName, fileCount, getPartCount());
+    }
+
+    /**
+     * Closes the current part. Without a {@link #commit()} before, the pack is abandoned: no index is uploaded.
+     *
+     * @throws IOException If the part cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (part != null) {
+            OutputStream last = part;
+            part = null;
+            last.close();
+        }
+        if (!committed) {
+            LOGGER.warn("Pack {} abandoned without an index after {} files.", packName, fileCount);
+        }
+    }
+
+    private void ensureWritable() {
+        if (committed) {
+            throw new IllegalStateException("Pack already committed: " + packName);
+        }
+        if (failed) {
+            throw new IllegalStateException("Pack abandoned after a failed write: " + packName);
+        }
+    }
+
+    private void nextPart() throws URISyntaxException, StorageException, IOException {
+        if (part != null) {
+            part.close();
+        } else if (partNumber < 0) {
+            deleteIndex();
+        }
+        partNumber++;
+        partOffset = 0;
+        part = blobStore.openOutputStream(BlobPack.partName(packName, partNumber));
+    }
+
+    /**
+     * Deletes the index of an earlier pack of the same name, whose parts are about to be overwritten.
+     *
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    private void deleteIndex() throws URISyntaxException, StorageException {
+        try {
+            blobStore.delete(packName + BlobPack.INDEX_SUFFIX);
+            LOGGER.debug("Deleted the index of the earlier pack {}.", packName);
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() != 404) {
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a task for every blob of a listing while the listing is still going on.
+ * <p>
+ * The calling thread walks the listing, which fetches its pages lazily, and hands each blob to a pool of workers.
+ * At most <code>workers + queueSize</code> blobs are listed ahead of the workers, after that the listing waits. The
+ * first failing task stops the listing and its exception, or error, is thrown once the running tasks are done.
+ */
+class BlobPipeline {
+
+    /**
+     * Work done for a single blob.
+     */
+    interface Task {
+
+        /**
+         * Processes a blob.
+         *
+         * @param index    Position of the blob in the listing.
+         * @param blobName Blob path with file name.
+         * @throws URISyntaxException If the URI cannot be built.
+         * @throws StorageException   Storage error.
+         * @throws IOException        Local I/O error.
+         */
+        void process(int index, String blobName) throws URISyntaxException, StorageException, IOException;
+    }
+
+    /**
+     * Number of workers used when the caller does not set one.
+     */
+    static final int DEFAULT_WORKERS = 8;
+
+    /**
+     * Number of listed blobs that can wait for a worker.
+     */
+    static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private int workers;
+
+    private int queueSize;
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private static final Logger LOGGER = LogManager.getLogger(BlobPipeline.class.getName());
+
+    /**
+     * A pipeline with a fixed number of workers.
+     *
+     * @param workers   Number of blobs processed at once.
+     * @param queueSize Number of listed blobs waiting for a worker before the listing waits.
+     */
+    BlobPipeline(int workers, int queueSize) {
+        this.workers = Math.max(1, workers);
+        this.queueSize = Math.max(0, queueSize);
+    }
+
+    /**
+     * Lists and processes the blobs, blocks until every blob is processed or a task fails.
+     *
+     * @param blobNames Lazy listing of the blobs.
+     * @param task      Work done for each blob, called from the worker threads.
+     * @return Number of blobs processed.
+     * @throws URISyntaxException If a task fails with it.
+     * @throws StorageException   If a task fails with it.
+     * @throws IOException        If a task fails with it.
+     */
+    int run(Iterable<String> blobNames, final Task task) throws URISyntaxException, StorageException, IOException {
+        final int pool = POOL_COUNT.incrementAndGet();
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "blob-pipeline-" + pool + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, threadFactory);
+        final Semaphore slots = new Semaphore(workers + queueSize);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        int count = 0;
+
+        try {
+            for (String blobName : blobNames) {
+                slots.acquire();
+                if (failure.get() != null) {
+                    break;
+                }
+
+                final int index = count++;
+                executor.execute(() -> {
+                    try {
+                        if (failure.get() == null) {
+                            task.process(index, blobName);
+                        }
+                    } catch (Throwable e) {
+                        // Errors too, a worker that dies without a trace would pass for a processed blob.
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, StorageException.translateClientException(e));
+        } catch (RuntimeException e) {
+            // Lazy listings report their errors while iterating.
+            failure.compareAndSet(null, e);
+        } finally {
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+        LOGGER.debug("Blobs Processed: {}", count);
+
+        Throwable e = failure.get();
+        if (e instanceof StorageException) {
+            throw (StorageException) e;
+        } else if (e instanceof URISyntaxException) {
+            throw (URISyntaxException) e;
+        } else if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return count;
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a blob front to back with ranged requests, fetching the next ranges in the background while the current one
+ * is read. Nothing is fetched before the first read, so many streams can be opened ahead of their use.
+ * <p>
+ * A stream can also read several blobs one after the other, as a single stream. The ranges never span two blobs, so
+ * the blobs smaller than a range are fetched as many at once as the read-ahead depth, and still handed out in order.
+ * The ranges follow the lengths given for the blobs, a blob that has become shorter fails the read with an
+ * {@link EOFException} rather than shifting the bytes of the blobs after it.
+ * <p>
+ * Each ranged request takes a slot from a {@link TransferScheduler}, then the memory of its range from a
+ * {@link TransferMemory} budget: the range needed next waits for both, the ranges after it are only fetched while a
+ * slot is free and the budget has room.
+ */
+class BlobReadAheadInputStream extends InputStream {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * Fetches the ranges of every stream, each stream has at most its read-ahead depth of ranges pending.
+     */
+    private static final ExecutorService FETCHERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "blob-read-ahead-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BlobStore blobStore;
+
+    /**
+     * Blobs read, with their lengths, in order.
+     */
+    private List<BlobItem> blobs;
+
+    private int rangeSize;
+
+    private int depth;
+
+    private TransferMemory transferMemory;
+
+    private TransferScheduler transferScheduler;
+
+    private TransferPriority priority;
+
+    /**
+     * Blob of the next range to fetch.
+     */
+    private int nextBlob;
+
+    /**
+     * Offset of the next range to fetch in its blob.
+     */
+    private long nextOffset;
+
+    /**
+     * Ranges fetched or being fetched after the current one, in order.
+     */
+    private final Deque<Fetch> pending = new ArrayDeque<>();
+
+    private byte[] range = new byte[0];
+
+    /**
+     * Memory taken for {@link #range}.
+     */
+    private int rangeMemory;
+
+    private int index;
+
+    private boolean closed;
+
+    private static final Logger LOGGER = LogManager.getLogger(BlobReadAheadInputStream.class.getName());
+
+    /**
+     * A stream over a blob.
+     *
+     * @param blobStore         Storage backend.
+     * @param blobName          Blob path with file name.
+     * @param length            Length of the blob.
+     * @param rangeSize         Bytes per ranged request.
+     * @param depth             Number of ranges fetched ahead of the one being read.
+     * @param transferMemory    Budget the memory of the ranges is taken from.
+     * @param transferScheduler Scheduler each ranged request waits for a slot from.
+     * @param priority          Class of the ranged requests.
+     */
+    BlobReadAheadInputStream(BlobStore blobStore, String blobName, long length, int rangeSize, int depth,
+                             TransferMemory transferMemory, TransferScheduler transferScheduler, TransferPriority priority) {
+        this(blobStore, Collections.singletonList(new BlobItem(blobName, length, null, null, null, null)), rangeSize, depth,
+                transferMemory, transferScheduler, priority);
+    }
+
+    /**
+     * A stream over several blobs, read one after the other.
+     *
+     * @param blobStore         Storage backend.
+     * @param blobs             Blobs in the order they are read, with their lengths.
+     * @param rangeSize         Bytes per ranged request.
+     * @param depth             Number of ranges fetched ahead of the one being read.
+     * @param transferMemory    Budget the memory of the ranges is taken from.
+     * @param transferScheduler Scheduler each ranged request waits for a slot from.
+     * @param priority          Class of the ranged requests.
+     */
+    BlobReadAheadInputStream(BlobStore blobStore, List<BlobItem> blobs, int rangeSize, int depth,
+                             TransferMemory transferMemory, TransferScheduler transferScheduler, TransferPriority priority) {
+        this.blobStore = blobStore;
+        this.blobs = blobs;
+        this.rangeSize = rangeSize;
+        this.depth = Math.max(1, depth);
+        this.transferMemory = transferMemory;
+        this.transferScheduler = transferScheduler;
+        this.priority = priority;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed: " + (blobs.size() == 1 ? blobs.get(0).getName() : blobs.size() + " blobs"));
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (index == range.length) {
+            if (!nextRange()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, range.length - index);
+        System.arraycopy(range, index, b, off, count);
+        index += count;
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        return range.length - index;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Fetch fetch : pending) {
+            fetch.cancel();
+            transferMemory.release(fetch.size);
+        }
+        pending.clear();
+        releaseRange();
+    }
+
+    /**
+     * Moves on to the next range, waiting for it if it is still being fetched.
+     *
+     * @return <code>false</code> at the end of the blob.
+     * @throws IOException If the range cannot be read.
+     */
+    private boolean nextRange() throws IOException {
+        // The range read is done with, its memory can go to the next one.
+        releaseRange();
+        fetchAhead();
+        Fetch fetch = pending.pollFirst();
+        if (fetch == null) {
+            return false;
+        }
+        rangeMemory = fetch.size;
+        try {
+            range = fetch.future.get();
+            index = 0;
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read " + fetch.blobName, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + fetch.blobName);
+        }
+        fetchAhead();
+        return true;
+    }
+
+    /**
+     * Starts fetching ranges until the read-ahead depth is reached, no slot is free or the memory budget is exhausted.
+     * The range needed next is always fetched, waiting for a slot and then for memory if it has to.
+     *
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    private void fetchAhead() throws InterruptedIOException {
+        while (pending.size() < depth) {
+            while (nextBlob < blobs.size() && nextOffset >= blobs.get(nextBlob).getLength()) {
+                nextBlob++;
+                nextOffset = 0;
+            }
+            if (nextBlob == blobs.size()) {
+                return;
+            }
+            final String blobName = blobs.get(nextBlob).getName();
+            final long offset = nextOffset;
+            final int size = (int) Math.min(rangeSize, blobs.get(nextBlob).getLength() - offset);
+            if (pending.isEmpty() && rangeMemory == 0) {
+                transferScheduler.acquire(priority);
+                try {
+                    transferMemory.acquire(size);
+                } catch (InterruptedIOException e) {
+                    transferScheduler.release(priority);
+                    throw e;
+                }
+            } else if (!transferScheduler.tryAcquire(priority)) {
+                LOGGER.debug("No slot to read ahead {} at {}.", blobName, offset);
+                return;
+            } else if (!transferMemory.tryAcquire(size)) {
+                transferScheduler.release(priority);
+                LOGGER.debug("No memory to read ahead {} at {}.", blobName, offset);
+                return;
+            }
+            nextOffset += size;
+            Fetch fetch = new Fetch(blobName, offset, size);
+            fetch.future = FETCHERS.submit(fetch);
+            pending.addLast(fetch);
+        }
+    }
+
+    private void releaseRange() {
+        transferMemory.release(rangeMemory);
+        rangeMemory = 0;
+        range = new byte[0];
+        index = 0;
+    }
+
+    /**
+     * A ranged request holding a slot of the scheduler, given back once it ran, or by {@link #cancel()} if it never
+     * starts.
+     */
+    private class Fetch implements Callable<byte[]> {
+
+        private final String blobName;
+
+        private final long offset;
+
+        /**
+         * Length of the range, and the memory taken for it.
+         */
+        private final int size;
+
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private Future<byte[]> future;
+
+        Fetch(String blobName, long offset, int size) {
+            this.blobName = blobName;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public byte[] call() throws URISyntaxException, StorageException, EOFException {
+            if (!started.compareAndSet(false, true)) {
+                return null;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream(size);
+            try {
+                blobStore.downloadRange(blobName, offset, size, content);
+            } finally {
+                transferScheduler.release(priority);
+            }
+            // The ranges follow the listed lengths, a short one would shift the bytes of the blobs after it.
+            if (content.size() != size) {
+                throw new EOFException(blobName + " returned " + content.size() + " bytes at " + offset + " instead of " + size
+                        + ", it changed since it was listed");
+            }
+            LOGGER.debug("Read {} at {}, length: {}.", blobName, offset, size);
+            return content.toByteArray();
+        }
+
+        void cancel() {
+            if (started.compareAndSet(false, true)) {
+                transferScheduler.release(priority);
+            }
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,508 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only {@link SeekableByteChannel} over a blob, for formats read out of order such as Parquet, ORC or ZIP. The
+ * blob is read in blocks with ranged requests, only the blocks touched are downloaded.
+ * <p>
+ * The last {@link #setCacheBlocks(int)} blocks used are kept in memory. When the reads move on to the block after the
+ * previous one, the next {@link #setReadAhead(int)} blocks are fetched in the background so a sequential scan does
+ * not wait for every block. The size of the blob is read when the channel is opened, the blob must not change while
+ * the channel is open: a block found shorter than that size fails the read with an {@link java.io.EOFException}.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     try (SeekableByteChannel channel = new BlobSeekableByteChannel(blobStore, "path/to/data.parquet")) {
+ *         ByteBuffer footer = ByteBuffer.allocate(8);
+ *         channel.position(channel.size() - 8);
+ *         channel.read(footer);
+ *     }
+ *     }
+ * </pre>
+ */
+public class BlobSeekableByteChannel implements SeekableByteChannel {
+
+    /**
+     * Default size of the blocks read, in bytes.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Default number of blocks kept in memory.
+     */
+    public static final int DEFAULT_CACHE_BLOCKS = 16;
+
+    /**
+     * Default number of blocks fetched ahead of a sequential read.
+     */
+    public static final int DEFAULT_READ_AHEAD = 2;
+
+    private static final AtomicInteger CHANNEL_COUNT = new AtomicInteger();
+
+    private BlobStore blobStore;
+
+    private String blobName;
+
+    private long size;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private int cacheBlocks = DEFAULT_CACHE_BLOCKS;
+
+    private int readAhead = DEFAULT_READ_AHEAD;
+
+    private long position;
+
+    private boolean open = true;
+
+    /**
+     * Block read last, to tell sequential reads.
+     */
+    private long lastBlock = -1;
+
+    /**
+     * Blocks read or being read, least recently used first.
+     */
+    private final Map<Long, CompletableFuture<byte[]>> cache = new LinkedHashMap<Long, CompletableFuture<byte[]>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CompletableFuture<byte[]>> eldest) {
+            if (size() > cacheBlocks) {
+                transferMemory.release(blockLength(eldest.getKey()));
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Budget the memory of the cached blocks is taken from.
+     */
+    private TransferMemory transferMemory = TransferMemory.getShared();
+
+    /**
+     * Scheduler each ranged request waits for a slot from.
+     */
+    private TransferScheduler transferScheduler = TransferScheduler.getShared();
+
+    private TransferPriority priority = TransferPriority.INTERACTIVE;
+
+    /**
+     * Fetches the blocks read ahead, created on first use.
+     */
+    private ExecutorService readAheadExecutor;
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private static final Logger LOGGER = LogManager.getLogger(BlobSeekableByteChannel.class.getName());
+
+    /**
+     * Opens a blob, reading its size.
+     *
+     * @param blobStore Storage backend.
+     * @param blobName  Blob path with file name.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     */
+    public BlobSeekableByteChannel(BlobStore blobStore, String blobName) throws URISyntaxException, StorageException {
+        this.blobStore = blobStore;
+        this.blobName = blobName;
+        this.size = blobStore.getProperties(blobName).getLength();
+        LOGGER.debug("Blob Name: {}, Size: {}.", blobName, size);
+    }
+
+    /**
+     * Sets the size of the blocks read, defaults to {@link #DEFAULT_BLOCK_SIZE}. Changing it drops the blocks cached.
+     *
+     * @param blockSize Size in bytes.
+     */
+    public synchronized void setBlockSize(int blockSize) {
+        if (blockSize != this.blockSize) {
+            clearCache();
+            this.blockSize = blockSize;
+            this.lastBlock = -1;
+        }
+    }
+
+    /**
+     * Sets the memory budget the cached blocks are taken from, see {@link TransferMemory}. A block read when the
+     * budget is exhausted evicts the blocks of this channel first and then waits, and blocks are not read ahead.
+     * Changing it drops the blocks cached.
+     *
+     * @param transferMemory The budget, {@link TransferMemory#getShared()} by default.
+     */
+    public synchronized void setTransferMemory(TransferMemory transferMemory) {
+        clearCache();
+        this.transferMemory = transferMemory;
+    }
+
+    /**
+     * Sets the number of blocks kept in memory, defaults to {@link #DEFAULT_CACHE_BLOCKS}. The blocks read ahead
+     * count towards it.
+     *
+     * @param cacheBlocks Number of blocks, at least <code>1</code>.
+     */
+    public synchronized void setCacheBlocks(int cacheBlocks) {
+        this.cacheBlocks = Math.max(1, cacheBlocks);
+    }
+
+    /**
+     * Sets the number of blocks fetched ahead of a sequential read, defaults to {@link #DEFAULT_READ_AHEAD}. It is
+     * kept below the number of blocks cached.
+     *
+     * @param readAhead Number of blocks, <code>0</code> to read only the blocks asked for.
+     */
+    public synchronized void setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Sets the scheduler the ranged requests wait for a slot from, see {@link TransferScheduler}.
+     *
+     * @param transferScheduler The scheduler, {@link TransferScheduler#getShared()} by default.
+     */
+    public synchronized void setTransferScheduler(TransferScheduler transferScheduler) {
+        this.transferScheduler = transferScheduler;
+    }
+
+    /**
+     * Sets the class of the ranged requests for the {@link TransferScheduler}.
+     *
+     * @param priority {@link TransferPriority#INTERACTIVE} by default.
+     */
+    public synchronized void setPriority(TransferPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Number of ranged requests sent, including the ones reading ahead.
+     *
+     * @return Number of requests.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long block = position / blockSize;
+            byte[] data = getBlock(block);
+            int offset = (int) (position - block * blockSize);
+            int length = Math.min(dst.remaining(), data.length - offset);
+            if (length <= 0) {
+                throw new EOFException(blobName + " is shorter than " + size + " bytes, it changed while the channel was open");
+            }
+            dst.put(data, offset, length);
+            position += length;
+            total += length;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        clearCache();
+        if (readAheadExecutor != null) {
+            // The blocks read ahead that never started give their slot back, the others do once they complete.
+            for (Runnable task : readAheadExecutor.shutdownNow()) {
+                ((ReadAhead) task).releaseSlot();
+            }
+        }
+        LOGGER.debug("Closed: {}, requests: {}.", blobName, requestCount.get());
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Contents of a block, from the cache or from the blob. Moving on to the next block starts reading ahead.
+     *
+     * @param block Number of the block.
+     * @return Contents of the block.
+     * @throws IOException If the block cannot be read.
+     */
+    private byte[] getBlock(long block) throws IOException {
+        boolean sequential = block == lastBlock + 1;
+        lastBlock = block;
+
+        CompletableFuture<byte[]> future = cache.get(block);
+        TransferScheduler transferScheduler = this.transferScheduler;
+        TransferPriority priority = this.priority;
+        boolean fetching = future == null;
+        if (fetching) {
+            // A slot first and then the memory, as every transfer takes them. The memory is reserved before reading
+            // ahead, so that the blocks read ahead are not evicted to make room for it.
+            transferScheduler.acquire(priority);
+            try {
+                reserve(block);
+            } catch (InterruptedIOException e) {
+                transferScheduler.release(priority);
+                throw e;
+            }
+        }
+        try {
+            if (sequential) {
+                readAhead(block);
+            }
+            if (fetching) {
+                try {
+                    future = CompletableFuture.completedFuture(fetch(block));
+                } catch (URISyntaxException | StorageException e) {
+                    transferMemory.release(blockLength(block));
+                    throw new IOException("Failed to read " + blobName + " at " + block * blockSize, e);
+                } catch (IOException e) {
+                    transferMemory.release(blockLength(block));
+                    throw e;
+                }
+                cache.put(block, future);
+            }
+        } finally {
+            if (fetching) {
+                transferScheduler.release(priority);
+            }
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (cache.remove(block) != null) {
+                transferMemory.release(blockLength(block));
+            }
+            throw new IOException("Failed to read " + blobName + " at " + block * blockSize, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + blobName);
+        }
+    }
+
+    /**
+     * Starts fetching the blocks after a block that are not cached yet.
+     *
+     * @param block Number of the block being read.
+     */
+    private void readAhead(long block) {
+        int blocks = Math.min(readAhead, cacheBlocks - 1);
+        long lastBlockOfBlob = (size - 1) / blockSize;
+        for (long next = block + 1; next <= block + blocks && next <= lastBlockOfBlob; next++) {
+            if (cache.containsKey(next)) {
+                continue;
+            }
+            // Reading ahead never waits, neither for a slot nor for memory.
+            TransferScheduler transferScheduler = this.transferScheduler;
+            TransferPriority priority = this.priority;
+            if (!transferScheduler.tryAcquire(priority)) {
+                break;
+            }
+            if (!transferMemory.tryAcquire(blockLength(next))) {
+                transferScheduler.release(priority);
+                break;
+            }
+            if (readAheadExecutor == null) {
+                int channel = CHANNEL_COUNT.incrementAndGet();
+                AtomicInteger threadCount = new AtomicInteger();
+                readAheadExecutor = Executors.newFixedThreadPool(Math.max(1, blocks), runnable -> {
+                    Thread thread = new Thread(runnable, "blob-channel-" + channel + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            ReadAhead task = new ReadAhead(next, transferScheduler, priority);
+            cache.put(next, task.future);
+            readAheadExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Takes the memory of a block from the budget, evicting the blocks of this channel, least recently used first, while
+     * the budget is exhausted, and waiting once none is left.
+     *
+     * @param block Number of the block.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    private void reserve(long block) throws InterruptedIOException {
+        int length = blockLength(block);
+        Iterator<Long> eldest = cache.keySet().iterator();
+        while (!transferMemory.tryAcquire(length)) {
+            if (!eldest.hasNext()) {
+                transferMemory.acquire(length);
+                return;
+            }
+            long evicted = eldest.next();
+            eldest.remove();
+            transferMemory.release(blockLength(evicted));
+        }
+    }
+
+    /**
+     * Drops the cached blocks, giving their memory back.
+     */
+    private void clearCache() {
+        for (long block : cache.keySet()) {
+            transferMemory.release(blockLength(block));
+        }
+        cache.clear();
+    }
+
+    /**
+     * Length of a block, shorter than the others for the last block of the blob.
+     *
+     * @param block Number of the block.
+     * @return Length in bytes.
+     */
+    private int blockLength(long block) {
+        return (int) Math.min(blockSize, size - block * blockSize);
+    }
+
+    /**
+     * Reads a block with a single ranged request, the caller holds a slot of the scheduler.
+     *
+     * @param block Number of the block.
+     * @return Contents of the block.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     * @throws EOFException       If the blob is shorter than the block, it changed since the channel was opened.
+     */
+    private byte[] fetch(long block) throws URISyntaxException, StorageException, IOException {
+        long offset = block * blockSize;
+        int length = blockLength(block);
+        ByteArrayOutputStream content = new ByteArrayOutputStream(length);
+        blobStore.downloadRange(blobName, offset, length, content);
+        requestCount.incrementAndGet();
+        if (content.size() != length) {
+            throw new EOFException(blobName + " returned " + content.size() + " bytes at " + offset + " instead of " + length
+                    + ", it changed while the channel was open");
+        }
+        LOGGER.debug("Read {} at {}, length: {}.", blobName, offset, length);
+        return content.toByteArray();
+    }
+
+    /**
+     * Fetches a block read ahead, holding the slot taken for it until the request completes.
+     */
+    private class ReadAhead implements Runnable {
+
+        private final long block;
+
+        private final TransferScheduler transferScheduler;
+
+        private final TransferPriority priority;
+
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        ReadAhead(long block, TransferScheduler transferScheduler, TransferPriority priority) {
+            this.block = block;
+            this.transferScheduler = transferScheduler;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(fetch(block));
+            } catch (URISyntaxException | StorageException | IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            } finally {
+                releaseSlot();
+            }
+        }
+
+        void releaseSlot() {
+            transferScheduler.release(priority);
+        }
+    }
+}
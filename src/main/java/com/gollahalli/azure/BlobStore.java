@@ -0,0 +1,386 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CopyStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Storage backend used by {@link AzureBlobCopy}, {@link AzureBlobDelete}, {@link AzureBlobDownload},
+ * {@link AzureBlobStreamReader}, {@link AzureBlobStreamWriter} and {@link AzureBlobUpload}.
+ * <p>
+ * A store is bound to a single container. {@link AzureBlobStore} talks to an Azure storage account,
+ * {@link InMemoryBlobStore} and {@link LocalFileBlobStore} keep the blobs in the JVM or on the local disk and
+ * {@link SimulatedBlobStore} adds latency, bandwidth limits and faults to any of them.
+ * <p>
+ * Missing blobs are reported as {@link StorageException} with a <code>404</code> status code, the same way the
+ * Azure service does.
+ */
+public interface BlobStore {
+
+    /**
+     * Name of the container this store is bound to.
+     *
+     * @return Container name.
+     */
+    String getContainerName();
+
+    /**
+     * URI of the container.
+     *
+     * @return URI of the container.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    URI getContainerUri() throws URISyntaxException, StorageException;
+
+    /**
+     * URI of a blob in the container, the blob does not need to exist.
+     *
+     * @param blobName Blob path with file name.
+     * @return URI of the blob.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    URI getBlobUri(String blobName) throws URISyntaxException, StorageException;
+
+    /**
+     * Creates the container if it does not exist.
+     *
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    void createContainerIfNotExists() throws URISyntaxException, StorageException;
+
+    /**
+     * Deletes the container and all its blobs if it exists.
+     *
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    void deleteContainerIfExists() throws URISyntaxException, StorageException;
+
+    /**
+     * Lists the names of all the blobs starting with <code>prefix</code>, in lexicographical order. The listing is
+     * lazy, pages are fetched while iterating.
+     *
+     * @param prefix Blob path prefix, <code>null</code> or empty for the whole container.
+     * @return Blob names.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    Iterable<String> listBlobs(String prefix) throws URISyntaxException, StorageException;
+
+    /**
+     * Lists the properties, metadata and copy state of all the blobs starting with <code>prefix</code>, in
+     * lexicographical order. On Azure they come with the listing pages, without a request per blob.
+     *
+     * @param prefix Blob path prefix, <code>null</code> or empty for the whole container.
+     * @return Blob properties.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    default Iterable<BlobItem> listBlobItems(String prefix) throws URISyntaxException, StorageException {
+        return listBlobItems(prefix, EnumSet.of(BlobListingDetails.METADATA, BlobListingDetails.COPY));
+    }
+
+    /**
+     * Lists the properties of all the blobs starting with <code>prefix</code>, in lexicographical order, with the
+     * details asked for. Name, length, ETag, last modified time, Content-Encoding and Content-MD5 are always there;
+     * leaving out the details that are not needed keeps the listing pages small. With
+     * {@link BlobListingDetails#SNAPSHOTS} the snapshots of a blob are listed before it, stores without snapshots
+     * list none.
+     *
+     * @param prefix  Blob path prefix, <code>null</code> or empty for the whole container.
+     * @param details Details to list, may be empty.
+     * @return Blob properties.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException;
+
+    /**
+     * Lists what is directly under <code>prefix</code>, in lexicographical order, as a listing with the <code>/</code>
+     * delimiter does: the blobs, with the details asked for, and the virtual directories, see
+     * {@link BlobItem#isDirectory()}. Each directory stands for all the blobs whose names start with it, it can be
+     * listed on its own, which lets a large container be listed in parallel.
+     * <p>
+     * The default implementation walks the flat listing, stores that can skip a directory override it.
+     *
+     * @param prefix  Path of a directory, ending with <code>/</code>, <code>null</code> or empty for the root.
+     * @param details Details to list, may be empty.
+     * @return Blobs and virtual directories.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    default Iterable<BlobItem> listDirectory(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        final Iterable<BlobItem> items = listBlobItems(prefix, details);
+        final int start = prefix == null ? 0 : prefix.length();
+        return () -> new Iterator<BlobItem>() {
+
+            private final Iterator<BlobItem> iterator = items.iterator();
+
+            private BlobItem next;
+
+            private String directory;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iterator.hasNext()) {
+                    BlobItem item = iterator.next();
+                    int slash = item.getName().indexOf('/', start);
+                    if (slash < 0) {
+                        next = item;
+                    } else if (directory == null || !item.getName().startsWith(directory)) {
+                        directory = item.getName().substring(0, slash + 1);
+                        next = BlobItem.directory(directory);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public BlobItem next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                BlobItem item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    /**
+     * Checks if a blob exists.
+     *
+     * @param blobName Blob path with file name.
+     * @return <code>true</code> if the blob exists, <code>false</code> otherwise.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    boolean exists(String blobName) throws URISyntaxException, StorageException;
+
+    /**
+     * Gets the properties and metadata of a blob.
+     *
+     * @param blobName Blob path with file name.
+     * @return Properties of the blob.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     */
+    BlobItem getProperties(String blobName) throws URISyntaxException, StorageException;
+
+    /**
+     * Starts a copy of a blob of this or another store into this container, replacing the blob if it exists. Between
+     * Azure stores the copy is done by the service and the contents never go through this host; the copy may still
+     * be {@link CopyStatus#PENDING} when this returns, poll {@link #getProperties(String)} until it is not. Other
+     * stores copy the contents before returning.
+     *
+     * @param blobName   Blob path with file name of the copy.
+     * @param source     Store holding the blob to copy, can be this store.
+     * @param sourceName Blob path with file name of the blob to copy.
+     * @return Status of the copy, {@link CopyStatus#SUCCESS} or {@link CopyStatus#PENDING}.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the source does not exist.
+     */
+    CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException;
+
+    /**
+     * Uploads a local file to a block blob, replacing it if it exists.
+     *
+     * @param blobName Blob path with file name.
+     * @param filePath Absolute path of the local file.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the file cannot be read.
+     */
+    void uploadFromFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException;
+
+    /**
+     * Opens a stream that writes a block blob, the blob is committed when the stream is closed.
+     *
+     * @param blobName Blob path with file name.
+     * @return Output stream to the blob.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    default OutputStream openOutputStream(String blobName) throws URISyntaxException, StorageException {
+        return openOutputStream(blobName, null, null);
+    }
+
+    /**
+     * Opens a stream that writes a block blob with the given properties, the blob is committed when the stream is
+     * closed.
+     *
+     * @param blobName        Blob path with file name.
+     * @param contentEncoding Content-Encoding of the blob, <code>null</code> for none.
+     * @param metadata        User metadata of the blob, <code>null</code> for none.
+     * @return Output stream to the blob.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    OutputStream openOutputStream(String blobName, String contentEncoding, Map<String, String> metadata) throws URISyntaxException, StorageException;
+
+    /**
+     * Creates an empty append blob, replacing the blob if it exists.
+     *
+     * @param blobName Blob path with file name.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    void createAppendBlob(String blobName) throws URISyntaxException, StorageException;
+
+    /**
+     * Appends a block to the end of an append blob with a single request. An append blob holds at most
+     * {@link StorageUtils#MAX_APPEND_BLOCKS} blocks of at most {@link StorageUtils#MAX_APPEND_BLOCK_SIZE} bytes.
+     *
+     * @param blobName       Blob path with file name.
+     * @param buffer         Contents of the block.
+     * @param offset         Offset of the block in <code>buffer</code>.
+     * @param length         Length of the block.
+     * @param appendPosition Length the blob must have for the block to be appended, <code>-1</code> to append
+     *                       wherever the blob ends. Makes a retried append safe.
+     * @return Offset of the block in the blob.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist, <code>412</code> if it
+     *                            does not have the given length, <code>409</code> if it is not an append blob or is
+     *                            full.
+     */
+    long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws URISyntaxException, StorageException;
+
+    /**
+     * Committed blocks of a block blob, in the order of the blob. A blob written in a single request has none.
+     *
+     * @param blobName Blob path with file name.
+     * @return Identifier and size of each block.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     */
+    List<BlockEntry> getBlockList(String blobName) throws URISyntaxException, StorageException;
+
+    /**
+     * Stages a block of a block blob with a single request. The block is not part of the blob until it is committed
+     * with {@link #commitBlockList(String, List, String)}.
+     *
+     * @param blobName Blob path with file name.
+     * @param blockId  Base64 identifier of the block, all the blocks of a blob have identifiers of the same length.
+     * @param buffer   Contents of the block.
+     * @param offset   Offset of the block in <code>buffer</code>.
+     * @param length   Length of the block.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) throws URISyntaxException, StorageException;
+
+    /**
+     * Commits a block blob made of staged and already committed blocks, replacing the blob. A staged block takes
+     * precedence over a committed block of the same identifier. The blob gets no Content-MD5, Content-Encoding nor
+     * metadata.
+     *
+     * @param blobName Blob path with file name.
+     * @param blockIds Identifiers of the blocks, in the order of the blob.
+     * @param etag     ETag the blob must have, <code>null</code> to commit whatever the blob is.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>400</code> if a block is neither staged nor committed,
+     *                            <code>412</code> if the blob does not have the given ETag.
+     */
+    void commitBlockList(String blobName, List<String> blockIds, String etag) throws URISyntaxException, StorageException;
+
+    /**
+     * Opens a stream that reads a blob.
+     *
+     * @param blobName Blob path with file name.
+     * @return Input stream of the blob.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     */
+    InputStream openInputStream(String blobName) throws URISyntaxException, StorageException;
+
+    /**
+     * Downloads the contents of a blob to a stream.
+     *
+     * @param blobName     Blob path with file name.
+     * @param outputStream Stream to write to, it is not closed.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     */
+    void download(String blobName, OutputStream outputStream) throws URISyntaxException, StorageException;
+
+    /**
+     * Downloads a range of a blob to a stream with a single request.
+     *
+     * @param blobName     Blob path with file name.
+     * @param offset       Offset of the first byte.
+     * @param length       Number of bytes, the range ends early at the end of the blob.
+     * @param outputStream Stream to write to, it is not closed.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     */
+    void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws URISyntaxException, StorageException;
+
+    /**
+     * Downloads the contents of a blob to a local file, replacing it if it exists.
+     *
+     * @param blobName Blob path with file name.
+     * @param filePath Absolute path of the local file.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     * @throws IOException        If the file cannot be written.
+     */
+    void downloadToFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException;
+
+    /**
+     * Deletes a blob.
+     *
+     * @param blobName Blob path with file name.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist.
+     */
+    void delete(String blobName) throws URISyntaxException, StorageException;
+
+    /**
+     * Deletes a blob only if it has not changed, the check and the delete are one request.
+     *
+     * @param blobName Blob path with file name.
+     * @param etag     ETag the blob must have, <code>null</code> to delete whatever the blob is.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the blob does not exist, <code>412</code> if the
+     *                            blob does not have the given ETag.
+     */
+    void delete(String blobName, String etag) throws URISyntaxException, StorageException;
+}
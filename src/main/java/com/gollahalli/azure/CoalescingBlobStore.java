@@ -0,0 +1,514 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps another {@link BlobStore} and coalesces identical reads made at the same time: a read of the same blob, or
+ * of the same range of a blob, as a read still in flight waits for it and gets its result instead of sending its
+ * own request. Nothing is kept once the read completes, the next read sends a request again.
+ * <p>
+ * Coalesced: {@link #getProperties(String)}, {@link #exists(String)}, {@link #download(String, OutputStream)} and
+ * {@link #downloadRange(String, long, long, OutputStream)}. The first caller streams the contents to its own stream
+ * and keeps a copy, up to {@link #setMaxLength(long)} bytes, that the others get once it completes. When the
+ * contents are longer, the copy is dropped and the waiting callers send their own request. Errors of the storage
+ * are shared by the callers of a read, they would have got the same. {@link #openInputStream(String)} reads the
+ * length of the blob first, a blob of at most the maximum length is downloaded whole with coalesced requests, so
+ * {@link AzureBlobStreamReader} is coalesced without read-ahead; a longer blob is streamed as the wrapped store does.
+ * Writes and listings are passed through.
+ * <p>
+ * A caller that joins a read gets the blob as it was when that read was sent, which can be slightly earlier than
+ * its own call.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     CoalescingBlobStore blobStore = new CoalescingBlobStore(new AzureBlobStore("account name", "account key", "container name", true));
+ *     AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+ *     // ...
+ *     long saved = blobStore.getCoalescedCount();
+ *     }
+ * </pre>
+ */
+public class CoalescingBlobStore implements BlobStore {
+
+    /**
+     * Longest contents shared by default, in bytes.
+     */
+    public static final long DEFAULT_MAX_LENGTH = 4 * 1024 * 1024;
+
+    private BlobStore blobStore;
+
+    private volatile long maxLength = DEFAULT_MAX_LENGTH;
+
+    /**
+     * Reads in flight, by kind, blob and range.
+     */
+    private Map<String, Flight<?>> flights = new ConcurrentHashMap<>();
+
+    private AtomicLong requestCount = new AtomicLong();
+
+    private AtomicLong coalescedCount = new AtomicLong();
+
+    private AtomicLong coalescedBytes = new AtomicLong();
+
+    private static final Logger LOGGER = LogManager.getLogger(CoalescingBlobStore.class.getName());
+
+    /**
+     * Coalesces the identical reads of a store.
+     *
+     * @param blobStore The store to wrap.
+     */
+    public CoalescingBlobStore(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
+    }
+
+    /**
+     * Sets the longest contents a download keeps for the callers waiting for it. Each download in flight holds a
+     * copy of its contents up to this length.
+     *
+     * @param maxLength Length in bytes, {@link #DEFAULT_MAX_LENGTH} by default.
+     */
+    public void setMaxLength(long maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Number of coalescable reads made, coalesced or not.
+     *
+     * @return Read count.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Number of reads served by another read in flight, the requests saved.
+     *
+     * @return Coalesced count.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Number of bytes the coalesced downloads got from another download, the bytes saved.
+     *
+     * @return Coalesced bytes.
+     */
+    public long getCoalescedBytes() {
+        return coalescedBytes.get();
+    }
+
+    @Override
+    public String getContainerName() {
+        return blobStore.getContainerName();
+    }
+
+    @Override
+    public URI getContainerUri() throws URISyntaxException, StorageException {
+        return blobStore.getContainerUri();
+    }
+
+    @Override
+    public URI getBlobUri(String blobName) throws URISyntaxException, StorageException {
+        return blobStore.getBlobUri(blobName);
+    }
+
+    @Override
+    public void createContainerIfNotExists() throws URISyntaxException, StorageException {
+        blobStore.createContainerIfNotExists();
+    }
+
+    @Override
+    public void deleteContainerIfExists() throws URISyntaxException, StorageException {
+        blobStore.deleteContainerIfExists();
+    }
+
+    @Override
+    public Iterable<String> listBlobs(String prefix) throws URISyntaxException, StorageException {
+        return blobStore.listBlobs(prefix);
+    }
+
+    @Override
+    public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        return blobStore.listBlobItems(prefix, details);
+    }
+
+    @Override
+    public Iterable<BlobItem> listDirectory(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        return blobStore.listDirectory(prefix, details);
+    }
+
+    @Override
+    public boolean exists(String blobName) throws URISyntaxException, StorageException {
+        return coalesce("exists:" + blobName, () -> blobStore.exists(blobName));
+    }
+
+    @Override
+    public BlobItem getProperties(String blobName) throws URISyntaxException, StorageException {
+        return coalesce("properties:" + blobName, () -> blobStore.getProperties(blobName));
+    }
+
+    @Override
+    public CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+        BlobStore from = source instanceof CoalescingBlobStore ? ((CoalescingBlobStore) source).blobStore : source;
+        return blobStore.startCopy(blobName, from, sourceName);
+    }
+
+    @Override
+    public void uploadFromFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        blobStore.uploadFromFile(blobName, filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String blobName, String contentEncoding, Map<String, String> metadata) throws URISyntaxException, StorageException {
+        return blobStore.openOutputStream(blobName, contentEncoding, metadata);
+    }
+
+    @Override
+    public void createAppendBlob(String blobName) throws URISyntaxException, StorageException {
+        blobStore.createAppendBlob(blobName);
+    }
+
+    @Override
+    public long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws URISyntaxException, StorageException {
+        return blobStore.appendBlock(blobName, buffer, offset, length, appendPosition);
+    }
+
+    @Override
+    public List<BlockEntry> getBlockList(String blobName) throws URISyntaxException, StorageException {
+        return blobStore.getBlockList(blobName);
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) throws URISyntaxException, StorageException {
+        blobStore.stageBlock(blobName, blockId, buffer, offset, length);
+    }
+
+    @Override
+    public void commitBlockList(String blobName, List<String> blockIds, String etag) throws URISyntaxException, StorageException {
+        blobStore.commitBlockList(blobName, blockIds, etag);
+    }
+
+    @Override
+    public InputStream openInputStream(String blobName) throws URISyntaxException, StorageException {
+        // A small blob is read whole so that the stream can be shared, a stream has no single request to join.
+        if (getProperties(blobName).getLength() > maxLength) {
+            return blobStore.openInputStream(blobName);
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        download(blobName, content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    @Override
+    public void download(String blobName, OutputStream outputStream) throws URISyntaxException, StorageException {
+        coalesceDownload("download:" + blobName, outputStream, target -> blobStore.download(blobName, target));
+    }
+
+    @Override
+    public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws URISyntaxException, StorageException {
+        coalesceDownload("range:" + offset + ":" + length + ":" + blobName, outputStream,
+                target -> blobStore.downloadRange(blobName, offset, length, target));
+    }
+
+    @Override
+    public void downloadToFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        blobStore.downloadToFile(blobName, filePath);
+    }
+
+    @Override
+    public void delete(String blobName) throws URISyntaxException, StorageException {
+        blobStore.delete(blobName);
+    }
+
+    @Override
+    public void delete(String blobName, String etag) throws URISyntaxException, StorageException {
+        blobStore.delete(blobName, etag);
+    }
+
+    /**
+     * Runs a read, or waits for the identical read in flight.
+     *
+     * @param key  Kind and arguments of the read.
+     * @param read The read.
+     * @param <T>  Result of the read.
+     * @return Result of the read.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error of the read.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T coalesce(String key, Read<T> read) throws URISyntaxException, StorageException {
+        requestCount.incrementAndGet();
+        Flight<T> flight = new Flight<>();
+        Flight<T> inFlight = (Flight<T>) flights.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            T result = inFlight.await();
+            if (inFlight.abandoned) {
+                LOGGER.debug("Read in flight abandoned, sent again: {}.", key);
+                return read.call();
+            }
+            coalescedCount.incrementAndGet();
+            return result;
+        }
+
+        T result = null;
+        Exception error = null;
+        boolean completed = false;
+        try {
+            result = read.call();
+            completed = true;
+            return result;
+        } catch (URISyntaxException | StorageException | RuntimeException e) {
+            error = e;
+            completed = true;
+            throw e;
+        } finally {
+            // Removed first, a read that starts after this one completed must send its own request.
+            flights.remove(key, flight);
+            if (completed) {
+                flight.complete(result, error);
+            } else {
+                // An Error is not shared, the others send their own request.
+                flight.abandon();
+            }
+        }
+    }
+
+    /**
+     * Runs a download, or waits for the identical download in flight and writes its contents. A download whose
+     * contents were too long to keep is sent again.
+     *
+     * @param key          Kind and arguments of the download.
+     * @param outputStream Stream receiving the contents.
+     * @param download     Download to a stream.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error of the download.
+     */
+    @SuppressWarnings("unchecked")
+    private void coalesceDownload(String key, OutputStream outputStream, Download download) throws URISyntaxException, StorageException {
+        requestCount.incrementAndGet();
+        Flight<byte[]> flight = new Flight<>();
+        Flight<byte[]> inFlight = (Flight<byte[]>) flights.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            byte[] contents = inFlight.await();
+            if (contents == null) {
+                LOGGER.debug("Too long to share or abandoned, sent again: {}.", key);
+                download.to(outputStream);
+                return;
+            }
+            try {
+                outputStream.write(contents);
+            } catch (IOException e) {
+                throw StorageException.translateClientException(e);
+            }
+            coalescedCount.incrementAndGet();
+            coalescedBytes.addAndGet(contents.length);
+            return;
+        }
+
+        // Once the copy is dropped the callers already waiting send their own request rather than wait for this one.
+        SharingOutputStream sharing = new SharingOutputStream(outputStream, maxLength, () -> {
+            flights.remove(key, flight);
+            flight.abandon();
+        });
+        Exception error = null;
+        boolean completed = false;
+        try {
+            download.to(sharing);
+            completed = true;
+        } catch (URISyntaxException | StorageException | RuntimeException e) {
+            error = e;
+            // A failure of the stream of this caller is not shared, the others send their own request.
+            completed = !sharing.targetFailed;
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+            if (completed && !sharing.isDropped()) {
+                flight.complete(error == null ? sharing.getContents() : null, error);
+            } else {
+                flight.abandon();
+            }
+        }
+    }
+
+    /**
+     * A read of the wrapped store.
+     *
+     * @param <T> Result of the read.
+     */
+    @FunctionalInterface
+    private interface Read<T> {
+
+        T call() throws URISyntaxException, StorageException;
+    }
+
+    /**
+     * A download of the wrapped store to a stream.
+     */
+    @FunctionalInterface
+    private interface Download {
+
+        void to(OutputStream outputStream) throws URISyntaxException, StorageException;
+    }
+
+    /**
+     * A read in flight, the callers waiting for it get its result or its error.
+     *
+     * @param <T> Result of the read.
+     */
+    private static class Flight<T> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private T result;
+
+        private Exception error;
+
+        /**
+         * Whether the read ended without a result to share, the callers waiting for it send their own request.
+         */
+        private volatile boolean abandoned;
+
+        void complete(T result, Exception error) {
+            this.result = result;
+            this.error = error;
+            done.countDown();
+        }
+
+        void abandon() {
+            abandoned = true;
+            done.countDown();
+        }
+
+        T await() throws URISyntaxException, StorageException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw StorageException.translateClientException(e);
+            }
+            if (error instanceof URISyntaxException) {
+                throw (URISyntaxException) error;
+            }
+            if (error instanceof StorageException) {
+                throw (StorageException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Writes the contents to the stream of the first caller and keeps a copy for the others, dropped when it gets
+     * longer than the limit.
+     */
+    private static class SharingOutputStream extends OutputStream {
+
+        private final OutputStream target;
+
+        private final long limit;
+
+        /**
+         * Closes the read to new callers and releases the waiting ones once the copy is dropped.
+         */
+        private final Runnable onDrop;
+
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private boolean targetFailed;
+
+        SharingOutputStream(OutputStream target, long limit, Runnable onDrop) {
+            this.target = target;
+            this.limit = limit;
+            this.onDrop = onDrop;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                target.write(b, off, len);
+            } catch (IOException | RuntimeException e) {
+                targetFailed = true;
+                throw e;
+            }
+            if (copy == null) {
+                return;
+            }
+            if (copy.size() + len > limit) {
+                copy = null;
+                onDrop.run();
+                return;
+            }
+            copy.write(b, off, len);
+        }
+
+        /**
+         * Contents written.
+         *
+         * @return The contents, <code>null</code> if they were too long to keep.
+         */
+        byte[] getContents() {
+            return copy != null ? copy.toByteArray() : null;
+        }
+
+        /**
+         * Whether the copy was dropped, the read was then abandoned.
+         *
+         * @return <code>true</code> if the contents got longer than the limit.
+         */
+        boolean isDropped() {
+            return copy == null;
+        }
+    }
+}
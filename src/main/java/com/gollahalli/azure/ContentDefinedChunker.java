@@ -0,0 +1,97 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import java.util.Random;
+
+/**
+ * Splits a stream of bytes into chunks whose boundaries depend on the contents only, so that inserting or removing
+ * bytes in the middle of a file changes the chunks around the edit and leaves the others as they were. A boundary
+ * follows a byte where the gear hash of the preceding bytes has its top bits at zero; chunks are kept between a
+ * minimum and a maximum size.
+ * <p>
+ * The boundaries must stay the same from one version to the next, or every chunk of the files uploaded before would
+ * be sent again: the gear table comes from a fixed seed.
+ */
+class ContentDefinedChunker {
+
+    /**
+     * Smallest chunk, except the last one of a file.
+     */
+    static final int MIN_SIZE = 256 * 1024;
+
+    /**
+     * Average length of a chunk past {@link #MIN_SIZE}, a power of two.
+     */
+    static final int AVERAGE_SIZE = 1024 * 1024;
+
+    /**
+     * Largest chunk, one block of the SDK.
+     */
+    static final int MAX_SIZE = StorageUtils.SDK_BLOCK_SIZE;
+
+    /**
+     * Random value of each byte, the hash of a byte sequence is <code>hash = (hash &lt;&lt; 1) + GEAR[b]</code>.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x67656172L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Number of top bits of the hash that must be zero at a boundary.
+     */
+    private static final int MASK_BITS = Integer.numberOfTrailingZeros(AVERAGE_SIZE);
+
+    private ContentDefinedChunker() {
+    }
+
+    /**
+     * Length of the chunk starting at the beginning of a range. The range must hold {@link #MAX_SIZE} bytes, or all
+     * the bytes left in the file.
+     *
+     * @param buffer Bytes of the file.
+     * @param offset Start of the chunk.
+     * @param length Number of bytes from the start of the chunk.
+     * @return Length of the chunk.
+     */
+    static int cut(byte[] buffer, int offset, int length) {
+        int end = Math.min(length, MAX_SIZE);
+        if (end <= MIN_SIZE) {
+            return end;
+        }
+        long hash = 0;
+        for (int i = MIN_SIZE; i < end; i++) {
+            hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+            if (hash >>> (64 - MASK_BITS) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers of a fixed size. Direct buffers are written to files without the copy into native memory
+ * the JDK makes for heap arrays, but are costly to allocate and are only freed after a garbage collection, so they
+ * are reused instead: a buffer released to the pool is handed to the next caller. Buffers released when the pool is
+ * full are left to the garbage collector.
+ */
+class DirectBufferPool {
+
+    /**
+     * Size of the buffers of the {@link #SHARED} pool.
+     */
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Pool shared by the downloads, keeps at most 32 buffers.
+     */
+    static final DirectBufferPool SHARED = new DirectBufferPool(BUFFER_SIZE, 32);
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of buffers in {@link #buffers}, kept apart as the size of the queue is not constant time.
+     */
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * An empty pool.
+     *
+     * @param bufferSize Size of the buffers.
+     * @param maxPooled  Number of released buffers kept for reuse.
+     */
+    DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * A cleared buffer, from the pool if one is available.
+     *
+     * @return A buffer of {@link #getBufferSize()} bytes, to be given back with {@link #release(ByteBuffer)}.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back, it must not be used afterwards.
+     *
+     * @param buffer A buffer from {@link #acquire()}.
+     */
+    void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Number of buffers allocated since the pool was created, stays flat once the pool covers the concurrent users.
+     *
+     * @return Buffers allocated.
+     */
+    long getAllocatedCount() {
+        return allocated.get();
+    }
+}
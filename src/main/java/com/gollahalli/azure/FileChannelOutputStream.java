@@ -0,0 +1,142 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes to a file channel at explicit positions through a pooled direct buffer. The many small writes of a network
+ * download are gathered into one buffer and written to the file with one positional write per buffer, which does not
+ * move the position of the channel, so several streams can write different parts of one file. The buffer goes back to
+ * the pool when the stream is closed; the channel is left open. The memory of the buffer is taken from a
+ * {@link TransferMemory} budget on the first write.
+ */
+class FileChannelOutputStream extends OutputStream {
+
+    private FileChannel channel;
+
+    private DirectBufferPool bufferPool;
+
+    private TransferMemory transferMemory;
+
+    /**
+     * Position in the file of the first byte of {@link #buffer}.
+     */
+    private long position;
+
+    private ByteBuffer buffer;
+
+    private boolean closed;
+
+    /**
+     * A stream writing from a position of a file.
+     *
+     * @param channel        Channel of the file, opened for writing.
+     * @param position       Position of the first byte written.
+     * @param bufferPool     Pool the buffer is taken from.
+     * @param transferMemory Budget the memory of the buffer is taken from.
+     */
+    FileChannelOutputStream(FileChannel channel, long position, DirectBufferPool bufferPool, TransferMemory transferMemory) {
+        this.channel = channel;
+        this.position = position;
+        this.bufferPool = bufferPool;
+        this.transferMemory = transferMemory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer().put((byte) b);
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, buffer().remaining());
+            buffer.put(b, off, count);
+            off += count;
+            len -= count;
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffer != null && buffer.position() > 0) {
+            drain();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            if (buffer != null) {
+                bufferPool.release(buffer);
+                buffer = null;
+                transferMemory.release(bufferPool.getBufferSize());
+            }
+        }
+    }
+
+    /**
+     * Position in the file after the last byte written.
+     *
+     * @return Position of the next byte.
+     */
+    long getPosition() {
+        return position + (buffer != null ? buffer.position() : 0);
+    }
+
+    private ByteBuffer buffer() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (buffer == null) {
+            transferMemory.acquire(bufferPool.getBufferSize());
+            buffer = bufferPool.acquire();
+        }
+        return buffer;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+}
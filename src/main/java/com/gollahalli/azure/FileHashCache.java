@@ -0,0 +1,228 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MD5 of local files, kept in a cache file so that a file is read again only if its size or modification time
+ * changed since it was last hashed.
+ * <p>
+ * The cache file is a UTF-8 text file with a header line followed by one line per file:
+ * <code>size TAB lastModified TAB md5 TAB path</code>. The MD5 is Base64 encoded, the same way as the Content-MD5 of
+ * a blob.
+ */
+class FileHashCache {
+
+    /**
+     * First line of the cache file.
+     */
+    static final String HEADER = "# azure-blob-explorer hash cache v1";
+
+    /**
+     * Read buffer used while hashing.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Cache file, <code>null</code> to keep the hashes in memory only.
+     */
+    private Path cacheFile;
+
+    /**
+     * Absolute path of a file to its hash.
+     */
+    private Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile boolean modified;
+
+    private static final Logger LOGGER = LogManager.getLogger(FileHashCache.class.getName());
+
+    /**
+     * Loads the cache file if it exists.
+     *
+     * @param cacheFile Cache file, <code>null</code> to keep the hashes in memory only.
+     * @throws IOException If the cache file cannot be read.
+     */
+    FileHashCache(Path cacheFile) throws IOException {
+        this.cacheFile = cacheFile;
+        if (cacheFile == null || !Files.isRegularFile(cacheFile)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Not a hash cache: " + cacheFile);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Invalid hash cache line: " + line);
+                }
+                entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+            }
+        }
+        LOGGER.debug("Hashes loaded from {}: {}.", cacheFile, entries.size());
+    }
+
+    /**
+     * MD5 of a file, read from the cache if the file did not change since it was hashed.
+     *
+     * @param file Local file.
+     * @return Base64 MD5 of the contents.
+     * @throws IOException If the file cannot be read.
+     */
+    String md5(LocalFile file) throws IOException {
+        String key = file.getPath().toAbsolutePath().toString();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.size == file.getSize() && entry.lastModified == file.getLastModified()) {
+            return entry.md5;
+        }
+
+        String md5 = md5(file.getPath());
+        entries.put(key, new Entry(file.getSize(), file.getLastModified(), md5));
+        modified = true;
+        return md5;
+    }
+
+    /**
+     * Number of files in the cache.
+     *
+     * @return Number of files.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the cache file if a hash was added since it was loaded. The file is replaced atomically.
+     *
+     * @throws IOException If the cache file cannot be written.
+     */
+    void save() throws IOException {
+        if (cacheFile == null || !modified) {
+            return;
+        }
+
+        Path absolute = cacheFile.toAbsolutePath();
+        Files.createDirectories(absolute.getParent());
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    if (entry.getKey().indexOf('\n') >= 0 || entry.getKey().indexOf('\r') >= 0) {
+                        continue;
+                    }
+                    Entry value = entry.getValue();
+                    writer.write(value.size + "\t" + value.lastModified + "\t" + value.md5 + "\t" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        LOGGER.debug("Hashes saved to {}: {}.", cacheFile, entries.size());
+    }
+
+    /**
+     * MD5 of a file, read in a single pass.
+     *
+     * @param path Local file.
+     * @return Base64 MD5 of the contents.
+     * @throws IOException If the file cannot be read.
+     */
+    static String md5(Path path) throws IOException {
+        MessageDigest digest = newMd5();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * MD5 of a byte array.
+     *
+     * @param content Contents.
+     * @return Base64 MD5 of the contents.
+     */
+    static String md5(byte[] content) {
+        return Base64.getEncoder().encodeToString(newMd5().digest(content));
+    }
+
+    /**
+     * A new MD5 digest.
+     *
+     * @return The digest.
+     */
+    static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hash of a file with the size and modification time it had when it was hashed.
+     */
+    private static class Entry {
+
+        private long size;
+
+        private long lastModified;
+
+        private String md5;
+
+        Entry(long size, long lastModified, String md5) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+    }
+}
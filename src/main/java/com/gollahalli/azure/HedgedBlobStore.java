@@ -0,0 +1,609 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Wraps another {@link BlobStore} and hedges its small reads: a read that has not completed after a delay is sent a
+ * second time, the first of the two to complete is used and the other is cancelled. The delay is a percentile of the
+ * latencies of the reads of the same kind, or a fixed time. A budget caps the extra requests to a fraction of the
+ * reads, so that a slow service is not loaded twice as much.
+ * <p>
+ * Hedged: {@link #getProperties(String)}, {@link #exists(String)}, {@link #downloadRange(String, long, long, OutputStream)}
+ * of at most {@link #setMaxLength(long)} bytes and {@link #download(String, OutputStream)}. The contents of an attempt
+ * are held in memory until it wins; a download that goes past the maximum length is streamed and can no longer be
+ * hedged. {@link #openInputStream(String)} reads the length of the blob first, a blob of at most the maximum length
+ * is downloaded whole with hedged requests, so {@link AzureBlobStreamReader} is hedged without read-ahead; a longer
+ * blob is streamed as the wrapped store does. A read that fails before the delay is not sent again, retries are left
+ * to the store. Writes and listings are passed through.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     HedgedBlobStore blobStore = new HedgedBlobStore(new AzureBlobStore("account name", "account key", "container name", true));
+ *     blobStore.setPercentile(0.95);
+ *     AzureBlobStreamReader blobStreamReader = new AzureBlobStreamReader(blobStore);
+ *     }
+ * </pre>
+ */
+public class HedgedBlobStore implements BlobStore {
+
+    /**
+     * Percentile of the latencies after which a read is hedged by default.
+     */
+    public static final double DEFAULT_PERCENTILE = 0.95;
+
+    /**
+     * Fraction of the reads that can be hedged by default.
+     */
+    public static final double DEFAULT_BUDGET = 0.05;
+
+    /**
+     * Largest range hedged by default, in bytes.
+     */
+    public static final long DEFAULT_MAX_LENGTH = 1024 * 1024;
+
+    /**
+     * Number of latencies recorded before the percentile is used, no read is hedged before.
+     */
+    static final int MIN_SAMPLES = 20;
+
+    /**
+     * Number of the last latencies the percentile is taken from.
+     */
+    private static final int SAMPLES = 1024;
+
+    /**
+     * Hedges that can be sent at once after a quiet period; each read adds the budget, each hedge takes one.
+     */
+    private static final double MAX_TOKENS = 10;
+
+    private static final AtomicInteger STORE_COUNT = new AtomicInteger();
+
+    private BlobStore blobStore;
+
+    private volatile long delayMillis = -1;
+
+    private volatile double percentile = DEFAULT_PERCENTILE;
+
+    private volatile double budget = DEFAULT_BUDGET;
+
+    private volatile long maxLength = DEFAULT_MAX_LENGTH;
+
+    /**
+     * Latencies of the property reads.
+     */
+    private LatencyTracker propertiesLatency = new LatencyTracker();
+
+    /**
+     * Latencies of the content reads.
+     */
+    private LatencyTracker readLatency = new LatencyTracker();
+
+    /**
+     * Hedges the budget allows, guarded by <code>this</code>.
+     */
+    private double tokens = MAX_TOKENS;
+
+    private AtomicLong requestCount = new AtomicLong();
+
+    private AtomicLong hedgeCount = new AtomicLong();
+
+    private AtomicLong hedgeWinCount = new AtomicLong();
+
+    /**
+     * Runs the attempts, threads are created as needed and dropped after a minute unused.
+     */
+    private ExecutorService executor;
+
+    private static final Logger LOGGER = LogManager.getLogger(HedgedBlobStore.class.getName());
+
+    /**
+     * Hedges the small reads of a store.
+     *
+     * @param blobStore The store to wrap.
+     */
+    public HedgedBlobStore(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        final int store = STORE_COUNT.incrementAndGet();
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "hedged-read-" + store + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOGGER.debug("Container Name: {}", blobStore.getContainerName());
+    }
+
+    /**
+     * Sets a fixed delay after which a read is hedged, instead of the percentile of the latencies.
+     *
+     * @param delayMillis Delay in milliseconds, <code>-1</code> for the percentile, the default.
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Sets the percentile of the latencies of the last reads after which a read is hedged. Only the reads slower
+     * than that many of the others are sent again, the budget permitting.
+     *
+     * @param percentile Between <code>0</code> and <code>1</code>, {@link #DEFAULT_PERCENTILE} by default.
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Sets the largest fraction of the reads that are sent a second time, averaged over time.
+     *
+     * @param budget Between <code>0</code> and <code>1</code>, {@link #DEFAULT_BUDGET} by default.
+     */
+    public void setBudget(double budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Sets the largest range that is hedged, and the length after which a download is streamed. The contents of
+     * each attempt are held in memory up to this length.
+     *
+     * @param maxLength Length in bytes, {@link #DEFAULT_MAX_LENGTH} by default.
+     */
+    public void setMaxLength(long maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Number of hedgeable reads made.
+     *
+     * @return Read count.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Number of reads sent a second time.
+     *
+     * @return Hedge count.
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * Number of reads whose second attempt completed first.
+     *
+     * @return Count of the hedges that won.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    @Override
+    public String getContainerName() {
+        return blobStore.getContainerName();
+    }
+
+    @Override
+    public URI getContainerUri() throws URISyntaxException, StorageException {
+        return blobStore.getContainerUri();
+    }
+
+    @Override
+    public URI getBlobUri(String blobName) throws URISyntaxException, StorageException {
+        return blobStore.getBlobUri(blobName);
+    }
+
+    @Override
+    public void createContainerIfNotExists() throws URISyntaxException, StorageException {
+        blobStore.createContainerIfNotExists();
+    }
+
+    @Override
+    public void deleteContainerIfExists() throws URISyntaxException, StorageException {
+        blobStore.deleteContainerIfExists();
+    }
+
+    @Override
+    public Iterable<String> listBlobs(String prefix) throws URISyntaxException, StorageException {
+        return blobStore.listBlobs(prefix);
+    }
+
+    @Override
+    public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        return blobStore.listBlobItems(prefix, details);
+    }
+
+    @Override
+    public Iterable<BlobItem> listDirectory(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        return blobStore.listDirectory(prefix, details);
+    }
+
+    @Override
+    public boolean exists(String blobName) throws URISyntaxException, StorageException {
+        return hedge(propertiesLatency, () -> blobStore.exists(blobName));
+    }
+
+    @Override
+    public BlobItem getProperties(String blobName) throws URISyntaxException, StorageException {
+        return hedge(propertiesLatency, () -> blobStore.getProperties(blobName));
+    }
+
+    @Override
+    public CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+        BlobStore from = source instanceof HedgedBlobStore ? ((HedgedBlobStore) source).blobStore : source;
+        return blobStore.startCopy(blobName, from, sourceName);
+    }
+
+    @Override
+    public void uploadFromFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        blobStore.uploadFromFile(blobName, filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String blobName, String contentEncoding, Map<String, String> metadata) throws URISyntaxException, StorageException {
+        return blobStore.openOutputStream(blobName, contentEncoding, metadata);
+    }
+
+    @Override
+    public void createAppendBlob(String blobName) throws URISyntaxException, StorageException {
+        blobStore.createAppendBlob(blobName);
+    }
+
+    @Override
+    public long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws URISyntaxException, StorageException {
+        return blobStore.appendBlock(blobName, buffer, offset, length, appendPosition);
+    }
+
+    @Override
+    public List<BlockEntry> getBlockList(String blobName) throws URISyntaxException, StorageException {
+        return blobStore.getBlockList(blobName);
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) throws URISyntaxException, StorageException {
+        blobStore.stageBlock(blobName, blockId, buffer, offset, length);
+    }
+
+    @Override
+    public void commitBlockList(String blobName, List<String> blockIds, String etag) throws URISyntaxException, StorageException {
+        blobStore.commitBlockList(blobName, blockIds, etag);
+    }
+
+    @Override
+    public InputStream openInputStream(String blobName) throws URISyntaxException, StorageException {
+        // A small blob is read whole with hedged requests, a stream has no single request to hedge.
+        if (getProperties(blobName).getLength() > maxLength) {
+            return blobStore.openInputStream(blobName);
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        download(blobName, content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    @Override
+    public void download(String blobName, OutputStream outputStream) throws URISyntaxException, StorageException {
+        hedgeDownload(outputStream, attempt -> blobStore.download(blobName, attempt));
+    }
+
+    @Override
+    public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws URISyntaxException, StorageException {
+        if (length > maxLength) {
+            blobStore.downloadRange(blobName, offset, length, outputStream);
+            return;
+        }
+        hedgeDownload(outputStream, attempt -> blobStore.downloadRange(blobName, offset, length, attempt));
+    }
+
+    @Override
+    public void downloadToFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        blobStore.downloadToFile(blobName, filePath);
+    }
+
+    @Override
+    public void delete(String blobName) throws URISyntaxException, StorageException {
+        blobStore.delete(blobName);
+    }
+
+    @Override
+    public void delete(String blobName, String etag) throws URISyntaxException, StorageException {
+        blobStore.delete(blobName, etag);
+    }
+
+    /**
+     * Hedges a download: each attempt writes to its own buffer, the first to complete writes it to the stream. An
+     * attempt that goes past {@link #setMaxLength(long)} takes the stream over and writes to it directly.
+     *
+     * @param outputStream Stream receiving the contents.
+     * @param download     Download to an attempt stream.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error of the last attempt, if none completed.
+     */
+    private void hedgeDownload(OutputStream outputStream, Download download) throws URISyntaxException, StorageException {
+        AtomicReference<AttemptOutputStream> owner = new AtomicReference<>();
+        long limit = maxLength;
+        hedge(readLatency, () -> {
+            AttemptOutputStream attempt = new AttemptOutputStream(owner, outputStream, limit);
+            download.to(attempt);
+            try {
+                attempt.complete();
+            } catch (IOException e) {
+                throw StorageException.translateClientException(e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Runs a read, and runs it a second time if it is slower than the delay and the budget allows it.
+     *
+     * @param tracker Latencies of the reads of this kind.
+     * @param read    The read.
+     * @param <T>     Result of the read.
+     * @return Result of the first attempt to complete.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error of the last attempt, if none completed.
+     */
+    private <T> T hedge(LatencyTracker tracker, Read<T> read) throws URISyntaxException, StorageException {
+        requestCount.incrementAndGet();
+        synchronized (this) {
+            tokens = Math.min(MAX_TOKENS, tokens + budget);
+        }
+        Callable<T> attempt = () -> {
+            long start = System.nanoTime();
+            T result = read.call();
+            tracker.record(System.nanoTime() - start);
+            return result;
+        };
+
+        CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<T>> attempts = new ArrayList<>(2);
+        attempts.add(completionService.submit(attempt));
+        Future<T> hedge = null;
+        try {
+            long delay = delayMillis >= 0 ? delayMillis : tracker.percentile(percentile);
+            Future<T> done = delay >= 0 ? completionService.poll(delay, TimeUnit.MILLISECONDS) : completionService.take();
+            if (done == null) {
+                if (takeToken()) {
+                    hedgeCount.incrementAndGet();
+                    LOGGER.debug("Hedged after {} ms.", delay);
+                    hedge = completionService.submit(attempt);
+                    attempts.add(hedge);
+                }
+                done = completionService.take();
+            }
+
+            Throwable error;
+            for (int pending = attempts.size() - 1; ; pending--) {
+                try {
+                    T result = done.get();
+                    if (done == hedge) {
+                        hedgeWinCount.incrementAndGet();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    error = e.getCause();
+                }
+                if (pending == 0) {
+                    break;
+                }
+                done = completionService.take();
+            }
+            if (error instanceof URISyntaxException) {
+                throw (URISyntaxException) error;
+            }
+            if (error instanceof StorageException) {
+                throw (StorageException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            throw StorageException.translateClientException((Exception) error);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw StorageException.translateClientException(e);
+        } finally {
+            for (Future<T> future : attempts) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private synchronized boolean takeToken() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * A read of the wrapped store.
+     *
+     * @param <T> Result of the read.
+     */
+    @FunctionalInterface
+    private interface Read<T> {
+
+        T call() throws URISyntaxException, StorageException;
+    }
+
+    /**
+     * A download of the wrapped store to the stream of an attempt.
+     */
+    @FunctionalInterface
+    private interface Download {
+
+        void to(OutputStream outputStream) throws URISyntaxException, StorageException;
+    }
+
+    /**
+     * Stream of one attempt of a download. The contents are buffered until the attempt completes or goes past the
+     * limit; either way it must then become the owner of the download to write to the target stream, and an
+     * attempt that finds another owner fails.
+     */
+    private static class AttemptOutputStream extends OutputStream {
+
+        private final AtomicReference<AttemptOutputStream> owner;
+
+        private final OutputStream target;
+
+        private final long limit;
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        AttemptOutputStream(AtomicReference<AttemptOutputStream> owner, OutputStream target, long limit) {
+            this.owner = owner;
+            this.target = target;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buffer == null) {
+                target.write(b, off, len);
+                return;
+            }
+            if (owner.get() != null || Thread.currentThread().isInterrupted()) {
+                throw new IOException("Another attempt completed first");
+            }
+            if (buffer.size() + len <= limit) {
+                buffer.write(b, off, len);
+                return;
+            }
+            claim();
+            buffer.writeTo(target);
+            buffer = null;
+            target.write(b, off, len);
+        }
+
+        /**
+         * Writes the buffered contents of a completed attempt to the target stream.
+         *
+         * @throws IOException If another attempt completed first, or the target stream cannot be written.
+         */
+        void complete() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            claim();
+            buffer.writeTo(target);
+            buffer = null;
+        }
+
+        private void claim() throws IOException {
+            if (!owner.compareAndSet(null, this)) {
+                throw new IOException("Another attempt completed first");
+            }
+        }
+    }
+
+    /**
+     * Latencies of the last reads of a kind.
+     */
+    private static class LatencyTracker {
+
+        private final long[] samples = new long[SAMPLES];
+
+        private int count;
+
+        private int next;
+
+        /**
+         * Records since the percentile was last computed.
+         */
+        private int recorded;
+
+        private double cachedPercentile = -1;
+
+        private long cachedMillis;
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % SAMPLES;
+            count = Math.min(count + 1, SAMPLES);
+            recorded++;
+        }
+
+        /**
+         * A percentile of the recorded latencies, sorted again every few records.
+         *
+         * @param percentile Between <code>0</code> and <code>1</code>.
+         * @return Latency in milliseconds, at least <code>1</code>; <code>-1</code> if too few were recorded.
+         */
+        synchronized long percentile(double percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            if (percentile != cachedPercentile || recorded >= MIN_SAMPLES) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                int index = Math.max(0, Math.min(count - 1, (int) Math.ceil(percentile * count) - 1));
+                cachedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(sorted[index] + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+                cachedPercentile = percentile;
+                recorded = 0;
+            }
+            return cachedMillis;
+        }
+    }
+}
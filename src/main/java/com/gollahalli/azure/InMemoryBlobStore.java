@@ -0,0 +1,420 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link BlobStore} that keeps the blobs of a container in memory. Useful for tests and for benchmarking without a
+ * storage account.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     AzureBlobUpload blobUpload = new AzureBlobUpload(new InMemoryBlobStore("container name"));
+ *     }
+ * </pre>
+ */
+public class InMemoryBlobStore implements BlobStore {
+
+    private String containerName;
+
+    /**
+     * Blob name to its contents, sorted the same way the service lists them.
+     */
+    private ConcurrentNavigableMap<String, Blob> blobs = new ConcurrentSkipListMap<>();
+
+    /**
+     * Source of the ETags.
+     */
+    private AtomicLong version = new AtomicLong();
+
+    /**
+     * Blob name to the blocks staged for it, by identifier.
+     */
+    private Map<String, Map<String, byte[]>> stagedBlocks = new ConcurrentHashMap<>();
+
+    private static final Logger LOGGER = LogManager.getLogger(InMemoryBlobStore.class.getName());
+
+    /**
+     * Creates an empty in-memory container.
+     *
+     * @param containerName Container name.
+     */
+    public InMemoryBlobStore(String containerName) {
+        this.containerName = containerName;
+        LOGGER.debug("Container Name: {}", this.containerName);
+    }
+
+    @Override
+    public String getContainerName() {
+        return containerName;
+    }
+
+    @Override
+    public URI getContainerUri() throws URISyntaxException {
+        return new URI("memory", "localhost", "/" + containerName, null);
+    }
+
+    @Override
+    public URI getBlobUri(String blobName) throws URISyntaxException {
+        return new URI("memory", "localhost", "/" + containerName + "/" + blobName, null);
+    }
+
+    @Override
+    public void createContainerIfNotExists() {
+        // The container always exists.
+    }
+
+    @Override
+    public void deleteContainerIfExists() {
+        blobs.clear();
+        stagedBlocks.clear();
+    }
+
+    @Override
+    public Iterable<String> listBlobs(String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            return Collections.unmodifiableSet(blobs.keySet());
+        }
+        return Collections.unmodifiableSet(blobs.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+    }
+
+    @Override
+    public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) {
+        final Map<String, Blob> view = prefix == null || prefix.isEmpty() ? blobs : blobs.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        return () -> new Iterator<BlobItem>() {
+
+            private final Iterator<Map.Entry<String, Blob>> iterator = view.entrySet().iterator();
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public BlobItem next() {
+                Map.Entry<String, Blob> entry = iterator.next();
+                return entry.getValue().toBlobItem(entry.getKey()).withDetails(details);
+            }
+        };
+    }
+
+    @Override
+    public Iterable<BlobItem> listDirectory(String prefix, EnumSet<BlobListingDetails> details) {
+        final String start = prefix == null ? "" : prefix;
+        return () -> new Iterator<BlobItem>() {
+
+            private String key = blobs.ceilingKey(start);
+
+            private BlobItem next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && key != null && key.startsWith(start)) {
+                    int slash = key.indexOf('/', start.length());
+                    if (slash < 0) {
+                        Blob blob = blobs.get(key);
+                        next = blob == null ? null : blob.toBlobItem(key).withDetails(details);
+                        key = blobs.higherKey(key);
+                    } else {
+                        next = BlobItem.directory(key.substring(0, slash + 1));
+                        // The first name after all the names of the directory, '0' comes right after '/'.
+                        key = blobs.ceilingKey(key.substring(0, slash) + '0');
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public BlobItem next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                BlobItem item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String blobName) {
+        return blobs.containsKey(blobName);
+    }
+
+    @Override
+    public BlobItem getProperties(String blobName) throws StorageException {
+        return getBlob(blobName).toBlobItem(blobName);
+    }
+
+    @Override
+    public CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+        if (!(source instanceof InMemoryBlobStore)) {
+            return StorageUtils.copyContents(this, blobName, source, sourceName);
+        }
+        // Contents are never modified once stored, the copy shares them.
+        Blob blob = ((InMemoryBlobStore) source).getBlob(sourceName);
+        put(blobName, blob.content, blob.contentMd5, blob.contentEncoding, blob.metadata);
+        return CopyStatus.SUCCESS;
+    }
+
+    @Override
+    public void uploadFromFile(String blobName, String filePath) throws IOException {
+        put(blobName, FileUtils.readFileToByteArray(new File(filePath)), null, null);
+    }
+
+    @Override
+    public OutputStream openOutputStream(final String blobName, final String contentEncoding, final Map<String, String> metadata) {
+        return new ByteArrayOutputStream() {
+
+            private boolean closed;
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    put(blobName, toByteArray(), contentEncoding, metadata);
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized void createAppendBlob(String blobName) {
+        // The service keeps no Content-MD5 for append blobs.
+        put(blobName, new byte[0], null, null, null);
+        blobs.get(blobName).blocks = 0;
+    }
+
+    @Override
+    public synchronized long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws StorageException {
+        Blob blob = getBlob(blobName);
+        StorageException error = StorageUtils.appendError(blobName, blob.content.length, blob.blocks, appendPosition);
+        if (error != null) {
+            throw error;
+        }
+        // Contents are shared by copies and readers, the appended blob gets a new array.
+        byte[] content = Arrays.copyOf(blob.content, blob.content.length + length);
+        System.arraycopy(buffer, offset, content, blob.content.length, length);
+        put(blobName, content, null, blob.contentEncoding, blob.metadata);
+        blobs.get(blobName).blocks = blob.blocks + 1;
+        return blob.content.length;
+    }
+
+    @Override
+    public List<BlockEntry> getBlockList(String blobName) throws StorageException {
+        return Collections.unmodifiableList(getBlob(blobName).blockList);
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) {
+        stagedBlocks.computeIfAbsent(blobName, name -> new ConcurrentHashMap<>()).put(blockId, Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    @Override
+    public synchronized void commitBlockList(String blobName, List<String> blockIds, String etag) throws StorageException {
+        Blob blob = blobs.get(blobName);
+        if (etag != null && (blob == null || !etag.equals(blob.etag))) {
+            throw StorageUtils.conditionNotMet(blobName);
+        }
+        Map<String, byte[]> staged = stagedBlocks.getOrDefault(blobName, Collections.emptyMap());
+        Map<String, byte[]> committed = new HashMap<>();
+        if (blob != null) {
+            int offset = 0;
+            for (BlockEntry block : blob.blockList) {
+                committed.put(block.getId(), Arrays.copyOfRange(blob.content, offset, offset + (int) block.getSize()));
+                offset += (int) block.getSize();
+            }
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        List<BlockEntry> blockList = new ArrayList<>();
+        for (String blockId : blockIds) {
+            byte[] block = staged.containsKey(blockId) ? staged.get(blockId) : committed.get(blockId);
+            if (block == null) {
+                throw StorageUtils.invalidBlockList(blobName, blockId);
+            }
+            content.write(block, 0, block.length);
+            BlockEntry entry = new BlockEntry(blockId);
+            entry.setSize(block.length);
+            blockList.add(entry);
+        }
+        // The service keeps no Content-MD5 for a committed block list, and drops the blocks left uncommitted.
+        put(blobName, content.toByteArray(), null, null, null);
+        blobs.get(blobName).blockList = blockList;
+        stagedBlocks.remove(blobName);
+    }
+
+    @Override
+    public InputStream openInputStream(String blobName) throws StorageException {
+        return new ByteArrayInputStream(getContent(blobName));
+    }
+
+    @Override
+    public void download(String blobName, OutputStream outputStream) throws StorageException {
+        byte[] content = getContent(blobName);
+        try {
+            outputStream.write(content);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws StorageException {
+        byte[] content = getContent(blobName);
+        if (offset < 0 || offset >= content.length || length <= 0) {
+            throw StorageUtils.invalidRange(blobName, offset, length);
+        }
+        try {
+            outputStream.write(content, (int) offset, (int) Math.min(length, content.length - offset));
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public void downloadToFile(String blobName, String filePath) throws StorageException, IOException {
+        FileUtils.writeByteArrayToFile(new File(filePath), getContent(blobName));
+    }
+
+    @Override
+    public void delete(String blobName) throws StorageException {
+        if (blobs.remove(blobName) == null) {
+            throw StorageUtils.blobNotFound(blobName);
+        }
+    }
+
+    @Override
+    public void delete(String blobName, String etag) throws StorageException {
+        if (etag == null) {
+            delete(blobName);
+            return;
+        }
+        Blob blob = getBlob(blobName);
+        // Removes the blob only if no write replaced it since it was checked.
+        if (!etag.equals(blob.etag) || !blobs.remove(blobName, blob)) {
+            throw StorageUtils.conditionNotMet(blobName);
+        }
+    }
+
+    /**
+     * Contents of a blob.
+     *
+     * @param blobName Blob path with file name.
+     * @return Contents of the blob, must not be modified.
+     * @throws StorageException If the blob does not exist.
+     */
+    byte[] getContent(String blobName) throws StorageException {
+        return getBlob(blobName).content;
+    }
+
+    private Blob getBlob(String blobName) throws StorageException {
+        Blob blob = blobs.get(blobName);
+        if (blob == null) {
+            throw StorageUtils.blobNotFound(blobName);
+        }
+        return blob;
+    }
+
+    private void put(String blobName, byte[] content, String contentEncoding, Map<String, String> metadata) {
+        put(blobName, content, FileHashCache.md5(content), contentEncoding, metadata);
+    }
+
+    private void put(String blobName, byte[] content, String contentMd5, String contentEncoding, Map<String, String> metadata) {
+        String etag = "\"0x" + Long.toHexString(version.incrementAndGet()).toUpperCase() + "\"";
+        blobs.put(blobName, new Blob(content, etag, new Date(), contentEncoding, contentMd5, metadata == null ? null : new HashMap<>(metadata)));
+    }
+
+    /**
+     * A stored blob, replaced as a whole on every write.
+     */
+    private static class Blob {
+
+        private byte[] content;
+
+        private String etag;
+
+        private Date lastModified;
+
+        private String contentEncoding;
+
+        private String contentMd5;
+
+        private Map<String, String> metadata;
+
+        /**
+         * Number of blocks of an append blob, <code>-1</code> for a block blob.
+         */
+        private volatile int blocks = -1;
+
+        /**
+         * Committed blocks of a block blob, empty if it was written in a single request.
+         */
+        private volatile List<BlockEntry> blockList = Collections.emptyList();
+
+        Blob(byte[] content, String etag, Date lastModified, String contentEncoding, String contentMd5, Map<String, String> metadata) {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentEncoding = contentEncoding;
+            this.contentMd5 = contentMd5;
+            this.metadata = metadata;
+        }
+
+        BlobItem toBlobItem(String name) {
+            return new BlobItem(name, content.length, etag, lastModified, contentEncoding, contentMd5, metadata, null, null);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import java.nio.file.Path;
+
+/**
+ * A file found by {@link LocalFileWalker}, with the attributes read while walking.
+ */
+public class LocalFile {
+
+    private Path path;
+
+    private String relativePath;
+
+    private long size;
+
+    private long lastModified;
+
+    /**
+     * A file found while walking a folder.
+     *
+     * @param path         Absolute path of the file.
+     * @param relativePath Path relative to the walked folder, separated with <code>/</code>.
+     * @param size         Size in bytes.
+     * @param lastModified Last modified time in milliseconds since the epoch.
+     */
+    public LocalFile(Path path, String relativePath, long size, long lastModified) {
+        this.path = path;
+        this.relativePath = relativePath;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Absolute path of the file.
+     *
+     * @return Path of the file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Path relative to the walked folder, separated with <code>/</code> so it can be used as a blob name.
+     *
+     * @return Relative path.
+     */
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    /**
+     * Size of the file.
+     *
+     * @return Size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Last modified time of the file.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return relativePath;
+    }
+}
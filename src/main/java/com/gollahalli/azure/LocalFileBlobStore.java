@@ -0,0 +1,471 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * {@link BlobStore} that keeps the blobs of a container as files under <code>rootPath/containerName/</code>. Blob
+ * names are mapped to relative file paths, so a blob name can not also be used as a folder of other blobs.
+ * <p>
+ * Blobs are written to a temporary file under <code>rootPath</code> first and moved in place when complete, so
+ * readers never see partial blobs.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     AzureBlobDownload blobDownload = new AzureBlobDownload(new LocalFileBlobStore("c:/path/to/root", "container name"));
+ *     }
+ * </pre>
+ */
+public class LocalFileBlobStore implements BlobStore {
+
+    private Path rootPath;
+
+    private Path containerPath;
+
+    /**
+     * Folder holding the Content-Encoding and metadata of the blobs that have any, one properties file per blob.
+     */
+    private Path propertiesPath;
+
+    private String containerName;
+
+    /**
+     * Blob name to the blocks staged for it, by identifier. Staged blocks are kept in memory until they are committed.
+     */
+    private Map<String, Map<String, byte[]>> stagedBlocks = new ConcurrentHashMap<>();
+
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private static final String METADATA_PREFIX = "x-ms-meta-";
+
+    private static final Logger LOGGER = LogManager.getLogger(LocalFileBlobStore.class.getName());
+
+    /**
+     * Stores the blobs of a container on the local file system.
+     *
+     * @param rootPath      Absolute path of the folder that holds the containers.
+     * @param containerName Container name, used as the folder name.
+     */
+    public LocalFileBlobStore(String rootPath, String containerName) {
+        this.rootPath = Paths.get(rootPath).toAbsolutePath().normalize();
+        this.containerPath = this.rootPath.resolve(containerName);
+        this.propertiesPath = this.rootPath.resolve(".properties").resolve(containerName);
+        this.containerName = containerName;
+        LOGGER.debug("Container Path: {}", this.containerPath);
+    }
+
+    @Override
+    public String getContainerName() {
+        return containerName;
+    }
+
+    @Override
+    public URI getContainerUri() {
+        return containerPath.toUri();
+    }
+
+    @Override
+    public URI getBlobUri(String blobName) throws StorageException {
+        return toPath(blobName).toUri();
+    }
+
+    @Override
+    public void createContainerIfNotExists() throws StorageException {
+        try {
+            Files.createDirectories(containerPath);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public void deleteContainerIfExists() throws StorageException {
+        try {
+            FileUtils.deleteDirectory(containerPath.toFile());
+            FileUtils.deleteDirectory(propertiesPath.toFile());
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public Iterable<String> listBlobs(String prefix) throws StorageException {
+        String blobPrefix = prefix == null ? "" : prefix;
+        List<String> names = new ArrayList<>();
+
+        if (!Files.isDirectory(containerPath)) {
+            return names;
+        }
+
+        try (Stream<Path> paths = Files.walk(containerPath)) {
+            paths.filter(Files::isRegularFile)
+                    .map(this::toBlobName)
+                    .filter(name -> name.startsWith(blobPrefix))
+                    .forEach(names::add);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+
+        names.sort(null);
+        return names;
+    }
+
+    @Override
+    public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) throws StorageException {
+        List<BlobItem> items = new ArrayList<>();
+        for (String blobName : listBlobs(prefix)) {
+            try {
+                items.add(getProperties(blobName).withDetails(details));
+            } catch (StorageException e) {
+                if (e.getHttpStatusCode() != 404) {
+                    throw e;
+                }
+                // Deleted since it was listed.
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public boolean exists(String blobName) throws StorageException {
+        return Files.isRegularFile(toPath(blobName));
+    }
+
+    @Override
+    public BlobItem getProperties(String blobName) throws StorageException {
+        Path path = toPath(blobName);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            String etag = "\"0x" + Long.toHexString(lastModified).toUpperCase() + Long.toHexString(attributes.size()).toUpperCase() + "\"";
+
+            String contentEncoding = null;
+            Map<String, String> metadata = new HashMap<>();
+            Path propertiesFile = toPropertiesPath(blobName);
+            if (Files.isRegularFile(propertiesFile)) {
+                Properties properties = new Properties();
+                try (InputStream inputStream = Files.newInputStream(propertiesFile)) {
+                    properties.load(inputStream);
+                }
+                for (String key : properties.stringPropertyNames()) {
+                    if (key.equals(CONTENT_ENCODING)) {
+                        contentEncoding = properties.getProperty(key);
+                    } else if (key.startsWith(METADATA_PREFIX)) {
+                        metadata.put(key.substring(METADATA_PREFIX.length()), properties.getProperty(key));
+                    }
+                }
+            }
+            return new BlobItem(blobName, attributes.size(), etag, new Date(lastModified), contentEncoding, metadata);
+        } catch (NoSuchFileException e) {
+            throw StorageUtils.blobNotFound(blobName);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+        return StorageUtils.copyContents(this, blobName, source, sourceName);
+    }
+
+    @Override
+    public void uploadFromFile(String blobName, String filePath) throws StorageException, IOException {
+        try (OutputStream outputStream = openOutputStream(blobName, null, null)) {
+            Files.copy(Paths.get(filePath), outputStream);
+        }
+    }
+
+    @Override
+    public OutputStream openOutputStream(final String blobName, final String contentEncoding, final Map<String, String> metadata) throws StorageException {
+        final Path target = toPath(blobName);
+        try {
+            Files.createDirectories(rootPath);
+            final Path temp = Files.createTempFile(rootPath, ".blob", ".tmp");
+            return new FilterOutputStream(Files.newOutputStream(temp)) {
+
+                private boolean closed;
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    super.close();
+                    writeProperties(blobName, contentEncoding, metadata);
+                    Files.createDirectories(target.getParent());
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            };
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public void createAppendBlob(String blobName) throws StorageException {
+        try {
+            openOutputStream(blobName, null, null).close();
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public synchronized long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws StorageException {
+        // Files do not record their blob type nor their blocks, any blob can be appended to without limit.
+        try (FileChannel channel = FileChannel.open(toPath(blobName), StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            StorageException error = StorageUtils.appendError(blobName, size, 0, appendPosition);
+            if (error != null) {
+                throw error;
+            }
+            ByteBuffer block = ByteBuffer.wrap(buffer, offset, length);
+            for (long position = size; block.hasRemaining(); ) {
+                position += channel.write(block, position);
+            }
+            return size;
+        } catch (NoSuchFileException e) {
+            throw StorageUtils.blobNotFound(blobName);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public List<BlockEntry> getBlockList(String blobName) throws StorageException {
+        // Files do not record their blocks, a commit can only reuse the blocks staged since the last one.
+        if (!exists(blobName)) {
+            throw StorageUtils.blobNotFound(blobName);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) {
+        stagedBlocks.computeIfAbsent(blobName, name -> new ConcurrentHashMap<>()).put(blockId, Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    @Override
+    public synchronized void commitBlockList(String blobName, List<String> blockIds, String etag) throws StorageException {
+        if (etag != null && (!exists(blobName) || !etag.equals(getProperties(blobName).getEtag()))) {
+            throw StorageUtils.conditionNotMet(blobName);
+        }
+        Map<String, byte[]> staged = stagedBlocks.getOrDefault(blobName, Collections.emptyMap());
+        for (String blockId : blockIds) {
+            if (!staged.containsKey(blockId)) {
+                throw StorageUtils.invalidBlockList(blobName, blockId);
+            }
+        }
+        try (OutputStream outputStream = openOutputStream(blobName, null, null)) {
+            for (String blockId : blockIds) {
+                outputStream.write(staged.get(blockId));
+            }
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+        stagedBlocks.remove(blobName);
+    }
+
+    @Override
+    public InputStream openInputStream(String blobName) throws StorageException {
+        try {
+            return Files.newInputStream(toPath(blobName));
+        } catch (NoSuchFileException | FileNotFoundException e) {
+            throw StorageUtils.blobNotFound(blobName);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public void download(String blobName, OutputStream outputStream) throws StorageException {
+        try {
+            Files.copy(toPath(blobName), outputStream);
+        } catch (NoSuchFileException e) {
+            throw StorageUtils.blobNotFound(blobName);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws StorageException {
+        try (FileChannel channel = FileChannel.open(toPath(blobName), StandardOpenOption.READ)) {
+            if (offset < 0 || offset >= channel.size() || length <= 0) {
+                throw StorageUtils.invalidRange(blobName, offset, length);
+            }
+            long end = Math.min(channel.size(), offset + length);
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            for (long position = offset; position < end; ) {
+                position += channel.transferTo(position, end - position, target);
+            }
+        } catch (NoSuchFileException e) {
+            throw StorageUtils.blobNotFound(blobName);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public void downloadToFile(String blobName, String filePath) throws StorageException, IOException {
+        Path source = toPath(blobName);
+        if (!Files.isRegularFile(source)) {
+            throw StorageUtils.blobNotFound(blobName);
+        }
+        Path target = Paths.get(filePath);
+        if (target.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(target.toAbsolutePath().getParent());
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void delete(String blobName) throws StorageException {
+        try {
+            Files.delete(toPath(blobName));
+            Files.deleteIfExists(toPropertiesPath(blobName));
+        } catch (NoSuchFileException e) {
+            throw StorageUtils.blobNotFound(blobName);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(String blobName, String etag) throws StorageException {
+        if (etag != null && !etag.equals(getProperties(blobName).getEtag())) {
+            throw StorageUtils.conditionNotMet(blobName);
+        }
+        delete(blobName);
+    }
+
+    /**
+     * Maps a blob name to its file, blob names escaping the container folder are rejected.
+     *
+     * @param blobName Blob path with file name.
+     * @return Path of the file.
+     * @throws StorageException If the blob name is not valid.
+     */
+    Path toPath(String blobName) throws StorageException {
+        Path path = containerPath.resolve(blobName).normalize();
+        if (!path.startsWith(containerPath) || path.equals(containerPath)) {
+            throw new StorageException("InvalidResourceName", "The specified resource name is not valid: " + blobName, 400, null, null);
+        }
+        return path;
+    }
+
+    private Path toPropertiesPath(String blobName) throws StorageException {
+        return propertiesPath.resolve(containerPath.relativize(toPath(blobName)) + ".properties");
+    }
+
+    /**
+     * Saves the Content-Encoding and metadata of a blob, or removes them if there are none.
+     *
+     * @param blobName        Blob path with file name.
+     * @param contentEncoding Content-Encoding, <code>null</code> for none.
+     * @param metadata        User metadata, <code>null</code> for none.
+     * @throws IOException If the properties cannot be written.
+     */
+    private void writeProperties(String blobName, String contentEncoding, Map<String, String> metadata) throws IOException {
+        Path propertiesFile;
+        try {
+            propertiesFile = toPropertiesPath(blobName);
+        } catch (StorageException e) {
+            throw new IOException(e);
+        }
+
+        if (contentEncoding == null && (metadata == null || metadata.isEmpty())) {
+            Files.deleteIfExists(propertiesFile);
+            return;
+        }
+
+        Properties properties = new Properties();
+        if (contentEncoding != null) {
+            properties.setProperty(CONTENT_ENCODING, contentEncoding);
+        }
+        if (metadata != null) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                properties.setProperty(METADATA_PREFIX + entry.getKey(), entry.getValue());
+            }
+        }
+        Files.createDirectories(propertiesFile.getParent());
+        try (OutputStream outputStream = Files.newOutputStream(propertiesFile)) {
+            properties.store(outputStream, null);
+        }
+    }
+
+    /**
+     * Maps a file of the container to its blob name.
+     *
+     * @param path Path of the file.
+     * @return Blob name, always separated with <code>/</code>.
+     */
+    private String toBlobName(Path path) {
+        return containerPath.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Walks a local folder in parallel, one task per sub folder, and hands every file to a consumer as soon as it is
+ * found, with its size and last modified time.
+ * <p>
+ * Relative paths start with the name of the walked folder, like {@link StorageUtils#getRelativePaths(String)}, unless
+ * the folder path ends with a separator. Include and exclude filters are glob patterns (see
+ * {@link FileSystem#getPathMatcher(String)}) matched against the path relative to the walked folder, without its
+ * name. Folders matching the exclude pattern are not walked at all. Linked folders are walked like
+ * {@link org.apache.commons.io.FileUtils#listFiles} does, except a link back to one of its own parent folders, and
+ * files deleted while the folder is walked are skipped.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     LocalFileWalker walker = new LocalFileWalker("c:/path/to/folder", "**.csv", "tmp/**");
+ *     walker.walk(file -> System.out.println(file.getRelativePath() + " " + file.getSize()));
+ *     }
+ * </pre>
+ */
+public class LocalFileWalker {
+
+    private Path folderPath;
+
+    private String rootName;
+
+    private PathMatcher include;
+
+    private PathMatcher exclude;
+
+    private int parallelism;
+
+    private static final Logger LOGGER = LogManager.getLogger(LocalFileWalker.class.getName());
+
+    /**
+     * Walks a folder with the given filters.
+     *
+     * @param folderPath  Absolute path of the folder.
+     * @param include     Glob of the files to include, <code>null</code> to include all.
+     * @param exclude     Glob of the files and folders to exclude, <code>null</code> to exclude none.
+     * @param parallelism Number of threads walking the folder.
+     */
+    public LocalFileWalker(String folderPath, String include, String exclude, int parallelism) {
+        this.folderPath = Paths.get(folderPath).toAbsolutePath().normalize();
+        this.rootName = FilenameUtils.getName(folderPath);
+        FileSystem fileSystem = this.folderPath.getFileSystem();
+        this.include = include == null ? null : fileSystem.getPathMatcher("glob:" + include);
+        this.exclude = exclude == null ? null : fileSystem.getPathMatcher("glob:" + exclude);
+        this.parallelism = parallelism;
+        LOGGER.debug("Folder Path: {}, Include: {}, Exclude: {}, Parallelism: {}.", this.folderPath, include, exclude, parallelism);
+    }
+
+    /**
+     * Walks a folder with the given filters, using one thread per processor.
+     *
+     * @param folderPath Absolute path of the folder.
+     * @param include    Glob of the files to include, <code>null</code> to include all.
+     * @param exclude    Glob of the files and folders to exclude, <code>null</code> to exclude none.
+     */
+    public LocalFileWalker(String folderPath, String include, String exclude) {
+        this(folderPath, include, exclude, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Walks all the files of a folder, using one thread per processor.
+     *
+     * @param folderPath Absolute path of the folder.
+     */
+    public LocalFileWalker(String folderPath) {
+        this(folderPath, null, null);
+    }
+
+    /**
+     * Walks the folder and blocks until every file has been given to <code>consumer</code>. The consumer is called
+     * from several threads at once.
+     *
+     * @param consumer Called once for every file.
+     * @throws IOException If a folder cannot be read.
+     */
+    public void walk(Consumer<LocalFile> consumer) throws IOException {
+        LOGGER.traceEntry();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new WalkFolder(folderPath, consumer, Files.readAttributes(folderPath, BasicFileAttributes.class), null));
+        } catch (UncheckedIOException e) {
+            Throwable cause = e;
+            while (!(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw (IOException) cause;
+        } finally {
+            pool.shutdownNow();
+        }
+        LOGGER.traceExit();
+    }
+
+    /**
+     * Starts walking the folder in the background and returns the files as they are found, at most
+     * <code>capacity</code> files are held before the walk waits for the caller to catch up.
+     * <p>
+     * Read errors are thrown as {@link UncheckedIOException} from {@link Scan#hasNext()}. Close the scan to stop the
+     * walk early.
+     *
+     * @param capacity Number of files held before the walk waits.
+     * @return The files, in no particular order.
+     */
+    public Scan scan(int capacity) {
+        final Scan scan = new Scan(capacity);
+        Thread thread = new Thread(() -> {
+            try {
+                walk(scan::put);
+            } catch (IOException e) {
+                scan.error = e;
+            } catch (RuntimeException e) {
+                if (!scan.closed) {
+                    scan.error = new IOException(e);
+                }
+            } finally {
+                scan.finish();
+            }
+        }, "local-file-walker");
+        thread.setDaemon(true);
+        thread.start();
+        return scan;
+    }
+
+    /**
+     * Lists a folder, forks a task for every sub folder and emits its files.
+     */
+    private class WalkFolder extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private Path folder;
+
+        private Consumer<LocalFile> consumer;
+
+        /**
+         * Identifies the folder once links are followed, see {@link #toKey(Path, BasicFileAttributes)}.
+         */
+        private Object key;
+
+        private WalkFolder parent;
+
+        WalkFolder(Path folder, Consumer<LocalFile> consumer, BasicFileAttributes attributes, WalkFolder parent) throws IOException {
+            this.folder = folder;
+            this.consumer = consumer;
+            this.key = toKey(folder, attributes);
+            this.parent = parent;
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkFolder> subFolders = new ArrayList<>();
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                for (Path entry : entries) {
+                    Path relative = folderPath.relativize(entry);
+                    if (exclude != null && exclude.matches(relative)) {
+                        continue;
+                    }
+
+                    // Files come and go while large folders are walked, one deleted since it was listed is skipped.
+                    BasicFileAttributes attributes;
+                    WalkFolder subFolder = null;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                        if (attributes.isDirectory()) {
+                            subFolder = new WalkFolder(entry, consumer, attributes, this);
+                        }
+                    } catch (NoSuchFileException e) {
+                        LOGGER.debug("Skipping deleted file or broken link: {}.", entry);
+                        continue;
+                    }
+
+                    if (subFolder != null) {
+                        if (subFolder.isLoop()) {
+                            LOGGER.warn("Skipping link to a parent folder: {}.", entry);
+                            continue;
+                        }
+                        subFolder.fork();
+                        subFolders.add(subFolder);
+                    } else if (attributes.isRegularFile() && (include == null || include.matches(relative))) {
+                        consumer.accept(new LocalFile(entry, toRelativePath(relative), attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                if (parent == null) {
+                    throw new UncheckedIOException(e);
+                }
+                LOGGER.debug("Skipping deleted folder: {}.", folder);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            for (WalkFolder subFolder : subFolders) {
+                subFolder.join();
+            }
+        }
+
+        /**
+         * Whether the folder is one of its own parents, reached again through a link.
+         *
+         * @return <code>true</code> if walking it would never end.
+         */
+        private boolean isLoop() {
+            for (WalkFolder ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+                if (key.equals(ancestor.key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Identifies a folder whatever the links it is reached through: its file key, or its real path where the file
+     * system has no file keys.
+     *
+     * @param folder     Path of the folder.
+     * @param attributes Attributes of the folder, links followed.
+     * @return Key of the folder.
+     * @throws IOException If the real path cannot be read.
+     */
+    private static Object toKey(Path folder, BasicFileAttributes attributes) throws IOException {
+        return attributes.fileKey() != null ? attributes.fileKey() : folder.toRealPath();
+    }
+
+    /**
+     * Absolute path of the folder walked.
+     *
+     * @return Normalized folder path.
+     */
+    Path getFolderPath() {
+        return folderPath;
+    }
+
+    /**
+     * Whether a file or folder under the walked folder is filtered out by the exclude glob.
+     *
+     * @param path Absolute path under the folder.
+     * @return <code>true</code> if the walk skips it.
+     */
+    boolean isExcluded(Path path) {
+        return exclude != null && exclude.matches(folderPath.relativize(path));
+    }
+
+    /**
+     * The file at a path, as the walk would emit it.
+     *
+     * @param path Absolute path under the folder.
+     * @return The file, <code>null</code> if it is gone, is not a regular file or is filtered out.
+     * @throws IOException If the attributes cannot be read.
+     */
+    LocalFile toLocalFile(Path path) throws IOException {
+        Path relative = folderPath.relativize(path);
+        if ((exclude != null && exclude.matches(relative)) || (include != null && !include.matches(relative))) {
+            return null;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        return new LocalFile(path, toRelativePath(relative), attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    private String toRelativePath(Path relative) {
+        String path = relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+        return rootName.isEmpty() ? path : rootName + "/" + path;
+    }
+
+    /**
+     * Files found by a background walk, see {@link #scan(int)}.
+     */
+    public static class Scan implements Iterator<LocalFile>, Closeable {
+
+        private static final LocalFile END = new LocalFile(null, null, 0, 0);
+
+        private BlockingQueue<LocalFile> queue;
+
+        private LocalFile next;
+
+        private volatile IOException error;
+
+        private volatile boolean closed;
+
+        private Scan(int capacity) {
+            this.queue = new LinkedBlockingQueue<>(capacity);
+        }
+
+        private void put(LocalFile file) {
+            try {
+                while (!queue.offer(file, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        throw new IllegalStateException("Scan closed.");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void finish() {
+            try {
+                while (!queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        queue.clear();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+            if (next == END) {
+                queue.offer(END);
+                if (error != null) {
+                    throw new UncheckedIOException(error);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public LocalFile next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            LocalFile file = next;
+            next = null;
+            return file;
+        }
+
+        /**
+         * Stops the walk, the files not read yet are dropped.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reads the newline separated records of a blob in independent splits, each fetched with its own ranged requests.
+ * <p>
+ * A split covers a fixed byte range of the blob and owns every record starting in that range: it skips the end of
+ * the record started by the split before it and reads past its own end to finish its last record. Records are
+ * separated by <code>\n</code>, a <code>\r</code> before it is dropped; the charset must encode both as the single
+ * byte they have in ASCII, as UTF-8 and ISO-8859-1 do.
+ */
+class RecordSplitReader {
+
+    /**
+     * Largest ranged request within a split.
+     */
+    static final int RANGE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Ranged request reading past the end of a split to finish its last record, doubled while the record goes on.
+     */
+    static final int TAIL_RANGE_SIZE = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BlobStore blobStore;
+
+    private String blobName;
+
+    private long length;
+
+    private long splitSize;
+
+    private Charset charset;
+
+    private TransferMemory transferMemory;
+
+    private TransferScheduler transferScheduler;
+
+    private TransferPriority priority;
+
+    private static final Logger LOGGER = LogManager.getLogger(RecordSplitReader.class.getName());
+
+    /**
+     * Splits a blob.
+     *
+     * @param blobStore         Storage backend.
+     * @param blobName          Blob path with file name.
+     * @param length            Length of the blob.
+     * @param splitSize         Bytes per split.
+     * @param charset           Charset of the records.
+     * @param transferMemory    Budget the memory of the ranges is taken from.
+     * @param transferScheduler Scheduler each ranged request waits for a slot from.
+     * @param priority          Class of the ranged requests.
+     */
+    RecordSplitReader(BlobStore blobStore, String blobName, long length, long splitSize, Charset charset,
+                      TransferMemory transferMemory, TransferScheduler transferScheduler, TransferPriority priority) {
+        checkCharset(charset);
+        this.blobStore = blobStore;
+        this.blobName = blobName;
+        this.length = length;
+        this.splitSize = splitSize;
+        this.charset = charset;
+        this.transferMemory = transferMemory;
+        this.transferScheduler = transferScheduler;
+        this.priority = priority;
+    }
+
+    /**
+     * Number of splits of the blob.
+     *
+     * @return Number of splits, <code>0</code> for an empty blob.
+     */
+    int getSplitCount() {
+        return (int) ((length + splitSize - 1) / splitSize);
+    }
+
+    /**
+     * Reads the records of a split. A split holds one range at a time, each ranged request takes a slot and then the
+     * memory of its range, kept until the range is read.
+     *
+     * @param split    Number of the split.
+     * @param consumer Called with every record of the split, in order.
+     * @return Number of records.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     * @throws IOException        If the consumer fails with it.
+     */
+    long read(int split, Consumer<String> consumer) throws URISyntaxException, StorageException, IOException {
+        long start = split * splitSize;
+        long end = Math.min(start + splitSize, length);
+        // The byte before the split tells whether a record starts right at the split.
+        long from = start > 0 ? start - 1 : 0;
+        try (InputStream inputStream = new RangeInputStream(from, end)) {
+            long records = read(inputStream, from, end, start > 0, charset, consumer);
+            LOGGER.debug("Split {} of {}: {} to {}, records: {}.", split, blobName, start, end, records);
+            return records;
+        } catch (RangeException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw (URISyntaxException) e.getCause();
+        }
+    }
+
+    /**
+     * Reads all the records of a stream.
+     *
+     * @param inputStream Stream to read, it is not closed.
+     * @param charset     Charset of the records.
+     * @param consumer    Called with every record, in order.
+     * @return Number of records.
+     * @throws IOException If the stream cannot be read.
+     */
+    static long read(InputStream inputStream, Charset charset, Consumer<String> consumer) throws IOException {
+        checkCharset(charset);
+        return read(inputStream, 0, Long.MAX_VALUE, false, charset, consumer);
+    }
+
+    /**
+     * Reads the records starting before <code>end</code>.
+     *
+     * @param inputStream Stream to read.
+     * @param position    Offset of the first byte of the stream.
+     * @param end         Offset where the last record read may start.
+     * @param skipFirst   <code>true</code> to skip the bytes up to the first separator.
+     * @param charset     Charset of the records.
+     * @param consumer    Called with every record, in order.
+     * @return Number of records.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static long read(InputStream inputStream, long position, long end, boolean skipFirst, Charset charset,
+                             Consumer<String> consumer) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        // Start of a record read over several buffers.
+        ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        boolean skipping = skipFirst;
+        long recordStart = position;
+        long offset = position;
+        long records = 0;
+
+        while (recordStart < end) {
+            int count = inputStream.read(buffer);
+            if (count == -1) {
+                if (!skipping && partial.size() > 0) {
+                    consumer.accept(decode(partial.toByteArray(), 0, partial.size(), charset));
+                    records++;
+                }
+                break;
+            }
+
+            int from = 0;
+            for (int i = 0; i < count && recordStart < end; i++) {
+                if (buffer[i] != '\n') {
+                    continue;
+                }
+                if (skipping) {
+                    skipping = false;
+                } else if (partial.size() == 0) {
+                    consumer.accept(decode(buffer, from, i - from, charset));
+                    records++;
+                } else {
+                    partial.write(buffer, from, i - from);
+                    consumer.accept(decode(partial.toByteArray(), 0, partial.size(), charset));
+                    partial.reset();
+                    records++;
+                }
+                from = i + 1;
+                recordStart = offset + from;
+            }
+            if (!skipping && recordStart < end) {
+                partial.write(buffer, from, count - from);
+            }
+            offset += count;
+        }
+        return records;
+    }
+
+    private static String decode(byte[] bytes, int offset, int length, Charset charset) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, offset, length, charset);
+    }
+
+    private static void checkCharset(Charset charset) {
+        if (!Arrays.equals("\r\n".getBytes(charset), new byte[]{'\r', '\n'})) {
+            throw new IllegalArgumentException("Records in " + charset + " cannot be split by byte");
+        }
+    }
+
+    /**
+     * Reads a blob from an offset with ranged requests: up to {@link #RANGE_SIZE} bytes each until the end of the
+     * split, growing ones from {@link #TAIL_RANGE_SIZE} after it.
+     */
+    private class RangeInputStream extends InputStream {
+
+        private long position;
+
+        private long end;
+
+        private int tailSize = TAIL_RANGE_SIZE;
+
+        private byte[] range = new byte[0];
+
+        private int index;
+
+        /**
+         * Memory taken for {@link #range}.
+         */
+        private long rangeMemory;
+
+        RangeInputStream(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (index == range.length && !fetch()) {
+                return -1;
+            }
+            int count = Math.min(len, range.length - index);
+            System.arraycopy(range, index, b, off, count);
+            index += count;
+            return count;
+        }
+
+        private boolean fetch() throws IOException {
+            if (position >= length) {
+                return false;
+            }
+            long size;
+            if (position < end) {
+                size = Math.min(RANGE_SIZE, end - position);
+            } else {
+                size = tailSize;
+                tailSize = (int) Math.min(RANGE_SIZE, tailSize * 2L);
+            }
+            size = Math.min(size, length - position);
+
+            // The range read is done with, its memory is given back before waiting for a slot.
+            releaseRange();
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) size);
+            transferScheduler.acquire(priority);
+            try {
+                transferMemory.acquire(size);
+                rangeMemory = size;
+                blobStore.downloadRange(blobName, position, size, content);
+            } catch (URISyntaxException | StorageException e) {
+                throw new RangeException(e);
+            } finally {
+                transferScheduler.release(priority);
+            }
+            range = content.toByteArray();
+            index = 0;
+            position += range.length;
+            return range.length > 0;
+        }
+
+        @Override
+        public void close() {
+            releaseRange();
+        }
+
+        private void releaseRange() {
+            transferMemory.release(rangeMemory);
+            rangeMemory = 0;
+            range = new byte[0];
+            index = 0;
+        }
+    }
+
+    /**
+     * Carries the errors of a ranged request through {@link InputStream#read()}.
+     */
+    private static class RangeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RangeException(Exception cause) {
+            super(cause);
+        }
+    }
+}
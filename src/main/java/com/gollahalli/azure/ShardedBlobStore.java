@@ -0,0 +1,493 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * {@link BlobStore} that spreads the blobs of one logical container over several containers, usually in different
+ * storage accounts, so that the request rate and bandwidth limits of a single account are multiplied by the number
+ * of shards. Give it to any of the classes in place of a single store: uploads, downloads, readers and deletes find
+ * each blob in its shard, and listings query every shard and merge their sorted results. The shards are listed
+ * concurrently, each a few pages ahead of the merge, on a pool of one thread per shard.
+ * <p>
+ * A blob goes to a shard by consistent hashing of its name: each shard takes {@link #VIRTUAL_NODES} points on a hash
+ * ring, placed from the URI of its container, and a blob belongs to the first point after the hash of its name.
+ * Adding a shard moves only the blobs that fall on its points, about one in the new number of shards, and the order
+ * of the shards given does not matter.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     BlobStore blobStore = new ShardedBlobStore("ingest", Arrays.asList(
+ *             new AzureBlobStore("account1", "key1", "ingest", true),
+ *             new AzureBlobStore("account2", "key2", "ingest", true)));
+ *     AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+ *     }
+ * </pre>
+ */
+public class ShardedBlobStore implements BlobStore {
+
+    /**
+     * Points each shard takes on the hash ring, enough to keep the shards within a few percent of each other.
+     */
+    public static final int VIRTUAL_NODES = 128;
+
+    /**
+     * Entries of a shard fetched at once ahead of the merge, while the entries fetched before are merged.
+     */
+    static final int PREFETCH_SIZE = 1000;
+
+    private static final AtomicInteger STORE_COUNT = new AtomicInteger();
+
+    private String containerName;
+
+    private List<BlobStore> shards;
+
+    /**
+     * Hash ring, point to the shard owning the hashes up to it.
+     */
+    private TreeMap<Long, BlobStore> ring = new TreeMap<>();
+
+    /**
+     * Lists the shards, its threads stop once idle.
+     */
+    private ThreadPoolExecutor listingExecutor;
+
+    private static final Logger LOGGER = LogManager.getLogger(ShardedBlobStore.class.getName());
+
+    /**
+     * Spreads a logical container over the containers of several stores.
+     *
+     * @param containerName Name of the logical container.
+     * @param shards        Stores of the shards, each bound to a different container.
+     * @throws URISyntaxException If the URI of a container cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    public ShardedBlobStore(String containerName, List<? extends BlobStore> shards) throws URISyntaxException, StorageException {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shard given for " + containerName);
+        }
+        this.containerName = containerName;
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        Set<String> containers = new HashSet<>();
+        for (BlobStore shard : shards) {
+            String container = shard.getContainerUri().toString();
+            if (!containers.add(container)) {
+                throw new IllegalArgumentException("Container given twice: " + container);
+            }
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.put(hash(container + "#" + node), shard);
+            }
+        }
+        final int store = STORE_COUNT.incrementAndGet();
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.listingExecutor = new ThreadPoolExecutor(shards.size(), shards.size(), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "sharded-listing-" + store + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.listingExecutor.allowCoreThreadTimeOut(true);
+        LOGGER.debug("Container Name: {}, Shards: {}.", containerName, shards.size());
+    }
+
+    /**
+     * Stores of the shards, in the order given.
+     *
+     * @return The shards.
+     */
+    public List<BlobStore> getShards() {
+        return shards;
+    }
+
+    /**
+     * Store of the shard holding a blob.
+     *
+     * @param blobName Blob path with file name.
+     * @return The shard.
+     */
+    public BlobStore getShard(String blobName) {
+        Map.Entry<Long, BlobStore> point = ring.ceilingEntry(hash(blobName));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    @Override
+    public String getContainerName() {
+        return containerName;
+    }
+
+    /**
+     * URI of the container of the first shard, the blobs themselves are spread over all the shards.
+     *
+     * @return URI of the first container.
+     */
+    @Override
+    public URI getContainerUri() throws URISyntaxException, StorageException {
+        return shards.get(0).getContainerUri();
+    }
+
+    @Override
+    public URI getBlobUri(String blobName) throws URISyntaxException, StorageException {
+        return getShard(blobName).getBlobUri(blobName);
+    }
+
+    @Override
+    public void createContainerIfNotExists() throws URISyntaxException, StorageException {
+        for (BlobStore shard : shards) {
+            shard.createContainerIfNotExists();
+        }
+    }
+
+    @Override
+    public void deleteContainerIfExists() throws URISyntaxException, StorageException {
+        for (BlobStore shard : shards) {
+            shard.deleteContainerIfExists();
+        }
+    }
+
+    @Override
+    public Iterable<String> listBlobs(String prefix) throws URISyntaxException, StorageException {
+        List<Iterable<String>> listings = new ArrayList<>();
+        for (BlobStore shard : shards) {
+            listings.add(shard.listBlobs(prefix));
+        }
+        return merge(listings, Function.identity(), listingExecutor);
+    }
+
+    @Override
+    public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        List<Iterable<BlobItem>> listings = new ArrayList<>();
+        for (BlobStore shard : shards) {
+            listings.add(shard.listBlobItems(prefix, details));
+        }
+        return merge(listings, BlobItem::getName, listingExecutor);
+    }
+
+    @Override
+    public Iterable<BlobItem> listDirectory(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        List<Iterable<BlobItem>> listings = new ArrayList<>();
+        for (BlobStore shard : shards) {
+            listings.add(shard.listDirectory(prefix, details));
+        }
+        final Iterable<BlobItem> merged = merge(listings, BlobItem::getName, listingExecutor);
+        // A directory usually has blobs on every shard, it is listed once.
+        return () -> new Iterator<BlobItem>() {
+
+            private final Iterator<BlobItem> iterator = merged.iterator();
+
+            private BlobItem next;
+
+            private String directory;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iterator.hasNext()) {
+                    BlobItem item = iterator.next();
+                    if (!item.isDirectory() || !item.getName().equals(directory)) {
+                        directory = item.isDirectory() ? item.getName() : null;
+                        next = item;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public BlobItem next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                BlobItem item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String blobName) throws URISyntaxException, StorageException {
+        return getShard(blobName).exists(blobName);
+    }
+
+    @Override
+    public BlobItem getProperties(String blobName) throws URISyntaxException, StorageException {
+        return getShard(blobName).getProperties(blobName);
+    }
+
+    @Override
+    public CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+        // The shard of the source lets the target shard copy on the service side when it can.
+        BlobStore from = source instanceof ShardedBlobStore ? ((ShardedBlobStore) source).getShard(sourceName) : source;
+        return getShard(blobName).startCopy(blobName, from, sourceName);
+    }
+
+    @Override
+    public void uploadFromFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        getShard(blobName).uploadFromFile(blobName, filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String blobName, String contentEncoding, Map<String, String> metadata) throws URISyntaxException, StorageException {
+        return getShard(blobName).openOutputStream(blobName, contentEncoding, metadata);
+    }
+
+    @Override
+    public void createAppendBlob(String blobName) throws URISyntaxException, StorageException {
+        getShard(blobName).createAppendBlob(blobName);
+    }
+
+    @Override
+    public long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws URISyntaxException, StorageException {
+        return getShard(blobName).appendBlock(blobName, buffer, offset, length, appendPosition);
+    }
+
+    @Override
+    public List<BlockEntry> getBlockList(String blobName) throws URISyntaxException, StorageException {
+        return getShard(blobName).getBlockList(blobName);
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) throws URISyntaxException, StorageException {
+        getShard(blobName).stageBlock(blobName, blockId, buffer, offset, length);
+    }
+
+    @Override
+    public void commitBlockList(String blobName, List<String> blockIds, String etag) throws URISyntaxException, StorageException {
+        getShard(blobName).commitBlockList(blobName, blockIds, etag);
+    }
+
+    @Override
+    public InputStream openInputStream(String blobName) throws URISyntaxException, StorageException {
+        return getShard(blobName).openInputStream(blobName);
+    }
+
+    @Override
+    public void download(String blobName, OutputStream outputStream) throws URISyntaxException, StorageException {
+        getShard(blobName).download(blobName, outputStream);
+    }
+
+    @Override
+    public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws URISyntaxException, StorageException {
+        getShard(blobName).downloadRange(blobName, offset, length, outputStream);
+    }
+
+    @Override
+    public void downloadToFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        getShard(blobName).downloadToFile(blobName, filePath);
+    }
+
+    @Override
+    public void delete(String blobName) throws URISyntaxException, StorageException {
+        getShard(blobName).delete(blobName);
+    }
+
+    @Override
+    public void delete(String blobName, String etag) throws URISyntaxException, StorageException {
+        getShard(blobName).delete(blobName, etag);
+    }
+
+    /**
+     * Position of a string on the hash ring, the first 8 bytes of its MD5.
+     *
+     * @param value Blob name or shard point.
+     * @return Position on the ring.
+     */
+    private static long hash(String value) {
+        byte[] digest = FileHashCache.newMd5().digest(value.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = hash << 8 | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    /**
+     * Merges sorted listings into one sorted listing. Each listing is fetched {@link #PREFETCH_SIZE} entries at a time
+     * on the executor, the next entries of every listing are fetched while the current ones are merged.
+     *
+     * @param listings Listings sorted by name.
+     * @param name     Name of an entry.
+     * @param executor Fetches the entries of the listings.
+     * @param <T>      Type of the entries.
+     * @return The merged listing.
+     */
+    static <T> Iterable<T> merge(List<Iterable<T>> listings, Function<T, String> name, Executor executor) {
+        return () -> new Iterator<T>() {
+
+            /**
+             * Next entry of each listing not exhausted, with the listing it came from.
+             */
+            private PriorityQueue<Map.Entry<T, Prefetch<T>>> heads;
+
+            @Override
+            public boolean hasNext() {
+                return !heads().isEmpty();
+            }
+
+            @Override
+            public T next() {
+                Map.Entry<T, Prefetch<T>> head = heads().poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                Prefetch<T> prefetch = head.getValue();
+                if (prefetch.hasNext()) {
+                    heads.add(new AbstractMap.SimpleImmutableEntry<>(prefetch.next(), prefetch));
+                }
+                return head.getKey();
+            }
+
+            private PriorityQueue<Map.Entry<T, Prefetch<T>>> heads() {
+                if (heads == null) {
+                    heads = new PriorityQueue<>(Math.max(1, listings.size()), Comparator.comparing(entry -> name.apply(entry.getKey())));
+                    // Every listing starts fetching before the first one is waited for.
+                    List<Prefetch<T>> prefetches = new ArrayList<>();
+                    for (Iterable<T> listing : listings) {
+                        prefetches.add(new Prefetch<>(listing, executor));
+                    }
+                    for (Prefetch<T> prefetch : prefetches) {
+                        if (prefetch.hasNext()) {
+                            heads.add(new AbstractMap.SimpleImmutableEntry<>(prefetch.next(), prefetch));
+                        }
+                    }
+                }
+                return heads;
+            }
+        };
+    }
+
+    /**
+     * Entries of one listing, fetched {@link #PREFETCH_SIZE} at a time: the next entries are fetched as soon as the
+     * current ones are handed out. At most one fetch of a listing runs at a time, so one given up on holds no thread.
+     *
+     * @param <T> Type of the entries.
+     */
+    private static class Prefetch<T> implements Iterator<T> {
+
+        private final Iterable<T> listing;
+
+        private final Executor executor;
+
+        /**
+         * Iterator of the listing, only used by the fetches.
+         */
+        private Iterator<T> iterator;
+
+        private Iterator<T> current = Collections.emptyIterator();
+
+        /**
+         * Entries being fetched, <code>null</code> once the listing is exhausted.
+         */
+        private Future<List<T>> ahead;
+
+        Prefetch(Iterable<T> listing, Executor executor) {
+            this.listing = listing;
+            this.executor = executor;
+            this.ahead = fetch();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && ahead != null) {
+                List<T> entries = get(ahead);
+                ahead = entries.size() < PREFETCH_SIZE ? null : fetch();
+                current = entries.iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        private Future<List<T>> fetch() {
+            FutureTask<List<T>> task = new FutureTask<>(() -> {
+                if (iterator == null) {
+                    iterator = listing.iterator();
+                }
+                List<T> entries = new ArrayList<>(PREFETCH_SIZE);
+                while (entries.size() < PREFETCH_SIZE && iterator.hasNext()) {
+                    entries.add(iterator.next());
+                }
+                return entries;
+            });
+            executor.execute(task);
+            return task;
+        }
+
+        private static <T> List<T> get(Future<List<T>> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while listing a shard", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException("An error occurred while listing a shard: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps another {@link BlobStore} and simulates the network between the client and the service: every request waits
+ * for a fixed latency, all the transferred bytes share one link of limited bandwidth and a fraction of the requests
+ * fail with a <code>503 ServerBusy</code> error.
+ * <p>
+ * Faults are drawn from a seeded {@link Random}, so a single threaded run is repeatable.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     // 20 ms per request, 10 MB/s, 1% of the requests fail.
+ *     BlobStore blobStore = new SimulatedBlobStore(new InMemoryBlobStore("container name"), 20, 10 * 1024 * 1024, 0.01, 42);
+ *     AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+ *     }
+ * </pre>
+ */
+public class SimulatedBlobStore implements BlobStore {
+
+    private BlobStore blobStore;
+
+    private volatile long latencyMillis;
+
+    private volatile long bytesPerSecond;
+
+    private volatile double failureRate;
+
+    private Random random;
+
+    /**
+     * Time, in nanoseconds, at which the simulated link is free again.
+     */
+    private long linkFreeAt = System.nanoTime();
+
+    private AtomicLong requestCount = new AtomicLong();
+
+    private AtomicLong failureCount = new AtomicLong();
+
+    private AtomicLong bytesTransferred = new AtomicLong();
+
+    /**
+     * Shortest wait for the link, shorter ones are added to the next transfer.
+     */
+    private static final long MIN_TRANSFER_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private static final Logger LOGGER = LogManager.getLogger(SimulatedBlobStore.class.getName());
+
+    /**
+     * Simulates a network in front of a store.
+     *
+     * @param blobStore      The store to wrap.
+     * @param latencyMillis  Time each request waits before it is served, in milliseconds.
+     * @param bytesPerSecond Bandwidth shared by all the transfers, <code>0</code> for unlimited.
+     * @param failureRate    Fraction of the requests that fail, between <code>0</code> and <code>1</code>.
+     * @param seed           Seed of the fault injection.
+     */
+    public SimulatedBlobStore(BlobStore blobStore, long latencyMillis, long bytesPerSecond, double failureRate, long seed) {
+        this.blobStore = blobStore;
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.failureRate = failureRate;
+        this.random = new Random(seed);
+        LOGGER.debug("Latency: {} ms, Bandwidth: {} B/s, Failure Rate: {}", latencyMillis, bytesPerSecond, failureRate);
+    }
+
+    /**
+     * Simulates a network without latency, bandwidth limits or faults, they can be set later.
+     *
+     * @param blobStore The store to wrap.
+     */
+    public SimulatedBlobStore(BlobStore blobStore) {
+        this(blobStore, 0, 0, 0, 0);
+    }
+
+    /**
+     * Sets the time each request waits before it is served.
+     *
+     * @param latencyMillis Latency in milliseconds.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sets the bandwidth shared by all the transfers.
+     *
+     * @param bytesPerSecond Bandwidth in bytes per second, <code>0</code> for unlimited.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Sets the fraction of the requests that fail.
+     *
+     * @param failureRate Between <code>0</code> and <code>1</code>.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Number of requests made, including the failed ones.
+     *
+     * @return Request count.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Number of requests failed by the fault injection.
+     *
+     * @return Failure count.
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Number of bytes sent and received.
+     *
+     * @return Bytes transferred.
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    @Override
+    public String getContainerName() {
+        return blobStore.getContainerName();
+    }
+
+    @Override
+    public URI getContainerUri() throws URISyntaxException, StorageException {
+        return blobStore.getContainerUri();
+    }
+
+    @Override
+    public URI getBlobUri(String blobName) throws URISyntaxException, StorageException {
+        return blobStore.getBlobUri(blobName);
+    }
+
+    @Override
+    public void createContainerIfNotExists() throws URISyntaxException, StorageException {
+        request();
+        blobStore.createContainerIfNotExists();
+    }
+
+    @Override
+    public void deleteContainerIfExists() throws URISyntaxException, StorageException {
+        request();
+        blobStore.deleteContainerIfExists();
+    }
+
+    @Override
+    public Iterable<String> listBlobs(String prefix) throws URISyntaxException, StorageException {
+        request();
+        return blobStore.listBlobs(prefix);
+    }
+
+    @Override
+    public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        request();
+        return blobStore.listBlobItems(prefix, details);
+    }
+
+    @Override
+    public Iterable<BlobItem> listDirectory(String prefix, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        request();
+        return blobStore.listDirectory(prefix, details);
+    }
+
+    @Override
+    public boolean exists(String blobName) throws URISyntaxException, StorageException {
+        request();
+        return blobStore.exists(blobName);
+    }
+
+    @Override
+    public BlobItem getProperties(String blobName) throws URISyntaxException, StorageException {
+        request();
+        return blobStore.getProperties(blobName);
+    }
+
+    @Override
+    public CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+        request();
+        // The contents do not go through the link, copying from another simulated store costs no bandwidth.
+        BlobStore from = source instanceof SimulatedBlobStore ? ((SimulatedBlobStore) source).blobStore : source;
+        return blobStore.startCopy(blobName, from, sourceName);
+    }
+
+    @Override
+    public void uploadFromFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        request();
+        transfer(new File(filePath).length());
+        blobStore.uploadFromFile(blobName, filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String blobName, String contentEncoding, Map<String, String> metadata) throws URISyntaxException, StorageException {
+        request();
+        return new FilterOutputStream(blobStore.openOutputStream(blobName, contentEncoding, metadata)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                transferInterruptibly(len);
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                transferInterruptibly(1);
+                out.write(b);
+            }
+        };
+    }
+
+    @Override
+    public void createAppendBlob(String blobName) throws URISyntaxException, StorageException {
+        request();
+        blobStore.createAppendBlob(blobName);
+    }
+
+    @Override
+    public long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws URISyntaxException, StorageException {
+        request();
+        transfer(length);
+        return blobStore.appendBlock(blobName, buffer, offset, length, appendPosition);
+    }
+
+    @Override
+    public List<BlockEntry> getBlockList(String blobName) throws URISyntaxException, StorageException {
+        request();
+        return blobStore.getBlockList(blobName);
+    }
+
+    @Override
+    public void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) throws URISyntaxException, StorageException {
+        request();
+        transfer(length);
+        blobStore.stageBlock(blobName, blockId, buffer, offset, length);
+    }
+
+    @Override
+    public void commitBlockList(String blobName, List<String> blockIds, String etag) throws URISyntaxException, StorageException {
+        request();
+        blobStore.commitBlockList(blobName, blockIds, etag);
+    }
+
+    @Override
+    public InputStream openInputStream(String blobName) throws URISyntaxException, StorageException {
+        request();
+        return new FilterInputStream(blobStore.openInputStream(blobName)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    transferInterruptibly(read);
+                }
+                return read;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int read = in.read();
+                if (read != -1) {
+                    transferInterruptibly(1);
+                }
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public void download(String blobName, OutputStream outputStream) throws URISyntaxException, StorageException {
+        request();
+        CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+        blobStore.download(blobName, countingOutputStream);
+        transfer(countingOutputStream.getByteCount());
+    }
+
+    @Override
+    public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws URISyntaxException, StorageException {
+        request();
+        CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+        blobStore.downloadRange(blobName, offset, length, countingOutputStream);
+        transfer(countingOutputStream.getByteCount());
+    }
+
+    @Override
+    public void downloadToFile(String blobName, String filePath) throws URISyntaxException, StorageException, IOException {
+        request();
+        blobStore.downloadToFile(blobName, filePath);
+        transfer(new File(filePath).length());
+    }
+
+    @Override
+    public void delete(String blobName) throws URISyntaxException, StorageException {
+        request();
+        blobStore.delete(blobName);
+    }
+
+    @Override
+    public void delete(String blobName, String etag) throws URISyntaxException, StorageException {
+        request();
+        blobStore.delete(blobName, etag);
+    }
+
+    /**
+     * Waits for the latency of one request and injects a fault if it is drawn.
+     *
+     * @throws StorageException If a fault is injected or the thread is interrupted.
+     */
+    private void request() throws StorageException {
+        requestCount.incrementAndGet();
+        sleep(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+
+        boolean fail;
+        synchronized (random) {
+            fail = failureRate > 0 && random.nextDouble() < failureRate;
+        }
+        if (fail) {
+            failureCount.incrementAndGet();
+            LOGGER.debug("Injected fault, request: {}", requestCount.get());
+            throw new StorageException(StorageErrorCodeStrings.SERVER_BUSY, "Simulated fault.", 503, null, null);
+        }
+    }
+
+    /**
+     * Waits until <code>bytes</code> have gone through the shared link.
+     *
+     * @param bytes Number of bytes transferred.
+     * @throws StorageException If the thread is interrupted.
+     */
+    private void transfer(long bytes) throws StorageException {
+        bytesTransferred.addAndGet(bytes);
+        long bandwidth = bytesPerSecond;
+        if (bandwidth <= 0) {
+            return;
+        }
+
+        long done;
+        synchronized (this) {
+            long now = System.nanoTime();
+            linkFreeAt = Math.max(now, linkFreeAt) + (long) (bytes * 1e9 / bandwidth);
+            done = linkFreeAt;
+        }
+        long wait = done - System.nanoTime();
+        // Small writes are let through and paid for by a later one, the link time owed is kept in linkFreeAt. Sleeping
+        // for each of them would add the scheduler overhead to every write and understate the bandwidth.
+        if (wait >= MIN_TRANSFER_WAIT_NANOS) {
+            sleep(wait);
+        }
+    }
+
+    private void transferInterruptibly(long bytes) throws IOException {
+        try {
+            transfer(bytes);
+        } catch (StorageException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private static void sleep(long nanos) throws StorageException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw StorageException.translateClientException(e);
+        }
+    }
+}
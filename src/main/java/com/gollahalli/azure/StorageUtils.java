@@ -24,20 +24,28 @@
 package com.gollahalli.azure;
 
 import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.*;
 import javafx.util.Pair;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -45,6 +53,11 @@ import java.util.List;
  */
 public class StorageUtils {
 
+    /**
+     * Number of times a transfer is tried when its contents do not match the MD5 of the blob.
+     */
+    static final int VERIFY_ATTEMPTS = 3;
+
     private static final Logger LOGGER = LogManager.getLogger(StorageUtils.class.getName());
 
     /**
@@ -111,6 +124,147 @@ public class StorageUtils {
         return containers.contains(containerName);
     }
 
+    /**
+     * Largest number of blocks of an append blob.
+     */
+    public static final int MAX_APPEND_BLOCKS = 50000;
+
+    /**
+     * Largest block appended to an append blob, in bytes.
+     */
+    public static final int MAX_APPEND_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Block the storage SDK buffers in a blob output stream, in bytes.
+     */
+    static final int SDK_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Largest file the storage SDK uploads in a single request, reading it into memory first, in bytes.
+     */
+    static final int SDK_SINGLE_PUT_THRESHOLD = 32 * 1024 * 1024;
+
+    /**
+     * The error the service returns when a blob does not exist, used by the {@link BlobStore} implementations that
+     * do not talk to Azure.
+     *
+     * @param blobName Blob path with file name.
+     * @return A <code>404 BlobNotFound</code> {@link StorageException}.
+     */
+    static StorageException blobNotFound(String blobName) {
+        return new StorageException(StorageErrorCodeStrings.BLOB_NOT_FOUND, "The specified blob does not exist: " + blobName, 404, null, null);
+    }
+
+    /**
+     * Copies a blob by reading it and writing it again with the same Content-Encoding and metadata, used by the
+     * {@link BlobStore} implementations when the service cannot do the copy.
+     *
+     * @param target     Store receiving the copy.
+     * @param blobName   Blob path with file name of the copy.
+     * @param source     Store holding the blob to copy.
+     * @param sourceName Blob path with file name of the blob to copy.
+     * @return {@link CopyStatus#SUCCESS}, the copy is done when this returns.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error, <code>404</code> if the source does not exist.
+     */
+    static CopyStatus copyContents(BlobStore target, String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+        BlobItem item = source.getProperties(sourceName);
+        try (InputStream inputStream = source.openInputStream(sourceName);
+             OutputStream outputStream = target.openOutputStream(blobName, item.getContentEncoding(), item.getMetadata())) {
+            IOUtils.copy(inputStream, outputStream);
+        } catch (IOException e) {
+            throw StorageException.translateClientException(e);
+        }
+        return CopyStatus.SUCCESS;
+    }
+
+    /**
+     * The error reported when the contents transferred do not match the MD5 of the blob, the same as the service
+     * reports for a block that does not match its transactional MD5.
+     *
+     * @param blobName Blob path with file name.
+     * @param expected Base64 MD5 of the blob.
+     * @param actual   Base64 MD5 of the contents transferred.
+     * @return A <code>400 Md5Mismatch</code> {@link StorageException}.
+     */
+    static StorageException md5Mismatch(String blobName, String expected, String actual) {
+        return new StorageException(StorageErrorCodeStrings.MD5_MISMATCH, "MD5 of " + blobName + " is " + expected
+                + " but the contents transferred have " + actual, 400, null, null);
+    }
+
+    /**
+     * MD5 of a blob as stored, to check a transfer against.
+     *
+     * @param blob Blob properties.
+     * @return Base64 MD5, <code>null</code> if the blob has none.
+     */
+    static String storedMd5(BlobItem blob) {
+        if (blob.getContentMd5() != null) {
+            return blob.getContentMd5();
+        }
+        // Written by the deduplicating uploads, it is the MD5 of the stored bytes only if they are not compressed.
+        return blob.getContentEncoding() == null ? blob.getMetadata().get(AzureBlobUpload.MD5_METADATA) : null;
+    }
+
+    /**
+     * The errors the service returns when a block cannot be appended, used by the {@link BlobStore} implementations
+     * that do not talk to Azure.
+     *
+     * @param blobName       Blob path with file name.
+     * @param length         Length of the blob.
+     * @param blocks         Number of blocks of the blob, <code>-1</code> if it is not an append blob.
+     * @param appendPosition Length the blob must have, <code>-1</code> for any.
+     * @return The error, <code>null</code> if the block can be appended.
+     */
+    static StorageException appendError(String blobName, long length, int blocks, long appendPosition) {
+        if (blocks < 0) {
+            return new StorageException(StorageErrorCodeStrings.INVALID_BLOB_TYPE, "The blob type is invalid for this operation: " + blobName, 409, null, null);
+        }
+        if (appendPosition >= 0 && appendPosition != length) {
+            return new StorageException(StorageErrorCodeStrings.INVALID_APPEND_POSITION, "The append position condition specified was not met: " + blobName + ", length: " + length + ", position: " + appendPosition, 412, null, null);
+        }
+        if (blocks >= MAX_APPEND_BLOCKS) {
+            return new StorageException("BlockCountExceedsLimit", "The committed block count cannot exceed the maximum limit of " + MAX_APPEND_BLOCKS + " blocks: " + blobName, 409, null, null);
+        }
+        return null;
+    }
+
+    /**
+     * The error the service returns when a range starts past the end of a blob, used by the {@link BlobStore}
+     * implementations that do not talk to Azure.
+     *
+     * @param blobName Blob path with file name.
+     * @param offset   Offset of the first byte.
+     * @param length   Number of bytes.
+     * @return A <code>416 InvalidRange</code> {@link StorageException}.
+     */
+    static StorageException invalidRange(String blobName, long offset, long length) {
+        return new StorageException(StorageErrorCodeStrings.INVALID_RANGE, "The range specified is invalid for the current size of the blob: " + blobName + ", offset: " + offset + ", length: " + length, 416, null, null);
+    }
+
+    /**
+     * The error the service returns when a block to commit is neither staged nor committed, used by the
+     * {@link BlobStore} implementations that do not talk to Azure.
+     *
+     * @param blobName Blob path with file name.
+     * @param blockId  Identifier of the missing block.
+     * @return A <code>400 InvalidBlockList</code> {@link StorageException}.
+     */
+    static StorageException invalidBlockList(String blobName, String blockId) {
+        return new StorageException(StorageErrorCodeStrings.INVALID_BLOCK_LIST, "The specified block list is invalid: " + blobName + ", block: " + blockId, 400, null, null);
+    }
+
+    /**
+     * The error the service returns when a blob does not have the ETag a request is conditioned on, used by the
+     * {@link BlobStore} implementations that do not talk to Azure.
+     *
+     * @param blobName Blob path with file name.
+     * @return A <code>412 ConditionNotMet</code> {@link StorageException}.
+     */
+    static StorageException conditionNotMet(String blobName) {
+        return new StorageException(StorageErrorCodeStrings.CONDITION_NOT_MET, "The condition specified using HTTP conditional header(s) is not met: " + blobName, 412, null, null);
+    }
+
     /**
      * Returns the relative path of all the files in an absolute folder path.
      *
@@ -122,22 +276,41 @@ public class StorageUtils {
         LOGGER.traceEntry();
         LOGGER.debug("Folder Path: {}.", folderPath);
 
-        String parentDirectory = FilenameUtils.getName(folderPath);
-
         List<String> relativePaths = new ArrayList<>();
         List<String> absolutePaths = new ArrayList<>();
 
-        File f = new File(folderPath);
-        for (File k : FileUtils.listFiles(f, TrueFileFilter.TRUE, TrueFileFilter.TRUE)) {
-            absolutePaths.add(k.getPath());
-            relativePaths.add(k.getPath().replace(folderPath, parentDirectory));
-            LOGGER.debug("Absolute Path: {}, Relative Path: {}.", k.getPath(), k.getPath().replace(folderPath, parentDirectory));
+        for (LocalFile file : listFiles(folderPath, null, null)) {
+            absolutePaths.add(file.getPath().toString());
+            relativePaths.add(file.getRelativePath());
+            LOGGER.debug("Absolute Path: {}, Relative Path: {}.", file.getPath(), file.getRelativePath());
         }
 
         LOGGER.traceExit();
         return new Pair<>(absolutePaths, relativePaths);
     }
 
+    /**
+     * Walks an absolute folder path in parallel with {@link LocalFileWalker}.
+     *
+     * @param folderPath Absolute path of the folder.
+     * @param include    Glob of the files to include, <code>null</code> to include all.
+     * @param exclude    Glob of the files and folders to exclude, <code>null</code> to exclude none.
+     * @return The files found, sorted by relative path.
+     * @throws UncheckedIOException If the folder cannot be read.
+     */
+    public static List<LocalFile> listFiles(String folderPath, String include, String exclude) {
+        List<LocalFile> files = Collections.synchronizedList(new ArrayList<>());
+
+        try {
+            new LocalFileWalker(folderPath, include, exclude).walk(files::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        files.sort(Comparator.comparing(LocalFile::getRelativePath));
+        return files;
+    }
+
     /**
      * Lists all the contents in a blob recursively.
      *
@@ -162,6 +335,81 @@ public class StorageUtils {
         return paths;
     }
 
+    /**
+     * Lists all the contents in a blob recursively.
+     *
+     * @param blobStore      {@link BlobStore} object.
+     * @param blobFolderName Path to the blob folder.
+     * @return A list of blob names.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    public static List<String> listBlobs(BlobStore blobStore, String blobFolderName) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: '{}', Blob Path to List: '{}'.", blobStore.getContainerName(), blobFolderName);
+
+        List<String> paths = new ArrayList<>();
+
+        for (String name : blobStore.listBlobs(blobFolderName)) {
+            LOGGER.debug("Paths: {}.", name);
+            paths.add(name);
+        }
+
+        LOGGER.traceExit();
+        return paths;
+    }
+
+    /**
+     * Lists all the contents in a blob recursively, with their properties and the details asked for, from the listing
+     * pages alone.
+     *
+     * @param cloudBlobContainer {@link CloudBlobContainer} object.
+     * @param blobFolderName     Path to the blob folder.
+     * @param details            Details to list, may be empty.
+     * @return A list of blob properties.
+     */
+    public static List<BlobItem> listBlobItems(CloudBlobContainer cloudBlobContainer, String blobFolderName, EnumSet<BlobListingDetails> details) {
+        LOGGER.traceEntry();
+        LOGGER.debug("Cloud Container Name: '{}', Blob Path to List: '{}', Details: {}.", cloudBlobContainer, blobFolderName, details);
+
+        List<BlobItem> items = new ArrayList<>();
+
+        for (ListBlobItem listBlobItem : cloudBlobContainer.listBlobs(blobFolderName, true, details, null, null)) {
+            if (listBlobItem instanceof CloudBlob) {
+                items.add(AzureBlobStore.toBlobItem((CloudBlob) listBlobItem));
+            }
+        }
+
+        LOGGER.traceExit();
+        return items;
+    }
+
+    /**
+     * Lists all the contents in a blob recursively, with their properties and the details asked for, see
+     * {@link BlobStore#listBlobItems(String, EnumSet)}.
+     *
+     * @param blobStore      {@link BlobStore} object.
+     * @param blobFolderName Path to the blob folder.
+     * @param details        Details to list, may be empty.
+     * @return A list of blob properties.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    public static List<BlobItem> listBlobItems(BlobStore blobStore, String blobFolderName, EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        LOGGER.debug("Container Name: '{}', Blob Path to List: '{}', Details: {}.", blobStore.getContainerName(), blobFolderName, details);
+
+        List<BlobItem> items = new ArrayList<>();
+
+        for (BlobItem item : blobStore.listBlobItems(blobFolderName, details)) {
+            LOGGER.debug("Paths: {}.", item);
+            items.add(item);
+        }
+
+        LOGGER.traceExit();
+        return items;
+    }
+
     /**
      * Get all the blob paths with its respective local paths to save in.
      *
@@ -205,6 +453,65 @@ public class StorageUtils {
         return new Pair<>(blobPath, folderFilePath);
     }
 
+    /**
+     * Get all the blob paths with its respective local paths to save in.
+     *
+     * @param blobStore      {@link BlobStore} object.
+     * @param blobFolderName Blob folder path.
+     * @param folderPath     Local folder path (where you want to save).
+     * @param keepBlobName   Keep the root name of the folder.
+     * @return A pair of <code>blobPath</code> and <code>folderFilePath</code>.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    public static Pair<List, List> getBlobRelativePaths(BlobStore blobStore, String blobFolderName, String folderPath, boolean keepBlobName) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        List<String> blobPath = new ArrayList<>();
+        List<String> folderFilePath = new ArrayList<>();
+        String blobRootName = FilenameUtils.getName(blobFolderName);
+        LOGGER.debug("blobRootName: {}", blobRootName);
+
+        for (String name : blobStore.listBlobs(blobFolderName)) {
+            blobPath.add(name);
+            folderFilePath.add(FilenameUtils.concat(folderPath, relativeBlobName(name, blobRootName, keepBlobName)));
+            LOGGER.debug("Blob Path: {}, Folder Path: {}.", name, folderFilePath.get(folderFilePath.size() - 1));
+        }
+
+        LOGGER.traceExit();
+        return new Pair<>(blobPath, folderFilePath);
+    }
+
+    /**
+     * Just like {@link #getBlobRelativePaths(BlobStore, String, String, boolean)} but with the properties of the blobs
+     * instead of their paths, so that the blobs can be compared with the local files without a request per blob.
+     *
+     * @param blobStore      {@link BlobStore} object.
+     * @param blobFolderName Blob folder path.
+     * @param folderPath     Local folder path (where you want to save).
+     * @param keepBlobName   Keep the root name of the folder.
+     * @param details        Details to list, may be empty.
+     * @return A pair of <code>blobItem</code> and <code>folderFilePath</code>.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    public static Pair<List<BlobItem>, List<String>> getBlobRelativeItems(BlobStore blobStore, String blobFolderName, String folderPath, boolean keepBlobName,
+                                                                          EnumSet<BlobListingDetails> details) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        List<BlobItem> blobItems = new ArrayList<>();
+        List<String> folderFilePath = new ArrayList<>();
+        String blobRootName = FilenameUtils.getName(blobFolderName);
+        LOGGER.debug("blobRootName: {}, Details: {}", blobRootName, details);
+
+        for (BlobItem item : blobStore.listBlobItems(blobFolderName, details)) {
+            blobItems.add(item);
+            folderFilePath.add(FilenameUtils.concat(folderPath, relativeBlobName(item.getName(), blobRootName, keepBlobName)));
+            LOGGER.debug("Blob: {}, Folder Path: {}.", item, folderFilePath.get(folderFilePath.size() - 1));
+        }
+
+        LOGGER.traceExit();
+        return new Pair<>(blobItems, folderFilePath);
+    }
+
     /**
      * Just like {@link #getBlobRelativePaths} but instead of returning the local path to store it returns the file name
      * and blob paths.
@@ -283,4 +590,84 @@ public class StorageUtils {
         LOGGER.traceExit();
         return nameAndPath;
     }
+
+    /**
+     * Just like {@link #getBlobRelativePaths} but instead of returning the local path to store it returns the file name
+     * and blob paths. You can also give a regular expression on the file names to sort what you want.
+     *
+     * @param blobStore      {@link BlobStore} object.
+     * @param blobFolderName Blob folder path.
+     * @param keepBlobName   Keep the root name of the folder.
+     * @param regex          Regular expression, <code>null</code> to keep all the blobs.
+     * @return A pair of list of <code>blobPath</code> and <code>folderFilePath</code>.
+     * @throws URISyntaxException If the URI cannot be built.
+     * @throws StorageException   Storage error.
+     */
+    public static Pair<List, List> getBlobRelativeNames(BlobStore blobStore, String blobFolderName, boolean keepBlobName, String regex) throws URISyntaxException, StorageException {
+        LOGGER.traceEntry();
+        List<String> blobPath = new ArrayList<>();
+        List<String> folderFilePath = new ArrayList<>();
+        String blobRootName = FilenameUtils.getName(blobFolderName);
+        LOGGER.debug("blobRootName: {}, regex: {}", blobRootName, regex);
+
+        for (String name : blobStore.listBlobs(blobFolderName)) {
+            if (regex == null) {
+                blobPath.add(name);
+                folderFilePath.add(relativeBlobName(name, blobRootName, keepBlobName));
+            } else if (FilenameUtils.getName(name).matches(regex)) {
+                blobPath.add(name);
+                folderFilePath.add(FilenameUtils.getName(name));
+            }
+        }
+
+        if (regex != null) {
+            blobPath.sort(new NaturalOrderComparator());
+            folderFilePath.sort(new NaturalOrderComparator());
+        }
+
+        LOGGER.traceExit();
+        return new Pair<>(blobPath, folderFilePath);
+    }
+
+    /**
+     * Names of listed blobs, for a {@link BlobPipeline}. The properties of each blob are kept in <code>listed</code>
+     * once its name is handed out, for the task to take them back.
+     *
+     * @param blobItems Listed blobs.
+     * @param listed    Properties of the blobs by name.
+     * @return Blob names, as lazy as the listing.
+     */
+    static Iterable<String> blobNames(Iterable<BlobItem> blobItems, Map<String, BlobItem> listed) {
+        return () -> new Iterator<String>() {
+
+            private final Iterator<BlobItem> iterator = blobItems.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                BlobItem blob = iterator.next();
+                listed.put(blob.getName(), blob);
+                return blob.getName();
+            }
+        };
+    }
+
+    /**
+     * Path of a blob relative to the blob folder it was listed from.
+     *
+     * @param blobName     Blob path with file name.
+     * @param blobRootName Name of the blob folder.
+     * @param keepBlobName Keep the root name of the folder.
+     * @return The relative path.
+     */
+    static String relativeBlobName(String blobName, String blobRootName, boolean keepBlobName) {
+        if (!keepBlobName && !blobRootName.isEmpty() && blobName.startsWith(blobRootName + "/")) {
+            return blobName.substring(blobRootName.length() + 1);
+        }
+        return blobName;
+    }
 }
@@ -0,0 +1,232 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a POSIX tar archive, entry by entry, without knowing the entries in advance. The size of each entry is
+ * given before its contents; names that do not fit the header and sizes of 8 GB or more go to a PAX extended header.
+ * <p>
+ * {@link #finish()} writes the end of the archive and leaves the underlying stream open.
+ */
+class TarOutputStream extends OutputStream {
+
+    /**
+     * Size of the headers and of the blocks the contents are padded to.
+     */
+    static final int BLOCK_SIZE = 512;
+
+    /**
+     * Largest size the 11 octal digits of the header hold.
+     */
+    private static final long MAX_HEADER_SIZE = 077777777777L;
+
+    private final OutputStream outputStream;
+
+    /**
+     * Bytes of the current entry still to write, <code>-1</code> between entries.
+     */
+    private long remaining = -1;
+
+    /**
+     * Bytes of the current entry written, for the padding.
+     */
+    private long written;
+
+    private boolean finished;
+
+    /**
+     * An archive written to a stream.
+     *
+     * @param outputStream Stream the archive is written to.
+     */
+    TarOutputStream(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Starts a regular file entry, the previous entry must be complete.
+     *
+     * @param name           Path of the file in the archive, with <code>/</code> separators.
+     * @param size           Size of the contents that follow.
+     * @param modifiedMillis Last modified time.
+     * @throws IOException If the previous entry is not complete, or the header cannot be written.
+     */
+    void putEntry(String name, long size, long modifiedMillis) throws IOException {
+        if (finished) {
+            throw new IOException("Archive finished");
+        }
+        if (remaining > 0) {
+            throw new IOException("Entry not complete, " + remaining + " bytes missing");
+        }
+        closeEntry();
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean asciiName = nameBytes.length == name.length();
+        if (nameBytes.length > 100 || !asciiName || size > MAX_HEADER_SIZE) {
+            StringBuilder records = new StringBuilder();
+            if (nameBytes.length > 100 || !asciiName) {
+                records.append(paxRecord("path", name));
+            }
+            if (size > MAX_HEADER_SIZE) {
+                records.append(paxRecord("size", Long.toString(size)));
+            }
+            byte[] content = records.toString().getBytes(StandardCharsets.UTF_8);
+            outputStream.write(header("PaxHeaders/" + truncate(name), content.length, modifiedMillis, 'x'));
+            outputStream.write(content);
+            pad(content.length);
+        }
+        outputStream.write(header(truncate(name), Math.min(size, MAX_HEADER_SIZE), modifiedMillis, '0'));
+        remaining = size;
+        written = 0;
+    }
+
+    /**
+     * Pads the contents of the current entry to a whole block.
+     *
+     * @throws IOException If the entry is not complete, or the padding cannot be written.
+     */
+    void closeEntry() throws IOException {
+        if (remaining < 0) {
+            return;
+        }
+        if (remaining > 0) {
+            throw new IOException("Entry not complete, " + remaining + " bytes missing");
+        }
+        pad(written);
+        remaining = -1;
+    }
+
+    /**
+     * Completes the last entry and writes the two empty blocks that end the archive.
+     *
+     * @throws IOException If the last entry is not complete, or the end cannot be written.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        outputStream.write(new byte[2 * BLOCK_SIZE]);
+        outputStream.flush();
+        finished = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > remaining) {
+            throw new IOException("Entry is " + (written + remaining) + " bytes, " + (written + len) + " written");
+        }
+        outputStream.write(b, off, len);
+        remaining -= len;
+        written += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    /**
+     * Finishes the archive, the underlying stream stays open.
+     *
+     * @throws IOException If the archive cannot be finished.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void pad(long length) throws IOException {
+        int padding = (int) ((BLOCK_SIZE - length % BLOCK_SIZE) % BLOCK_SIZE);
+        if (padding > 0) {
+            outputStream.write(new byte[padding]);
+        }
+    }
+
+    /**
+     * A PAX record, its length counts the digits of the length itself.
+     */
+    private static String paxRecord(String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() > Integer.toString(length).length()) {
+            total++;
+        }
+        return total + " " + key + "=" + value + "\n";
+    }
+
+    /**
+     * The last 100 ASCII characters of a name, for the header of an entry whose full name is in a PAX header.
+     */
+    private static String truncate(String name) {
+        String ascii = name.replaceAll("[^\\x20-\\x7e]", "_");
+        return ascii.length() > 100 ? ascii.substring(ascii.length() - 100) : ascii;
+    }
+
+    private static byte[] header(String name, long size, long modifiedMillis, char type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        put(header, 0, 100, name);
+        put(header, 100, 8, octal(0644, 7));
+        put(header, 108, 8, octal(0, 7));
+        put(header, 116, 8, octal(0, 7));
+        put(header, 124, 12, octal(size, 11));
+        put(header, 136, 12, octal(Math.max(0, modifiedMillis / 1000), 11));
+        header[156] = (byte) type;
+        put(header, 257, 6, "ustar");
+        put(header, 263, 2, "00");
+
+        // The checksum is computed with its own field filled with spaces.
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        put(header, 148, 8, octal(checksum, 6));
+        header[154] = 0;
+        return header;
+    }
+
+    private static String octal(long value, int digits) {
+        StringBuilder octal = new StringBuilder(Long.toOctalString(value));
+        while (octal.length() < digits) {
+            octal.insert(0, '0');
+        }
+        return octal.toString();
+    }
+
+    private static void put(byte[] header, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, Math.min(length, bytes.length));
+    }
+}
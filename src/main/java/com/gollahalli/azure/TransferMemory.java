@@ -0,0 +1,219 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Memory budget of the transfers of a process. The transfers acquire the memory of their buffers from the budget
+ * before they allocate them and release it once the buffers are dropped: uploads and streamed writes for the block
+ * the storage SDK buffers, downloads for their write buffer, readers for the ranges and blocks they hold. A transfer
+ * that needs memory while the budget is exhausted waits for it, and read-ahead is skipped instead of waiting, so
+ * concurrent operations slow down rather than run out of memory.
+ * <p>
+ * Waiting transfers are served in order. A transfer needing more than the whole budget goes ahead once nothing else
+ * is in use. The usage and waiting figures are meant for sizing the memory of a container.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     TransferMemory.getShared().setLimit(512L * 1024 * 1024);
+ *     // ...
+ *     LOGGER.info("Peak: {}, waited: {} ms.", TransferMemory.getShared().getPeakBytes(), TransferMemory.getShared().getWaitMillis());
+ *     }
+ * </pre>
+ */
+public class TransferMemory {
+
+    /**
+     * Budget of all the transfers not given one of their own, half of the maximum heap by default.
+     */
+    private static final TransferMemory SHARED = new TransferMemory(Runtime.getRuntime().maxMemory() / 2);
+
+    private long limit;
+
+    private long used;
+
+    private long peak;
+
+    /**
+     * Transfers waiting for memory, in arrival order.
+     */
+    private final Deque<Object> waiters = new ArrayDeque<>();
+
+    private long waitCount;
+
+    private long waitNanos;
+
+    /**
+     * A budget of its own, for transfers to be kept apart from the others.
+     *
+     * @param limit Bytes the transfers may hold at once.
+     */
+    public TransferMemory(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * The budget of the process, used by all the transfers not given another one.
+     *
+     * @return The shared budget.
+     */
+    public static TransferMemory getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets the bytes the transfers may hold at once. Lowering the limit does not take memory back from the transfers
+     * holding it, new transfers wait until they release it.
+     *
+     * @param limit Limit in bytes.
+     */
+    public synchronized void setLimit(long limit) {
+        this.limit = limit;
+        notifyAll();
+    }
+
+    /**
+     * Bytes the transfers may hold at once.
+     *
+     * @return Limit in bytes.
+     */
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Bytes held by the transfers.
+     *
+     * @return Bytes in use.
+     */
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    /**
+     * Largest number of bytes held at once since the budget was created.
+     *
+     * @return Peak bytes in use.
+     */
+    public synchronized long getPeakBytes() {
+        return peak;
+    }
+
+    /**
+     * Number of transfers waiting for memory right now.
+     *
+     * @return Waiting transfers.
+     */
+    public synchronized int getWaitingCount() {
+        return waiters.size();
+    }
+
+    /**
+     * Number of times a transfer had to wait for memory.
+     *
+     * @return Waits since the budget was created.
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * Total time the transfers spent waiting for memory.
+     *
+     * @return Milliseconds waited since the budget was created.
+     */
+    public synchronized long getWaitMillis() {
+        return waitNanos / 1000000;
+    }
+
+    /**
+     * Takes memory from the budget, waiting until it is available.
+     *
+     * @param bytes Bytes to take, to be given back with {@link #release(long)}.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedIOException {
+        if (waiters.isEmpty() && fits(bytes)) {
+            take(bytes);
+            return;
+        }
+        Object waiter = new Object();
+        waiters.addLast(waiter);
+        waitCount++;
+        long start = System.nanoTime();
+        try {
+            while (waiters.peekFirst() != waiter || !fits(bytes)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + bytes + " bytes of transfer memory");
+        } finally {
+            waiters.remove(waiter);
+            waitNanos += System.nanoTime() - start;
+            // The next waiter may fit as well, or be at the head now that this one gave up.
+            notifyAll();
+        }
+        take(bytes);
+    }
+
+    /**
+     * Takes memory from the budget if it is available right away and nobody is waiting for it.
+     *
+     * @param bytes Bytes to take, to be given back with {@link #release(long)} if taken.
+     * @return <code>true</code> if the memory was taken.
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        if (waiters.isEmpty() && used + bytes <= limit) {
+            take(bytes);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives memory back to the budget.
+     *
+     * @param bytes Bytes taken with {@link #acquire(long)} or {@link #tryAcquire(long)}.
+     */
+    public synchronized void release(long bytes) {
+        used -= bytes;
+        if (!waiters.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    private boolean fits(long bytes) {
+        return used == 0 || used + bytes <= limit;
+    }
+
+    private void take(long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+/**
+ * Class of a transfer for the {@link TransferScheduler}. Each class has a weight, its share of the requests started
+ * while several classes are waiting, and a limit on the requests it runs at once.
+ */
+public enum TransferPriority {
+
+    /**
+     * Reads a user is waiting for, weight <code>16</code>. Started ahead of the queued requests of the other classes.
+     */
+    INTERACTIVE(16),
+
+    /**
+     * Writes and reads without a user waiting, weight <code>4</code>.
+     */
+    NORMAL(4),
+
+    /**
+     * Folder uploads and downloads, weight <code>1</code>. Limited to half the requests of the scheduler by default,
+     * so that bulk work never takes all of them.
+     */
+    BULK(1);
+
+    private int defaultWeight;
+
+    TransferPriority(int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * Weight of the class unless set with {@link TransferScheduler#setWeight(TransferPriority, int)}.
+     *
+     * @return The default weight.
+     */
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2018 Akshay Raj Gollahalli
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gollahalli.azure;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Schedules the storage requests of the transfers of a process. Every transfer asks for a slot before each request,
+ * a file of a folder upload or download, a range or block of a reader, and gives it back once the request is done.
+ * A transfer that also takes memory from a {@link TransferMemory} budget takes its slot first, so that no request
+ * holds memory while it waits for a slot held by requests waiting for memory.
+ * <p>
+ * Requests start at once while the scheduler and their {@link TransferPriority} class are under their limits.
+ * Otherwise they queue, first come first served within a class, and the freed slots are shared between the classes
+ * with queued requests in proportion to their weights, by start-time fair queuing: the class with the earliest
+ * virtual finish time goes next. A class that had nothing queued starts at the current virtual time, so an
+ * interactive read arriving behind a queue of bulk requests goes ahead of them.
+ * <p>
+ * Example:
+ * <pre>
+ *     {@code
+ *     TransferScheduler scheduler = TransferScheduler.getShared();
+ *     scheduler.setMaxConcurrency(32);
+ *     scheduler.setConcurrency(TransferPriority.BULK, 8);
+ *     }
+ * </pre>
+ */
+public class TransferScheduler {
+
+    /**
+     * Default number of requests run at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY = 32;
+
+    /**
+     * Scheduler of all the transfers not given one of their own.
+     */
+    private static final TransferScheduler SHARED = new TransferScheduler(DEFAULT_MAX_CONCURRENCY);
+
+    private int maxConcurrency;
+
+    private int running;
+
+    /**
+     * Virtual time, the start tag of the request started last.
+     */
+    private double virtualTime;
+
+    private final Map<TransferPriority, PriorityClass> classes = new EnumMap<>(TransferPriority.class);
+
+    /**
+     * A scheduler of its own, for transfers to be kept apart from the others. Bulk transfers may run half the
+     * requests, the other classes all of them.
+     *
+     * @param maxConcurrency Number of requests run at once.
+     */
+    public TransferScheduler(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        for (TransferPriority priority : TransferPriority.values()) {
+            int limit = priority == TransferPriority.BULK ? Math.max(1, this.maxConcurrency / 2) : Integer.MAX_VALUE;
+            classes.put(priority, new PriorityClass(priority.getDefaultWeight(), limit));
+        }
+    }
+
+    /**
+     * The scheduler of the process, used by all the transfers not given another one.
+     *
+     * @return The shared scheduler.
+     */
+    public static TransferScheduler getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets the number of requests run at once by all the classes, defaults to {@link #DEFAULT_MAX_CONCURRENCY}. The
+     * limits of the classes are kept as they are.
+     *
+     * @param maxConcurrency Number of requests, at least <code>1</code>.
+     */
+    public synchronized void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        dispatch();
+    }
+
+    /**
+     * Sets the number of requests a class runs at once.
+     *
+     * @param priority Class of the requests.
+     * @param limit    Number of requests, at least <code>1</code>.
+     */
+    public synchronized void setConcurrency(TransferPriority priority, int limit) {
+        classes.get(priority).limit = Math.max(1, limit);
+        dispatch();
+    }
+
+    /**
+     * Sets the share of a class while several classes have requests queued, defaults to
+     * {@link TransferPriority#getDefaultWeight()}.
+     *
+     * @param priority Class of the requests.
+     * @param weight   Weight, at least <code>1</code>.
+     */
+    public synchronized void setWeight(TransferPriority priority, int weight) {
+        classes.get(priority).weight = Math.max(1, weight);
+    }
+
+    /**
+     * Number of requests of a class running.
+     *
+     * @param priority Class of the requests.
+     * @return Requests holding a slot.
+     */
+    public synchronized int getRunningCount(TransferPriority priority) {
+        return classes.get(priority).running;
+    }
+
+    /**
+     * Number of requests of a class waiting for a slot.
+     *
+     * @param priority Class of the requests.
+     * @return Queued requests.
+     */
+    public synchronized int getQueuedCount(TransferPriority priority) {
+        return classes.get(priority).queue.size();
+    }
+
+    /**
+     * Number of requests of a class started since the scheduler was created.
+     *
+     * @param priority Class of the requests.
+     * @return Started requests.
+     */
+    public synchronized long getStartedCount(TransferPriority priority) {
+        return classes.get(priority).started;
+    }
+
+    /**
+     * Total time the requests of a class spent queued.
+     *
+     * @param priority Class of the requests.
+     * @return Milliseconds waited since the scheduler was created.
+     */
+    public synchronized long getWaitMillis(TransferPriority priority) {
+        return classes.get(priority).waitNanos / 1000000;
+    }
+
+    /**
+     * Takes a slot for a request, waiting for one if the scheduler or the class is at its limit.
+     *
+     * @param priority Class of the request.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public synchronized void acquire(TransferPriority priority) throws InterruptedIOException {
+        PriorityClass priorityClass = classes.get(priority);
+        Waiter waiter = new Waiter();
+        if (priorityClass.queue.isEmpty()) {
+            // A class starts queuing at the current virtual time, whatever it used before.
+            priorityClass.start = Math.max(priorityClass.start, virtualTime);
+        }
+        priorityClass.queue.addLast(waiter);
+        dispatch();
+        if (waiter.granted) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            while (!waiter.granted) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.granted) {
+                release(priority);
+            } else {
+                priorityClass.queue.remove(waiter);
+            }
+            throw new InterruptedIOException("Interrupted while waiting for a " + priority + " transfer slot");
+        } finally {
+            priorityClass.waitNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Takes a slot for a request if one is free right away and no request is queued, for work that is better skipped
+     * than waited for, such as reading ahead.
+     *
+     * @param priority Class of the request.
+     * @return <code>true</code> if the slot was taken, to be given back with {@link #release(TransferPriority)}.
+     */
+    public synchronized boolean tryAcquire(TransferPriority priority) {
+        for (PriorityClass queued : classes.values()) {
+            if (!queued.queue.isEmpty()) {
+                return false;
+            }
+        }
+        PriorityClass priorityClass = classes.get(priority);
+        priorityClass.start = Math.max(priorityClass.start, virtualTime);
+        Waiter waiter = new Waiter();
+        priorityClass.queue.addLast(waiter);
+        dispatch();
+        if (!waiter.granted) {
+            priorityClass.queue.remove(waiter);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives a slot back and starts the next request.
+     *
+     * @param priority Class given to {@link #acquire(TransferPriority)}.
+     */
+    public synchronized void release(TransferPriority priority) {
+        running--;
+        classes.get(priority).running--;
+        dispatch();
+    }
+
+    /**
+     * Starts queued requests while there are free slots, picking the class with the earliest virtual finish time
+     * among the classes under their limit.
+     */
+    private void dispatch() {
+        boolean granted = false;
+        while (running < maxConcurrency) {
+            TransferPriority next = null;
+            double nextFinish = Double.MAX_VALUE;
+            for (Map.Entry<TransferPriority, PriorityClass> entry : classes.entrySet()) {
+                PriorityClass priorityClass = entry.getValue();
+                if (priorityClass.queue.isEmpty() || priorityClass.running >= priorityClass.limit) {
+                    continue;
+                }
+                double finish = priorityClass.start + 1.0 / priorityClass.weight;
+                if (finish < nextFinish) {
+                    next = entry.getKey();
+                    nextFinish = finish;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            PriorityClass priorityClass = classes.get(next);
+            virtualTime = priorityClass.start;
+            // The next request of the class starts when this one finishes.
+            priorityClass.start = nextFinish;
+            priorityClass.queue.pollFirst().granted = true;
+            priorityClass.running++;
+            priorityClass.started++;
+            running++;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * State of a {@link TransferPriority} class.
+     */
+    private static class PriorityClass {
+
+        private int weight;
+
+        private int limit;
+
+        private int running;
+
+        /**
+         * Virtual start time of the next request of the class.
+         */
+        private double start;
+
+        private final Deque<Waiter> queue = new ArrayDeque<>();
+
+        private long started;
+
+        private long waitNanos;
+
+        PriorityClass(int weight, int limit) {
+            this.weight = weight;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * A request waiting for a slot.
+     */
+    private static class Waiter {
+
+        private boolean granted;
+    }
+}
@@ -0,0 +1,195 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AzureBlobAppendWriterTest {
+
+    private InMemoryBlobStore memoryStore;
+
+    @BeforeEach
+    void setUp() {
+        memoryStore = new InMemoryBlobStore("test");
+    }
+
+    @AfterEach
+    void tearDown() {
+        memoryStore.deleteContainerIfExists();
+    }
+
+    @Test
+    void concurrentWritesAreGrouped() throws Exception {
+        SimulatedBlobStore blobStore = new SimulatedBlobStore(memoryStore, 20, 0, 0, 1);
+        AzureBlobAppendWriter writer = new AzureBlobAppendWriter(blobStore, "logs/app.log");
+        writer.setMaxDelay(50);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    try {
+                        writer.write((thread + "-" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writer.close();
+
+        assertEquals(Arrays.asList("logs/app.log"), writer.getBlobNames());
+        String[] lines = content("logs/app.log").split("\n");
+        assertEquals(4000, lines.length);
+        int[] next = new int[8];
+        for (String line : lines) {
+            String[] parts = line.split("-");
+            int thread = Integer.parseInt(parts[0]);
+            assertEquals(next[thread]++, Integer.parseInt(parts[1]), line);
+        }
+        assertTrue(writer.getAppendCount() < 100, "Appends: " + writer.getAppendCount());
+    }
+
+    @Test
+    void acknowledgedWritesAreStored() throws Exception {
+        try (AzureBlobAppendWriter writer = new AzureBlobAppendWriter(memoryStore, "logs/app.log")) {
+            writer.setMaxDelay(10000);
+            writer.write("first\n".getBytes(StandardCharsets.UTF_8));
+            CompletableFuture<Void> acknowledgement = writer.writeAcknowledged("second\n".getBytes(StandardCharsets.UTF_8));
+            assertFalse(acknowledgement.isDone());
+
+            writer.flush();
+            acknowledgement.get(5, TimeUnit.SECONDS);
+            assertEquals("first\nsecond\n", content("logs/app.log"));
+        }
+    }
+
+    @Test
+    void rollsOverAtBlockLimit() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        AzureBlobAppendWriter writer = new AzureBlobAppendWriter(memoryStore, "logs/app.log");
+        try {
+            writer.setMaxBlocks(3);
+            writer.setMaxBlockSize(8);
+            for (int i = 0; i < 10; i++) {
+                byte[] record = String.format("rec %03d%n", i).getBytes(StandardCharsets.UTF_8);
+                writer.write(record);
+                expected.write(record);
+            }
+            // A record larger than a block is split.
+            byte[] large = "0123456789abcdefghij\n".getBytes(StandardCharsets.UTF_8);
+            writer.write(large);
+            expected.write(large);
+        } finally {
+            writer.close();
+        }
+
+        List<String> blobNames = writer.getBlobNames();
+        assertEquals("logs/app.log", blobNames.get(0));
+        assertEquals("logs/app.1.log", blobNames.get(1));
+        StringBuilder actual = new StringBuilder();
+        for (String blobName : blobNames) {
+            assertTrue(memoryStore.getContent(blobName).length <= 3 * 8);
+            actual.append(content(blobName));
+        }
+        assertEquals(new String(expected.toByteArray(), StandardCharsets.UTF_8), actual.toString());
+    }
+
+    @Test
+    void retriedAppendIsNotStoredTwice() throws Exception {
+        LostResponseBlobStore blobStore = new LostResponseBlobStore();
+        try (AzureBlobAppendWriter writer = new AzureBlobAppendWriter(blobStore, "app.log")) {
+            writer.write("once\n".getBytes(StandardCharsets.UTF_8));
+            writer.flush();
+        }
+        assertEquals("once\n", new String(blobStore.getContent("app.log"), StandardCharsets.UTF_8));
+        assertEquals(2, blobStore.attempts);
+    }
+
+    @Test
+    void failedAppendFailsTheWrites() throws Exception {
+        SimulatedBlobStore blobStore = new SimulatedBlobStore(memoryStore);
+        AzureBlobAppendWriter writer = new AzureBlobAppendWriter(blobStore, "app.log");
+        blobStore.setFailureRate(1);
+        CompletableFuture<Void> acknowledgement = writer.writeAcknowledged("lost\n".getBytes(StandardCharsets.UTF_8));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> acknowledgement.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertThrows(IOException.class, () -> writer.write(1));
+        assertThrows(IOException.class, writer::close);
+    }
+
+    @Test
+    void appendBlockChecksPositionAndType() throws Exception {
+        memoryStore.createAppendBlob("app.log");
+        assertEquals(0, memoryStore.appendBlock("app.log", "ab".getBytes(StandardCharsets.UTF_8), 0, 2, 0));
+        assertEquals(2, memoryStore.appendBlock("app.log", "cd".getBytes(StandardCharsets.UTF_8), 0, 2, -1));
+
+        StorageException e = assertThrows(StorageException.class, () -> memoryStore.appendBlock("app.log", new byte[1], 0, 1, 2));
+        assertEquals(412, e.getHttpStatusCode());
+        assertEquals(StorageErrorCodeStrings.INVALID_APPEND_POSITION, e.getErrorCode());
+
+        memoryStore.openOutputStream("block.txt").close();
+        e = assertThrows(StorageException.class, () -> memoryStore.appendBlock("block.txt", new byte[1], 0, 1, -1));
+        assertEquals(409, e.getHttpStatusCode());
+
+        Path root = Files.createTempDirectory("append-blob");
+        try {
+            LocalFileBlobStore fileStore = new LocalFileBlobStore(root.toString(), "test");
+            fileStore.createAppendBlob("logs/app.log");
+            fileStore.appendBlock("logs/app.log", "abcd".getBytes(StandardCharsets.UTF_8), 1, 2, 0);
+            assertEquals(2, fileStore.appendBlock("logs/app.log", "e".getBytes(StandardCharsets.UTF_8), 0, 1, 2));
+            assertEquals("bce", FileUtils.readFileToString(fileStore.toPath("logs/app.log").toFile(), StandardCharsets.UTF_8));
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    private String content(String blobName) throws StorageException {
+        return new String(memoryStore.getContent(blobName), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores the first append but reports it as failed, as when the response is lost.
+     */
+    private static class LostResponseBlobStore extends InMemoryBlobStore {
+
+        private int attempts;
+
+        LostResponseBlobStore() {
+            super("test");
+        }
+
+        @Override
+        public synchronized long appendBlock(String blobName, byte[] buffer, int offset, int length, long appendPosition) throws StorageException {
+            attempts++;
+            long position = super.appendBlock(blobName, buffer, offset, length, appendPosition);
+            if (attempts == 1) {
+                throw new StorageException(StorageErrorCodeStrings.OPERATION_TIMED_OUT, "Simulated lost response.", 500, null, null);
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AzureBlobCopyTest {
+
+    private InMemoryBlobStore source;
+
+    private InMemoryBlobStore target;
+
+    @BeforeEach
+    void setUp() {
+        source = new InMemoryBlobStore("source");
+        target = new InMemoryBlobStore("target");
+    }
+
+    @AfterEach
+    void tearDown() {
+        source.deleteContainerIfExists();
+        target.deleteContainerIfExists();
+    }
+
+    @Test
+    void copyFolder() throws Exception {
+        write(source, "folder/1.txt", "one");
+        write(source, "folder/sub/2.txt", "two");
+        write(source, "other.txt", "other");
+
+        SimulatedBlobStore simulatedSource = new SimulatedBlobStore(source);
+        SimulatedBlobStore simulatedTarget = new SimulatedBlobStore(target);
+        new AzureBlobCopy(simulatedSource, simulatedTarget).copyFolder("folder/", "copy/");
+
+        assertEquals(2, StorageUtils.listBlobs(target, "").size());
+        assertEquals("one", new String(target.getContent("copy/1.txt"), StandardCharsets.UTF_8));
+        assertEquals("two", new String(target.getContent("copy/sub/2.txt"), StandardCharsets.UTF_8));
+        assertEquals(3, StorageUtils.listBlobs(source, "").size());
+        assertEquals(0, simulatedSource.getBytesTransferred() + simulatedTarget.getBytesTransferred());
+    }
+
+    @Test
+    void moveFolder() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            write(source, "folder/" + i + ".txt", String.valueOf(i));
+        }
+
+        AzureBlobCopy blobCopy = new AzureBlobCopy(source, target);
+        blobCopy.setConcurrency(4);
+        blobCopy.moveFolder("folder/", "moved/");
+
+        assertTrue(StorageUtils.listBlobs(source, "").isEmpty());
+        assertEquals(50, StorageUtils.listBlobs(target, "moved/").size());
+        assertEquals("42", new String(target.getContent("moved/42.txt"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void moveFolderChecksAgainstTheListing() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            write(source, "folder/" + i + ".txt", String.valueOf(i));
+        }
+
+        SimulatedBlobStore simulatedSource = new SimulatedBlobStore(source);
+        new AzureBlobCopy(simulatedSource, new SimulatedBlobStore(target)).moveFolder("folder/", "moved/");
+
+        // The listing, then a delete conditional on the listed ETag per blob.
+        assertEquals(1 + 10, simulatedSource.getRequestCount());
+        assertEquals(10, StorageUtils.listBlobs(target, "moved/").size());
+    }
+
+    @Test
+    void sourceChangedBeforeTheDeleteIsKept() throws Exception {
+        write(source, "file.txt", "old");
+        // Another writer replaces the source between the copy and the delete.
+        SimulatedBlobStore changingSource = new SimulatedBlobStore(source) {
+            @Override
+            public void delete(String blobName, String etag) throws URISyntaxException, StorageException {
+                try {
+                    write(source, blobName, "new");
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                super.delete(blobName, etag);
+            }
+        };
+
+        StorageException e = assertThrows(StorageException.class, () -> new AzureBlobCopy(changingSource, target).moveFile("file.txt", "moved.txt"));
+        assertEquals(412, e.getHttpStatusCode());
+        assertEquals("new", new String(source.getContent("file.txt"), StandardCharsets.UTF_8));
+        assertEquals("old", new String(target.getContent("moved.txt"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void moveFolderCarriesOnPastChangedSources() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            write(source, "folder/" + i + ".txt", String.valueOf(i));
+        }
+        // Another writer replaces three of the sources between their copy and their delete.
+        SimulatedBlobStore changingSource = new SimulatedBlobStore(source) {
+            @Override
+            public void delete(String blobName, String etag) throws URISyntaxException, StorageException {
+                if (blobName.matches("folder/[357]\\.txt")) {
+                    try {
+                        write(source, blobName, "new");
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                super.delete(blobName, etag);
+            }
+        };
+        AzureBlobCopy blobCopy = new AzureBlobCopy(changingSource, target);
+        blobCopy.setConcurrency(1);
+
+        StorageException e = assertThrows(StorageException.class, () -> blobCopy.moveFolder("folder/", "moved/"));
+        assertEquals(412, e.getHttpStatusCode());
+        assertEquals(3, e.getSuppressed().length);
+        assertEquals(Arrays.asList("folder/3.txt", "folder/5.txt", "folder/7.txt"), StorageUtils.listBlobs(source, ""));
+        assertEquals(10, StorageUtils.listBlobs(target, "moved/").size());
+    }
+
+    @Test
+    void targetWithinTheSourceFolderIsRejected() throws Exception {
+        write(source, "a/1.txt", "one");
+
+        AzureBlobCopy blobCopy = new AzureBlobCopy(source, source);
+        assertThrows(IllegalArgumentException.class, () -> blobCopy.copyFolder("a/", "a/copy/"));
+        assertThrows(IllegalArgumentException.class, () -> blobCopy.moveFolder("a/", "a/"));
+        assertEquals(Collections.singletonList("a/1.txt"), StorageUtils.listBlobs(source, ""));
+
+        // Another container may use the same folder.
+        new AzureBlobCopy(source, target).copyFolder("a/", "a/copy/");
+        assertTrue(target.exists("a/copy/1.txt"));
+    }
+
+    @Test
+    void moveFileWithinContainer() throws Exception {
+        write(source, "file.txt", "text");
+        new AzureBlobCopy(source, source).moveFile("file.txt", "renamed.txt");
+
+        assertFalse(source.exists("file.txt"));
+        assertEquals("text", new String(source.getContent("renamed.txt"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void copyBetweenStoreTypes() throws Exception {
+        write(source, "file.txt", "text");
+        SimulatedBlobStore simulatedTarget = new SimulatedBlobStore(new InMemoryBlobStore("other"));
+        new AzureBlobCopy(new SimulatedBlobStore(source), simulatedTarget).copyFile("file.txt", "file.txt");
+
+        assertTrue(simulatedTarget.exists("file.txt"));
+    }
+
+    @Test
+    void pendingCopiesArePolled() throws Exception {
+        write(source, "folder/1.txt", "one");
+        write(source, "folder/2.txt", "two");
+
+        PendingCopyBlobStore pendingTarget = new PendingCopyBlobStore();
+        new AzureBlobCopy(source, pendingTarget).moveFolder("folder/", "folder/");
+
+        assertTrue(pendingTarget.pending.isEmpty());
+        assertTrue(pendingTarget.exists("folder/2.txt"));
+        assertTrue(StorageUtils.listBlobs(source, "").isEmpty());
+    }
+
+    @Test
+    void missingSource() {
+        StorageException e = assertThrows(StorageException.class, () -> new AzureBlobCopy(source, target).copyFile("missing.txt", "copy.txt"));
+        assertEquals(404, e.getHttpStatusCode());
+    }
+
+    private static void write(BlobStore blobStore, String blobName, String content) throws Exception {
+        try (OutputStream outputStream = blobStore.openOutputStream(blobName)) {
+            outputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Reports every copy as pending until its properties are read once, like a large copy between accounts.
+     */
+    private static class PendingCopyBlobStore extends InMemoryBlobStore {
+
+        private Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        PendingCopyBlobStore() {
+            super("pending");
+        }
+
+        @Override
+        public CopyStatus startCopy(String blobName, BlobStore source, String sourceName) throws URISyntaxException, StorageException {
+            super.startCopy(blobName, source, sourceName);
+            pending.add(blobName);
+            return CopyStatus.PENDING;
+        }
+
+        @Override
+        public BlobItem getProperties(String blobName) throws StorageException {
+            BlobItem item = super.getProperties(blobName);
+            CopyStatus status = pending.remove(blobName) ? CopyStatus.PENDING : CopyStatus.SUCCESS;
+            return new BlobItem(item.getName(), item.getLength(), item.getEtag(), item.getLastModified(),
+                    item.getContentEncoding(), item.getContentMd5(), item.getMetadata(), status, null);
+        }
+    }
+}
@@ -1,30 +1,199 @@
 package com.gollahalli.azure;
 
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class AzureBlobDownloadTest {
 
+    private Path folder;
+
+    private InMemoryBlobStore blobStore;
+
     @BeforeEach
-    void setUp() {
+    void setUp() throws IOException {
+        folder = Files.createTempDirectory("download");
+        blobStore = new InMemoryBlobStore("download");
     }
 
     @AfterEach
-    void tearDown() {
+    void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    void downloadFile() throws Exception {
+        byte[] content = put("blob/file.bin", 3 * DirectBufferPool.BUFFER_SIZE + 17);
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+        blobDownload.setFsyncPolicy(FsyncPolicy.FILE);
+
+        String path = blobDownload.downloadFile("blob/file.bin", folder.toString());
+
+        assertEquals(folder.resolve("file.bin").toString(), path);
+        assertArrayEquals(content, Files.readAllBytes(folder.resolve("file.bin")));
+    }
+
+    @Test
+    void downloadFolder() throws Exception {
+        byte[] first = put("blob/1.bin", 1000);
+        byte[] second = put("blob/sub/2.bin", 0);
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+        blobDownload.setFsyncPolicy(FsyncPolicy.FOLDER);
+
+        blobDownload.downloadFolder("blob", folder.toString());
+
+        assertArrayEquals(first, Files.readAllBytes(folder.resolve("blob/1.bin")));
+        assertArrayEquals(second, Files.readAllBytes(folder.resolve("blob/sub/2.bin")));
+    }
+
+    @Test
+    void downloadFolder1() throws Exception {
+        byte[] content = put("blob/1.bin", 1000);
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+
+        blobDownload.downloadFolder("blob", folder.toString(), false);
+
+        assertArrayEquals(content, Files.readAllBytes(folder.resolve("1.bin")));
+    }
+
+    @Test
+    void replacedFileIsTruncated() throws Exception {
+        byte[] content = put("blob/file.bin", 100);
+        Files.write(folder.resolve("file.bin"), new byte[5000]);
+
+        for (boolean preallocate : new boolean[]{true, false}) {
+            AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+            blobDownload.setPreallocate(preallocate);
+            blobDownload.downloadFolder("blob", folder.toString(), false);
+
+            assertArrayEquals(content, Files.readAllBytes(folder.resolve("file.bin")));
+        }
     }
 
     @Test
-    void downloadFile() {
+    void buffersAreReused() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            put("blob/" + i + ".bin", 2 * 1024 + i);
+        }
+        DirectBufferPool bufferPool = new DirectBufferPool(1024, 4);
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+        blobDownload.setConcurrency(2);
+        blobDownload.setBufferPool(bufferPool);
+
+        blobDownload.downloadFolder("blob", folder.toString(), false);
+
+        assertTrue(bufferPool.getAllocatedCount() <= 2, "allocated: " + bufferPool.getAllocatedCount());
+        assertEquals(2 * 1024 + 7, Files.size(folder.resolve("7.bin")));
     }
 
     @Test
-    void downloadFolder() {
+    void exportFolderAsZip() throws Exception {
+        byte[] first = put("blob/1.bin", 5000);
+        byte[] second = put("blob/sub/2.bin", 0);
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+        blobDownload.setZipLevel(1);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(2, blobDownload.exportFolder("blob", archive, ArchiveFormat.ZIP));
+
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                entries.put(entry.getName(), IOUtils.toByteArray(zipInputStream));
+            }
+        }
+        assertEquals(Arrays.asList("blob/1.bin", "blob/sub/2.bin"), Arrays.asList(entries.keySet().toArray()));
+        assertArrayEquals(first, entries.get("blob/1.bin"));
+        assertArrayEquals(second, entries.get("blob/sub/2.bin"));
     }
 
     @Test
-    void downloadFolder1() {
+    void exportFolderAsTar() throws Exception {
+        String longName = "blob/" + String.join("/", Collections.nCopies(30, "folder")) + "/file.bin";
+        byte[] first = put("blob/1.bin", 1000);
+        byte[] second = put(longName, 2 * TarOutputStream.BLOCK_SIZE);
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(2, blobDownload.exportFolder("blob", archive, ArchiveFormat.TAR, false));
+
+        byte[] bytes = archive.toByteArray();
+        assertEquals(0, bytes.length % TarOutputStream.BLOCK_SIZE);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        String paxPath = null;
+        int offset = 0;
+        while (bytes[offset] != 0) {
+            String name = field(bytes, offset, 100);
+            int size = Integer.parseInt(field(bytes, offset + 124, 12).trim(), 8);
+            byte[] content = Arrays.copyOfRange(bytes, offset + TarOutputStream.BLOCK_SIZE, offset + TarOutputStream.BLOCK_SIZE + size);
+            if (bytes[offset + 156] == 'x') {
+                String record = new String(content, StandardCharsets.UTF_8);
+                paxPath = record.substring(record.indexOf("path=") + 5, record.length() - 1);
+            } else {
+                entries.put(paxPath != null ? paxPath : name, content);
+                paxPath = null;
+            }
+            offset += TarOutputStream.BLOCK_SIZE * (1 + (size + TarOutputStream.BLOCK_SIZE - 1) / TarOutputStream.BLOCK_SIZE);
+        }
+        assertEquals(offset + 2 * TarOutputStream.BLOCK_SIZE, bytes.length);
+        assertArrayEquals(first, entries.get("1.bin"));
+        assertArrayEquals(second, entries.get(longName.substring("blob/".length())));
+    }
+
+    @Test
+    void failedExportIsNotFinished() throws Exception {
+        InMemoryBlobStore failingStore = new InMemoryBlobStore("download") {
+
+            @Override
+            public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws StorageException {
+                throw new StorageException("ServerBusy", "busy", 503, null, null);
+            }
+        };
+        try (OutputStream outputStream = failingStore.openOutputStream("blob/1.bin", null, null)) {
+            outputStream.write(new byte[1000]);
+        }
+        AzureBlobDownload blobDownload = new AzureBlobDownload(failingStore);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertThrows(IOException.class, () -> blobDownload.exportFolder("blob", archive, ArchiveFormat.TAR));
+        assertEquals(TarOutputStream.BLOCK_SIZE, archive.size(), "only the header of the first entry");
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.US_ASCII);
+    }
+
+    private byte[] put(String blobName, int length) throws Exception {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        try (OutputStream outputStream = blobStore.openOutputStream(blobName, null, null)) {
+            outputStream.write(content);
+        }
+        return content;
     }
-}
\ No newline at end of file
+}
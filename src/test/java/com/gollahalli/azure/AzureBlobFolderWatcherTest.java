@@ -0,0 +1,132 @@
+package com.gollahalli.azure;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AzureBlobFolderWatcherTest {
+
+    private Path folder;
+
+    private InMemoryBlobStore blobStore;
+
+    private AzureBlobFolderWatcher watcher;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        folder = Files.createTempDirectory("folder-watcher").resolve("watched");
+        Files.createDirectories(folder);
+        blobStore = new InMemoryBlobStore("test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+        FileUtils.deleteDirectory(folder.getParent().toFile());
+    }
+
+    @Test
+    void uploadsNewFilesAndFolders() throws Exception {
+        write("existing.txt", "before");
+        watcher = new AzureBlobFolderWatcher(new AzureBlobUpload(blobStore), folder.toString(), "blob/", null, "**.tmp");
+        watcher.setQuietPeriod(200);
+        watcher.start();
+
+        write("a.txt", "first");
+        write("sub/deeper/b.txt", "second");
+        write("c.tmp", "excluded");
+
+        awaitBlob("blob/watched/a.txt");
+        awaitBlob("blob/watched/sub/deeper/b.txt");
+        assertEquals("first", content("blob/watched/a.txt"));
+        assertEquals("second", content("blob/watched/sub/deeper/b.txt"));
+        assertFalse(blobStore.exists("blob/watched/existing.txt"));
+        assertFalse(blobStore.exists("blob/watched/c.tmp"));
+
+        // A modified file is uploaded again.
+        write("a.txt", "first, modified");
+        long deadline = System.currentTimeMillis() + 10000;
+        // The count is updated once the upload returns, after the blob is written.
+        while ((!"first, modified".equals(content("blob/watched/a.txt")) || watcher.getUploadedCount() < 3)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("first, modified", content("blob/watched/a.txt"));
+        assertEquals(3, watcher.getUploadedCount());
+    }
+
+    @Test
+    void waitsForFilesBeingWritten() throws Exception {
+        watcher = new AzureBlobFolderWatcher(new AzureBlobUpload(blobStore), folder.toString(), null);
+        watcher.setQuietPeriod(500);
+        watcher.start();
+
+        StringBuilder expected = new StringBuilder();
+        try (OutputStream outputStream = Files.newOutputStream(folder.resolve("growing.txt"))) {
+            for (int i = 0; i < 10; i++) {
+                String line = "line " + i + "\n";
+                outputStream.write(line.getBytes(StandardCharsets.UTF_8));
+                outputStream.flush();
+                expected.append(line);
+                Thread.sleep(100);
+                assertFalse(blobStore.exists("watched/growing.txt"));
+            }
+        }
+
+        awaitBlob("watched/growing.txt");
+        assertEquals(expected.toString(), content("watched/growing.txt"));
+        assertEquals(0, watcher.getPendingCount());
+    }
+
+    @Test
+    void uploadsInBatches() throws Exception {
+        AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.setDeduplicate(true);
+        watcher = new AzureBlobFolderWatcher(blobUpload, folder.toString(), "blob/");
+        watcher.setQuietPeriod(200);
+        watcher.setBatchSize(3);
+        watcher.setQueueSize(4);
+        watcher.start();
+
+        for (int i = 0; i < 20; i++) {
+            write("file" + i + ".txt", "same");
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (watcher.getUploadedCount() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(20, watcher.getUploadedCount());
+        assertEquals(20, StorageUtils.listBlobs(blobStore, "blob/").size());
+        assertEquals("same", content("blob/watched/file19.txt"));
+    }
+
+    private void write(String relativePath, String content) throws IOException {
+        Path file = folder.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String content(String blobName) throws Exception {
+        return blobStore.exists(blobName) ? new String(blobStore.getContent(blobName), StandardCharsets.UTF_8) : null;
+    }
+
+    private void awaitBlob(String blobName) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!blobStore.exists(blobName) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(blobStore.exists(blobName), blobName);
+    }
+}
@@ -0,0 +1,157 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AzureBlobListerTest {
+
+    private InMemoryBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        blobStore = new InMemoryBlobStore("lister");
+        for (int i = 0; i < 12; i++) {
+            for (int j = 0; j < 5; j++) {
+                put(blobStore, "data/d" + i + "/s" + j + "/part-" + (i + j) + ".csv");
+            }
+            put(blobStore, "data/d" + i + "/part-" + i + ".csv");
+        }
+        put(blobStore, "data/readme.txt");
+        put(blobStore, "other.txt");
+    }
+
+    @Test
+    void listsTheSameBlobsAsAFlatListing() throws Exception {
+        AzureBlobLister blobLister = new AzureBlobLister(blobStore);
+        blobLister.setFanOut(20);
+
+        try (Stream<String> names = blobLister.listBlobs("data/")) {
+            assertEquals(StorageUtils.listBlobs(blobStore, "data/"), names.sorted().collect(Collectors.toList()));
+        }
+        try (Stream<String> names = blobLister.listBlobs("")) {
+            assertEquals(StorageUtils.listBlobs(blobStore, ""), names.sorted().collect(Collectors.toList()));
+        }
+        blobLister.setMaxDepth(0);
+        try (Stream<BlobItem> items = blobLister.listBlobItems("data/d1", EnumSet.of(BlobListingDetails.METADATA))) {
+            assertEquals(StorageUtils.listBlobs(blobStore, "data/d1"), items.map(BlobItem::getName).sorted().collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void listsInNaturalOrder() throws Exception {
+        AzureBlobLister blobLister = new AzureBlobLister(blobStore);
+        blobLister.setConcurrency(3);
+        blobLister.setNaturalOrder(true);
+
+        List<String> expected = StorageUtils.listBlobs(blobStore, "data/");
+        @SuppressWarnings("unchecked")
+        Comparator<String> comparator = new NaturalOrderComparator();
+        expected.sort(comparator);
+        try (Stream<String> names = blobLister.listBlobs("data/")) {
+            assertEquals(expected, names.collect(Collectors.toList()));
+        }
+        assertEquals("data/d2/part-2.csv", expected.get(12));
+    }
+
+    @Test
+    void directoriesAreListedAtOnce() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        InMemoryBlobStore slowStore = new InMemoryBlobStore("lister") {
+
+            @Override
+            public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                List<BlobItem> items = new ArrayList<>();
+                super.listBlobItems(prefix, details).forEach(items::add);
+                running.decrementAndGet();
+                return items;
+            }
+        };
+        for (String name : blobStore.listBlobs("")) {
+            put(slowStore, name);
+        }
+        AzureBlobLister blobLister = new AzureBlobLister(slowStore);
+        blobLister.setConcurrency(4);
+        blobLister.setMaxDepth(1);
+
+        try (Stream<String> names = blobLister.listBlobs("data/")) {
+            assertEquals(73, names.count());
+        }
+        assertEquals(4, maxRunning.get());
+    }
+
+    @Test
+    void listingErrorsReachTheReader() throws Exception {
+        InMemoryBlobStore failingStore = new InMemoryBlobStore("lister") {
+
+            @Override
+            public Iterable<BlobItem> listBlobItems(String prefix, EnumSet<BlobListingDetails> details) {
+                throw new IllegalStateException("listing failed", new StorageException("ServerBusy", "busy", 503, null, null));
+            }
+        };
+        put(failingStore, "data/d1/a.txt");
+        put(failingStore, "data/d2/b.txt");
+
+        AzureBlobLister blobLister = new AzureBlobLister(failingStore);
+        blobLister.setMaxDepth(1);
+        try (Stream<String> names = blobLister.listBlobs("data/")) {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> names.count());
+            assertEquals(503, ((StorageException) e.getCause()).getHttpStatusCode());
+        }
+    }
+
+    @Test
+    void directoryListingMatchesTheFlatFallback() throws Exception {
+        Path root = Files.createTempDirectory("lister");
+        try {
+            LocalFileBlobStore localStore = new LocalFileBlobStore(root.toString(), "lister");
+            for (String name : blobStore.listBlobs("")) {
+                put(localStore, name);
+            }
+
+            for (String prefix : new String[]{"", "data/", "data/d1", "data/d1/"}) {
+                assertEquals(directory(blobStore, prefix), directory(localStore, prefix), prefix);
+            }
+            assertEquals("[data/d1/, data/d10/, data/d11/]", directory(blobStore, "data/d1").toString());
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    private static List<String> directory(BlobStore blobStore, String prefix) throws Exception {
+        List<String> names = new ArrayList<>();
+        for (BlobItem item : blobStore.listDirectory(prefix, EnumSet.noneOf(BlobListingDetails.class))) {
+            names.add(item.isDirectory() ? item.getName() : item.getName() + " " + item.getLength());
+        }
+        return names;
+    }
+
+    private static void put(BlobStore blobStore, String blobName) throws Exception {
+        try (OutputStream outputStream = blobStore.openOutputStream(blobName)) {
+            outputStream.write(blobName.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
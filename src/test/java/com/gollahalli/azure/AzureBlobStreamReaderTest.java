@@ -1,19 +1,220 @@
 package com.gollahalli.azure;
 
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class AzureBlobStreamReaderTest {
 
+    private InMemoryBlobStore blobStore;
+
+    private List<String> records;
+
     @BeforeEach
-    void setUp() {
+    void setUp() throws Exception {
+        blobStore = new InMemoryBlobStore("test");
+        records = new ArrayList<>();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            StringBuilder record = new StringBuilder("{\"id\": " + i + ", \"name\": \"\u00fcn\u00efc\u00f8d\u00e9 \u20ac\"");
+            for (int j = 0; j < i % 13; j++) {
+                record.append(", \"field").append(j).append("\": ").append(j * i);
+            }
+            String value = i % 17 == 0 ? "" : record.append("}").toString();
+            records.add(value);
+            content.append(value).append(i % 5 == 0 ? "\r\n" : "\n");
+        }
+        // The last record has no separator.
+        records.add("last");
+        content.append("last");
+        try (OutputStream outputStream = blobStore.openOutputStream("events.ndjson")) {
+            outputStream.write(content.toString().getBytes(StandardCharsets.UTF_8));
+        }
     }
 
     @AfterEach
     void tearDown() {
+        blobStore.deleteContainerIfExists();
+    }
+
+    @Test
+    void streamFileReaderReadsAhead() throws Exception {
+        SimulatedBlobStore simulatedStore = new SimulatedBlobStore(blobStore, 1, 0, 0, 1);
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(simulatedStore);
+        streamReader.setCharset(StandardCharsets.UTF_8);
+        // Ranges end in the middle of the multi-byte characters.
+        streamReader.setBufferSize(7);
+        streamReader.setReadAhead(2);
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(streamReader.streamFileReader("events.ndjson"))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+        }
+        assertEquals(records, lines);
+        long length = blobStore.getContent("events.ndjson").length;
+        assertEquals(1 + (length + 6) / 7, simulatedStore.getRequestCount());
+
+        try (OutputStream outputStream = BlobCompression.GZIP.compress(blobStore.openOutputStream("latin.txt.gz",
+                BlobCompression.GZIP.getContentEncoding(), null))) {
+            outputStream.write("caf\u00e9".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        streamReader.setCharset(StandardCharsets.ISO_8859_1);
+        streamReader.setDecompress(true);
+        try (InputStreamReader reader = streamReader.streamFileReader("latin.txt.gz")) {
+            assertEquals("caf\u00e9", IOUtils.toString(reader));
+        }
+    }
+
+    @Test
+    void readRecordsOrdered() throws Exception {
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(blobStore);
+        streamReader.setConcurrency(4);
+        for (long splitSize = 1; splitSize < 400; splitSize += 7) {
+            streamReader.setSplitSize(splitSize);
+            List<String> actual = Collections.synchronizedList(new ArrayList<>());
+            assertEquals(records.size(), streamReader.readRecords("events.ndjson", StandardCharsets.UTF_8, true, actual::add));
+            assertEquals(records, actual, "Split size: " + splitSize);
+        }
+    }
+
+    @Test
+    void readRecordsUnordered() throws Exception {
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(new SimulatedBlobStore(blobStore, 1, 0, 0, 1));
+        streamReader.setSplitSize(100);
+        ConcurrentLinkedQueue<String> actual = new ConcurrentLinkedQueue<>();
+        assertEquals(records.size(), streamReader.readRecords("events.ndjson", StandardCharsets.UTF_8, false, actual::add));
+
+        List<String> sorted = new ArrayList<>(actual);
+        List<String> expected = new ArrayList<>(records);
+        Collections.sort(sorted);
+        Collections.sort(expected);
+        assertEquals(expected, sorted);
+    }
+
+    @Test
+    void readRecordsCompressed() throws Exception {
+        try (OutputStream outputStream = BlobCompression.GZIP.compress(blobStore.openOutputStream("events.ndjson.gz",
+                BlobCompression.GZIP.getContentEncoding(), null))) {
+            outputStream.write("a\nb\r\n\nc\n".getBytes(StandardCharsets.UTF_8));
+        }
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(blobStore);
+        streamReader.setDecompress(true);
+        List<String> actual = new ArrayList<>();
+        assertEquals(4, streamReader.readRecords("events.ndjson.gz", StandardCharsets.UTF_8, true, actual::add));
+        assertEquals(Arrays.asList("a", "b", "", "c"), actual);
+
+        assertThrows(IllegalArgumentException.class, () -> streamReader.readRecords("events.ndjson", StandardCharsets.UTF_16, true, actual::add));
+    }
+
+    @Test
+    void streamFolderConcatenated() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        InMemoryBlobStore slowStore = new InMemoryBlobStore("parts") {
+
+            @Override
+            public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws StorageException {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                    super.downloadRange(blobName, offset, length, outputStream);
+                } catch (InterruptedException e) {
+                    throw StorageException.translateClientException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        long ranges = 0;
+        // Written out of order, read in natural order.
+        for (int i = 30; i > 0; i--) {
+            byte[] part = ("part " + i + " " + String.join("", Collections.nCopies(i % 7, "x")) + "\n").getBytes(StandardCharsets.UTF_8);
+            try (OutputStream outputStream = slowStore.openOutputStream("parts/part-" + i)) {
+                outputStream.write(part);
+            }
+            ranges += (part.length + 7) / 8;
+        }
+        slowStore.openOutputStream("parts/empty").close();
+
+        SimulatedBlobStore simulatedStore = new SimulatedBlobStore(slowStore);
+        TransferMemory transferMemory = new TransferMemory(1024);
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(simulatedStore);
+        streamReader.setBufferSize(8);
+        streamReader.setConcurrency(4);
+        streamReader.setTransferMemory(transferMemory);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1; i <= 30; i++) {
+            expected.append("part ").append(i).append(' ').append(String.join("", Collections.nCopies(i % 7, "x"))).append('\n');
+        }
+        try (InputStream inputStream = streamReader.streamFolderConcatenated("parts/")) {
+            assertEquals(expected.toString(), IOUtils.toString(inputStream, StandardCharsets.UTF_8));
+        }
+        assertEquals(4, maxRunning.get());
+        assertEquals(0, transferMemory.getUsedBytes());
+        // The listing and the ranges, nothing per blob.
+        assertEquals(1 + ranges, simulatedStore.getRequestCount());
+    }
+
+    @Test
+    void blobShrunkSinceListedFailsTheStream() throws Exception {
+        for (String name : Arrays.asList("shards/a", "shards/b")) {
+            try (OutputStream outputStream = blobStore.openOutputStream(name)) {
+                outputStream.write((name + " 0123456789\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(blobStore);
+
+        try (InputStream inputStream = streamReader.streamFolderConcatenated("shards/")) {
+            try (OutputStream outputStream = blobStore.openOutputStream("shards/a")) {
+                outputStream.write("short\n".getBytes(StandardCharsets.UTF_8));
+            }
+            IOException e = assertThrows(IOException.class, () -> IOUtils.toString(inputStream, StandardCharsets.UTF_8));
+            assertTrue(e.getCause() instanceof EOFException, String.valueOf(e.getCause()));
+        }
+    }
+
+    @Test
+    void streamFolderConcatenatedDecompresses() throws Exception {
+        try (OutputStream outputStream = BlobCompression.GZIP.compress(blobStore.openOutputStream("logs/1.log.gz",
+                BlobCompression.GZIP.getContentEncoding(), null))) {
+            outputStream.write("one\n".getBytes(StandardCharsets.UTF_8));
+        }
+        try (OutputStream outputStream = blobStore.openOutputStream("logs/2.log")) {
+            outputStream.write("two\n".getBytes(StandardCharsets.UTF_8));
+        }
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(blobStore);
+        streamReader.setDecompress(true);
+
+        try (ReadableByteChannel channel = streamReader.openFolderChannel("logs/")) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            while (channel.read(buffer) >= 0) {
+                assertTrue(buffer.hasRemaining());
+            }
+            assertEquals("one\ntwo\n", new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        }
     }
 
     @Test
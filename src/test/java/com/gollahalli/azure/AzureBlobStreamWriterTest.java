@@ -4,6 +4,8 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.InterruptedIOException;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class AzureBlobStreamWriterTest {
@@ -19,4 +21,22 @@ class AzureBlobStreamWriterTest {
     @Test
     void streamFileWriter() {
     }
-}
\ No newline at end of file
+
+    @Test
+    void interruptedWaitForMemoryGivesTheSlotBack() throws Exception {
+        TransferMemory transferMemory = new TransferMemory(10);
+        transferMemory.acquire(10);
+        TransferScheduler transferScheduler = new TransferScheduler(1);
+        AzureBlobStreamWriter streamWriter = new AzureBlobStreamWriter(new InMemoryBlobStore("test"));
+        streamWriter.setTransferMemory(transferMemory);
+        streamWriter.setTransferScheduler(transferScheduler);
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(InterruptedIOException.class, () -> streamWriter.streamFileWriter("blob.bin", new byte[100]));
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(0, transferScheduler.getRunningCount(TransferPriority.NORMAL));
+    }
+}
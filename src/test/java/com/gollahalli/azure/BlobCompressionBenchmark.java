@@ -0,0 +1,62 @@
+package com.gollahalli.azure;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Measures the write and read throughput of each {@link BlobCompression} against a {@link SimulatedBlobStore}, and
+ * the size of the stored blob. Not a unit test, run it with the size in MB and the bandwidth in MB/s of the simulated
+ * link as arguments.
+ */
+public class BlobCompressionBenchmark {
+
+    /**
+     * Read buffer, large enough that the simulated link and not the sleeps between reads is the bottleneck.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 64) * 1024 * 1024;
+        long bytesPerSecond = (args.length > 1 ? Long.parseLong(args[1]) : 100) * 1024 * 1024;
+        byte[] content = textLike(size, new Random(42));
+
+        System.out.printf("%-8s %12s %8s %14s %14s%n", "codec", "stored", "ratio", "write MB/s", "read MB/s");
+        for (BlobCompression compression : BlobCompression.values()) {
+            InMemoryBlobStore memoryStore = new InMemoryBlobStore("benchmark");
+            SimulatedBlobStore blobStore = new SimulatedBlobStore(memoryStore, 0, bytesPerSecond, 0, 0);
+
+            long start = System.nanoTime();
+            try (OutputStream outputStream = compression.compress(blobStore.openOutputStream("blob", compression.getContentEncoding(), null))) {
+                outputStream.write(content);
+            }
+            double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            try (InputStream inputStream = BlobCompression.openInputStream(blobStore, "blob")) {
+                IOUtils.copy(inputStream, NullOutputStream.NULL_OUTPUT_STREAM, BUFFER_SIZE);
+            }
+            double readSeconds = (System.nanoTime() - start) / 1e9;
+
+            long stored = memoryStore.getContent("blob").length;
+            System.out.printf("%-8s %12d %8.2f %14.1f %14.1f%n", compression, stored, (double) size / stored,
+                    size / writeSeconds / 1024 / 1024, size / readSeconds / 1024 / 1024);
+        }
+    }
+
+    /**
+     * Lines of words drawn from a small vocabulary, compresses roughly like log files and CSV.
+     */
+    private static byte[] textLike(int size, Random random) {
+        String[] words = {"azure", "blob", "container", "upload", "download", "1024", "2018-01-01", "error", "info", "stream"};
+        StringBuilder builder = new StringBuilder(size + 64);
+        while (builder.length() < size) {
+            builder.append(words[random.nextInt(words.length)]).append(random.nextInt(10) == 0 ? '\n' : ',');
+        }
+        builder.setLength(size);
+        return builder.toString().getBytes();
+    }
+}
@@ -0,0 +1,109 @@
+package com.gollahalli.azure;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobCompressionTest {
+
+    private static final String TEXT = "some long text, some long text, some long text, some long text";
+
+    private Path folder;
+
+    private InMemoryBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        folder = Files.createTempDirectory("blob-compression");
+        blobStore = new InMemoryBlobStore("test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        blobStore.deleteContainerIfExists();
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    void streamWriterAndReader() throws Exception {
+        for (BlobCompression compression : BlobCompression.values()) {
+            AzureBlobStreamWriter streamWriter = new AzureBlobStreamWriter(blobStore);
+            streamWriter.setCompression(compression);
+            streamWriter.streamFileWriter("path/" + compression, TEXT.getBytes(StandardCharsets.UTF_8));
+            assertEquals(compression.getContentEncoding(), blobStore.getProperties("path/" + compression).getContentEncoding());
+
+            AzureBlobStreamReader streamReader = new AzureBlobStreamReader(blobStore);
+            streamReader.setDecompress(true);
+            try (InputStreamReader reader = streamReader.streamFileReader("path/" + compression)) {
+                assertEquals(TEXT, IOUtils.toString(reader));
+            }
+        }
+        assertTrue(blobStore.getContent("path/GZIP").length < TEXT.length());
+        assertTrue(blobStore.getContent("path/DEFLATE").length < TEXT.length());
+    }
+
+    @Test
+    void uploadAndDownloadFolder() throws Exception {
+        Path source = Files.createDirectories(folder.resolve("source/sub"));
+        Files.write(source.resolve("1.txt"), TEXT.getBytes(StandardCharsets.UTF_8));
+        Files.write(source.getParent().resolve("2.txt"), TEXT.getBytes(StandardCharsets.UTF_8));
+
+        AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.setCompression(BlobCompression.GZIP);
+        blobUpload.uploadFromFolder(source.getParent().toString(), "blob/");
+        assertEquals("gzip", blobStore.getProperties("blob/source/sub/1.txt").getContentEncoding());
+
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+        blobDownload.setDecompress(true);
+        blobDownload.downloadFolder("blob/", folder.resolve("target").toString());
+        assertEquals(TEXT, FileUtils.readFileToString(folder.resolve("target/blob/source/sub/1.txt").toFile(), StandardCharsets.UTF_8));
+        assertEquals(TEXT, FileUtils.readFileToString(folder.resolve("target/blob/source/2.txt").toFile(), StandardCharsets.UTF_8));
+
+        String path = blobDownload.downloadFile("blob/source/2.txt", folder.resolve("file").toString());
+        assertEquals(TEXT, FileUtils.readFileToString(new File(path), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void localFileBlobStore() throws Exception {
+        LocalFileBlobStore localStore = new LocalFileBlobStore(folder.resolve("store").toString(), "test");
+        try (OutputStream outputStream = BlobCompression.DEFLATE.compress(
+                localStore.openOutputStream("file.txt", "deflate", Collections.singletonMap("key", "value")))) {
+            outputStream.write(TEXT.getBytes(StandardCharsets.UTF_8));
+        }
+
+        BlobItem item = localStore.getProperties("file.txt");
+        assertEquals("deflate", item.getContentEncoding());
+        assertEquals("value", item.getMetadata().get("key"));
+        try (InputStream inputStream = BlobCompression.openInputStream(localStore, "file.txt")) {
+            assertEquals(TEXT, IOUtils.toString(inputStream, StandardCharsets.UTF_8));
+        }
+
+        try (OutputStream outputStream = localStore.openOutputStream("file.txt")) {
+            outputStream.write(TEXT.getBytes(StandardCharsets.UTF_8));
+        }
+        assertNull(localStore.getProperties("file.txt").getContentEncoding());
+        assertTrue(localStore.getProperties("file.txt").getMetadata().isEmpty());
+    }
+
+    @Test
+    void forContentEncoding() throws Exception {
+        assertEquals(BlobCompression.NONE, BlobCompression.forContentEncoding(null));
+        assertEquals(BlobCompression.NONE, BlobCompression.forContentEncoding("identity"));
+        assertEquals(BlobCompression.GZIP, BlobCompression.forContentEncoding("GZIP"));
+        assertThrows(IOException.class, () -> BlobCompression.forContentEncoding("br"));
+    }
+}
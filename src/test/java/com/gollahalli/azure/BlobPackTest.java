@@ -0,0 +1,132 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobPackTest {
+
+    private SimulatedBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() {
+        blobStore = new SimulatedBlobStore(new InMemoryBlobStore("test"));
+    }
+
+    @AfterEach
+    void tearDown() {
+    }
+
+    @Test
+    void writeAndRead() throws Exception {
+        try (BlobPackWriter writer = new BlobPackWriter(blobStore, "packs/files.pack", 1)) {
+            for (int i = 0; i < 20; i++) {
+                writer.add("file-" + i + ".txt", new ByteArrayInputStream(("content " + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            writer.add("empty.txt", new ByteArrayInputStream(new byte[0]));
+            assertEquals(21, writer.getPartCount());
+            writer.commit();
+        }
+
+        BlobPack pack = BlobPack.open(blobStore, "packs/files.pack");
+        assertEquals(21, pack.getFileNames().size());
+        assertEquals("file-0.txt", pack.getFileNames().get(0));
+
+        long requests = blobStore.getRequestCount();
+        assertEquals("content 13", new String(pack.read("file-13.txt"), StandardCharsets.UTF_8));
+        assertEquals(requests + 1, blobStore.getRequestCount());
+
+        assertEquals(0, pack.read("empty.txt").length);
+        assertEquals(404, assertThrows(StorageException.class, () -> pack.read("missing.txt")).getHttpStatusCode());
+    }
+
+    @Test
+    void failedPackPublishesNoIndex() throws Exception {
+        try (BlobPackWriter writer = new BlobPackWriter(blobStore, "packs/files.pack")) {
+            writer.add("old.txt", new ByteArrayInputStream("old".getBytes(StandardCharsets.UTF_8)));
+            writer.commit();
+        }
+
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("disk error");
+            }
+        };
+        assertThrows(IOException.class, () -> {
+            try (BlobPackWriter writer = new BlobPackWriter(blobStore, "packs/files.pack")) {
+                writer.add("new.txt", new ByteArrayInputStream("new".getBytes(StandardCharsets.UTF_8)));
+                writer.add("failing.txt", failing);
+                writer.commit();
+            }
+        });
+
+        // The part of the earlier pack was overwritten, its index is gone rather than pointing at other bytes.
+        StorageException e = assertThrows(StorageException.class, () -> BlobPack.open(blobStore, "packs/files.pack"));
+        assertEquals(404, e.getHttpStatusCode());
+    }
+
+    @Test
+    void failedAddStopsTheWriter() throws Exception {
+        InputStream failing = new InputStream() {
+            private boolean read;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (read) {
+                    throw new IOException("disk error");
+                }
+                read = true;
+                b[off] = b[off + 1] = b[off + 2] = 'x';
+                return 3;
+            }
+        };
+        try (BlobPackWriter writer = new BlobPackWriter(blobStore, "packs/files.pack")) {
+            writer.add("first.txt", new ByteArrayInputStream("first".getBytes(StandardCharsets.UTF_8)));
+            // Three bytes reach the part before the read fails.
+            assertThrows(IOException.class, () -> writer.add("failing.txt", failing));
+
+            assertThrows(IllegalStateException.class, () -> writer.add("next.txt", new ByteArrayInputStream("next".getBytes(StandardCharsets.UTF_8))));
+            assertThrows(IllegalStateException.class, writer::commit);
+        }
+        assertEquals(404, assertThrows(StorageException.class, () -> BlobPack.open(blobStore, "packs/files.pack")).getHttpStatusCode());
+    }
+
+    @Test
+    void uploadFromFolderPacked() throws Exception {
+        Path folder = Files.createTempDirectory("pack");
+        try {
+            for (int i = 0; i < 100; i++) {
+                FileUtils.writeStringToFile(folder.resolve("sub/" + i + ".log").toFile(), "line " + i, StandardCharsets.UTF_8);
+            }
+
+            new AzureBlobUpload(blobStore).uploadFromFolderPacked(folder.toString() + "/", "logs.pack", BlobPackWriter.DEFAULT_PART_SIZE);
+            assertEquals(2, StorageUtils.listBlobs(blobStore, "logs.pack").size());
+
+            AzureBlobStreamReader streamReader = new AzureBlobStreamReader(blobStore);
+            try (InputStreamReader reader = streamReader.streamPackedFileReader("logs.pack", "sub/42.log")) {
+                assertEquals("line 42", IOUtils.toString(reader));
+            }
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+}
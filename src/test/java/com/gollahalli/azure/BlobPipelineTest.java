@@ -0,0 +1,110 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import javafx.util.Pair;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobPipelineTest {
+
+    private InMemoryBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        blobStore = new InMemoryBlobStore("test");
+        for (int i = 0; i < 50; i++) {
+            try (OutputStream outputStream = blobStore.openOutputStream("folder/part-" + (100 + i))) {
+                outputStream.write(i);
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+    }
+
+    @Test
+    void processWhileListing() throws Exception {
+        AtomicInteger listed = new AtomicInteger();
+        AtomicInteger listedAtFirstTask = new AtomicInteger(-1);
+
+        // A listing that is slow and only knows its next blob.
+        Iterable<String> listing = () -> new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return listed.get() < 20;
+            }
+
+            @Override
+            public String next() {
+                sleep(5);
+                return "blob-" + listed.incrementAndGet();
+            }
+        };
+
+        int count = new BlobPipeline(4, 2).run(listing, (index, blobName) -> listedAtFirstTask.compareAndSet(-1, listed.get()));
+
+        assertEquals(20, count);
+        assertTrue(listedAtFirstTask.get() < 20);
+    }
+
+    @Test
+    void firstFailureIsThrown() {
+        AtomicInteger processed = new AtomicInteger();
+        StorageException e = assertThrows(StorageException.class, () -> new BlobPipeline(2, 0).run(blobStore.listBlobs(""), (index, blobName) -> {
+            processed.incrementAndGet();
+            blobStore.delete("missing");
+        }));
+
+        assertEquals(404, e.getHttpStatusCode());
+        assertTrue(processed.get() < 50);
+    }
+
+    @Test
+    void errorOfATaskIsThrown() {
+        NoClassDefFoundError e = assertThrows(NoClassDefFoundError.class, () -> new BlobPipeline(2, 0).run(blobStore.listBlobs(""), (index, blobName) -> {
+            if (index == 10) {
+                throw new NoClassDefFoundError("task died");
+            }
+        }));
+
+        assertEquals("task died", e.getMessage());
+    }
+
+    @Test
+    void streamFolderReaderPairKeepsOrder() throws Exception {
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(blobStore);
+        streamReader.setConcurrency(8);
+
+        Pair<List<String>, List<InputStreamReader>> pair = streamReader.streamFolderReaderPair("folder");
+        assertEquals(50, pair.getKey().size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("part-" + (100 + i), pair.getKey().get(i));
+            assertEquals(i, pair.getValue().get(i).read());
+        }
+    }
+
+    @Test
+    void deleteBlob() throws Exception {
+        AzureBlobDelete blobDelete = new AzureBlobDelete(blobStore);
+        blobDelete.deleteBlob("folder/");
+        assertTrue(StorageUtils.listBlobs(blobStore, "").isEmpty());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
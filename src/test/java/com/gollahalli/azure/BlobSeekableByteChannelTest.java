@@ -0,0 +1,148 @@
+package com.gollahalli.azure;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobSeekableByteChannelTest {
+
+    private InMemoryBlobStore memoryStore;
+
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        memoryStore = new InMemoryBlobStore("test");
+        content = new byte[10 * 1000 + 123];
+        new Random(7).nextBytes(content);
+        try (OutputStream outputStream = memoryStore.openOutputStream("data.bin")) {
+            outputStream.write(content);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        memoryStore.deleteContainerIfExists();
+    }
+
+    @Test
+    void randomReadsFetchOnlyTheirBlocks() throws Exception {
+        try (BlobSeekableByteChannel channel = new BlobSeekableByteChannel(memoryStore, "data.bin")) {
+            channel.setBlockSize(1000);
+            channel.setReadAhead(0);
+            assertEquals(content.length, channel.size());
+
+            // Footer, then a chunk in the middle spanning two blocks.
+            assertArrayEquals(Arrays.copyOfRange(content, content.length - 8, content.length), read(channel, content.length - 8, 8));
+            assertArrayEquals(Arrays.copyOfRange(content, 4990, 5020), read(channel, 4990, 30));
+            assertEquals(3, channel.getRequestCount());
+
+            // Cached.
+            assertArrayEquals(Arrays.copyOfRange(content, 5000, 5010), read(channel, 5000, 10));
+            assertEquals(3, channel.getRequestCount());
+
+            channel.position(content.length);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            assertThrows(NonWritableChannelException.class, () -> channel.write(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedBlocksAreDropped() throws Exception {
+        try (BlobSeekableByteChannel channel = new BlobSeekableByteChannel(memoryStore, "data.bin")) {
+            channel.setBlockSize(1000);
+            channel.setCacheBlocks(2);
+            channel.setReadAhead(0);
+            read(channel, 0, 1);
+            read(channel, 5000, 1);
+            read(channel, 0, 1);
+            read(channel, 8000, 1);
+            assertEquals(3, channel.getRequestCount());
+            read(channel, 0, 1);
+            assertEquals(3, channel.getRequestCount());
+            read(channel, 5000, 1);
+            assertEquals(4, channel.getRequestCount());
+        }
+    }
+
+    @Test
+    void sequentialReadsReadAhead() throws Exception {
+        SimulatedBlobStore blobStore = new SimulatedBlobStore(memoryStore, 20, 0, 0, 1);
+        BlobSeekableByteChannel channel = new BlobSeekableByteChannel(blobStore, "data.bin");
+        channel.setBlockSize(1000);
+        channel.setReadAhead(4);
+
+        ByteBuffer all = ByteBuffer.allocate(content.length);
+        ByteBuffer buffer = ByteBuffer.allocate(300);
+        long start = System.nanoTime();
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            all.put(buffer);
+            buffer.clear();
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertArrayEquals(content, all.array());
+        // Every block is fetched once, most of them while the previous ones are read.
+        assertEquals(11, channel.getRequestCount());
+        assertTrue(millis < 11 * 20, "Read in " + millis + " ms");
+
+        channel.close();
+        assertFalse(channel.isOpen());
+        assertThrows(ClosedChannelException.class, () -> channel.read(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    void blobShrunkSinceOpenFails() throws Exception {
+        try (BlobSeekableByteChannel channel = new BlobSeekableByteChannel(memoryStore, "data.bin")) {
+            channel.setBlockSize(1000);
+            channel.setReadAhead(0);
+            try (OutputStream outputStream = memoryStore.openOutputStream("data.bin")) {
+                outputStream.write(content, 0, 5500);
+            }
+            assertArrayEquals(Arrays.copyOfRange(content, 0, 10), read(channel, 0, 10));
+            channel.position(5000);
+            assertThrows(EOFException.class, () -> channel.read(ByteBuffer.allocate(1000)));
+            channel.position(8000);
+            assertThrows(IOException.class, () -> channel.read(ByteBuffer.allocate(1000)));
+        }
+    }
+
+    @Test
+    void zipEntriesAreReadInPlace() throws Exception {
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(memoryStore.openOutputStream("archive.zip"))) {
+            zipOutputStream.putNextEntry(new ZipEntry("a.bin"));
+            zipOutputStream.write(content);
+            zipOutputStream.closeEntry();
+        }
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(memoryStore);
+        try (BlobSeekableByteChannel channel = streamReader.openChannel("archive.zip")) {
+            // The end of central directory record is the last 22 bytes of an archive without comment.
+            byte[] end = read(channel, channel.size() - 22, 22);
+            assertEquals(0x06054b50, ByteBuffer.wrap(end, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt());
+            assertEquals(1, channel.getRequestCount());
+        }
+    }
+
+    private static byte[] read(BlobSeekableByteChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            // Reads until the buffer is full.
+        }
+        return buffer.array();
+    }
+}
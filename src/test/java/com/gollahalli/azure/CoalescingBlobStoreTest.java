@@ -0,0 +1,295 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoalescingBlobStoreTest {
+
+    private byte[] content;
+
+    private SlowBlobStore blobStore;
+
+    private CoalescingBlobStore coalescingStore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        content = new byte[10000];
+        new Random(1).nextBytes(content);
+        blobStore = new SlowBlobStore();
+        try (OutputStream outputStream = blobStore.openOutputStream("config.json")) {
+            outputStream.write(content);
+        }
+        coalescingStore = new CoalescingBlobStore(blobStore);
+    }
+
+    @Test
+    void concurrentDownloadsShareOneRequest() throws Exception {
+        List<byte[]> results = concurrently(20, () -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            coalescingStore.download("config.json", outputStream);
+            return outputStream.toByteArray();
+        });
+
+        for (byte[] result : results) {
+            assertArrayEquals(content, result);
+        }
+        assertEquals(1, blobStore.calls.get());
+        assertEquals(20, coalescingStore.getRequestCount());
+        assertEquals(19, coalescingStore.getCoalescedCount());
+        assertEquals(19L * content.length, coalescingStore.getCoalescedBytes());
+    }
+
+    @Test
+    void rangesAreCoalescedByOffsetAndLength() throws Exception {
+        List<byte[]> results = concurrently(10, () -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            coalescingStore.downloadRange("config.json", 100, 500, outputStream);
+            return outputStream.toByteArray();
+        });
+        for (byte[] result : results) {
+            assertArrayEquals(Arrays.copyOfRange(content, 100, 600), result);
+        }
+        assertEquals(1, blobStore.calls.get());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        coalescingStore.downloadRange("config.json", 0, 500, outputStream);
+        coalescingStore.getProperties("config.json");
+        coalescingStore.getProperties("config.json");
+        assertEquals(4, blobStore.calls.get(), "nothing is kept once a read completed");
+    }
+
+    @Test
+    void streamReadersAreCoalesced() throws Exception {
+        try (OutputStream outputStream = blobStore.openOutputStream("settings.txt")) {
+            outputStream.write("coalesced settings".getBytes(StandardCharsets.UTF_8));
+        }
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(coalescingStore);
+
+        List<String> results = concurrently(10, () -> {
+            try (InputStreamReader reader = streamReader.streamFileReader("settings.txt")) {
+                return IOUtils.toString(reader);
+            }
+        });
+
+        assertEquals(Collections.nCopies(10, "coalesced settings"), results);
+        // One request for the length, one for the contents.
+        assertEquals(2, blobStore.calls.get());
+    }
+
+    @Test
+    void errorsAreShared() throws Exception {
+        List<Integer> statuses = concurrently(10, () -> {
+            try {
+                coalescingStore.getProperties("missing.json");
+                return 200;
+            } catch (StorageException e) {
+                return e.getHttpStatusCode();
+            }
+        });
+
+        assertEquals(Collections.nCopies(10, 404), statuses);
+        assertEquals(1, blobStore.calls.get());
+    }
+
+    @Test
+    void longContentsAreSentAgain() throws Exception {
+        coalescingStore.setMaxLength(1000);
+
+        List<byte[]> results = concurrently(5, () -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            coalescingStore.download("config.json", outputStream);
+            return outputStream.toByteArray();
+        });
+
+        for (byte[] result : results) {
+            assertArrayEquals(content, result);
+        }
+        assertEquals(5, blobStore.calls.get());
+        assertEquals(0, coalescingStore.getCoalescedCount());
+    }
+
+    @Test
+    void droppedCopyReleasesTheWaiters() throws Exception {
+        coalescingStore.setMaxLength(1000);
+        blobStore.pauseMillis = 1000;
+
+        long start = System.nanoTime();
+        List<byte[]> results = concurrently(3, () -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            coalescingStore.download("config.json", outputStream);
+            return outputStream.toByteArray();
+        });
+
+        for (byte[] result : results) {
+            assertArrayEquals(content, result);
+        }
+        assertEquals(3, blobStore.calls.get());
+        // The others start as soon as the first download is too long to share, not once it is done.
+        assertTrue(System.nanoTime() - start < 2_200_000_000L, "waited for the first download");
+    }
+
+    @Test
+    void failedStreamOfTheFirstCallerIsNotShared() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> failing = executor.submit(() -> {
+                coalescingStore.download("config.json", new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        throw new IOException("disk full");
+                    }
+                });
+                return null;
+            });
+            awaitCalls(1);
+            Future<byte[]> joined = executor.submit(() -> {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                coalescingStore.download("config.json", outputStream);
+                return outputStream.toByteArray();
+            });
+
+            assertThrows(Exception.class, failing::get);
+            assertArrayEquals(content, joined.get());
+            assertEquals(2, blobStore.calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void errorOfTheFirstCallerDoesNotBlockTheOthers() throws Exception {
+        blobStore.error = new OutOfMemoryError("copy of the contents");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<BlobItem> failing = executor.submit(() -> coalescingStore.getProperties("config.json"));
+            awaitCalls(1);
+            Future<BlobItem> joined = executor.submit(() -> coalescingStore.getProperties("config.json"));
+
+            ExecutionException e = assertThrows(ExecutionException.class, failing::get);
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+            assertEquals(content.length, joined.get().getLength());
+            assertEquals(content.length, coalescingStore.getProperties("config.json").getLength());
+            assertEquals(3, blobStore.calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts one caller, waits until its request is in flight, then starts the others.
+     */
+    private <T> List<T> concurrently(int callers, Callable<T> call) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            futures.add(executor.submit(call));
+            awaitCalls(1);
+            for (int i = 1; i < callers; i++) {
+                futures.add(executor.submit(call));
+            }
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void awaitCalls(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && blobStore.calls.get() < count; i++) {
+            Thread.sleep(2);
+        }
+        assertEquals(count, blobStore.calls.get());
+    }
+
+    /**
+     * Every read takes 300 ms, long enough for the other callers to join it.
+     */
+    private static class SlowBlobStore extends InMemoryBlobStore {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        /**
+         * Thrown by the next read once it has waited.
+         */
+        private volatile Error error;
+
+        /**
+         * Pause of a download after its first half is written.
+         */
+        private volatile long pauseMillis;
+
+        SlowBlobStore() {
+            super("coalescing");
+        }
+
+        @Override
+        public BlobItem getProperties(String blobName) throws StorageException {
+            slow();
+            return super.getProperties(blobName);
+        }
+
+        @Override
+        public void download(String blobName, OutputStream outputStream) throws StorageException {
+            slow();
+            if (pauseMillis == 0) {
+                super.download(blobName, outputStream);
+                return;
+            }
+            byte[] contents = getContent(blobName);
+            try {
+                outputStream.write(contents, 0, contents.length / 2);
+                Thread.sleep(pauseMillis);
+                outputStream.write(contents, contents.length / 2, contents.length - contents.length / 2);
+            } catch (IOException e) {
+                throw StorageException.translateClientException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw StorageException.translateClientException(e);
+            }
+        }
+
+        @Override
+        public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws StorageException {
+            slow();
+            super.downloadRange(blobName, offset, length, outputStream);
+        }
+
+        private void slow() {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Error next = error;
+            if (next != null) {
+                error = null;
+                throw next;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.gollahalli.azure;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentDefinedChunkerTest {
+
+    @Test
+    void chunksStayWithinTheirSizes() {
+        byte[] content = new byte[20 * 1024 * 1024];
+        new Random(1).nextBytes(content);
+
+        List<Integer> chunks = chunks(content);
+
+        assertEquals(content.length, chunks.stream().mapToInt(Integer::intValue).sum());
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            assertTrue(chunks.get(i) > ContentDefinedChunker.MIN_SIZE && chunks.get(i) <= ContentDefinedChunker.MAX_SIZE, "chunk: " + chunks.get(i));
+        }
+        assertTrue(chunks.size() > 5 && chunks.size() < 40, "chunks: " + chunks.size());
+    }
+
+    @Test
+    void boundariesFollowTheContents() {
+        byte[] content = new byte[20 * 1024 * 1024];
+        new Random(2).nextBytes(content);
+        byte[] shifted = new byte[content.length + 7];
+        System.arraycopy(content, 0, shifted, 7, content.length);
+
+        List<Integer> chunks = chunks(content);
+        List<Integer> shiftedChunks = chunks(shifted);
+
+        // Only the first chunk takes the inserted bytes.
+        assertEquals(chunks.get(0) + 7, (int) shiftedChunks.get(0));
+        assertEquals(chunks.subList(1, chunks.size()), shiftedChunks.subList(1, shiftedChunks.size()));
+    }
+
+    @Test
+    void smallRangeIsOneChunk() {
+        assertEquals(100, ContentDefinedChunker.cut(new byte[100], 0, 100));
+        assertEquals(ContentDefinedChunker.MAX_SIZE, ContentDefinedChunker.cut(new byte[2 * ContentDefinedChunker.MAX_SIZE], 0, 2 * ContentDefinedChunker.MAX_SIZE));
+    }
+
+    private static List<Integer> chunks(byte[] content) {
+        List<Integer> chunks = new ArrayList<>();
+        for (int offset = 0; offset < content.length; ) {
+            int length = ContentDefinedChunker.cut(content, offset, content.length - offset);
+            chunks.add(length);
+            offset += length;
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,120 @@
+package com.gollahalli.azure;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileHashCacheTest {
+
+    private Path folder;
+
+    private InMemoryBlobStore memoryStore;
+
+    private SimulatedBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        folder = Files.createTempDirectory("hash-cache");
+        memoryStore = new InMemoryBlobStore("test");
+        blobStore = new SimulatedBlobStore(memoryStore);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        memoryStore.deleteContainerIfExists();
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    void md5MatchesContentMd5() throws Exception {
+        Path file = write("file.txt", "hello");
+        assertEquals("XUFAKrxLKna5cZ2REBfFkg==", FileHashCache.md5(file));
+        assertEquals(FileHashCache.md5(file), FileHashCache.md5("hello".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void cacheIsPersisted() throws Exception {
+        Path file = write("file.txt", "hello");
+        Path cacheFile = folder.resolve("cache/hashes.tsv");
+
+        FileHashCache cache = new FileHashCache(cacheFile);
+        String md5 = cache.md5(localFile(file));
+        cache.save();
+        assertTrue(Files.isRegularFile(cacheFile));
+
+        // Same size and time, the stale hash is returned without reading the file.
+        FileTime lastModified = Files.getLastModifiedTime(file);
+        Files.write(file, "jello".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, lastModified);
+        FileHashCache reloaded = new FileHashCache(cacheFile);
+        assertEquals(1, reloaded.size());
+        assertEquals(md5, reloaded.md5(localFile(file)));
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified.toMillis() + 1000));
+        assertNotEquals(md5, reloaded.md5(localFile(file)));
+    }
+
+    @Test
+    void deduplicatedFolderUpload() throws Exception {
+        write("source/a.txt", "same");
+        write("source/b.txt", "same");
+        write("source/c.txt", "other");
+
+        AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.setDeduplicate(true);
+        blobUpload.setConcurrency(1);
+        blobUpload.setHashCache(folder.resolve("hashes.tsv").toString());
+        blobUpload.uploadFromFolder(folder.resolve("source").toString(), "blob/");
+
+        List<String> names = StorageUtils.listBlobs(memoryStore, "");
+        assertEquals(3, names.size());
+        assertEquals("same", new String(memoryStore.getContent("blob/source/b.txt"), StandardCharsets.UTF_8));
+        assertEquals(FileHashCache.md5("same".getBytes(StandardCharsets.UTF_8)),
+                memoryStore.getProperties("blob/source/a.txt").getMetadata().get(AzureBlobUpload.MD5_METADATA));
+        // b.txt was copied from a.txt, only a.txt and c.txt went through the link.
+        assertEquals(9, blobStore.getBytesTransferred());
+
+        long requests = blobStore.getRequestCount();
+        blobUpload.uploadFromFolder(folder.resolve("source").toString(), "blob/");
+        assertEquals(9, blobStore.getBytesTransferred());
+        // The container check and the listing, nothing is uploaded or copied.
+        assertEquals(requests + 2, blobStore.getRequestCount());
+    }
+
+    @Test
+    void deduplicatedFileUpload() throws Exception {
+        Path file = write("file.txt", "text");
+        AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.setDeduplicate(true);
+
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertEquals(4, blobStore.getBytesTransferred());
+
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertEquals(4, blobStore.getBytesTransferred());
+
+        Files.write(file, "changed".getBytes(StandardCharsets.UTF_8));
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertEquals("changed", new String(memoryStore.getContent("blob/file.txt"), StandardCharsets.UTF_8));
+    }
+
+    private Path write(String relativePath, String content) throws IOException {
+        Path file = folder.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static LocalFile localFile(Path file) throws IOException {
+        return new LocalFile(file, file.getFileName().toString(), Files.size(file), Files.getLastModifiedTime(file).toMillis());
+    }
+}
@@ -0,0 +1,174 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HedgedBlobStoreTest {
+
+    private byte[] content;
+
+    private StragglingBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        content = new byte[10000];
+        new Random(1).nextBytes(content);
+        blobStore = new StragglingBlobStore();
+        try (OutputStream outputStream = blobStore.openOutputStream("data.bin")) {
+            outputStream.write(content);
+        }
+    }
+
+    @Test
+    void slowReadIsHedged() throws Exception {
+        // The first request straggles for two seconds.
+        blobStore.delayMillis = call -> call == 1 ? 2000 : 0;
+        HedgedBlobStore hedgedStore = new HedgedBlobStore(blobStore);
+        hedgedStore.setDelayMillis(20);
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        hedgedStore.downloadRange("data.bin", 100, 1000, outputStream);
+
+        assertTrue(System.nanoTime() - start < 1_000_000_000L, "waited for the straggler");
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 1100), outputStream.toByteArray());
+        assertEquals(1, hedgedStore.getHedgeCount());
+        assertEquals(1, hedgedStore.getHedgeWinCount());
+    }
+
+    @Test
+    void delayFollowsThePercentile() throws Exception {
+        blobStore.delayMillis = call -> call == HedgedBlobStore.MIN_SAMPLES + 1 ? 2000 : 1;
+        HedgedBlobStore hedgedStore = new HedgedBlobStore(blobStore);
+
+        for (int i = 0; i < HedgedBlobStore.MIN_SAMPLES; i++) {
+            hedgedStore.getProperties("data.bin");
+        }
+        assertEquals(0, hedgedStore.getHedgeCount(), "no hedge before the latencies are known");
+
+        long start = System.nanoTime();
+        assertEquals(content.length, hedgedStore.getProperties("data.bin").getLength());
+        assertTrue(System.nanoTime() - start < 1_000_000_000L, "waited for the straggler");
+        assertEquals(1, hedgedStore.getHedgeWinCount());
+    }
+
+    @Test
+    void budgetCapsTheHedges() throws Exception {
+        blobStore.delayMillis = call -> 5;
+        HedgedBlobStore hedgedStore = new HedgedBlobStore(blobStore);
+        hedgedStore.setDelayMillis(0);
+        hedgedStore.setBudget(0.1);
+
+        for (int i = 0; i < 100; i++) {
+            hedgedStore.exists("data.bin");
+        }
+
+        assertTrue(hedgedStore.getHedgeCount() <= 10 + 10, "hedges: " + hedgedStore.getHedgeCount());
+        assertTrue(blobStore.calls.get() <= 120, "requests: " + blobStore.calls.get());
+    }
+
+    @Test
+    void streamReaderIsHedged() throws Exception {
+        try (OutputStream outputStream = blobStore.openOutputStream("notes.txt")) {
+            outputStream.write("hedged notes".getBytes(StandardCharsets.UTF_8));
+        }
+        // The download after the length is read straggles for two seconds.
+        blobStore.delayMillis = call -> call == 2 ? 2000 : 0;
+        HedgedBlobStore hedgedStore = new HedgedBlobStore(blobStore);
+        hedgedStore.setDelayMillis(20);
+
+        long start = System.nanoTime();
+        try (InputStreamReader reader = new AzureBlobStreamReader(hedgedStore).streamFileReader("notes.txt")) {
+            assertEquals("hedged notes", IOUtils.toString(reader));
+        }
+        assertTrue(System.nanoTime() - start < 1_000_000_000L, "waited for the straggler");
+        assertEquals(1, hedgedStore.getHedgeWinCount());
+    }
+
+    @Test
+    void longDownloadIsStreamed() throws Exception {
+        blobStore.delayMillis = call -> call == 1 ? 300 : 0;
+        HedgedBlobStore hedgedStore = new HedgedBlobStore(blobStore);
+        hedgedStore.setDelayMillis(20);
+        hedgedStore.setMaxLength(1000);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        hedgedStore.download("data.bin", outputStream);
+        assertArrayEquals(content, outputStream.toByteArray());
+
+        outputStream.reset();
+        hedgedStore.downloadRange("data.bin", 0, 5000, outputStream);
+        assertArrayEquals(Arrays.copyOf(content, 5000), outputStream.toByteArray());
+        assertEquals(1, hedgedStore.getRequestCount(), "ranges over the maximum length are not hedged");
+    }
+
+    @Test
+    void failureIsNotHedged() {
+        HedgedBlobStore hedgedStore = new HedgedBlobStore(blobStore);
+        hedgedStore.setDelayMillis(1000);
+
+        StorageException e = assertThrows(StorageException.class, () -> hedgedStore.getProperties("missing.bin"));
+        assertEquals(404, e.getHttpStatusCode());
+        assertEquals(0, hedgedStore.getHedgeCount());
+        assertEquals(1, blobStore.calls.get());
+    }
+
+    /**
+     * Delays each read by a time given by the number of the call.
+     */
+    private static class StragglingBlobStore extends InMemoryBlobStore {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private volatile IntUnaryOperator delayMillis = call -> 0;
+
+        StragglingBlobStore() {
+            super("hedged");
+        }
+
+        @Override
+        public boolean exists(String blobName) {
+            straggle();
+            return super.exists(blobName);
+        }
+
+        @Override
+        public BlobItem getProperties(String blobName) throws StorageException {
+            straggle();
+            return super.getProperties(blobName);
+        }
+
+        @Override
+        public void download(String blobName, OutputStream outputStream) throws StorageException {
+            straggle();
+            super.download(blobName, outputStream);
+        }
+
+        @Override
+        public void downloadRange(String blobName, long offset, long length, OutputStream outputStream) throws StorageException {
+            straggle();
+            super.downloadRange(blobName, offset, length, outputStream);
+        }
+
+        private void straggle() {
+            try {
+                Thread.sleep(delayMillis.applyAsInt(calls.incrementAndGet()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import javafx.util.Pair;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryBlobStoreTest {
+
+    private InMemoryBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() {
+        blobStore = new InMemoryBlobStore("test");
+    }
+
+    @AfterEach
+    void tearDown() {
+        blobStore.deleteContainerIfExists();
+    }
+
+    @Test
+    void openOutputStream() throws Exception {
+        OutputStream outputStream = blobStore.openOutputStream("folder/file.txt");
+        outputStream.write("hello".getBytes(StandardCharsets.UTF_8));
+        assertFalse(blobStore.exists("folder/file.txt"));
+
+        outputStream.close();
+        assertTrue(blobStore.exists("folder/file.txt"));
+
+        try (InputStream inputStream = blobStore.openInputStream("folder/file.txt")) {
+            assertEquals("hello", IOUtils.toString(inputStream, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void listBlobs() throws Exception {
+        write("b/2.txt", "2");
+        write("a/1.txt", "1");
+        write("ab.txt", "3");
+
+        List<String> names = new ArrayList<>();
+        blobStore.listBlobs("a").forEach(names::add);
+        assertEquals(2, names.size());
+        assertEquals("a/1.txt", names.get(0));
+        assertEquals("ab.txt", names.get(1));
+
+        assertEquals(3, StorageUtils.listBlobs(blobStore, null).size());
+    }
+
+    @Test
+    void listBlobItemsWithDetails() throws Exception {
+        try (OutputStream outputStream = blobStore.openOutputStream("a/1.txt", null, Collections.singletonMap("owner", "ops"))) {
+            outputStream.write('1');
+        }
+        write("a/sub/2.txt", "22");
+
+        List<BlobItem> items = StorageUtils.listBlobItems(blobStore, "a/", EnumSet.of(BlobListingDetails.METADATA));
+        assertEquals(2, items.size());
+        assertEquals("ops", items.get(0).getMetadata().get("owner"));
+        assertEquals(2, items.get(1).getLength());
+        assertNotNull(items.get(1).getEtag());
+        assertFalse(items.get(1).isSnapshot());
+
+        BlobItem compact = blobStore.listBlobItems("a/", EnumSet.noneOf(BlobListingDetails.class)).iterator().next();
+        assertTrue(compact.getMetadata().isEmpty());
+        assertEquals(items.get(0).getEtag(), compact.getEtag());
+
+        Pair<List<BlobItem>, List<String>> relative = StorageUtils.getBlobRelativeItems(blobStore, "a", "target", false,
+                EnumSet.noneOf(BlobListingDetails.class));
+        assertEquals("a/sub/2.txt", relative.getKey().get(1).getName());
+        assertEquals(FilenameUtils.concat("target", "sub/2.txt"), relative.getValue().get(1));
+    }
+
+    @Test
+    void delete() throws Exception {
+        write("file.txt", "1");
+        blobStore.delete("file.txt");
+        assertFalse(blobStore.exists("file.txt"));
+
+        StorageException e = assertThrows(StorageException.class, () -> blobStore.delete("file.txt"));
+        assertEquals(404, e.getHttpStatusCode());
+    }
+
+    @Test
+    void deleteIfUnchanged() throws Exception {
+        write("file.txt", "1");
+        String etag = blobStore.getProperties("file.txt").getEtag();
+        write("file.txt", "2");
+
+        StorageException e = assertThrows(StorageException.class, () -> blobStore.delete("file.txt", etag));
+        assertEquals(412, e.getHttpStatusCode());
+        assertTrue(blobStore.exists("file.txt"));
+
+        blobStore.delete("file.txt", blobStore.getProperties("file.txt").getEtag());
+        assertFalse(blobStore.exists("file.txt"));
+    }
+
+    @Test
+    void streamWriterAndReader() throws Exception {
+        AzureBlobStreamWriter streamWriter = new AzureBlobStreamWriter(blobStore);
+        streamWriter.streamFileWriter("path/fileName.txt", "some long text".getBytes(StandardCharsets.UTF_8));
+
+        AzureBlobStreamReader streamReader = new AzureBlobStreamReader(blobStore);
+        try (InputStreamReader reader = streamReader.streamFileReader("path/fileName.txt")) {
+            assertEquals("some long text", IOUtils.toString(reader));
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        blobStore.download("path/fileName.txt", outputStream);
+        assertEquals("some long text", outputStream.toString("UTF-8"));
+    }
+
+    private void write(String blobName, String content) throws Exception {
+        try (OutputStream outputStream = blobStore.openOutputStream(blobName)) {
+            outputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
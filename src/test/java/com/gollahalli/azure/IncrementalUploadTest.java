@@ -0,0 +1,183 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalUploadTest {
+
+    private Path folder;
+
+    private Path file;
+
+    private CountingBlobStore blobStore;
+
+    private AzureBlobUpload blobUpload;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        folder = Files.createTempDirectory("incremental");
+        file = folder.resolve("journal.log");
+        blobStore = new CountingBlobStore();
+        blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.setIncremental(true);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    void onlyTheNewTailIsSent() throws Exception {
+        append(StorageUtils.SDK_BLOCK_SIZE + 100);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertEquals(StorageUtils.SDK_BLOCK_SIZE + 100, blobStore.stagedBytes.get());
+        assertEquals(2, blobStore.getBlockList("blob/journal.log").size());
+
+        // The partial last block is sent again with the new bytes.
+        append(50);
+        blobStore.stagedBytes.set(0);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertEquals(150, blobStore.stagedBytes.get());
+        assertArrayEquals(Files.readAllBytes(file), blobStore.getContent("blob/journal.log"));
+        assertEquals(2, blobStore.getBlockList("blob/journal.log").size());
+
+        blobStore.stagedBytes.set(0);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertEquals(0, blobStore.stagedBytes.get());
+        assertEquals(2, blobStore.commits.get(), "unchanged file is not committed");
+    }
+
+    @Test
+    void changedPrefixIsSentAgain() throws Exception {
+        append(StorageUtils.SDK_BLOCK_SIZE + 100);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+
+        byte[] content = Files.readAllBytes(file);
+        content[10]++;
+        Files.write(file, content);
+        blobStore.stagedBytes.set(0);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+
+        assertEquals(content.length, blobStore.stagedBytes.get());
+        assertArrayEquals(content, blobStore.getContent("blob/journal.log"));
+    }
+
+    @Test
+    void blobWrittenOtherwiseIsReplacedInBlocks() throws Exception {
+        append(1000);
+        try (OutputStream outputStream = blobStore.openOutputStream("blob/journal.log")) {
+            outputStream.write(new byte[1000]);
+        }
+
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+
+        assertEquals(1000, blobStore.stagedBytes.get());
+        assertArrayEquals(Files.readAllBytes(file), blobStore.getContent("blob/journal.log"));
+        assertEquals(1, blobStore.getBlockList("blob/journal.log").size());
+    }
+
+    @Test
+    void commitFailsIfTheBlobChanged() throws Exception {
+        append(100);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        String etag = blobStore.getProperties("blob/journal.log").getEtag();
+        List<String> blockIds = Collections.singletonList(blobStore.getBlockList("blob/journal.log").get(0).getId());
+
+        try (OutputStream outputStream = blobStore.openOutputStream("blob/journal.log")) {
+            outputStream.write(1);
+        }
+        StorageException e = assertThrows(StorageException.class, () -> blobStore.commitBlockList("blob/journal.log", blockIds, etag));
+        assertEquals(412, e.getHttpStatusCode());
+    }
+
+    @Test
+    void chunksAroundAnEditAreSent() throws Exception {
+        blobUpload.setContentDefinedChunking(true);
+        append(12 * 1024 * 1024);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertEquals(12 * 1024 * 1024, blobStore.stagedBytes.get());
+
+        // Bytes inserted in the middle shift everything after them.
+        byte[] content = Files.readAllBytes(file);
+        byte[] edited = new byte[content.length + 1000];
+        System.arraycopy(content, 0, edited, 0, 5 * 1024 * 1024);
+        System.arraycopy(content, 5 * 1024 * 1024, edited, 5 * 1024 * 1024 + 1000, content.length - 5 * 1024 * 1024);
+        Files.write(file, edited);
+        blobStore.stagedBytes.set(0);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+
+        assertTrue(blobStore.stagedBytes.get() <= 2 * ContentDefinedChunker.MAX_SIZE, "staged: " + blobStore.stagedBytes.get());
+        assertArrayEquals(edited, blobStore.getContent("blob/journal.log"));
+
+        blobStore.stagedBytes.set(0);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertEquals(0, blobStore.stagedBytes.get());
+        assertEquals(2, blobStore.commits.get(), "unchanged file is not committed");
+    }
+
+    @Test
+    void verifyChecksTheCommittedBlockList() throws Exception {
+        blobUpload.setVerify(true);
+        append(StorageUtils.SDK_BLOCK_SIZE + 100);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+        assertArrayEquals(Files.readAllBytes(file), blobStore.getContent("blob/journal.log"));
+
+        // A commit that loses a block.
+        blobStore.dropLastBlock = true;
+        append(50);
+        StorageException e = assertThrows(StorageException.class, () -> blobUpload.uploadFromFile(file.toString(), "blob/"));
+        assertEquals(400, e.getHttpStatusCode());
+        assertEquals(1 + StorageUtils.VERIFY_ATTEMPTS, blobStore.commits.get());
+    }
+
+    private void append(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        Files.write(file, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Counts the bytes staged and the commits.
+     */
+    private static class CountingBlobStore extends InMemoryBlobStore {
+
+        private final AtomicLong stagedBytes = new AtomicLong();
+
+        private final AtomicInteger commits = new AtomicInteger();
+
+        private volatile boolean dropLastBlock;
+
+        CountingBlobStore() {
+            super("incremental");
+        }
+
+        @Override
+        public void stageBlock(String blobName, String blockId, byte[] buffer, int offset, int length) {
+            stagedBytes.addAndGet(length);
+            super.stageBlock(blobName, blockId, buffer, offset, length);
+        }
+
+        @Override
+        public synchronized void commitBlockList(String blobName, List<String> blockIds, String etag) throws StorageException {
+            commits.incrementAndGet();
+            super.commitBlockList(blobName, dropLastBlock ? blockIds.subList(0, blockIds.size() - 1) : blockIds, etag);
+        }
+    }
+}
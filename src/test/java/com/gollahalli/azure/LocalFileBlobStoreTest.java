@@ -0,0 +1,69 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalFileBlobStoreTest {
+
+    private Path root;
+
+    private LocalFileBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        root = Files.createTempDirectory("blob-store");
+        blobStore = new LocalFileBlobStore(root.toString(), "test");
+        blobStore.createContainerIfNotExists();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    void uploadAndDownloadFolder() throws Exception {
+        Path source = Files.createDirectories(root.resolve("source/folder/sub"));
+        FileUtils.writeStringToFile(source.resolve("1.txt").toFile(), "one", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(source.getParent().resolve("2.txt").toFile(), "two", StandardCharsets.UTF_8);
+
+        AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.uploadFromFolder(root.resolve("source/folder").toString(), "backup/");
+
+        List<String> names = StorageUtils.listBlobs(blobStore, "backup/");
+        assertEquals(2, names.size());
+        assertEquals("backup/folder/2.txt", names.get(0));
+        assertEquals("backup/folder/sub/1.txt", names.get(1));
+
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+        String target = root.resolve("target").toString();
+        blobDownload.downloadFolder("backup/", target);
+        assertEquals("one", FileUtils.readFileToString(new File(target, "backup/folder/sub/1.txt"), StandardCharsets.UTF_8));
+
+        new AzureBlobDelete(blobStore).deleteBlob("backup/");
+        assertTrue(StorageUtils.listBlobs(blobStore, "").isEmpty());
+    }
+
+    @Test
+    void invalidBlobName() {
+        StorageException e = assertThrows(StorageException.class, () -> blobStore.openInputStream("../escape.txt"));
+        assertEquals(400, e.getHttpStatusCode());
+    }
+
+    @Test
+    void missingBlob() {
+        StorageException e = assertThrows(StorageException.class, () -> blobStore.openInputStream("missing.txt"));
+        assertEquals(404, e.getHttpStatusCode());
+    }
+}
@@ -0,0 +1,92 @@
+package com.gollahalli.azure;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalFileWalkerTest {
+
+    private Path root;
+
+    private Path folder;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        root = Files.createTempDirectory("walker");
+        // The folder name repeats inside the tree.
+        folder = Files.createDirectories(root.resolve("data"));
+        write("a.csv", "1,2");
+        write("data/b.csv", "3,4,5");
+        write("data/c.log", "log");
+        write("tmp/d.csv", "6");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    void walk() {
+        List<LocalFile> files = StorageUtils.listFiles(folder.toString(), null, null);
+        assertEquals(4, files.size());
+        assertEquals("data/a.csv", files.get(0).getRelativePath());
+        assertEquals("data/data/b.csv", files.get(1).getRelativePath());
+        assertEquals(5, files.get(1).getSize());
+        assertTrue(files.get(1).getLastModified() > 0);
+    }
+
+    @Test
+    void walkWithTrailingSeparator() {
+        List<LocalFile> files = StorageUtils.listFiles(folder.toString() + "/", null, null);
+        assertEquals("a.csv", files.get(0).getRelativePath());
+    }
+
+    @Test
+    void walkWithFilters() {
+        List<LocalFile> files = StorageUtils.listFiles(folder.toString(), "**.csv", "tmp");
+        assertEquals(2, files.size());
+        assertEquals("data/a.csv", files.get(0).getRelativePath());
+        assertEquals("data/data/b.csv", files.get(1).getRelativePath());
+    }
+
+    @Test
+    void linkedFoldersAreFollowedOnce() throws Exception {
+        Path other = Files.createDirectories(root.resolve("other"));
+        FileUtils.writeStringToFile(other.resolve("e.csv").toFile(), "7", StandardCharsets.UTF_8);
+        Files.createSymbolicLink(folder.resolve("linked"), other);
+        // A link back to the walked folder, and one to nothing.
+        Files.createSymbolicLink(folder.resolve("tmp/loop"), folder);
+        Files.createSymbolicLink(folder.resolve("broken.csv"), root.resolve("missing.csv"));
+
+        List<LocalFile> files = StorageUtils.listFiles(folder.toString(), null, null);
+        assertEquals(5, files.size());
+        assertEquals("data/linked/e.csv", files.get(3).getRelativePath());
+    }
+
+    @Test
+    void scan() {
+        List<String> names = new ArrayList<>();
+        try (LocalFileWalker.Scan scan = new LocalFileWalker(folder.toString(), null, null, 2).scan(1)) {
+            while (scan.hasNext()) {
+                names.add(scan.next().getRelativePath());
+            }
+        }
+        names.sort(null);
+        assertEquals(4, names.size());
+        assertEquals("data/tmp/d.csv", names.get(3));
+    }
+
+    private void write(String relativePath, String content) throws Exception {
+        FileUtils.writeStringToFile(folder.resolve(relativePath).toFile(), content, StandardCharsets.UTF_8);
+    }
+}
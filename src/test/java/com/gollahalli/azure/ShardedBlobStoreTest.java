@@ -0,0 +1,150 @@
+package com.gollahalli.azure;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedBlobStoreTest {
+
+    private Path folder;
+
+    private List<InMemoryBlobStore> shards;
+
+    private ShardedBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        folder = Files.createTempDirectory("sharded");
+        shards = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            shards.add(new InMemoryBlobStore("shard" + i));
+        }
+        blobStore = new ShardedBlobStore("logical", shards);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    void blobsAreSpreadOverTheShards() throws Exception {
+        for (int i = 0; i < 4000; i++) {
+            put("blob/" + i + ".txt");
+        }
+
+        for (InMemoryBlobStore shard : shards) {
+            int count = StorageUtils.listBlobs(shard, "blob/").size();
+            assertTrue(count > 700 && count < 1300, shard.getContainerName() + ": " + count);
+        }
+        assertTrue(blobStore.exists("blob/42.txt"));
+        assertTrue(blobStore.getShard("blob/42.txt").exists("blob/42.txt"));
+    }
+
+    @Test
+    void listingIsMergedInOrder() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            names.add("blob/" + i + ".txt");
+            put("blob/" + i + ".txt");
+        }
+        put("other.txt");
+        Collections.sort(names);
+
+        assertEquals(names, StorageUtils.listBlobs(blobStore, "blob/"));
+        List<String> itemNames = new ArrayList<>();
+        blobStore.listBlobItems("blob/").forEach(blob -> itemNames.add(blob.getName()));
+        assertEquals(names, itemNames);
+    }
+
+    @Test
+    void shardsAreListedConcurrently() throws Exception {
+        List<InMemoryBlobStore> slowShards = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            // The first page of each shard takes 500 ms.
+            slowShards.add(new InMemoryBlobStore("slow" + i) {
+                @Override
+                public Iterable<String> listBlobs(String prefix) {
+                    Iterable<String> listing = super.listBlobs(prefix);
+                    return () -> {
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return listing.iterator();
+                    };
+                }
+            });
+        }
+        ShardedBlobStore slowStore = new ShardedBlobStore("slow", slowShards);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 2 * ShardedBlobStore.PREFETCH_SIZE + 500; i++) {
+            names.add(String.format("blob/%05d.txt", i));
+            try (OutputStream outputStream = slowStore.openOutputStream(names.get(i))) {
+                outputStream.write(1);
+            }
+        }
+
+        long start = System.nanoTime();
+        assertEquals(names, StorageUtils.listBlobs(slowStore, "blob/"));
+        assertTrue(System.nanoTime() - start < 1_500_000_000L, "shards listed one after another");
+    }
+
+    @Test
+    void addingAShardMovesFewBlobs() throws Exception {
+        List<InMemoryBlobStore> more = new ArrayList<>(shards);
+        more.add(new InMemoryBlobStore("shard4"));
+        Collections.reverse(more);
+        ShardedBlobStore grown = new ShardedBlobStore("logical", more);
+
+        int moved = 0;
+        for (int i = 0; i < 5000; i++) {
+            BlobStore shard = grown.getShard("blob/" + i + ".txt");
+            if (shard != blobStore.getShard("blob/" + i + ".txt")) {
+                assertSame(more.get(0), shard, "blobs only move to the new shard");
+                moved++;
+            }
+        }
+        assertTrue(moved > 600 && moved < 1500, "moved: " + moved);
+    }
+
+    @Test
+    void transfersRouteThroughTheShards() throws Exception {
+        Files.createDirectories(folder.resolve("source/sub"));
+        Files.write(folder.resolve("source/a.txt"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.resolve("source/sub/b.txt"), "b".getBytes(StandardCharsets.UTF_8));
+
+        new AzureBlobUpload(blobStore).uploadFromFolder(folder.resolve("source").toString(), "blob/");
+        new AzureBlobDownload(blobStore).downloadFolder("blob/", folder.resolve("target").toString());
+        assertEquals("b", new String(Files.readAllBytes(folder.resolve("target/blob/source/sub/b.txt")), StandardCharsets.UTF_8));
+
+        new AzureBlobDelete(blobStore).deleteBlob("blob/");
+        assertEquals(Collections.emptyList(), StorageUtils.listBlobs(blobStore, "blob/"));
+    }
+
+    @Test
+    void duplicateContainerIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardedBlobStore("logical",
+                Arrays.asList(new InMemoryBlobStore("same"), new InMemoryBlobStore("same"))));
+    }
+
+    private void put(String blobName) throws Exception {
+        try (OutputStream outputStream = blobStore.openOutputStream(blobName)) {
+            outputStream.write(blobName.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
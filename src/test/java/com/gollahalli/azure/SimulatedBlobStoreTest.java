@@ -0,0 +1,68 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimulatedBlobStoreTest {
+
+    private SimulatedBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() {
+        blobStore = new SimulatedBlobStore(new InMemoryBlobStore("test"));
+    }
+
+    @AfterEach
+    void tearDown() {
+    }
+
+    @Test
+    void latencyAndBandwidth() throws Exception {
+        blobStore.setLatencyMillis(20);
+        blobStore.setBytesPerSecond(100 * 1024);
+
+        long start = System.nanoTime();
+        try (OutputStream outputStream = blobStore.openOutputStream("file.bin")) {
+            outputStream.write(new byte[10 * 1024]);
+        }
+        blobStore.download("file.bin", new ByteArrayOutputStream());
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        // 2 requests of 20 ms and 20 KB at 100 KB/s.
+        assertTrue(elapsedMillis >= 200, "Elapsed: " + elapsedMillis);
+        assertEquals(2, blobStore.getRequestCount());
+        assertEquals(20 * 1024, blobStore.getBytesTransferred());
+    }
+
+    @Test
+    void faultInjection() throws Exception {
+        int failures = 0;
+        SimulatedBlobStore first = new SimulatedBlobStore(new InMemoryBlobStore("test"), 0, 0, 0.5, 7);
+        SimulatedBlobStore second = new SimulatedBlobStore(new InMemoryBlobStore("test"), 0, 0, 0.5, 7);
+        for (int i = 0; i < 100; i++) {
+            boolean firstFailed = exists(first);
+            assertEquals(firstFailed, exists(second));
+            failures += firstFailed ? 1 : 0;
+        }
+
+        assertEquals(failures, first.getFailureCount());
+        assertTrue(failures > 0 && failures < 100);
+    }
+
+    private static boolean exists(BlobStore blobStore) throws Exception {
+        try {
+            blobStore.exists("file.bin");
+            return false;
+        } catch (StorageException e) {
+            assertEquals(503, e.getHttpStatusCode());
+            return true;
+        }
+    }
+}
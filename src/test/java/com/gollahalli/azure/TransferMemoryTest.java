@@ -0,0 +1,140 @@
+package com.gollahalli.azure;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferMemoryTest {
+
+    @Test
+    void acquireWaitsForRelease() throws Exception {
+        TransferMemory transferMemory = new TransferMemory(100);
+        transferMemory.acquire(80);
+
+        AtomicBoolean acquired = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                transferMemory.acquire(50);
+                acquired.set(true);
+            } catch (Exception e) {
+                fail(e);
+            }
+            done.countDown();
+        });
+        thread.start();
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, transferMemory.getWaitingCount());
+        assertFalse(transferMemory.tryAcquire(10), "waiters go first");
+
+        transferMemory.release(80);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(acquired.get());
+        assertEquals(50, transferMemory.getUsedBytes());
+        assertEquals(80, transferMemory.getPeakBytes());
+        assertEquals(1, transferMemory.getWaitCount());
+        assertTrue(transferMemory.getWaitMillis() >= 50);
+    }
+
+    @Test
+    void oversizedRequestRunsAlone() throws Exception {
+        TransferMemory transferMemory = new TransferMemory(100);
+
+        transferMemory.acquire(500);
+        assertEquals(500, transferMemory.getUsedBytes());
+        assertFalse(transferMemory.tryAcquire(1));
+
+        transferMemory.release(500);
+        assertTrue(transferMemory.tryAcquire(100));
+    }
+
+    @Test
+    void downloadsStayWithinBudget() throws Exception {
+        InMemoryBlobStore blobStore = new InMemoryBlobStore("memory");
+        byte[] content = new byte[3 * 1024];
+        new Random(1).nextBytes(content);
+        for (int i = 0; i < 30; i++) {
+            try (OutputStream outputStream = blobStore.openOutputStream("blob/" + i + ".bin", null, null)) {
+                outputStream.write(content);
+            }
+        }
+        Path folder = Files.createTempDirectory("memory");
+        try {
+            TransferMemory transferMemory = new TransferMemory(2 * 1024);
+            AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+            blobDownload.setConcurrency(8);
+            blobDownload.setBufferPool(new DirectBufferPool(1024, 8));
+            blobDownload.setTransferMemory(transferMemory);
+
+            blobDownload.downloadFolder("blob", folder.toString(), false);
+
+            assertArrayEquals(content, Files.readAllBytes(folder.resolve("29.bin")));
+            assertEquals(0, transferMemory.getUsedBytes());
+            assertTrue(transferMemory.getPeakBytes() <= 2 * 1024, "peak: " + transferMemory.getPeakBytes());
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    @Test
+    void channelSkipsReadAheadWithoutMemory() throws Exception {
+        InMemoryBlobStore blobStore = new InMemoryBlobStore("memory");
+        byte[] content = new byte[8 * 100];
+        new Random(2).nextBytes(content);
+        try (OutputStream outputStream = blobStore.openOutputStream("data.bin", null, null)) {
+            outputStream.write(content);
+        }
+        TransferMemory transferMemory = new TransferMemory(200);
+
+        try (BlobSeekableByteChannel channel = new BlobSeekableByteChannel(blobStore, "data.bin")) {
+            channel.setBlockSize(100);
+            channel.setReadAhead(4);
+            channel.setTransferMemory(transferMemory);
+            ByteBuffer buffer = ByteBuffer.allocate(content.length);
+            while (buffer.hasRemaining()) {
+                channel.read(buffer);
+                assertTrue(transferMemory.getUsedBytes() <= 200, "used: " + transferMemory.getUsedBytes());
+            }
+
+            assertArrayEquals(content, buffer.array());
+            assertEquals(8, channel.getRequestCount());
+        }
+        assertEquals(0, transferMemory.getUsedBytes());
+    }
+
+    @Test
+    void readAheadStreamReleasesMemory() throws Exception {
+        InMemoryBlobStore blobStore = new InMemoryBlobStore("memory");
+        byte[] content = new byte[1000];
+        new Random(3).nextBytes(content);
+        try (OutputStream outputStream = blobStore.openOutputStream("data.bin", null, null)) {
+            outputStream.write(content);
+        }
+        TransferMemory transferMemory = new TransferMemory(250);
+
+        byte[] read = new byte[content.length];
+        try (BlobReadAheadInputStream inputStream = new BlobReadAheadInputStream(blobStore, "data.bin", content.length, 100, 8,
+                transferMemory, TransferScheduler.getShared(), TransferPriority.INTERACTIVE)) {
+            int offset = 0;
+            int count;
+            while ((count = inputStream.read(read, offset, read.length - offset)) > 0) {
+                offset += count;
+                assertTrue(transferMemory.getUsedBytes() <= 250, "used: " + transferMemory.getUsedBytes());
+            }
+        }
+
+        assertArrayEquals(content, read);
+        assertEquals(0, transferMemory.getUsedBytes());
+    }
+}
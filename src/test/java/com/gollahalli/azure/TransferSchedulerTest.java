@@ -0,0 +1,127 @@
+package com.gollahalli.azure;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferSchedulerTest {
+
+    @Test
+    void classLimitQueuesRequests() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(4);
+        scheduler.setConcurrency(TransferPriority.BULK, 1);
+
+        scheduler.acquire(TransferPriority.BULK);
+        List<Thread> threads = start(scheduler, Collections.nCopies(1, TransferPriority.BULK), new ArrayList<>());
+        awaitQueued(scheduler, TransferPriority.BULK, 1);
+        scheduler.acquire(TransferPriority.INTERACTIVE);
+
+        assertEquals(1, scheduler.getRunningCount(TransferPriority.BULK));
+        assertEquals(1, scheduler.getRunningCount(TransferPriority.INTERACTIVE));
+        scheduler.release(TransferPriority.INTERACTIVE);
+        scheduler.release(TransferPriority.BULK);
+        join(threads);
+
+        assertEquals(2, scheduler.getStartedCount(TransferPriority.BULK));
+        assertEquals(0, scheduler.getQueuedCount(TransferPriority.BULK));
+        assertEquals(0, scheduler.getRunningCount(TransferPriority.BULK));
+    }
+
+    @Test
+    void tryAcquireNeverQueues() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(2);
+        scheduler.setConcurrency(TransferPriority.BULK, 1);
+
+        assertTrue(scheduler.tryAcquire(TransferPriority.BULK));
+        assertFalse(scheduler.tryAcquire(TransferPriority.BULK), "class at its limit");
+        List<Thread> threads = start(scheduler, Collections.nCopies(1, TransferPriority.BULK), new ArrayList<>());
+        awaitQueued(scheduler, TransferPriority.BULK, 1);
+        assertFalse(scheduler.tryAcquire(TransferPriority.INTERACTIVE), "requests are queued");
+        assertEquals(0, scheduler.getQueuedCount(TransferPriority.INTERACTIVE));
+
+        scheduler.release(TransferPriority.BULK);
+        join(threads);
+        assertTrue(scheduler.tryAcquire(TransferPriority.INTERACTIVE));
+        assertEquals(1, scheduler.getRunningCount(TransferPriority.INTERACTIVE));
+    }
+
+    @Test
+    void interactiveGoesAheadOfQueuedBulk() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1);
+        List<TransferPriority> order = Collections.synchronizedList(new ArrayList<>());
+
+        scheduler.acquire(TransferPriority.BULK);
+        List<Thread> threads = start(scheduler, Collections.nCopies(5, TransferPriority.BULK), order);
+        awaitQueued(scheduler, TransferPriority.BULK, 5);
+        threads.addAll(start(scheduler, Collections.singletonList(TransferPriority.INTERACTIVE), order));
+        awaitQueued(scheduler, TransferPriority.INTERACTIVE, 1);
+        scheduler.release(TransferPriority.BULK);
+        join(threads);
+
+        assertEquals(TransferPriority.INTERACTIVE, order.get(0));
+        assertEquals(6, order.size());
+    }
+
+    @Test
+    void slotsAreSharedByWeight() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1);
+        scheduler.setWeight(TransferPriority.NORMAL, 3);
+        List<TransferPriority> order = Collections.synchronizedList(new ArrayList<>());
+
+        scheduler.acquire(TransferPriority.INTERACTIVE);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            // One at a time, so that the queues keep the order of the requests.
+            threads.addAll(start(scheduler, Collections.singletonList(TransferPriority.BULK), order));
+            awaitQueued(scheduler, TransferPriority.BULK, i + 1);
+            threads.addAll(start(scheduler, Collections.singletonList(TransferPriority.NORMAL), order));
+            awaitQueued(scheduler, TransferPriority.NORMAL, i + 1);
+        }
+        scheduler.release(TransferPriority.INTERACTIVE);
+        join(threads);
+
+        // While both classes are queued, three normal requests start for every bulk one.
+        assertEquals(6, Collections.frequency(order.subList(0, 8), TransferPriority.NORMAL));
+        assertTrue(scheduler.getWaitMillis(TransferPriority.BULK) > 0);
+    }
+
+    /**
+     * Starts a thread per request, each records its class once it has a slot and gives the slot back.
+     */
+    private static List<Thread> start(TransferScheduler scheduler, List<TransferPriority> priorities, List<TransferPriority> order) {
+        List<Thread> threads = new ArrayList<>();
+        for (TransferPriority priority : priorities) {
+            Thread thread = new Thread(() -> {
+                try {
+                    scheduler.acquire(priority);
+                    order.add(priority);
+                    Thread.sleep(5);
+                    scheduler.release(priority);
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private static void awaitQueued(TransferScheduler scheduler, TransferPriority priority, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && scheduler.getQueuedCount(priority) < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, scheduler.getQueuedCount(priority));
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.gollahalli.azure;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Measures the cost of {@link AzureBlobUpload#setVerify(boolean)} and {@link AzureBlobDownload#setVerify(boolean)}:
+ * uploads and downloads a folder with and without the check against a {@link SimulatedBlobStore} and reports the
+ * throughput and the overhead of the check. Not a unit test, run it with the folder size in MB, the number of files
+ * and the bandwidth in MB/s of the simulated link, <code>0</code> for unlimited, as arguments.
+ */
+public class TransferVerificationBenchmark {
+
+    /**
+     * Runs of each case, the fastest is reported.
+     */
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1024 * 1024;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long bytesPerSecond = (args.length > 2 ? Long.parseLong(args[2]) : 200) * 1024 * 1024;
+
+        Path folder = Files.createTempDirectory("verification-benchmark");
+        try {
+            Random random = new Random(42);
+            byte[] content = new byte[size / files];
+            for (int i = 0; i < files; i++) {
+                random.nextBytes(content);
+                Files.write(Files.createDirectories(folder.resolve("source")).resolve(i + ".bin"), content);
+            }
+
+            System.out.printf("%-10s %14s %14s %10s%n", "transfer", "plain MB/s", "verified MB/s", "overhead");
+            double[] upload = {best(folder, bytesPerSecond, false, true), best(folder, bytesPerSecond, true, true)};
+            print("upload", size, upload);
+            double[] download = {best(folder, bytesPerSecond, false, false), best(folder, bytesPerSecond, true, false)};
+            print("download", size, download);
+        } finally {
+            FileUtils.deleteDirectory(folder.toFile());
+        }
+    }
+
+    /**
+     * Fastest of {@link #RUNS} runs.
+     */
+    private static double best(Path folder, long bytesPerSecond, boolean verify, boolean upload) throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            InMemoryBlobStore memoryStore = new InMemoryBlobStore("benchmark");
+            SimulatedBlobStore blobStore = new SimulatedBlobStore(memoryStore, 0, bytesPerSecond, 0, 0);
+            AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+            AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+            File target = folder.resolve("target").toFile();
+            FileUtils.deleteDirectory(target);
+
+            long start = System.nanoTime();
+            blobUpload.setVerify(upload && verify);
+            blobUpload.uploadFromFolder(folder.resolve("source").toString(), "blob/");
+            double uploadSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            blobDownload.setVerify(!upload && verify);
+            blobDownload.downloadFolder("blob/", target.getPath());
+            double downloadSeconds = (System.nanoTime() - start) / 1e9;
+
+            best = Math.min(best, upload ? uploadSeconds : downloadSeconds);
+        }
+        return best;
+    }
+
+    private static void print(String transfer, int size, double[] seconds) {
+        System.out.printf("%-10s %14.1f %14.1f %9.1f%%%n", transfer, size / seconds[0] / 1024 / 1024,
+                size / seconds[1] / 1024 / 1024, (seconds[1] / seconds[0] - 1) * 100);
+    }
+}
@@ -0,0 +1,165 @@
+package com.gollahalli.azure;
+
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferVerificationTest {
+
+    private static final String TEXT = "some long text, some long text, some long text";
+
+    private Path folder;
+
+    private CorruptingBlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        folder = Files.createTempDirectory("verification");
+        blobStore = new CorruptingBlobStore();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        blobStore.deleteContainerIfExists();
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Test
+    void corruptedUploadIsRetried() throws Exception {
+        Path file = write("file.txt");
+        blobStore.corruptWrites.set(1);
+
+        AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.setVerify(true);
+        blobUpload.uploadFromFile(file.toString(), "blob/");
+
+        assertEquals(TEXT, new String(blobStore.getContent("blob/file.txt"), StandardCharsets.UTF_8));
+        assertEquals(0, blobStore.corruptWrites.get());
+    }
+
+    @Test
+    void corruptedUploadFails() throws Exception {
+        Path file = write("file.txt");
+        blobStore.corruptWrites.set(Integer.MAX_VALUE);
+
+        AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.setVerify(true);
+        blobUpload.setCompression(BlobCompression.GZIP);
+        StorageException e = assertThrows(StorageException.class, () -> blobUpload.uploadFromFile(file.toString(), "blob/"));
+        assertEquals(StorageErrorCodeStrings.MD5_MISMATCH, e.getErrorCode());
+        assertEquals(Integer.MAX_VALUE - StorageUtils.VERIFY_ATTEMPTS, blobStore.corruptWrites.get());
+    }
+
+    @Test
+    void corruptedDownloadIsRetried() throws Exception {
+        write("source/1.txt");
+        write("source/2.txt");
+        AzureBlobUpload blobUpload = new AzureBlobUpload(blobStore);
+        blobUpload.setCompression(BlobCompression.DEFLATE);
+        blobUpload.uploadFromFolder(folder.resolve("source").toString(), "blob/");
+
+        blobStore.corruptReads.set(1);
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+        blobDownload.setVerify(true);
+        blobDownload.setDecompress(true);
+        blobDownload.downloadFolder("blob/", folder.resolve("target").toString());
+
+        assertEquals(0, blobStore.corruptReads.get());
+        assertEquals(TEXT, FileUtils.readFileToString(folder.resolve("target/blob/source/1.txt").toFile(), StandardCharsets.UTF_8));
+        assertEquals(TEXT, FileUtils.readFileToString(folder.resolve("target/blob/source/2.txt").toFile(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void corruptedDownloadFails() throws Exception {
+        AzureBlobStreamWriter streamWriter = new AzureBlobStreamWriter(blobStore);
+        streamWriter.streamFileWriter("file.txt", TEXT.getBytes(StandardCharsets.UTF_8));
+
+        blobStore.corruptReads.set(Integer.MAX_VALUE);
+        AzureBlobDownload blobDownload = new AzureBlobDownload(blobStore);
+        blobDownload.setVerify(true);
+        StorageException e = assertThrows(StorageException.class, () -> blobDownload.downloadFile("file.txt", folder.toString()));
+        assertEquals(400, e.getHttpStatusCode());
+        assertEquals(Integer.MAX_VALUE - StorageUtils.VERIFY_ATTEMPTS, blobStore.corruptReads.get());
+    }
+
+    private Path write(String relativePath) throws IOException {
+        Path file = folder.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Flips the first byte of the next writes and reads, after the bytes were handed over to it.
+     */
+    private static class CorruptingBlobStore extends InMemoryBlobStore {
+
+        private AtomicInteger corruptWrites = new AtomicInteger();
+
+        private AtomicInteger corruptReads = new AtomicInteger();
+
+        CorruptingBlobStore() {
+            super("corrupting");
+        }
+
+        @Override
+        public OutputStream openOutputStream(String blobName, String contentEncoding, Map<String, String> metadata) {
+            return corrupt(super.openOutputStream(blobName, contentEncoding, metadata), corruptWrites);
+        }
+
+        @Override
+        public void download(String blobName, OutputStream outputStream) throws StorageException {
+            super.download(blobName, corrupt(outputStream, corruptReads));
+        }
+
+        @Override
+        public InputStream openInputStream(String blobName) throws StorageException {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            download(blobName, outputStream);
+            return new ByteArrayInputStream(outputStream.toByteArray());
+        }
+
+        private static OutputStream corrupt(OutputStream outputStream, AtomicInteger remaining) {
+            if (remaining.getAndUpdate(count -> Math.max(0, count - 1)) == 0) {
+                return outputStream;
+            }
+            return new FilterOutputStream(outputStream) {
+
+                private boolean corrupted;
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (!corrupted && len > 0) {
+                        corrupted = true;
+                        byte[] copy = b.clone();
+                        copy[off] ^= 1;
+                        out.write(copy, off, len);
+                    } else {
+                        out.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+            };
+        }
+    }
+}